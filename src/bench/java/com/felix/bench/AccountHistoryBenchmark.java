@@ -0,0 +1,144 @@
+package com.felix.bench;
+
+import com.felix.DbSchema;
+import com.felix.HikariCPDataSource;
+import com.felix.history.PostingHistory;
+import com.felix.model.PostingModel;
+import com.zaxxer.hikari.HikariDataSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of one page of account history as the history grows. Half of the postings are in an old month that is
+ * archived into its own file, so deepPage reads across the live table and the archive. legacyScan is how the
+ * history of a recipient had to be found before postings, through the details text of the sender's log.
+ * <p>
+ * mvn -Pbench test-compile exec:exec -Djmh.args="AccountHistoryBenchmark -p transfers=10000,1000000"
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AccountHistoryBenchmark {
+    private static final String DB_FILE = "bench-history.db";
+    private static final int ACCOUNTS = 1000;
+    private static final int PAGE_SIZE = 50;
+
+    @Param({"10000", "1000000"})
+    public int transfers;
+
+    private HikariDataSource dataSource;
+    private Path archiveDir;
+    private PostingHistory postingHistory;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        new File(DB_FILE).delete();
+        dataSource = HikariCPDataSource.createNewDataSource(DB_FILE, 2);
+        DbSchema.setup(dataSource);
+        try (Connection conn = dataSource.getConnection()) {
+            try (PreparedStatement stmt = conn.prepareStatement("""
+                    with recursive ids(id) as (select 1 union all select id + 1 from ids where id < ?)
+                    insert into transaction_logs (id, account_id, amount, type, details)
+                    select id, id % ?, 1, 0, 'transfer to account ' || ((id * 7) % ?) from ids
+                    """)) {
+                stmt.setInt(1, transfers);
+                stmt.setInt(2, ACCOUNTS);
+                stmt.setInt(3, ACCOUNTS);
+                stmt.executeUpdate();
+            }
+            try (PreparedStatement stmt = conn.prepareStatement("""
+                    insert into postings (transfer_id, account_id, counterparty_id, amount, type, bucket)
+                    select id, account_id, counterparty_id, amount, 0, iif(id <= ? / 2, 200001, ?)
+                    from (select id, account_id, (id * 7) % ? as counterparty_id, -1 as amount, 0 as side
+                          from transaction_logs
+                          union all
+                          select id, (id * 7) % ?, account_id, 1, 1 from transaction_logs)
+                    order by id, side
+                    """)) {
+                stmt.setInt(1, transfers);
+                stmt.setInt(2, PostingHistory.bucketOf(System.currentTimeMillis()));
+                stmt.setInt(3, ACCOUNTS);
+                stmt.setInt(4, ACCOUNTS);
+                stmt.executeUpdate();
+            }
+        }
+        archiveDir = Files.createTempDirectory("bench-posting-archive");
+        postingHistory = new PostingHistory(DB_FILE, dataSource, dataSource, archiveDir, 2);
+        postingHistory.open();
+        postingHistory.archive(PostingHistory.bucketOf(System.currentTimeMillis()));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        postingHistory.close();
+        dataSource.close();
+        new File(DB_FILE).delete();
+        try (var files = Files.list(archiveDir)) {
+            for (Path file : files.toList()) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(archiveDir);
+    }
+
+    @Benchmark
+    public List<PostingModel> firstPage() throws Exception {
+        return postingHistory.getAccountPostings(randomAccount(), Long.MAX_VALUE, PAGE_SIZE);
+    }
+
+    @Benchmark
+    public List<PostingModel> deepPage() throws Exception {
+        // the archived month ends at seq transfers, so the page starts in the live table and ends in the archive
+        long beforeSeq = transfers + 10_000L;
+        return postingHistory.getAccountPostings(randomAccount(), beforeSeq, PAGE_SIZE);
+    }
+
+    @Benchmark
+    public int legacyScan() throws Exception {
+        int accountId = randomAccount();
+        int rows = 0;
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement stmt = conn.prepareStatement("""
+                     select id, account_id, amount, type, details from transaction_logs
+                     where account_id = ? or details = ? order by id desc limit ?
+                     """)) {
+            stmt.setInt(1, accountId);
+            stmt.setString(2, "transfer to account " + accountId);
+            stmt.setInt(3, PAGE_SIZE);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    rows++;
+                }
+            }
+        }
+        return rows;
+    }
+
+    private int randomAccount() {
+        return ThreadLocalRandom.current().nextInt(ACCOUNTS);
+    }
+}
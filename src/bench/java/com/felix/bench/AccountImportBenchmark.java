@@ -0,0 +1,133 @@
+package com.felix.bench;
+
+import com.felix.DbSchema;
+import com.felix.HikariCPDataSource;
+import com.felix.SqliteProfile;
+import com.felix.dao.BalanceDAO;
+import com.felix.export.ExportFormat;
+import com.felix.money.CurrencyUnit;
+import com.felix.provisioning.AccountImporter;
+import com.felix.provisioning.ImportReport;
+import com.zaxxer.hikari.HikariDataSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to load the given number of accounts into an empty database. setupAccount commits every account on its own as
+ * Main used to, import streams generated CSV rows through {@link AccountImporter}. Larger loads only make sense for
+ * the import, e.g. -Djmh.args="AccountImportBenchmark -p loader=import -p accounts=1000000".
+ * <p>
+ * mvn -Pbench test-compile exec:exec -Djmh.args="AccountImportBenchmark"
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AccountImportBenchmark {
+    private static final String DB_FILE = "bench-import.db";
+
+    @Param({"setupAccount", "import"})
+    public String loader;
+
+    @Param({"20000"})
+    public int accounts;
+
+    private HikariDataSource writeDataSource;
+
+    @Setup(Level.Iteration)
+    public void setup() throws Exception {
+        deleteDatabase();
+        writeDataSource = HikariCPDataSource.createWriterDataSource(DB_FILE, SqliteProfile.defaults());
+        DbSchema.setup(writeDataSource);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        writeDataSource.close();
+        deleteDatabase();
+    }
+
+    @Benchmark
+    public long load() throws Exception {
+        if (loader.equals("import")) {
+            AccountImporter importer = new AccountImporter(List.of(writeDataSource), CurrencyUnit.of("USD"),
+                    AccountImporter.DEFAULT_ROWS_PER_TRANSACTION, AccountImporter.IGNORE_IMPORTED);
+            ImportReport report = importer.importAccounts(new CsvRows(accounts), ExportFormat.CSV,
+                    AccountImporter.IGNORE_PROGRESS);
+            return report.accountsImported();
+        }
+        try (Connection conn = writeDataSource.getConnection()) {
+            BalanceDAO balanceDAO = new BalanceDAO(conn);
+            for (int accountId = 1; accountId <= accounts; accountId++) {
+                balanceDAO.setupAccount(accountId, accountId, 1_000_00L);
+            }
+        }
+        return accounts;
+    }
+
+    /**
+     * CSV rows generated as they are read, the file is never held
+     */
+    private static final class CsvRows extends InputStream {
+        private final int accounts;
+        private int accountId;
+        private byte[] row = "accountId,userId,balance\n".getBytes(StandardCharsets.UTF_8);
+        private int position;
+
+        CsvRows(int accounts) {
+            this.accounts = accounts;
+        }
+
+        @Override
+        public int read() {
+            if (position == row.length) {
+                if (accountId == accounts) {
+                    return -1;
+                }
+                accountId++;
+                row = (accountId + "," + accountId + ",1000\n").getBytes(StandardCharsets.UTF_8);
+                position = 0;
+            }
+            return row[position++];
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) {
+            int read = 0;
+            while (read < length) {
+                int b = read();
+                if (b < 0) {
+                    return read == 0 ? -1 : read;
+                }
+                buffer[offset + read++] = (byte) b;
+            }
+            return read;
+        }
+    }
+
+    private static void deleteDatabase() {
+        new File(DB_FILE).delete();
+        new File(DB_FILE + "-wal").delete();
+        new File(DB_FILE + "-shm").delete();
+    }
+}
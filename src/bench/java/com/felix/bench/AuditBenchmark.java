@@ -0,0 +1,155 @@
+package com.felix.bench;
+
+import com.felix.DbSchema;
+import com.felix.HikariCPDataSource;
+import com.felix.SqliteProfile;
+import com.felix.audit.AuditReport;
+import com.felix.audit.BalanceAuditor;
+import com.felix.dao.BalanceDAO;
+import com.felix.model.TransactionLogType;
+import com.zaxxer.hikari.HikariDataSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of checking every balance against its postings after 1000 new postings, over a history of the given size.
+ * incremental is a {@link BalanceAuditor} run from the last checkpoint, recompute sums the whole postings table per
+ * account and compares it with the balances, which is what the audit replaces.
+ * <p>
+ * mvn -Pbench test-compile exec:exec -Djmh.args="AuditBenchmark"
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AuditBenchmark {
+    private static final String DB_FILE = "bench-audit.db";
+    private static final int ACCOUNTS = 10_000;
+    private static final int NEW_TRANSFERS = 500;
+    private static final long INITIAL_BALANCE = 1_000_000L;
+
+    @Param({"100000", "1000000"})
+    public int historyPostings;
+
+    private HikariDataSource writeDataSource;
+    private HikariDataSource readDataSource;
+    private BalanceAuditor auditor;
+    private long nextTransferId;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        deleteDatabase();
+        SqliteProfile defaults = SqliteProfile.defaults();
+        SqliteProfile profile = new SqliteProfile("wal", "normal", defaults.mmapSize(), defaults.cacheSize(),
+                defaults.busyTimeoutMillis(), defaults.readerPoolSize(), 0);
+        writeDataSource = HikariCPDataSource.createWriterDataSource(DB_FILE, profile);
+        DbSchema.setup(writeDataSource);
+        try (Connection conn = writeDataSource.getConnection()) {
+            conn.setAutoCommit(false);
+            BalanceDAO balanceDAO = new BalanceDAO(conn);
+            for (int accountId = 1; accountId <= ACCOUNTS; accountId++) {
+                balanceDAO.setupAccount(accountId, accountId, INITIAL_BALANCE);
+            }
+            // whole rings of transfers of 1 from each account to the next, so every balance is back where it started
+            String historySql = """
+                    with recursive t(k) as (select 0 union all select k + 1 from t where k + 1 < ?)
+                    insert into postings (transfer_id, account_id, counterparty_id, amount, type)
+                    select k + 1, k %% %1$d + 1, (k + 1) %% %1$d + 1, -1, %2$d from t
+                    union all
+                    select k + 1, (k + 1) %% %1$d + 1, k %% %1$d + 1, 1, %2$d from t
+                    """.formatted(ACCOUNTS, TransactionLogType.TRANSER.getCode());
+            try (PreparedStatement stmt = conn.prepareStatement(historySql)) {
+                stmt.setInt(1, historyPostings / 2);
+                stmt.executeUpdate();
+            }
+            conn.commit();
+            conn.setAutoCommit(true);
+        }
+        nextTransferId = historyPostings / 2 + 1;
+        readDataSource = HikariCPDataSource.createReaderDataSource(DB_FILE, profile);
+        auditor = new BalanceAuditor(writeDataSource, readDataSource, 2);
+        // the baseline run, later runs start from its checkpoints
+        auditor.run(false);
+    }
+
+    @Setup(Level.Iteration)
+    public void newActivity() throws Exception {
+        try (Connection conn = writeDataSource.getConnection()) {
+            conn.setAutoCommit(false);
+            BalanceDAO balanceDAO = new BalanceDAO(conn);
+            for (int i = 0; i < NEW_TRANSFERS; i++) {
+                int fromAccountId = (int) (nextTransferId % ACCOUNTS) + 1;
+                int toAccountId = fromAccountId % ACCOUNTS + 1;
+                balanceDAO.applyBalanceDelta(fromAccountId, -1);
+                balanceDAO.applyBalanceDelta(toAccountId, 1);
+                balanceDAO.insertTransferPostings(nextTransferId++, fromAccountId, toAccountId, 1, TransactionLogType.TRANSER);
+            }
+            conn.commit();
+            conn.setAutoCommit(true);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        auditor.close();
+        readDataSource.close();
+        writeDataSource.close();
+        deleteDatabase();
+    }
+
+    @Benchmark
+    public int incremental() throws Exception {
+        AuditReport report = auditor.run(false);
+        if (report.driftCount() != 0) {
+            throw new IllegalStateException("drift: " + report.drifts());
+        }
+        return report.accountsChecked();
+    }
+
+    @Benchmark
+    public int recompute() throws Exception {
+        String recomputeSql = """
+                select count(*)
+                from account_balances b
+                         left join (select account_id, sum(amount) as total from postings group by account_id) p
+                                   on p.account_id = b.account_id
+                where b.balance != ? + coalesce(p.total, 0)
+                """;
+        try (Connection conn = readDataSource.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(recomputeSql)) {
+            stmt.setLong(1, INITIAL_BALANCE);
+            try (ResultSet rs = stmt.executeQuery()) {
+                rs.next();
+                if (rs.getInt(1) != 0) {
+                    throw new IllegalStateException("drift: " + rs.getInt(1));
+                }
+                return rs.getInt(1);
+            }
+        }
+    }
+
+    private static void deleteDatabase() {
+        new File(DB_FILE).delete();
+        new File(DB_FILE + "-wal").delete();
+        new File(DB_FILE + "-shm").delete();
+    }
+}
@@ -0,0 +1,92 @@
+package com.felix.bench;
+
+import com.felix.DbSchema;
+import com.felix.HikariCPDataSource;
+import com.felix.dao.BalanceDAO;
+import com.felix.model.TransactionLogModel;
+import com.felix.model.TransactionLogType;
+import com.zaxxer.hikari.HikariDataSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.sql.Connection;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The {@link BalanceDAO} primitives on their own, on a single in-memory connection so no I/O is measured.
+ * Writes are rolled back to keep the tables the same size across iterations.
+ * <p>
+ * mvn -Pbench test-compile exec:exec -Djmh.args="BalanceDaoBenchmark -prof gc"
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 3)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BalanceDaoBenchmark {
+    private static final int ACCOUNTS = 100;
+
+    private HikariDataSource dataSource;
+    private Connection conn;
+    private BalanceDAO balanceDAO;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        dataSource = HikariCPDataSource.createNewDataSource(":memory:", 1);
+        DbSchema.setup(dataSource);
+        conn = dataSource.getConnection();
+        balanceDAO = new BalanceDAO(conn);
+        for (int accountId = 1; accountId <= ACCOUNTS; accountId++) {
+            balanceDAO.setupAccount(accountId, accountId, 1_000_000_000L);
+        }
+        conn.setAutoCommit(false);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        conn.rollback();
+        conn.close();
+        dataSource.close();
+    }
+
+    @Benchmark
+    public Long getAccountBalance() throws Exception {
+        return balanceDAO.getAccountBalance(42);
+    }
+
+    @Benchmark
+    public Map<String, Long> getAllAccountBalances() throws Exception {
+        return balanceDAO.getAllAccountBalances();
+    }
+
+    @Benchmark
+    public void debitAndCredit() throws Exception {
+        balanceDAO.subtractFromFromAccount(1, 1);
+        balanceDAO.addToToAccount(2, 1);
+        conn.rollback();
+    }
+
+    @Benchmark
+    public TransactionLogModel insertTransactionLog() throws Exception {
+        TransactionLogModel log = balanceDAO.insertTransactionLog(TransactionLogModel.builder()
+                .accountId(1)
+                .amount(-1)
+                .type(TransactionLogType.TRANSER)
+                .details("transfer to account 2")
+                .build());
+        conn.rollback();
+        return log;
+    }
+}
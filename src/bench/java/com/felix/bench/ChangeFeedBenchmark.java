@@ -0,0 +1,85 @@
+package com.felix.bench;
+
+import com.felix.events.ChangeFeed;
+import com.felix.events.EventSink;
+import com.felix.model.TransferIntentStatusEnum;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ns/op from telling the change feed about a transfer until every stream open on the recipient has written it, with
+ * nobody listening it is only what the committing thread spends. The streams write into nothing, so this is the
+ * feed's own cost: one encoding per change and a queue offer and a write per stream.
+ * <p>
+ * mvn -Pbench test-compile exec:exec -Djmh.args="ChangeFeedBenchmark -prof gc"
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ChangeFeedBenchmark {
+    @Param({"0", "1", "100"})
+    public int listeners;
+
+    private final AtomicLong delivered = new AtomicLong();
+    private ChangeFeed changeFeed;
+    private long transferId;
+    private long expected;
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        changeFeed = new ChangeFeed(ChangeFeed.DEFAULT_QUEUE_CAPACITY);
+        // the opening comments
+        expected = delivered.get() + listeners;
+        for (int i = 0; i < listeners; i++) {
+            changeFeed.subscribeAccount(2, new EventSink() {
+                @Override
+                public boolean write(byte[] frames) {
+                    // a write may carry several frames, each ends with a blank line
+                    for (int i = 1; i < frames.length; i++) {
+                        if (frames[i] == '\n' && frames[i - 1] == '\n') {
+                            delivered.incrementAndGet();
+                        }
+                    }
+                    return true;
+                }
+
+                @Override
+                public void close() {
+                }
+            });
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws InterruptedException {
+        System.out.printf("%n%d of %d streams open, %d closed behind%n",
+                changeFeed.getOpenCount(), listeners, changeFeed.getOverflowCount());
+        changeFeed.close();
+    }
+
+    @Benchmark
+    public void transferChanged() {
+        changeFeed.transferChanged(++transferId, 1, 2, 100, TransferIntentStatusEnum.COMMITTED);
+        expected += listeners;
+        while (delivered.get() < expected) {
+            Thread.yield();
+        }
+    }
+}
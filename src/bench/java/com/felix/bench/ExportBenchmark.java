@@ -0,0 +1,126 @@
+package com.felix.bench;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.felix.DbSchema;
+import com.felix.HikariCPDataSource;
+import com.felix.dao.BalanceDAO;
+import com.felix.export.ExportFormat;
+import com.felix.export.TableExporter;
+import com.felix.money.CurrencyUnit;
+import com.zaxxer.hikari.HikariDataSource;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Peak heap while writing every balance as JSON, collected into a map first the way /balances used to, or streamed
+ * from the cursor through {@link TableExporter}. The young generation is kept small so the peak follows what is
+ * retained rather than how much garbage the export makes. JMH sums peakHeapMb over the measurement iterations.
+ * <p>
+ * mvn -Pbench test-compile exec:exec -Djmh.args="ExportBenchmark -p rows=100000,1000000"
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx1g", "-Xmn16m"})
+@State(Scope.Benchmark)
+public class ExportBenchmark {
+    private static final String DB_FILE = "bench-export.db";
+
+    @Param({"100000", "1000000"})
+    public int rows;
+
+    private HikariDataSource dataSource;
+    private TableExporter tableExporter;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        new File(DB_FILE).delete();
+        dataSource = HikariCPDataSource.createNewDataSource(DB_FILE, 1);
+        DbSchema.setup(dataSource);
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement stmt = conn.prepareStatement("""
+                     with recursive ids(id) as (select 1 union all select id + 1 from ids where id < ?)
+                     insert into account_balances (account_id, user_id, balance) select id, id, id * 100 from ids
+                     """)) {
+            stmt.setInt(1, rows);
+            stmt.executeUpdate();
+        }
+        tableExporter = new TableExporter(dataSource, CurrencyUnit.getDefault());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        dataSource.close();
+        new File(DB_FILE).delete();
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Heap {
+        public long peakHeapMb;
+
+        @Setup(Level.Invocation)
+        public void reset() {
+            System.gc();
+            ManagementFactory.getMemoryPoolMXBeans().forEach(MemoryPoolMXBean::resetPeakUsage);
+        }
+
+        void record() {
+            long peak = 0;
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP) {
+                    peak += pool.getPeakUsage().getUsed();
+                }
+            }
+            peakHeapMb = peak / (1024 * 1024);
+        }
+    }
+
+    @Benchmark
+    public void materialize(Heap heap) throws Exception {
+        Map<String, BigDecimal> result = new HashMap<>();
+        try (Connection conn = dataSource.getConnection()) {
+            new BalanceDAO(conn).getAllAccountBalances().forEach((accountId, balance) ->
+                    result.put(accountId, CurrencyUnit.getDefault().toAmount(balance)));
+        }
+        new ObjectMapper().writeValue(OutputStream.nullOutputStream(), result);
+        heap.record();
+    }
+
+    @Benchmark
+    public void stream(Heap heap) throws Exception {
+        tableExporter.exportBalanceMap(OutputStream.nullOutputStream());
+        heap.record();
+    }
+
+    @Benchmark
+    public void streamNdjson(Heap heap) throws Exception {
+        tableExporter.exportAccountBalances(OutputStream.nullOutputStream(), ExportFormat.NDJSON, 0, 0);
+        heap.record();
+    }
+}
@@ -0,0 +1,76 @@
+package com.felix.bench;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Closed-loop load against a running server, used to compare http.executionMode=platform and
+ * http.executionMode=virtual at high concurrency. Prints throughput and tail latency.
+ * <p>
+ * args: [path=/transfer] [concurrency=256] [durationSeconds=30] [baseUrl=http://localhost:8080]
+ */
+public class HttpLoadHarness {
+
+    public static void main(String[] args) throws Exception {
+        String path = args.length > 0 ? args[0] : "/transfer";
+        int concurrency = args.length > 1 ? Integer.parseInt(args[1]) : 256;
+        int durationSeconds = args.length > 2 ? Integer.parseInt(args[2]) : 30;
+        String baseUrl = args.length > 3 ? args[3] : "http://localhost:8080";
+
+        HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(10)).build();
+        Semaphore inFlight = new Semaphore(concurrency);
+        ConcurrentLinkedQueue<long[]> samples = new ConcurrentLinkedQueue<>();
+        AtomicLong errors = new AtomicLong();
+
+        long start = System.nanoTime();
+        long end = start + Duration.ofSeconds(durationSeconds).toNanos();
+        while (System.nanoTime() < end) {
+            inFlight.acquire();
+            long sentAt = System.nanoTime();
+            client.sendAsync(buildRequest(baseUrl, path), HttpResponse.BodyHandlers.discarding())
+                    .whenComplete((response, e) -> {
+                        if (e != null || response.statusCode() >= 500) {
+                            errors.incrementAndGet();
+                        }
+                        samples.add(new long[]{System.nanoTime() - sentAt});
+                        inFlight.release();
+                    });
+        }
+        inFlight.acquire(concurrency);
+        long elapsed = System.nanoTime() - start;
+
+        long[] latencies = samples.stream().mapToLong(sample -> sample[0]).sorted().toArray();
+        System.out.printf("requests: %d, errors: %d, throughput: %.1f req/s%n",
+                latencies.length, errors.get(), latencies.length * 1e9 / elapsed);
+        System.out.printf("latency ms p50: %.2f, p99: %.2f, p99.9: %.2f, max: %.2f%n",
+                percentile(latencies, 0.50), percentile(latencies, 0.99),
+                percentile(latencies, 0.999), percentile(latencies, 1.0));
+    }
+
+    private static HttpRequest buildRequest(String baseUrl, String path) {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(baseUrl + path)).timeout(Duration.ofSeconds(30));
+        if (path.startsWith("/transfer")) {
+            int toAccountId = ThreadLocalRandom.current().nextInt(2, 6);
+            String body = "{\"fromAccountId\": 1, \"toAccountId\": " + toAccountId + ", \"amount\": 0.01}";
+            return builder.header("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofString(body))
+                    .build();
+        }
+        return builder.GET().build();
+    }
+
+    private static double percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.min(sorted.length - 1, Math.ceil(percentile * sorted.length) - 1);
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+}
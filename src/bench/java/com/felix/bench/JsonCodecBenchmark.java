@@ -0,0 +1,113 @@
+package com.felix.bench;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.felix.codec.JsonCodec;
+import com.felix.dto.TransferRequest;
+import com.felix.dto.WithdrawalRequest;
+import com.felix.dto.WithdrawalResponseDto;
+import com.felix.model.TransactionLogModel;
+import com.felix.model.TransactionLogType;
+import com.felix.model.WithdrawalRequestStatusEnum;
+import com.felix.service.Response;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.rapidoid.data.JSON;
+import org.rapidoid.u.U;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ns/op and, with -prof gc, bytes allocated per op of decoding the request bodies and encoding the responses of
+ * /transfer and /withdraw/{id}. The legacy variants are what the handlers did before JsonCodec: a new ObjectMapper
+ * per request body and responses built as maps for the server's own mapper.
+ * <p>
+ * mvn -Pbench test-compile exec:exec -Djmh.args="JsonCodecBenchmark -prof gc"
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JsonCodecBenchmark {
+    private static final byte[] TRANSFER_BODY = "{\"fromAccountId\": 1, \"toAccountId\": 2, \"amount\": 10.5}"
+            .getBytes(StandardCharsets.UTF_8);
+    private static final byte[] WITHDRAWAL_BODY = "{\"fromAccountId\": 1, \"amount\": 0.29, \"address\": \"abc\"}"
+            .getBytes(StandardCharsets.UTF_8);
+
+    private final Response<TransactionLogModel> transferResponse = Response.success(TransactionLogModel.builder()
+            .id(42)
+            .accountId(1)
+            .amount(1050)
+            .details("transfer to account 2")
+            .type(TransactionLogType.TRANSER)
+            .build());
+    private final Response<WithdrawalResponseDto> withdrawalResponse = Response.success(WithdrawalResponseDto.builder()
+            .id(7)
+            .fromAccountId(1)
+            .withdrawalId("6b1f3c9e-1d1a-4c55-9f0e-3a2b8c7d6e5f")
+            .toAddress("abc")
+            .amount(29)
+            .status(WithdrawalRequestStatusEnum.REQUESTED)
+            .build());
+    // stands in for the server's response buffer
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream(512);
+
+    @Benchmark
+    public TransferRequest decodeTransferRequest() throws IOException {
+        return JsonCodec.decodeTransferRequest(TRANSFER_BODY);
+    }
+
+    @Benchmark
+    public TransferRequest decodeTransferRequestLegacy() throws IOException {
+        return new ObjectMapper().readValue(TRANSFER_BODY, TransferRequest.class);
+    }
+
+    @Benchmark
+    public WithdrawalRequest decodeWithdrawalRequest() throws IOException {
+        return JsonCodec.decodeWithdrawalRequest(WITHDRAWAL_BODY);
+    }
+
+    @Benchmark
+    public WithdrawalRequest decodeWithdrawalRequestLegacy() throws IOException {
+        return new ObjectMapper().readValue(WITHDRAWAL_BODY, WithdrawalRequest.class);
+    }
+
+    @Benchmark
+    public int encodeTransferResponse() throws IOException {
+        out.reset();
+        JsonCodec.encode(transferResponse, out);
+        return out.size();
+    }
+
+    @Benchmark
+    public int encodeTransferResponseLegacy() throws IOException {
+        out.reset();
+        JSON.stringify(U.map("status", "success", "data", transferResponse.getData()), out);
+        return out.size();
+    }
+
+    @Benchmark
+    public int encodeWithdrawalResponse() throws IOException {
+        out.reset();
+        JsonCodec.encode(withdrawalResponse, out);
+        return out.size();
+    }
+
+    @Benchmark
+    public int encodeWithdrawalResponseLegacy() throws IOException {
+        out.reset();
+        JSON.stringify(U.map("status", "success", "data", withdrawalResponse.getData()), out);
+        return out.size();
+    }
+}
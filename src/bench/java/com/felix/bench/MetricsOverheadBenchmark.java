@@ -0,0 +1,89 @@
+package com.felix.bench;
+
+import com.felix.DbSchema;
+import com.felix.HikariCPDataSource;
+import com.felix.dao.BalanceDAO;
+import com.felix.dto.TransferRequest;
+import com.felix.external.WithdrawalServiceStub;
+import com.felix.metrics.LatencyHistogram;
+import com.felix.metrics.Metrics;
+import com.felix.model.TransactionLogModel;
+import com.felix.service.Response;
+import com.felix.service.TransferService;
+import com.zaxxer.hikari.HikariDataSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.sql.Connection;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ns/op of a transfer with metrics recorded and with them off, and of recording one latency on its own. With
+ * -prof gc the record benchmark shows the recording allocates nothing.
+ * <p>
+ * mvn -Pbench test-compile exec:exec -Djmh.args="MetricsOverheadBenchmark -prof gc"
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MetricsOverheadBenchmark {
+    private static final String DB_FILE = "bench-metrics.db";
+
+    @Param({"true", "false"})
+    public boolean metrics;
+
+    private HikariDataSource dataSource;
+    private TransferService transferService;
+    private final LatencyHistogram histogram = new LatencyHistogram();
+    private final TransferRequest transferRequest = TransferRequest.builder()
+            .fromAccountId(1)
+            .toAccountId(2)
+            .amount(1)
+            .build();
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        new File(DB_FILE).delete();
+        dataSource = HikariCPDataSource.createNewDataSource(DB_FILE);
+        DbSchema.setup(dataSource);
+        try (Connection conn = dataSource.getConnection()) {
+            BalanceDAO balanceDAO = new BalanceDAO(conn);
+            balanceDAO.setupAccount(1, 1, 1_000_000_000L);
+            balanceDAO.setupAccount(2, 2, 0);
+        }
+        transferService = new TransferService(dataSource, new WithdrawalServiceStub());
+        Metrics.setEnabled(metrics);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Metrics.setEnabled(true);
+        dataSource.close();
+        new File(DB_FILE).delete();
+    }
+
+    @Benchmark
+    public Response<TransactionLogModel> transfer() {
+        return transferService.transfer(transferRequest);
+    }
+
+    @Benchmark
+    public void record() {
+        Metrics.record(histogram, Metrics.start());
+    }
+}
@@ -0,0 +1,101 @@
+package com.felix.bench;
+
+import com.felix.DbSchema;
+import com.felix.HikariCPDataSource;
+import com.felix.dao.BalanceDAO;
+import com.felix.dao.WithdrawalRequestDAO;
+import com.felix.external.WithdrawalService;
+import com.felix.external.WithdrawalServiceStub;
+import com.felix.model.WithdrawalRequestModel;
+import com.felix.model.WithdrawalRequestStatusEnum;
+import com.felix.service.TransferService;
+import com.zaxxer.hikari.HikariDataSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One pass of the per-id sync ({@link TransferService#syncWithdrawalRequestStatus}) over a pending set whose
+ * withdrawals are all final, the baseline the reconciler in {@link ReconciliationBenchmark} is compared against.
+ * <p>
+ * mvn -Pbench test-compile exec:exec -Djmh.args="PendingSyncBenchmark -p pending=100000"
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PendingSyncBenchmark {
+    private static final String DB_FILE = "bench-pending-sync.db";
+
+    @Param({"1000", "10000"})
+    public int pending;
+
+    private HikariDataSource dataSource;
+    private TransferService transferService;
+
+    @Setup(Level.Iteration)
+    public void setup() throws Exception {
+        new File(DB_FILE).delete();
+        dataSource = HikariCPDataSource.createNewDataSource(DB_FILE);
+        DbSchema.setup(dataSource);
+        // every withdrawal is final right away
+        WithdrawalServiceStub stub = new WithdrawalServiceStub(0, 1);
+        try (Connection conn = dataSource.getConnection()) {
+            new BalanceDAO(conn).setupAccount(1, 1, Long.MAX_VALUE / 2);
+            conn.setAutoCommit(false);
+            WithdrawalRequestDAO withdrawalRequestDAO = new WithdrawalRequestDAO(conn);
+            for (int i = 0; i < pending; i++) {
+                UUID withdrawalId = UUID.randomUUID();
+                withdrawalRequestDAO.createWithdrawalRequest(WithdrawalRequestModel.builder()
+                        .fromAccountId(1)
+                        .withdrawalId(withdrawalId.toString())
+                        .toAddress("abc")
+                        .amount(1)
+                        .status(WithdrawalRequestStatusEnum.REQUESTED.getCode())
+                        .build());
+                stub.requestWithdrawal(
+                        new WithdrawalService.WithdrawalId(withdrawalId),
+                        new WithdrawalService.Address("abc"),
+                        BigDecimal.ONE
+                );
+            }
+            conn.commit();
+        }
+        Thread.sleep(2);
+        transferService = new TransferService(dataSource, stub);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        dataSource.close();
+        new File(DB_FILE).delete();
+    }
+
+    @Benchmark
+    public int syncPendingWithdrawals() {
+        int synced = 0;
+        for (String withdrawalId : transferService.getListPendingWithdrawalRequest()) {
+            transferService.syncWithdrawalRequestStatus(withdrawalId);
+            synced++;
+        }
+        return synced;
+    }
+}
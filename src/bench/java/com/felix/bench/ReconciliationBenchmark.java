@@ -0,0 +1,137 @@
+package com.felix.bench;
+
+import com.felix.DbSchema;
+import com.felix.HikariCPDataSource;
+import com.felix.dao.BalanceDAO;
+import com.felix.dao.WithdrawalRequestDAO;
+import com.felix.external.ConcurrentLookupWithdrawalService;
+import com.felix.external.WithdrawalService;
+import com.felix.external.WithdrawalServiceStub;
+import com.felix.model.WithdrawalRequestModel;
+import com.felix.model.WithdrawalRequestStatusEnum;
+import com.felix.reconciler.WithdrawalReconciler;
+import com.felix.service.TransferService;
+import com.zaxxer.hikari.HikariDataSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.util.Collection;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to reconcile a backlog of pending withdrawals against {@link WithdrawalServiceStub}.
+ * <p>
+ * mvn -Pbench test-compile exec:exec -Djmh.args="ReconciliationBenchmark -p pending=1000000"
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 3)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ReconciliationBenchmark {
+    private static final String DB_FILE = "bench-reconciliation.db";
+
+    @Param({"10000"})
+    public int pending;
+
+    /**
+     * batch - the stub's batch lookup, fanOut - single id lookups through ConcurrentLookupWithdrawalService,
+     * push - batch lookups plus the stub's push callbacks
+     */
+    @Param({"batch", "fanOut", "push"})
+    public String lookup;
+
+    private HikariDataSource dataSource;
+    private WithdrawalServiceStub stub;
+    private WithdrawalReconciler reconciler;
+
+    @Setup(Level.Iteration)
+    public void setup() throws Exception {
+        new File(DB_FILE).delete();
+        dataSource = HikariCPDataSource.createNewDataSource(DB_FILE);
+        DbSchema.setup(dataSource);
+        // every withdrawal is final within a second, the benchmark measures how fast the backlog drains after that
+        stub = new WithdrawalServiceStub(0, 1000);
+        try (Connection conn = dataSource.getConnection()) {
+            new BalanceDAO(conn).setupAccount(1, 1, Long.MAX_VALUE / 2);
+            conn.setAutoCommit(false);
+            WithdrawalRequestDAO withdrawalRequestDAO = new WithdrawalRequestDAO(conn);
+            for (int i = 0; i < pending; i++) {
+                UUID withdrawalId = UUID.randomUUID();
+                withdrawalRequestDAO.createWithdrawalRequest(WithdrawalRequestModel.builder()
+                        .fromAccountId(1)
+                        .withdrawalId(withdrawalId.toString())
+                        .toAddress("abc")
+                        .amount(1)
+                        .status(WithdrawalRequestStatusEnum.REQUESTED.getCode())
+                        .build());
+                stub.requestWithdrawal(
+                        new WithdrawalService.WithdrawalId(withdrawalId),
+                        new WithdrawalService.Address("abc"),
+                        BigDecimal.ONE
+                );
+            }
+            conn.commit();
+        }
+        WithdrawalService provider = switch (lookup) {
+            case "fanOut" -> new ConcurrentLookupWithdrawalService(stub, 64) {
+                @Override
+                public boolean subscribe(WithdrawalStateListener listener) {
+                    return false;
+                }
+            };
+            case "push" -> stub;
+            default -> new WithdrawalService() {
+                @Override
+                public void requestWithdrawal(WithdrawalId id, Address address, BigDecimal amount) {
+                    stub.requestWithdrawal(id, address, amount);
+                }
+
+                @Override
+                public WithdrawalState getRequestState(WithdrawalId id) {
+                    return stub.getRequestState(id);
+                }
+
+                @Override
+                public Map<WithdrawalId, WithdrawalState> getRequestStates(Collection<WithdrawalId> ids) {
+                    return stub.getRequestStates(ids);
+                }
+            };
+        };
+        TransferService transferService = new TransferService(dataSource, provider);
+        reconciler = new WithdrawalReconciler(transferService, provider, 8, 200, 2000, 500);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws Exception {
+        reconciler.close();
+        dataSource.close();
+        new File(DB_FILE).delete();
+    }
+
+    @Benchmark
+    public long reconcileBacklog() throws Exception {
+        reconciler.start();
+        while (reconciler.getBacklogSize() > 0) {
+            Thread.sleep(5);
+        }
+        return reconciler.getMetrics().getFinalisedCount();
+    }
+}
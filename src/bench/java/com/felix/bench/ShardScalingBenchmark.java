@@ -0,0 +1,141 @@
+package com.felix.bench;
+
+import com.felix.DbSchema;
+import com.felix.HikariCPDataSource;
+import com.felix.SqliteProfile;
+import com.felix.dao.BalanceDAO;
+import com.felix.dto.TransferRequest;
+import com.felix.external.WithdrawalServiceStub;
+import com.felix.model.TransactionLogModel;
+import com.felix.service.Response;
+import com.felix.service.Shard;
+import com.felix.service.ShardedTransferService;
+import com.felix.service.TransferService;
+import com.zaxxer.hikari.HikariDataSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Aggregate transfers/sec over 1, 2, 4 and 8 shards, each with its own single writer in wal mode. crossShardPercent
+ * of the transfers move money between accounts of two shards and pay for the two-phase protocol, the others stay
+ * on the sender's shard.
+ * <p>
+ * mvn -Pbench test-compile exec:exec -Djmh.args="ShardScalingBenchmark"
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 3)
+@Fork(1)
+@Threads(16)
+@State(Scope.Benchmark)
+public class ShardScalingBenchmark {
+    private static final int ACCOUNTS = 1024;
+
+    @Param({"1", "2", "4", "8"})
+    public int shards;
+
+    @Param({"0", "10"})
+    public int crossShardPercent;
+
+    /**
+     * full fsyncs every commit, normal leaves it to checkpoints
+     */
+    @Param({"full", "normal"})
+    public String synchronous;
+
+    private Path dir;
+    private final List<HikariDataSource> dataSources = new ArrayList<>();
+    private ShardedTransferService shardedTransferService;
+    // accounts of each shard
+    private int[][] accountsByShard;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        dir = Files.createTempDirectory("bench-shards");
+        SqliteProfile defaults = SqliteProfile.defaults();
+        // auto-checkpoint on commit, so no checkpointer thread per shard
+        SqliteProfile profile = new SqliteProfile("wal", synchronous, defaults.mmapSize(), defaults.cacheSize(),
+                defaults.busyTimeoutMillis(), defaults.readerPoolSize(), 0);
+        List<Shard> shardList = new ArrayList<>(shards);
+        for (int shard = 0; shard < shards; shard++) {
+            String filename = dir.resolve(ShardedTransferService.shardFilename("bench.db", shard)).toString();
+            HikariDataSource writer = HikariCPDataSource.createWriterDataSource(filename, profile, "bench-writer-" + shard);
+            DbSchema.setup(writer);
+            HikariDataSource reader = HikariCPDataSource.createReaderDataSource(filename, profile, "bench-reader-" + shard);
+            dataSources.add(writer);
+            dataSources.add(reader);
+            shardList.add(new Shard(shard, writer, reader, new TransferService(writer, reader, new WithdrawalServiceStub(), null)));
+        }
+        shardedTransferService = new ShardedTransferService(shardList);
+
+        List<List<Integer>> accounts = new ArrayList<>();
+        for (int shard = 0; shard < shards; shard++) {
+            accounts.add(new ArrayList<>());
+        }
+        for (int accountId = 1; accountId <= ACCOUNTS; accountId++) {
+            Shard shard = shardedTransferService.getShard(accountId);
+            try (Connection conn = shard.writeDataSource().getConnection()) {
+                new BalanceDAO(conn).setupAccount(accountId, accountId, 1_000_000_000L);
+            }
+            accounts.get(shard.index()).add(accountId);
+        }
+        accountsByShard = accounts.stream()
+                .map(shardAccounts -> shardAccounts.stream().mapToInt(Integer::intValue).toArray())
+                .toArray(int[][]::new);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        shardedTransferService.close();
+        dataSources.forEach(HikariDataSource::close);
+        try (Stream<Path> files = Files.list(dir)) {
+            files.forEach(file -> file.toFile().delete());
+        }
+        new File(dir.toString()).delete();
+    }
+
+    @Benchmark
+    public Response<TransactionLogModel> transfer() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int sourceShard = random.nextInt(shards);
+        int destinationShard = sourceShard;
+        if (shards > 1 && random.nextInt(100) < crossShardPercent) {
+            destinationShard = (sourceShard + 1 + random.nextInt(shards - 1)) % shards;
+        }
+        int[] sources = accountsByShard[sourceShard];
+        int[] destinations = accountsByShard[destinationShard];
+        int fromAccountId = sources[random.nextInt(sources.length)];
+        int toAccountId;
+        do {
+            toAccountId = destinations[random.nextInt(destinations.length)];
+        } while (toAccountId == fromAccountId);
+        return shardedTransferService.transfer(TransferRequest.builder()
+                .fromAccountId(fromAccountId)
+                .toAccountId(toAccountId)
+                .amount(1)
+                .build());
+    }
+}
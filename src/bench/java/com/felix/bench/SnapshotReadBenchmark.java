@@ -0,0 +1,181 @@
+package com.felix.bench;
+
+import com.felix.DbSchema;
+import com.felix.HikariCPDataSource;
+import com.felix.SqliteProfile;
+import com.felix.dao.BalanceDAO;
+import com.felix.dto.TransferRequest;
+import com.felix.external.WithdrawalServiceStub;
+import com.felix.model.TransactionLogModel;
+import com.felix.service.Response;
+import com.felix.service.TransferService;
+import com.felix.snapshot.BalanceSnapshot;
+import com.zaxxer.hikari.HikariDataSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Transfer latency while a report pages through every balance, 1000 accounts a page.
+ * none runs no report, pages reads each page in its own reader transaction, snapshot reads every page from one
+ * {@link BalanceSnapshot}, writer holds the writer connection for the whole scan. Scans whose balances don't add up
+ * to the total, a mix of pre- and post-transfer rows, are printed at the end of the trial. balanceSeq=false drops
+ * the triggers that keep the snapshot seq, to show what they cost a transfer.
+ * <p>
+ * mvn -Pbench test-compile exec:exec -Djmh.args="SnapshotReadBenchmark"
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 3)
+@Fork(1)
+@State(Scope.Group)
+public class SnapshotReadBenchmark {
+    private static final String DB_FILE = "bench-snapshot.db";
+    private static final int ACCOUNTS = 100_000;
+    private static final int PAGE = 1_000;
+    private static final long INITIAL_BALANCE = 1_000_000L;
+
+    @Param({"none", "pages", "snapshot", "writer"})
+    public String reader;
+
+    @Param({"true", "false"})
+    public boolean balanceSeq;
+
+    private HikariDataSource writeDataSource;
+    private HikariDataSource readDataSource;
+    private TransferService transferService;
+    private final AtomicLong scans = new AtomicLong();
+    private final AtomicLong inconsistentScans = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        deleteDatabase();
+        SqliteProfile defaults = SqliteProfile.defaults();
+        // synchronous=normal so the scan, not the fsync, decides the tail
+        SqliteProfile profile = new SqliteProfile("wal", "normal", defaults.mmapSize(), defaults.cacheSize(),
+                defaults.busyTimeoutMillis(), defaults.readerPoolSize(), 0);
+        writeDataSource = HikariCPDataSource.createWriterDataSource(DB_FILE, profile);
+        DbSchema.setup(writeDataSource);
+        try (Connection conn = writeDataSource.getConnection()) {
+            if (!balanceSeq) {
+                try (Statement stmt = conn.createStatement()) {
+                    for (String trigger : new String[]{"insert", "update", "delete"}) {
+                        stmt.execute("drop trigger account_balances_" + trigger + "_seq");
+                    }
+                }
+            }
+            conn.setAutoCommit(false);
+            BalanceDAO balanceDAO = new BalanceDAO(conn);
+            for (int accountId = 1; accountId <= ACCOUNTS; accountId++) {
+                balanceDAO.setupAccount(accountId, accountId, INITIAL_BALANCE);
+            }
+            conn.commit();
+            conn.setAutoCommit(true);
+        }
+        readDataSource = HikariCPDataSource.createReaderDataSource(DB_FILE, profile);
+        transferService = new TransferService(writeDataSource, readDataSource, new WithdrawalServiceStub(), null);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.out.println("\nscans: " + scans.get() + ", inconsistent: " + inconsistentScans.get());
+        readDataSource.close();
+        writeDataSource.close();
+        deleteDatabase();
+    }
+
+    @Benchmark
+    @Group("report")
+    @GroupThreads(4)
+    public Response<TransactionLogModel> transfer() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int fromAccountId = random.nextInt(1, ACCOUNTS + 1);
+        return transferService.transfer(TransferRequest.builder()
+                .fromAccountId(fromAccountId)
+                .toAccountId(fromAccountId % ACCOUNTS + 1)
+                .amount(1)
+                .build());
+    }
+
+    @Benchmark
+    @Group("report")
+    @GroupThreads(1)
+    public long scan() throws Exception {
+        long total = switch (reader) {
+            case "pages" -> {
+                long sum = 0;
+                for (int after = 0; after < ACCOUNTS; after += PAGE) {
+                    try (Connection conn = readDataSource.getConnection()) {
+                        sum += sumPage(new BalanceDAO(conn), after);
+                    }
+                }
+                yield sum;
+            }
+            case "snapshot" -> {
+                try (BalanceSnapshot snapshot = BalanceSnapshot.open(readDataSource)) {
+                    long sum = 0;
+                    for (int after = 0; after < ACCOUNTS; after += PAGE) {
+                        long[] page = new long[1];
+                        snapshot.streamAccountBalances(after, PAGE, (accountId, userId, balance) -> page[0] += balance);
+                        sum += page[0];
+                    }
+                    yield sum;
+                }
+            }
+            case "writer" -> {
+                try (Connection conn = writeDataSource.getConnection()) {
+                    BalanceDAO balanceDAO = new BalanceDAO(conn);
+                    long sum = 0;
+                    for (int after = 0; after < ACCOUNTS; after += PAGE) {
+                        sum += sumPage(balanceDAO, after);
+                    }
+                    yield sum;
+                }
+            }
+            default -> {
+                // no report, only pace the loop
+                Thread.sleep(10);
+                yield -1;
+            }
+        };
+        if (total >= 0) {
+            scans.incrementAndGet();
+            if (total != ACCOUNTS * INITIAL_BALANCE) {
+                inconsistentScans.incrementAndGet();
+            }
+        }
+        return total;
+    }
+
+    private static long sumPage(BalanceDAO balanceDAO, int afterAccountId) throws Exception {
+        long[] sum = new long[1];
+        balanceDAO.streamAccountBalances(afterAccountId, PAGE, (accountId, userId, balance) -> sum[0] += balance);
+        return sum[0];
+    }
+
+    private static void deleteDatabase() {
+        new File(DB_FILE).delete();
+        new File(DB_FILE + "-wal").delete();
+        new File(DB_FILE + "-shm").delete();
+    }
+}
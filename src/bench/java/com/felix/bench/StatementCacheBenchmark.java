@@ -0,0 +1,114 @@
+package com.felix.bench;
+
+import com.felix.DbSchema;
+import com.felix.HikariCPDataSource;
+import com.felix.dao.BalanceDAO;
+import com.felix.model.TransactionLogModel;
+import com.felix.model.TransactionLogType;
+import com.zaxxer.hikari.HikariDataSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CPU and, with -prof gc, allocation of the statements behind one transfer: debit, credit and the transaction log.
+ * Runs on a single in-memory connection and rolls the transaction back, so journal I/O doesn't hide the statement cost.
+ * cached goes through the DAO and its StatementCache, prepareEachCall compiles and closes every statement per call.
+ * <p>
+ * mvn -Pbench test-compile exec:exec -Djmh.args="StatementCacheBenchmark -prof gc"
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 3)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StatementCacheBenchmark {
+    private static final String DEBIT_SQL = "update account_balances set balance = balance - ? where account_id = ? and balance >= ?";
+    private static final String CREDIT_SQL = "update account_balances set balance = balance + ? where account_id = ?";
+    private static final String INSERT_LOG_SQL = "insert into transaction_logs (account_id, amount, type, details) values (?, ?, ?, ?)";
+
+    @Param({"cached", "prepareEachCall"})
+    public String statements;
+
+    private HikariDataSource dataSource;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        dataSource = HikariCPDataSource.createNewDataSource(":memory:", 1);
+        DbSchema.setup(dataSource);
+        try (Connection conn = dataSource.getConnection()) {
+            BalanceDAO balanceDAO = new BalanceDAO(conn);
+            balanceDAO.setupAccount(1, 1, 1_000_000_000L);
+            balanceDAO.setupAccount(2, 2, 0);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        dataSource.close();
+    }
+
+    @Benchmark
+    public long transferStatements() throws Exception {
+        try (Connection conn = dataSource.getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                return "cached".equals(statements) ? throughDao(conn) : prepareEachCall(conn);
+            } finally {
+                conn.rollback();
+            }
+        }
+    }
+
+    private long throughDao(Connection conn) throws Exception {
+        BalanceDAO balanceDAO = new BalanceDAO(conn);
+        balanceDAO.subtractFromFromAccount(1, 1);
+        balanceDAO.addToToAccount(2, 1);
+        return balanceDAO.insertTransactionLog(TransactionLogModel.builder()
+                .accountId(1)
+                .amount(-1)
+                .type(TransactionLogType.TRANSER)
+                .details("bench")
+                .build()).getId();
+    }
+
+    private long prepareEachCall(Connection conn) throws Exception {
+        try (PreparedStatement stmt = conn.prepareStatement(DEBIT_SQL)) {
+            stmt.setLong(1, 1);
+            stmt.setInt(2, 1);
+            stmt.setLong(3, 1);
+            stmt.executeUpdate();
+        }
+        try (PreparedStatement stmt = conn.prepareStatement(CREDIT_SQL)) {
+            stmt.setLong(1, 1);
+            stmt.setInt(2, 2);
+            stmt.executeUpdate();
+        }
+        try (PreparedStatement stmt = conn.prepareStatement(INSERT_LOG_SQL)) {
+            stmt.setInt(1, 1);
+            stmt.setLong(2, -1);
+            stmt.setInt(3, TransactionLogType.TRANSER.getCode());
+            stmt.setString(4, "bench");
+            stmt.executeUpdate();
+            try (ResultSet generatedKeys = stmt.getGeneratedKeys()) {
+                return generatedKeys.getLong(1);
+            }
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.felix.bench;
+
+import com.felix.DbSchema;
+import com.felix.HikariCPDataSource;
+import com.felix.SqliteProfile;
+import com.felix.WalCheckpointer;
+import com.felix.dao.BalanceDAO;
+import com.felix.dao.WithdrawalRequestDAO;
+import com.felix.dto.TransferRequest;
+import com.felix.dto.WithdrawalResponseDto;
+import com.felix.external.WithdrawalServiceStub;
+import com.felix.model.TransactionLogModel;
+import com.felix.model.WithdrawalRequestModel;
+import com.felix.model.WithdrawalRequestStatusEnum;
+import com.felix.service.Response;
+import com.felix.service.TransferService;
+import com.zaxxer.hikari.HikariDataSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.sql.Connection;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Transfers and withdrawal lookups running side by side against each storage layout.
+ * pooled is the generic pool with SQLite defaults, walFull / walNormal are the single writer plus read-only pool
+ * with synchronous=full / synchronous=normal. Failed transfers (SQLITE_BUSY) are printed at the end of the trial.
+ * <p>
+ * mvn -Pbench test-compile exec:exec -Djmh.args="StorageProfileBenchmark"
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 3)
+@Fork(1)
+@State(Scope.Group)
+public class StorageProfileBenchmark {
+    private static final String DB_FILE = "bench-storage.db";
+    private static final int ACCOUNTS = 100;
+    private static final int WITHDRAWALS = 1000;
+
+    @Param({"pooled", "walFull", "walNormal"})
+    public String storage;
+
+    private HikariDataSource writer;
+    private HikariDataSource reader;
+    private WalCheckpointer walCheckpointer;
+    private TransferService transferService;
+    private final AtomicLong failedTransfers = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        deleteDatabase();
+        SqliteProfile profile = null;
+        if ("pooled".equals(storage)) {
+            writer = HikariCPDataSource.createNewDataSource(DB_FILE);
+        } else {
+            SqliteProfile defaults = SqliteProfile.defaults();
+            profile = new SqliteProfile(
+                    "wal",
+                    "walFull".equals(storage) ? "full" : "normal",
+                    defaults.mmapSize(),
+                    defaults.cacheSize(),
+                    defaults.busyTimeoutMillis(),
+                    defaults.readerPoolSize(),
+                    defaults.walCheckpointIntervalMillis()
+            );
+            writer = HikariCPDataSource.createWriterDataSource(DB_FILE, profile);
+        }
+        DbSchema.setup(writer);
+        try (Connection conn = writer.getConnection()) {
+            BalanceDAO balanceDAO = new BalanceDAO(conn);
+            for (int accountId = 1; accountId <= ACCOUNTS; accountId++) {
+                balanceDAO.setupAccount(accountId, accountId, 1_000_000_000L);
+            }
+            conn.setAutoCommit(false);
+            WithdrawalRequestDAO withdrawalRequestDAO = new WithdrawalRequestDAO(conn);
+            for (int i = 0; i < WITHDRAWALS; i++) {
+                withdrawalRequestDAO.createWithdrawalRequest(WithdrawalRequestModel.builder()
+                        .fromAccountId(1)
+                        .withdrawalId("w-" + i)
+                        .toAddress("abc")
+                        .amount(1)
+                        .status(WithdrawalRequestStatusEnum.REQUESTED.getCode())
+                        .build());
+            }
+            conn.commit();
+        }
+        if (profile == null) {
+            transferService = new TransferService(writer, new WithdrawalServiceStub());
+        } else {
+            reader = HikariCPDataSource.createReaderDataSource(DB_FILE, profile);
+            walCheckpointer = new WalCheckpointer(DB_FILE, profile);
+            walCheckpointer.start(profile.walCheckpointIntervalMillis());
+            transferService = new TransferService(writer, reader, new WithdrawalServiceStub(), null);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        System.out.println("\nfailed transfers: " + failedTransfers.get());
+        if (walCheckpointer != null) {
+            walCheckpointer.close();
+        }
+        if (reader != null) {
+            reader.close();
+        }
+        writer.close();
+        deleteDatabase();
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(12)
+    public Response<TransactionLogModel> transfer() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int fromAccountId = random.nextInt(1, ACCOUNTS + 1);
+        TransferRequest request = TransferRequest.builder()
+                .fromAccountId(fromAccountId)
+                .toAccountId(fromAccountId % ACCOUNTS + 1)
+                .amount(1)
+                .build();
+        Response<TransactionLogModel> result = transferService.transfer(request);
+        if (!result.isSuccessful()) {
+            failedTransfers.incrementAndGet();
+        }
+        return result;
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(4)
+    public Response<WithdrawalResponseDto> getWithdrawal() {
+        return transferService.getWithdrawalRequest("w-" + ThreadLocalRandom.current().nextInt(WITHDRAWALS));
+    }
+
+    private static void deleteDatabase() {
+        new File(DB_FILE).delete();
+        new File(DB_FILE + "-wal").delete();
+        new File(DB_FILE + "-shm").delete();
+    }
+}
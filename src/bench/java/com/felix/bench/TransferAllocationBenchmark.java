@@ -0,0 +1,85 @@
+package com.felix.bench;
+
+import com.felix.DbSchema;
+import com.felix.HikariCPDataSource;
+import com.felix.codec.JsonCodec;
+import com.felix.dao.BalanceDAO;
+import com.felix.dto.TransferRequest;
+import com.felix.dto.WithdrawalRequest;
+import com.felix.external.WithdrawalServiceStub;
+import com.felix.model.TransactionLogModel;
+import com.felix.service.Response;
+import com.felix.service.TransferService;
+import com.zaxxer.hikari.HikariDataSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ns/op and, with -prof gc, bytes allocated per op of a single uncontended transfer including the JSON decoding,
+ * and of decoding the request bodies on their own.
+ * <p>
+ * mvn -Pbench test-compile exec:exec -Djmh.args="TransferAllocationBenchmark -prof gc"
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 3)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TransferAllocationBenchmark {
+    private static final String DB_FILE = "bench-allocation.db";
+    private static final byte[] TRANSFER_BODY = "{\"fromAccountId\": 1, \"toAccountId\": 2, \"amount\": 0.01}".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] WITHDRAWAL_BODY = "{\"fromAccountId\": 1, \"amount\": 0.01, \"address\": \"abc\"}".getBytes(StandardCharsets.UTF_8);
+
+    private HikariDataSource dataSource;
+    private TransferService transferService;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        new File(DB_FILE).delete();
+        dataSource = HikariCPDataSource.createNewDataSource(DB_FILE);
+        DbSchema.setup(dataSource);
+        try (Connection conn = dataSource.getConnection()) {
+            BalanceDAO balanceDAO = new BalanceDAO(conn);
+            balanceDAO.setupAccount(1, 1, 1_000_000_000L);
+            balanceDAO.setupAccount(2, 2, 0);
+        }
+        transferService = new TransferService(dataSource, new WithdrawalServiceStub());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        dataSource.close();
+        new File(DB_FILE).delete();
+    }
+
+    @Benchmark
+    public TransferRequest decodeTransferRequest() throws Exception {
+        return JsonCodec.decodeTransferRequest(TRANSFER_BODY);
+    }
+
+    @Benchmark
+    public WithdrawalRequest decodeWithdrawalRequest() throws Exception {
+        return JsonCodec.decodeWithdrawalRequest(WITHDRAWAL_BODY);
+    }
+
+    @Benchmark
+    public Response<TransactionLogModel> transfer() throws Exception {
+        return transferService.transfer(JsonCodec.decodeTransferRequest(TRANSFER_BODY));
+    }
+}
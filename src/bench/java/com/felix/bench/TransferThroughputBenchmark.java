@@ -0,0 +1,134 @@
+package com.felix.bench;
+
+import com.felix.DbSchema;
+import com.felix.HikariCPDataSource;
+import com.felix.dao.BalanceDAO;
+import com.felix.dto.TransferRequest;
+import com.felix.external.WithdrawalServiceStub;
+import com.felix.ledger.BalanceLedger;
+import com.felix.ledger.LedgerCheckpointer;
+import com.felix.ledger.LedgerJournal;
+import com.felix.model.TransactionLogModel;
+import com.felix.service.GroupCommitTransferExecutor;
+import com.felix.service.Response;
+import com.felix.service.TransferService;
+import com.zaxxer.hikari.HikariDataSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Per-request commit vs group commit vs the in-memory ledger for transfers, spread over many accounts, all on one pair
+ * or all out of one account. -p hotSlots=1,16 compares a plain and a sharded account 1 in ledger mode.
+ * Throughput mode gives transfers/sec, SampleTime mode gives the latency percentiles (p99 included).
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 3)
+@Fork(1)
+@Threads(16)
+@State(Scope.Benchmark)
+public class TransferThroughputBenchmark {
+    private static final String DB_FILE = "bench-transfer.db";
+    private static final int ACCOUNTS = 100;
+
+    @Param({"perRequest", "groupCommit", "ledger"})
+    public String mode;
+
+    /**
+     * spread - random neighbouring accounts out of 100, hotPair - every thread moves money from account 1 to 2,
+     * hotSource - every transfer comes out of account 1
+     */
+    @Param({"spread", "hotPair", "hotSource"})
+    public String pairs;
+
+    /**
+     * slots of account 1 in ledger mode, 1 keeps it a plain account
+     */
+    @Param({"1"})
+    public int hotSlots;
+
+    private HikariDataSource dataSource;
+    private TransferService transferService;
+    private GroupCommitTransferExecutor groupCommitExecutor;
+    private LedgerCheckpointer ledgerCheckpointer;
+    private Path journalDir;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        new File(DB_FILE).delete();
+        dataSource = HikariCPDataSource.createNewDataSource(DB_FILE);
+        DbSchema.setup(dataSource);
+        try (Connection conn = dataSource.getConnection()) {
+            BalanceDAO balanceDAO = new BalanceDAO(conn);
+            for (int accountId = 1; accountId <= ACCOUNTS; accountId++) {
+                balanceDAO.setupAccount(accountId, accountId, 1_000_000_000L);
+            }
+        }
+        BalanceLedger ledger = null;
+        if ("ledger".equals(mode)) {
+            journalDir = Files.createTempDirectory("bench-ledger");
+            ledger = new BalanceLedger(new LedgerJournal(journalDir, false), 64, hotSlots > 1 ? Map.of(1, hotSlots) : Map.of());
+            ledgerCheckpointer = new LedgerCheckpointer(dataSource, ledger);
+            ledgerCheckpointer.recover();
+            ledgerCheckpointer.start(1000, 10);
+        }
+        transferService = new TransferService(dataSource, new WithdrawalServiceStub(), ledger);
+        if ("groupCommit".equals(mode)) {
+            groupCommitExecutor = new GroupCommitTransferExecutor(dataSource, transferService, 10_000, 256, 500);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        if (groupCommitExecutor != null) {
+            groupCommitExecutor.close();
+        }
+        if (ledgerCheckpointer != null) {
+            ledgerCheckpointer.close();
+            try (Stream<Path> files = Files.list(journalDir)) {
+                files.forEach(file -> file.toFile().delete());
+            }
+            Files.delete(journalDir);
+        }
+        dataSource.close();
+        new File(DB_FILE).delete();
+    }
+
+    @Benchmark
+    public Response<TransactionLogModel> transfer() throws Exception {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int fromAccountId = "spread".equals(pairs) ? random.nextInt(1, ACCOUNTS + 1) : 1;
+        int toAccountId = "hotSource".equals(pairs) ? random.nextInt(2, ACCOUNTS + 1) : fromAccountId % ACCOUNTS + 1;
+        TransferRequest request = TransferRequest.builder()
+                .fromAccountId(fromAccountId)
+                .toAccountId(toAccountId)
+                .amount(1)
+                .build();
+        if (groupCommitExecutor != null) {
+            return groupCommitExecutor.submit(request).get();
+        }
+        return transferService.transfer(request);
+    }
+}
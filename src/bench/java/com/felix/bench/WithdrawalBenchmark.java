@@ -0,0 +1,72 @@
+package com.felix.bench;
+
+import com.felix.DbSchema;
+import com.felix.HikariCPDataSource;
+import com.felix.dao.BalanceDAO;
+import com.felix.dto.RequestWithdrawalResponse;
+import com.felix.dto.WithdrawalRequest;
+import com.felix.external.WithdrawalServiceStub;
+import com.felix.service.Response;
+import com.felix.service.TransferService;
+import com.zaxxer.hikari.HikariDataSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.sql.Connection;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Committing a withdrawal request (insert as CREATED plus the debit) against {@link WithdrawalServiceStub}.
+ * Use -t for the number of concurrent callers and -prof gc for the allocation per request.
+ * <p>
+ * mvn -Pbench test-compile exec:exec -Djmh.args="WithdrawalBenchmark -t 8 -prof gc"
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 3)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WithdrawalBenchmark {
+    private static final String DB_FILE = "bench-withdrawal.db";
+
+    private HikariDataSource dataSource;
+    private TransferService transferService;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        new File(DB_FILE).delete();
+        dataSource = HikariCPDataSource.createNewDataSource(DB_FILE);
+        DbSchema.setup(dataSource);
+        try (Connection conn = dataSource.getConnection()) {
+            new BalanceDAO(conn).setupAccount(1, 1, Long.MAX_VALUE / 2);
+        }
+        transferService = new TransferService(dataSource, new WithdrawalServiceStub());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        dataSource.close();
+        new File(DB_FILE).delete();
+    }
+
+    @Benchmark
+    public Response<RequestWithdrawalResponse> requestWithdrawal() {
+        return transferService.requestWithdrawal(WithdrawalRequest.builder()
+                .fromAccountId(1)
+                .amount(1)
+                .address("abc")
+                .build());
+    }
+}
@@ -0,0 +1,20 @@
+package com.felix;
+
+/**
+ * Picks the bucket of an account, e.g. its shard, admission stripe or cache segment. Account ids are sequential, so
+ * they are mixed first and neighbours spread over the buckets instead of landing next to each other.
+ * <p>
+ * The shard of an account is stored in which database file holds it, so the mix must never change.
+ */
+public final class AccountHash {
+    private AccountHash() {
+    }
+
+    /**
+     * @return the bucket of the account, from 0 to buckets - 1
+     */
+    public static int bucketOf(int accountId, int buckets) {
+        int hash = accountId * 0x9E3779B9;
+        return Math.floorMod(hash ^ (hash >>> 16), buckets);
+    }
+}
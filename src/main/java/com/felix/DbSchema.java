@@ -1,15 +1,130 @@
 package com.felix;
 
+import com.felix.money.CurrencyUnit;
+
 import javax.sql.DataSource;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 
 public class DbSchema {
+    // tables that used to store money as real, with the money column and the full column list
+    private static final MoneyColumn[] MONEY_COLUMNS = {
+            new MoneyColumn("account_balances", "balance",
+                    "account_id, user_id, balance, created_at, updated_at"),
+            new MoneyColumn("transaction_logs", "amount",
+                    "id, account_id, amount, type, details, created_at, updated_at"),
+            new MoneyColumn("withdrawal_requests", "amount",
+                    "id, from_account_id, withdrawal_id, to_address, amount, status, created_at, updated_at"),
+    };
+
+    // applied in order, each once, a database records the versions it has in schema_migrations.
+    // never change a migration that was released, add a new one
+    private static final Migration[] MIGRATIONS = {
+            new Migration(1, "baseline tables, money as integer minor units", DbSchema::createBaseline),
+            new Migration(2, "transaction log indexes and double-entry postings", DbSchema::createPostings),
+            new Migration(3, "idempotency keys", DbSchema::createIdempotencyKeys),
+            new Migration(4, "withdrawal next_check_at and pending index", DbSchema::addWithdrawalNextCheckAt),
+            new Migration(5, "cross-shard transfer intents", DbSchema::createTransferIntents),
+            new Migration(6, "balance change sequence", DbSchema::createBalanceSeq),
+            new Migration(7, "incremental audit checkpoints", DbSchema::createAuditCheckpoints),
+            new Migration(8, "withdrawals waiting for their ledger debit", DbSchema::createDebitingWithdrawalIndex),
+            new Migration(9, "idempotency keys reserved ahead of a ledger write", DbSchema::addIdempotencyKeyPending),
+            new Migration(10, "withdrawals waiting for their ledger refund", DbSchema::createRefundingWithdrawalIndex),
+    };
+
+    /**
+     * same as {@link #setup(DataSource, CurrencyUnit)} in the default currency, for tests and benchmarks
+     */
     public static void setup(DataSource dataSource) throws SQLException {
+        setup(dataSource, CurrencyUnit.getDefault());
+    }
 
-        Connection connection = dataSource.getConnection();
-        Statement stmt = connection.createStatement();
+    /**
+     * apply the migrations the database lacks, legacy real amounts are converted to minor units of the currency
+     */
+    public static void setup(DataSource dataSource, CurrencyUnit currency) throws SQLException {
+
+        try (Connection connection = dataSource.getConnection();
+             Statement stmt = connection.createStatement()) {
+            setup(connection, stmt, currency);
+        }
+    }
+
+    /**
+     * @return the latest migration applied to the database, 0 for an empty database
+     */
+    public static int getVersion(DataSource dataSource) throws SQLException {
+        try (Connection connection = dataSource.getConnection()) {
+            return getVersion(connection);
+        }
+    }
+
+    private static void setup(Connection connection, Statement stmt, CurrencyUnit currency) throws SQLException {
+        stmt.execute("""
+                create table if not exists schema_migrations
+                (
+                    version     integer                           not null
+                        constraint schema_migrations_pk
+                            primary key,
+                    description text                              not null,
+                    applied_at  text    default (datetime('now')) not null
+                );
+                """);
+
+        int version = getVersion(connection);
+        boolean autoCommit = connection.getAutoCommit();
+        for (Migration migration : MIGRATIONS) {
+            if (migration.version() <= version) {
+                continue;
+            }
+            // each migration and its version commit together, a failed one is retried as a whole on the next start.
+            // databases created before migrations were versioned start at 0, so every step checks what exists
+            connection.setAutoCommit(false);
+            try (Statement migrationStmt = connection.createStatement();
+                 PreparedStatement record = connection.prepareStatement(
+                         "insert into schema_migrations (version, description) values (?, ?)")) {
+                migration.step().apply(connection, migrationStmt, currency);
+                record.setInt(1, migration.version());
+                record.setString(2, migration.description());
+                record.executeUpdate();
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+        }
+    }
+
+    private static int getVersion(Connection connection) throws SQLException {
+        if (columnType(connection, "schema_migrations", "version") == null) {
+            return 0;
+        }
+        try (Statement stmt = connection.createStatement();
+             ResultSet rs = stmt.executeQuery("select coalesce(max(version), 0) from schema_migrations")) {
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+
+    private static void createBaseline(Connection connection, Statement stmt, CurrencyUnit currency)
+            throws SQLException {
+
+        // move tables still storing real amounts out of the way, they are copied into the new tables below
+        for (MoneyColumn moneyColumn : MONEY_COLUMNS) {
+            if ("real".equalsIgnoreCase(columnType(connection, moneyColumn.table(), moneyColumn.column()))
+                    && columnType(connection, moneyColumn.legacyTable(), moneyColumn.column()) == null) {
+                stmt.execute("alter table " + moneyColumn.table() + " rename to " + moneyColumn.legacyTable());
+            }
+        }
+        if (columnType(connection, "withdrawal_requests_real", "amount") != null) {
+            // the index moved with the renamed table but keeps its name
+            stmt.execute("drop index if exists withdrawal_requests_withdrawal_id_uindex");
+        }
 
         String sql = """
                 create table if not exists account_balances
@@ -18,7 +133,7 @@ public class DbSchema {
                         constraint account_balances_pk
                             primary key autoincrement,
                     user_id    integer        not null,
-                    balance    real default 0 not null,
+                    balance    integer default 0 not null,
                     created_at TEXT default (datetime('now')),
                     updated_at TEXT default (datetime('now'))
                 );
@@ -33,7 +148,7 @@ public class DbSchema {
                         constraint transaction_logs_pk
                             primary key,
                     account_id integer                           not null,
-                    amount     real                              not null,
+                    amount     integer                           not null,
                     type       integer default 0                 not null,
                     details    text,
                     created_at text    default (datetime('now')) not null,
@@ -42,6 +157,18 @@ public class DbSchema {
                    """;
         stmt.execute(sql);
 
+        sql = """
+                create table if not exists ledger_checkpoint
+                (
+                    id         integer                           not null
+                        constraint ledger_checkpoint_pk
+                            primary key,
+                    seq        integer                           not null,
+                    updated_at text    default (datetime('now')) not null
+                );
+                """;
+        stmt.execute(sql);
+
         sql = """
                 create table if not exists withdrawal_requests
                 (
@@ -51,15 +178,257 @@ public class DbSchema {
                     from_account_id integer                           not null,
                     withdrawal_id   TEXT                              not null,
                     to_address      TEXT                              not null,
-                    amount          real                              not null,
+                    amount          integer                           not null,
                     status          INTEGER default 0                 not null,
                     created_at      text    default (datetime('now')) not null,
                     updated_at      TEXT    default (datetime('now')) not null
                 );
-                                
-                create unique index withdrawal_requests_withdrawal_id_uindex
-                    on withdrawal_requests (withdrawal_id);
                 """;
         stmt.execute(sql);
+        // execute only runs the first statement of a script, so the index gets its own
+        stmt.execute("""
+                create unique index if not exists withdrawal_requests_withdrawal_id_uindex
+                    on withdrawal_requests (withdrawal_id)
+                """);
+
+        migrateToMinorUnits(connection, currency);
+    }
+
+    private static void createPostings(Connection connection, Statement stmt, CurrencyUnit currency)
+            throws SQLException {
+        // per-account history reads page through these
+        stmt.execute("create index if not exists transaction_logs_account_id_index on transaction_logs (account_id, id)");
+        stmt.execute("create index if not exists transaction_logs_created_at_index on transaction_logs (created_at)");
+
+        // double-entry postings, every transfer writes a debit and a credit sharing its transaction log id.
+        // bucket is the month the posting was written in, months past the hot ones are moved to archive files
+        String sql = """
+                create table if not exists postings
+                (
+                    seq             integer                           not null
+                        constraint postings_pk
+                            primary key autoincrement,
+                    transfer_id     integer                           not null,
+                    account_id      integer                           not null,
+                    counterparty_id integer                           not null,
+                    amount          integer                           not null,
+                    type            integer default 0                 not null,
+                    bucket          integer default (cast(strftime('%Y%m', 'now') as integer)) not null,
+                    created_at      text    default (datetime('now')) not null
+                );
+                """;
+        stmt.execute(sql);
+        stmt.execute("create index if not exists postings_account_id_seq_index on postings (account_id, seq)");
+    }
+
+    private static void createIdempotencyKeys(Connection connection, Statement stmt, CurrencyUnit currency)
+            throws SQLException {
+        // responses of /transfer and /withdraw by Idempotency-Key, replayed to retries until expires_at (epoch millis)
+        String sql = """
+                create table if not exists idempotency_keys
+                (
+                    scope           text                              not null,
+                    idempotency_key text                              not null,
+                    request_hash    text                              not null,
+                    status_code     integer                           not null,
+                    response_body   text                              not null,
+                    expires_at      integer                           not null,
+                    created_at      text    default (datetime('now')) not null,
+                    constraint idempotency_keys_pk
+                        primary key (scope, idempotency_key)
+                );
+                """;
+        stmt.execute(sql);
+        stmt.execute("create index if not exists idempotency_keys_expires_at_index on idempotency_keys (expires_at)");
+    }
+
+    private static void addWithdrawalNextCheckAt(Connection connection, Statement stmt, CurrencyUnit currency)
+            throws SQLException {
+        // epoch millis of the next provider check, 0 is due right away
+        if (columnType(connection, "withdrawal_requests", "next_check_at") == null) {
+            stmt.execute("alter table withdrawal_requests add column next_check_at integer default 0 not null");
+        }
+        // only CREATED and REQUESTED rows are indexed, so finding due work costs the same however many withdrawals
+        // are final. SQLite picks it for a query on one of these statuses, also when the status is bound
+        stmt.execute("""
+                create index if not exists withdrawal_requests_pending_index
+                    on withdrawal_requests (status, next_check_at)
+                    where status = 0 or status = 1
+                """);
+    }
+
+    private static void createTransferIntents(Connection connection, Statement stmt, CurrencyUnit currency)
+            throws SQLException {
+        // transfers between accounts of two shards. The source shard records the intent with the debit and is the
+        // coordinator, the destination shard records the outcome of the credit under the same intent_id so a
+        // credit replayed by recovery is applied at most once
+        String sql = """
+                create table if not exists transfer_intents
+                (
+                    intent_id          text                              not null
+                        constraint transfer_intents_pk
+                            primary key,
+                    role               integer                           not null,
+                    from_account_id    integer                           not null,
+                    to_account_id      integer                           not null,
+                    amount             integer                           not null,
+                    transaction_log_id integer default 0                 not null,
+                    status             integer default 0                 not null,
+                    created_at         text    default (datetime('now')) not null,
+                    updated_at         text    default (datetime('now')) not null
+                );
+                """;
+        stmt.execute(sql);
+        // only prepared source intents are indexed, recovery finds unfinished work however many are done
+        stmt.execute("""
+                create index if not exists transfer_intents_prepared_index
+                    on transfer_intents (created_at)
+                    where role = 0 and status = 0
+                """);
+    }
+
+    private static void createBalanceSeq(Connection connection, Statement stmt, CurrencyUnit currency)
+            throws SQLException {
+        // counts changes to account_balances and commits with them, so a read transaction that sees seq n sees
+        // exactly the first n changes. Kept by triggers, so every writer, batch and checkpoint path bumps it
+        String sql = """
+                create table if not exists balance_seq
+                (
+                    id  integer not null
+                        constraint balance_seq_pk
+                            primary key
+                        check (id = 1),
+                    seq integer not null
+                );
+                """;
+        stmt.execute(sql);
+        stmt.execute("insert or ignore into balance_seq (id, seq) values (1, 0)");
+        for (String event : new String[]{"insert", "update of balance", "delete"}) {
+            stmt.execute("create trigger if not exists account_balances_" + event.split(" ")[0] + "_seq"
+                    + " after " + event + " on account_balances"
+                    + " begin update balance_seq set seq = seq + 1 where id = 1; end");
+        }
+    }
+
+    private static void createAuditCheckpoints(Connection connection, Statement stmt, CurrencyUnit currency)
+            throws SQLException {
+        // the balance each account was last audited at and the last posting folded into it
+        String sql = """
+                create table if not exists audit_checkpoints
+                (
+                    account_id integer                           not null
+                        constraint audit_checkpoints_pk
+                            primary key,
+                    balance    integer                           not null,
+                    last_seq   integer                           not null,
+                    updated_at text    default (datetime('now')) not null
+                );
+                """;
+        stmt.execute(sql);
+        // how far the last audit read the postings and withdrawals, one row once the first audit ran
+        sql = """
+                create table if not exists audit_state
+                (
+                    id            integer                           not null
+                        constraint audit_state_pk
+                            primary key
+                        check (id = 1),
+                    posting_seq   integer                           not null,
+                    withdrawal_id integer                           not null,
+                    updated_at    text    default (datetime('now')) not null
+                );
+                """;
+        stmt.execute(sql);
+        // withdrawals already debited that may still be refunded, by withdrawal_requests id
+        sql = """
+                create table if not exists audit_open_withdrawals
+                (
+                    id integer not null
+                        constraint audit_open_withdrawals_pk
+                            primary key
+                );
+                """;
+        stmt.execute(sql);
+    }
+
+    private static void createDebitingWithdrawalIndex(Connection connection, Statement stmt, CurrencyUnit currency)
+            throws SQLException {
+        // DEBITING rows only live between their insert and the ledger debit, recovery finds the ones left by a crash
+        // without reading every withdrawal
+        stmt.execute("""
+                create index if not exists withdrawal_requests_debiting_index
+                    on withdrawal_requests (id)
+                    where status = 4
+                """);
+    }
+
+    private static void createRefundingWithdrawalIndex(Connection connection, Statement stmt, CurrencyUnit currency)
+            throws SQLException {
+        // same as DEBITING, REFUNDING rows only live between their commit and the ledger refund
+        stmt.execute("""
+                create index if not exists withdrawal_requests_refunding_index
+                    on withdrawal_requests (id)
+                    where status = 5
+                """);
+    }
+
+    private static void addIdempotencyKeyPending(Connection connection, Statement stmt, CurrencyUnit currency)
+            throws SQLException {
+        // a key reserved before its write reaches the ledger journal, it is never replayed until the checkpoint that
+        // writes the journal entry settles it, or recovery deletes it when the journal never got the entry
+        if (columnType(connection, "idempotency_keys", "pending") == null) {
+            stmt.execute("alter table idempotency_keys add column pending integer default 0 not null");
+        }
+    }
+
+    /**
+     * copy the legacy real tables into the integer tables, amounts are rounded to minor units of the currency.
+     * runs inside the baseline migration's transaction
+     */
+    private static void migrateToMinorUnits(Connection connection, CurrencyUnit currency) throws SQLException {
+        long factor = currency.minorUnitsPerUnit();
+        for (MoneyColumn moneyColumn : MONEY_COLUMNS) {
+            if (columnType(connection, moneyColumn.legacyTable(), moneyColumn.column()) == null) {
+                continue;
+            }
+            String selectColumns = moneyColumn.columns().replace(
+                    moneyColumn.column(),
+                    "cast(round(" + moneyColumn.column() + " * " + factor + ") as integer)"
+            );
+            try (Statement stmt = connection.createStatement()) {
+                stmt.executeUpdate("insert into " + moneyColumn.table() + " (" + moneyColumn.columns() + ")"
+                        + " select " + selectColumns + " from " + moneyColumn.legacyTable());
+                stmt.executeUpdate("drop table " + moneyColumn.legacyTable());
+            }
+        }
+    }
+
+    /**
+     * @return the declared type of the column, null if the table or column does not exist
+     */
+    private static String columnType(Connection connection, String table, String column) throws SQLException {
+        try (Statement stmt = connection.createStatement();
+             ResultSet rs = stmt.executeQuery("pragma table_info(" + table + ")")) {
+            while (rs.next()) {
+                if (column.equals(rs.getString("name"))) {
+                    return rs.getString("type");
+                }
+            }
+        }
+        return null;
+    }
+
+    private record Migration(int version, String description, MigrationStep step) {
+    }
+
+    @FunctionalInterface
+    private interface MigrationStep {
+        void apply(Connection connection, Statement stmt, CurrencyUnit currency) throws SQLException;
+    }
+
+    private record MoneyColumn(String table, String column, String columns) {
+        String legacyTable() {
+            return table + "_real";
+        }
     }
 }
@@ -1,10 +1,9 @@
 package com.felix;
 
+import com.felix.metrics.Metrics;
 import com.zaxxer.hikari.HikariConfig;
 import com.zaxxer.hikari.HikariDataSource;
-
-import java.sql.Connection;
-import java.sql.SQLException;
+import org.sqlite.SQLiteConfig;
 
 public class HikariCPDataSource {
 
@@ -12,15 +11,82 @@ public class HikariCPDataSource {
     }
 
     public static HikariDataSource createNewDataSource(String filename) {
-        HikariConfig config = new HikariConfig();
+        return createNewDataSource(filename, 10);
+    }
 
-        config.setJdbcUrl("jdbc:sqlite:" + filename);
-        config.setDriverClassName("org.sqlite.JDBC");
-        config.addDataSourceProperty("cachePrepStmts", "true");
-        config.addDataSourceProperty("prepStmtCacheSize", "250");
-        config.addDataSourceProperty("prepStmtCacheSqlLimit", "2048");
+    /**
+     * a general purpose pool with SQLite defaults, concurrent writers fail with SQLITE_BUSY instead of queueing
+     *
+     * @param maxPoolSize - upper bound on concurrent JDBC work
+     */
+    public static HikariDataSource createNewDataSource(String filename, int maxPoolSize) {
+        HikariConfig config = newConfig(filename);
+        config.setMaximumPoolSize(maxPoolSize);
+        // sqlite-jdbc has no driver-side statement cache, DAOs reuse statements through StatementCache
+        return new HikariDataSource(config);
+    }
+
+    /**
+     * the single connection every write goes through, writers queue on the pool instead of failing with SQLITE_BUSY
+     */
+    public static HikariDataSource createWriterDataSource(String filename, SqliteProfile profile) {
+        return createWriterDataSource(filename, profile, "sqlite-writer");
+    }
 
+    /**
+     * @param poolName - unique per database file, pool metrics are reported under it
+     */
+    public static HikariDataSource createWriterDataSource(String filename, SqliteProfile profile, String poolName) {
+        SQLiteConfig sqliteConfig = newSqliteConfig(profile);
+        sqliteConfig.setJournalMode(SQLiteConfig.JournalMode.valueOf(profile.journalMode().toUpperCase()));
+        sqliteConfig.setSynchronous(SQLiteConfig.SynchronousMode.valueOf(profile.synchronous().toUpperCase()));
+
+        HikariConfig config = newConfig(filename);
+        config.setPoolName(poolName);
+        config.setMaximumPoolSize(1);
+        config.setDataSourceProperties(sqliteConfig.toProperties());
+        if (profile.isBackgroundCheckpoint()) {
+            // checkpoints are left to WalCheckpointer so a commit never pays for one
+            config.setConnectionInitSql("pragma wal_autocheckpoint = 0");
+        }
         return new HikariDataSource(config);
     }
 
-}
\ No newline at end of file
+    /**
+     * read-only connections, in wal mode they read the last committed snapshot without blocking the writer.
+     * Create it after the writer so the database file and its journal mode exist.
+     */
+    public static HikariDataSource createReaderDataSource(String filename, SqliteProfile profile) {
+        return createReaderDataSource(filename, profile, "sqlite-reader");
+    }
+
+    public static HikariDataSource createReaderDataSource(String filename, SqliteProfile profile, String poolName) {
+        SQLiteConfig sqliteConfig = newSqliteConfig(profile);
+        sqliteConfig.setReadOnly(true);
+
+        HikariConfig config = newConfig(filename);
+        config.setPoolName(poolName);
+        config.setMaximumPoolSize(profile.readerPoolSize());
+        // the pool applies its own read-only flag to every connection, sqlite-jdbc refuses to flip it after opening
+        config.setReadOnly(true);
+        config.setDataSourceProperties(sqliteConfig.toProperties());
+        return new HikariDataSource(config);
+    }
+
+    private static SQLiteConfig newSqliteConfig(SqliteProfile profile) {
+        SQLiteConfig sqliteConfig = new SQLiteConfig();
+        sqliteConfig.setBusyTimeout(profile.busyTimeoutMillis());
+        sqliteConfig.setCacheSize(profile.cacheSize());
+        sqliteConfig.setPragma(SQLiteConfig.Pragma.MMAP_SIZE, String.valueOf(profile.mmapSize()));
+        return sqliteConfig;
+    }
+
+    private static HikariConfig newConfig(String filename) {
+        HikariConfig config = new HikariConfig();
+        config.setJdbcUrl("jdbc:sqlite:" + filename);
+        config.setDriverClassName("org.sqlite.JDBC");
+        config.setMetricsTrackerFactory(Metrics::trackPool);
+        return config;
+    }
+
+}
@@ -1,137 +1,855 @@
 package com.felix;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.felix.admission.AdmissionController;
+import com.felix.admission.AdmissionRejectedException;
+import com.felix.audit.AuditReport;
+import com.felix.audit.BalanceAuditor;
+import com.felix.cache.BalanceCache;
+import com.felix.codec.JsonCodec;
 import com.felix.dao.BalanceDAO;
 import com.felix.dto.RequestWithdrawalResponse;
+import com.felix.dto.TransferBatchRequest;
 import com.felix.dto.TransferRequest;
 import com.felix.dto.WithdrawalRequest;
 import com.felix.dto.WithdrawalResponseDto;
+import com.felix.events.ChangeFeed;
+import com.felix.events.WithdrawalChange;
 import com.felix.exception.TransactionFailedException;
+import com.felix.export.ExportFormat;
+import com.felix.export.TableExporter;
 import com.felix.external.WithdrawalService;
 import com.felix.external.WithdrawalServiceStub;
+import com.felix.history.PostingHistory;
+import com.felix.http.ChunkedOutput;
+import com.felix.http.EventStreamResponse;
+import com.felix.http.HandlerExecutor;
+import com.felix.idempotency.IdempotencyKey;
+import com.felix.idempotency.IdempotencyKeyReusedException;
+import com.felix.idempotency.IdempotencyStore;
+import com.felix.idempotency.IdempotentResponse;
+import com.felix.ledger.BalanceLedger;
+import com.felix.ledger.LedgerCheckpointer;
+import com.felix.ledger.LedgerJournal;
+import com.felix.metrics.Metrics;
+import com.felix.model.PostingModel;
 import com.felix.model.TransactionLogModel;
+import com.felix.model.WithdrawalRequestStatusEnum;
+import com.felix.money.CurrencyUnit;
+import com.felix.provisioning.AccountImporter;
+import com.felix.provisioning.ImportReport;
+import com.felix.provisioning.InvalidRowException;
+import com.felix.reconciler.WithdrawalReconciler;
+import com.felix.service.ErrorCode;
+import com.felix.service.GroupCommitTransferExecutor;
 import com.felix.service.Response;
+import com.felix.service.Shard;
+import com.felix.service.ShardedTransferService;
 import com.felix.service.TransferService;
+import com.felix.service.WithdrawalDispatcher;
+import com.felix.snapshot.BalanceSnapshot;
+import com.felix.snapshot.BalanceSnapshotStore;
 import com.zaxxer.hikari.HikariDataSource;
-import org.rapidoid.data.JSON;
+import org.rapidoid.config.Conf;
+import org.rapidoid.config.Config;
+import org.rapidoid.http.MediaType;
 import org.rapidoid.http.Req;
 import org.rapidoid.http.Resp;
 import org.rapidoid.setup.App;
+import org.rapidoid.setup.My;
 import org.rapidoid.setup.On;
 import org.rapidoid.u.U;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.math.BigDecimal;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
 
 public class Main {
-    public static void main(String[] args) throws SQLException, TransactionFailedException {
+    public static void main(String[] args) throws SQLException, TransactionFailedException, IOException {
         App.bootstrap(args);
+        // amounts are kept as minor units of this currency, e.g. money.currency=JPY or money.currency=USD money.scale=4
+        Config moneyConfig = Conf.section("money");
+        String currencyCode = moneyConfig.entry("currency").str().or("USD");
+        CurrencyUnit currency = moneyConfig.entry("scale").exists()
+                ? CurrencyUnit.register(currencyCode, moneyConfig.entry("scale").num().get().intValue())
+                : CurrencyUnit.of(currencyCode);
+        CurrencyUnit.setDefault(currency);
+
+        // hot path latencies and counters on /metrics, metrics.enabled=false stops recording them
+        Metrics.setEnabled(Conf.section("metrics").entry("enabled").bool().or(true));
+
         String dbFilename = "sample.db";
-        HikariDataSource dataSource = HikariCPDataSource.createNewDataSource(dbFilename);
-        DbSchema.setup(dataSource);
+        // e.g. db.journalMode=wal db.synchronous=normal db.readerPoolSize=16 db.walCheckpointIntervalMillis=1000
+        Config dbConfig = Conf.section("db");
+        SqliteProfile defaults = SqliteProfile.defaults();
+        SqliteProfile sqliteProfile = new SqliteProfile(
+                dbConfig.entry("journalMode").str().or(defaults.journalMode()),
+                dbConfig.entry("synchronous").str().or(defaults.synchronous()),
+                dbConfig.entry("mmapSize").num().or(defaults.mmapSize()),
+                dbConfig.entry("cacheSize").num().or((long) defaults.cacheSize()).intValue(),
+                dbConfig.entry("busyTimeoutMillis").num().or((long) defaults.busyTimeoutMillis()).intValue(),
+                dbConfig.entry("readerPoolSize").num().or((long) defaults.readerPoolSize()).intValue(),
+                dbConfig.entry("walCheckpointIntervalMillis").num().or(defaults.walCheckpointIntervalMillis())
+        );
+        // accounts hash-partitioned across database files, e.g. shards.count=4 keeps them in sample.db, sample-1.db,
+        // sample-2.db and sample-3.db. The shard of an account depends on the count, so keep it for the life of the files
+        Config shardConfig = Conf.section("shards");
+        int shardCount = shardConfig.entry("count").num().or(1L).intValue();
+        List<String> shardFilenames = new ArrayList<>(shardCount);
+        List<HikariDataSource> writeDataSources = new ArrayList<>(shardCount);
+        List<HikariDataSource> readDataSources = new ArrayList<>(shardCount);
+        List<WalCheckpointer> walCheckpointers = new ArrayList<>(shardCount);
+        for (int shard = 0; shard < shardCount; shard++) {
+            String shardFilename = ShardedTransferService.shardFilename(dbFilename, shard);
+            String poolSuffix = shard == 0 ? "" : "-" + shard;
+            // every write goes through the shard's single writer connection, lookups use its read-only pool
+            HikariDataSource writeDataSource = HikariCPDataSource.createWriterDataSource(
+                    shardFilename, sqliteProfile, "sqlite-writer" + poolSuffix);
+            DbSchema.setup(writeDataSource, currency);
+            shardFilenames.add(shardFilename);
+            writeDataSources.add(writeDataSource);
+            readDataSources.add(HikariCPDataSource.createReaderDataSource(
+                    shardFilename, sqliteProfile, "sqlite-reader" + poolSuffix));
+            if (sqliteProfile.isBackgroundCheckpoint()) {
+                WalCheckpointer walCheckpointer = new WalCheckpointer(shardFilename, sqliteProfile);
+                walCheckpointer.start(sqliteProfile.walCheckpointIntervalMillis());
+                walCheckpointers.add(walCheckpointer);
+            }
+        }
+        // the ledger and group commit only run on a single shard
+        HikariDataSource dataSource = writeDataSources.get(0);
 
+        // account history, months past the hot ones move to read-only files,
+        // e.g. history.archiveDir=posting-archive history.hotBuckets=2 history.archiveIntervalMillis=3600000
+        Config historyConfig = Conf.section("history");
+        // each shard archives into its own directory, e.g. posting-archive and posting-archive-1
+        String archiveDir = historyConfig.entry("archiveDir").str().or("posting-archive");
+        List<PostingHistory> postingHistories = new ArrayList<>(shardCount);
+        for (int shard = 0; shard < shardCount; shard++) {
+            PostingHistory postingHistory = new PostingHistory(
+                    shardFilenames.get(shard),
+                    writeDataSources.get(shard),
+                    readDataSources.get(shard),
+                    Path.of(ShardedTransferService.shardFilename(archiveDir, shard)),
+                    historyConfig.entry("hotBuckets").num().or(2L).intValue()
+            );
+            postingHistory.open();
+            postingHistory.start(historyConfig.entry("archiveIntervalMillis").num().or(3_600_000L));
+            postingHistories.add(postingHistory);
+        }
+
+        // setup accounts for testing, each in its shard
+        for (int accountId = 1; accountId <= 5; accountId++) {
+            int shard = ShardedTransferService.shardOf(accountId, shardCount);
+            try (Connection connection = writeDataSources.get(shard).getConnection()) {
+                long initialBalance = accountId == 1 ? 1000000 * currency.minorUnitsPerUnit() : 0;
+                new BalanceDAO(connection).setupAccount(accountId, accountId, initialBalance);
+            }
+        }
+        // accounts loaded before serving, and before the ledger reads them, e.g. accounts.importFile=accounts.csv in
+        // the format of its extension, accounts.rowsPerTransaction=50000 rows of a shard per transaction
+        Config accountsConfig = Conf.section("accounts");
+        int importRowsPerTransaction = accountsConfig.entry("rowsPerTransaction").num()
+                .or((long) AccountImporter.DEFAULT_ROWS_PER_TRANSACTION).intValue();
+        // its report is served by /accounts/import/stats until another import runs
+        ImportReport startupImport = null;
+        if (accountsConfig.entry("importFile").exists()) {
+            String importFile = accountsConfig.entry("importFile").str().get();
+            try (InputStream in = new BufferedInputStream(new FileInputStream(importFile))) {
+                startupImport = new AccountImporter(writeDataSources, currency, importRowsPerTransaction,
+                        AccountImporter.IGNORE_IMPORTED)
+                        .importAccounts(in, ExportFormat.fromFilename(importFile), AccountImporter.IGNORE_PROGRESS);
+            }
+        }
+
+        // opt-in in-memory ledger, e.g. ledger.enabled=true ledger.journalDir=ledger-journal ledger.syncEveryWrite=false
+        // it keeps every balance in one journal, so it only applies to a single shard
+        Config ledgerConfig = Conf.section("ledger");
+        String journalDir = ledgerConfig.entry("journalDir").str().or("ledger-journal");
+        BalanceLedger ledger = null;
+        LedgerCheckpointer ledgerCheckpointer = null;
+        if (shardCount == 1 && ledgerConfig.entry("enabled").bool().or(false)) {
+            LedgerJournal journal = new LedgerJournal(
+                    Path.of(journalDir),
+                    ledgerConfig.entry("syncEveryWrite").bool().or(false)
+            );
+            // accounts most transfers come from, split into slots, e.g. ledger.hotAccounts=1:16,7:8
+            ledger = new BalanceLedger(
+                    journal,
+                    ledgerConfig.entry("stripes").num().or(64L).intValue(),
+                    parseHotAccounts(ledgerConfig.entry("hotAccounts").str().or(""))
+            );
+            ledgerCheckpointer = new LedgerCheckpointer(dataSource, ledger);
+            ledgerCheckpointer.recover();
+            ledgerCheckpointer.start(
+                    ledgerConfig.entry("checkpointIntervalMillis").num().or(1000L),
+                    ledgerConfig.entry("syncIntervalMillis").num().or(10L),
+                    ledgerConfig.entry("rebalanceIntervalMillis").num().or(100L)
+            );
+        }
+        BalanceLedger balanceLedger = ledger;
+        LedgerCheckpointer checkpointer = ledgerCheckpointer;
+
+        // balances served by /balances/{accountId}, e.g. balanceCache.maxSize=100000, 0 reads every balance from the
+        // database, the ledger already keeps them in memory
+        long balanceCacheSize = Conf.section("balanceCache").entry("maxSize").num().or(10_000L);
+        BalanceCache balanceCache = balanceLedger == null && balanceCacheSize > 0
+                ? new BalanceCache((int) balanceCacheSize)
+                : null;
+
+        // status changes of transfers and withdrawals streamed as server-sent events, e.g. events.queueCapacity=128
+        // events a slow client may fall behind by before its stream is closed, events.keepaliveMillis=15000
+        Config eventsConfig = Conf.section("events");
+        ChangeFeed changeFeed = new ChangeFeed(
+                eventsConfig.entry("queueCapacity").num().or((long) ChangeFeed.DEFAULT_QUEUE_CAPACITY).intValue());
+        changeFeed.start(eventsConfig.entry("keepaliveMillis").num().or(15_000L));
+
+        // the shards share the balance cache and the change feed, an account is only ever in one of them
         WithdrawalService withdrawalService = new WithdrawalServiceStub();
-        TransferService transferService = new TransferService(
-                dataSource,
-                withdrawalService
+        List<Shard> shards = new ArrayList<>(shardCount);
+        for (int shard = 0; shard < shardCount; shard++) {
+            shards.add(new Shard(shard, writeDataSources.get(shard), readDataSources.get(shard), new TransferService(
+                    writeDataSources.get(shard),
+                    readDataSources.get(shard),
+                    withdrawalService,
+                    balanceLedger,
+                    balanceCache,
+                    changeFeed
+            )));
+        }
+        TransferService transferService = shards.get(0).transferService();
+        // transfers across shards left half done by a crash are finished before serving, e.g.
+        // shards.recoveryIntervalMillis=1000 retries the ones whose credit failed while running
+        ShardedTransferService shardedTransferService = new ShardedTransferService(shards);
+        shardedTransferService.recover();
+        shardedTransferService.start(shardConfig.entry("recoveryIntervalMillis").num().or(1000L));
+
+        // opt-in group commit, e.g. transfer.groupCommit=true transfer.maxBatchSize=256 transfer.maxWaitMicros=500
+        // the ledger already keeps transfers off the database, so group commit only applies without it, and like the
+        // ledger only to a single shard
+        Config transferConfig = Conf.section("transfer");
+        GroupCommitTransferExecutor groupCommitExecutor = null;
+        if (shardCount == 1 && balanceLedger == null && transferConfig.entry("groupCommit").bool().or(false)) {
+            groupCommitExecutor = new GroupCommitTransferExecutor(
+                    dataSource,
+                    transferService,
+                    transferConfig.entry("queueCapacity").num().or(10_000L).intValue(),
+                    transferConfig.entry("maxBatchSize").num().or(256L).intValue(),
+                    transferConfig.entry("maxWaitMicros").num().or(500L)
+            );
+        }
+        GroupCommitTransferExecutor transferExecutor = groupCommitExecutor;
+
+
+        // reconcile pending withdrawals as they come due instead of rescanning the table,
+        // e.g. reconciler.workers=16 reconciler.initialDelayMillis=1000 reconciler.maxDelayMillis=60000
+        // withdrawals are committed as CREATED and handed to the provider by the dispatcher, off the request path
+        // e.g. outbox.batchSize=100 outbox.concurrency=16 outbox.maxAttempts=3. Each shard runs its own pair
+        Config reconcilerConfig = Conf.section("reconciler");
+        Config outboxConfig = Conf.section("outbox");
+        List<WithdrawalReconciler> reconcilers = new ArrayList<>(shardCount);
+        List<WithdrawalDispatcher> dispatchers = new ArrayList<>(shardCount);
+        for (Shard shard : shards) {
+            WithdrawalReconciler reconciler = new WithdrawalReconciler(
+                    shard.transferService(),
+                    withdrawalService,
+                    reconcilerConfig.entry("workers").num().or(8L).intValue(),
+                    reconcilerConfig.entry("initialDelayMillis").num().or(1000L),
+                    reconcilerConfig.entry("maxDelayMillis").num().or(60_000L),
+                    reconcilerConfig.entry("batchSize").num().or(500L).intValue()
+            );
+            reconciler.start();
+            reconcilers.add(reconciler);
+
+            WithdrawalDispatcher dispatcher = new WithdrawalDispatcher(
+                    shard.writeDataSource(),
+                    shard.transferService(),
+                    withdrawalService,
+                    reconciler::track,
+                    outboxConfig.entry("batchSize").num().or(100L).intValue(),
+                    outboxConfig.entry("concurrency").num().or(16L).intValue(),
+                    outboxConfig.entry("maxAttempts").num().or(3L).intValue(),
+                    outboxConfig.entry("retryBackoffMillis").num().or(200L),
+                    outboxConfig.entry("idleIntervalMillis").num().or(1000L)
+            );
+            dispatcher.start();
+            dispatchers.add(dispatcher);
+        }
+
+        // where handlers block on JDBC, e.g. http.executionMode=virtual (Java 21+) or http.executionMode=platform
+        Config httpConfig = Conf.section("http");
+        HandlerExecutor handlerExecutor = HandlerExecutor.create(
+                HandlerExecutor.Mode.valueOf(httpConfig.entry("executionMode").str().or("worker").toUpperCase()),
+                httpConfig.entry("platformThreads").num().or(64L).intValue()
+        );
+
+        // the ledger keeps balances in memory and would not see imported ones
+        AccountImporter accountImporter = null;
+        if (balanceLedger == null) {
+            // imported balances replace cached ones
+            accountImporter = new AccountImporter(writeDataSources, currency, importRowsPerTransaction, accountId -> {
+                if (balanceCache != null) {
+                    balanceCache.invalidate(accountId);
+                }
+            });
+        }
+        AccountImporter importer = accountImporter;
+        ImportReport lastStartupImport = startupImport;
+
+        List<TableExporter> tableExporters = new ArrayList<>(shardCount);
+        for (HikariDataSource shardReadDataSource : readDataSources) {
+            tableExporters.add(new TableExporter(shardReadDataSource, currency));
+        }
+
+        // balance snapshots leased to reports that page over many requests, e.g. snapshot.maxOpen=2
+        // snapshot.ttlMillis=60000, each open one holds a reader connection of its shard
+        Config snapshotConfig = Conf.section("snapshot");
+        List<BalanceSnapshotStore> snapshotStores = new ArrayList<>(shardCount);
+        for (HikariDataSource shardReadDataSource : readDataSources) {
+            BalanceSnapshotStore snapshotStore = new BalanceSnapshotStore(
+                    shardReadDataSource,
+                    snapshotConfig.entry("maxOpen").num().or(2L).intValue(),
+                    snapshotConfig.entry("ttlMillis").num().or(60_000L)
+            );
+            snapshotStore.start(snapshotConfig.entry("reapIntervalMillis").num().or(10_000L));
+            snapshotStores.add(snapshotStore);
+        }
+
+        // balances checked against the postings and withdrawals since the last run, e.g. audit.intervalMillis=60000
+        // audit.parallelism=4 reader connections folding postings. With the ledger account_balances trails it by a
+        // checkpoint, so there is nothing to audit
+        Config auditConfig = Conf.section("audit");
+        List<BalanceAuditor> auditors = new ArrayList<>(shardCount);
+        if (balanceLedger == null && auditConfig.entry("enabled").bool().or(true)) {
+            int auditParallelism = auditConfig.entry("parallelism").num()
+                    .or((long) Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), sqliteProfile.readerPoolSize() / 2)))
+                    .intValue();
+            for (int shard = 0; shard < shardCount; shard++) {
+                BalanceAuditor auditor = new BalanceAuditor(writeDataSources.get(shard), readDataSources.get(shard), auditParallelism);
+                auditor.start(auditConfig.entry("intervalMillis").num().or(60_000L));
+                auditors.add(auditor);
+            }
+        }
+
+        // responses of /transfer and /withdraw replayed to retries with the same Idempotency-Key header,
+        // e.g. idempotency.ttlMillis=86400000 idempotency.recentKeys=10000 idempotency.purgeIntervalMillis=60000
+        Config idempotencyConfig = Conf.section("idempotency");
+        // a key is stored in the transaction of its write, on the shard the write goes to
+        IdempotencyStore idempotencyStore = new IdempotencyStore(
+                writeDataSources,
+                readDataSources,
+                idempotencyConfig.entry("ttlMillis").num().or(86_400_000L),
+                idempotencyConfig.entry("recentKeys").num().or(10_000L).intValue()
         );
+        idempotencyStore.start(idempotencyConfig.entry("purgeIntervalMillis").num().or(60_000L));
 
-        // setup accounts for testing
-        Connection connection = dataSource.getConnection();
-        BalanceDAO balanceDAO = new BalanceDAO(connection);
-        balanceDAO.setupAccount(1, 1, BigDecimal.valueOf(1000000));
-        balanceDAO.setupAccount(2, 2, BigDecimal.valueOf(0));
-        balanceDAO.setupAccount(3, 3, BigDecimal.valueOf(0));
-        balanceDAO.setupAccount(4, 4, BigDecimal.valueOf(0));
-        balanceDAO.setupAccount(5, 5, BigDecimal.valueOf(0));
-        connection.close();
+        // admission control in front of the write path, e.g. admission.enabled=true admission.stripes=64
+        // admission.stripeQueueCapacity=32 admission.maxInFlight=4, a write whose stripe is full gets a 429
+        Config admissionConfig = Conf.section("admission");
+        AdmissionController admission = admissionConfig.entry("enabled").bool().or(false)
+                ? new AdmissionController(
+                admissionConfig.entry("stripes").num().or(64L).intValue(),
+                admissionConfig.entry("stripeQueueCapacity").num().or(32L).intValue(),
+                admissionConfig.entry("maxInFlight").num().or(4L).intValue())
+                : null;
 
+        // responses are written by the shared codec, straight into the response buffer
+        My.jsonResponseRenderer((req, value, out) -> JsonCodec.encode(value, out));
 
         // setup routes
         On.post("/transfer").json((Req req, Resp resp) -> {
-            TransferRequest transferRequest = new ObjectMapper().readValue(req.body(), TransferRequest.class);
-            Response<TransactionLogModel> result = transferService.transfer(transferRequest);
-            return buildResponse(result, resp);
+            TransferRequest transferRequest = JsonCodec.decodeTransferRequest(req.body());
+            int accountId = transferRequest.getFromAccountId();
+            return respondWrite(req, resp, idempotencyStore, "transfer", idempotencyKey -> {
+                if (transferExecutor == null) {
+                    return submitWrite(admission, handlerExecutor, accountId,
+                            () -> shardedTransferService.transfer(transferRequest, idempotencyKey));
+                }
+                // respond once the batch holding this transfer has committed
+                return admission != null
+                        ? admission.submitAsync(accountId, () -> transferExecutor.submit(transferRequest, idempotencyKey))
+                        : transferExecutor.submit(transferRequest, idempotencyKey);
+            });
+        });
+        On.post("/transfers/batch").json((Req req, Resp resp) -> {
+            TransferBatchRequest batchRequest = JsonCodec.decodeTransferBatchRequest(req.body());
+            List<TransferRequest> transfers = batchRequest.getTransfers();
+            req.async();
+            // a batch debits many accounts, so it queues on the batch stripe rather than on one of theirs
+            Callable<Response<List<Response<TransactionLogModel>>>> write =
+                    () -> shardedTransferService.transferBatch(transfers, batchRequest.isBestEffort());
+            (admission != null ? admission.submitBatch(write) : handlerExecutor.submit(write))
+                    .whenComplete((result, e) -> {
+                        if (e != null) {
+                            writeError(resp, e);
+                        } else {
+                            resp.result(buildResponse(result, resp));
+                        }
+                        req.done();
+                    });
+            return req;
         });
         On.post("/withdraw").json((Req req, Resp resp) -> {
-            WithdrawalRequest withdrawalRequest = new ObjectMapper().readValue(req.body(), WithdrawalRequest.class);
-            Response<RequestWithdrawalResponse> result = transferService.requestWithdrawal(withdrawalRequest);
-            return buildResponse(result, resp);
+            WithdrawalRequest withdrawalRequest = JsonCodec.decodeWithdrawalRequest(req.body());
+            return respondWrite(req, resp, idempotencyStore, "withdraw", idempotencyKey -> submitWrite(
+                    admission,
+                    handlerExecutor,
+                    withdrawalRequest.getFromAccountId(),
+                    () -> {
+                        Response<RequestWithdrawalResponse> result =
+                                shardedTransferService.requestWithdrawal(withdrawalRequest, idempotencyKey);
+                        if (result.isSuccessful()) {
+                            dispatchers.get(shardedTransferService.getShard(withdrawalRequest.getFromAccountId()).index()).wakeUp();
+                        }
+                        return result;
+                    }
+            ));
         });
         On.get("/withdraw/{withdrawId}").json((Req req, Resp resp) -> {
             String withdrawId = req.param("withdrawId");
-            Response<WithdrawalResponseDto> result = transferService.getWithdrawalRequest(withdrawId);
-            return buildResponse(result, resp);
+            return handlerExecutor.execute(req, resp, () -> {
+                Response<WithdrawalResponseDto> result = shardedTransferService.getWithdrawalRequest(withdrawId);
+                return buildResponse(result, resp);
+            });
+        });
+        // server-sent events of a withdrawal, its current status first, and the stream ends with its final one
+        On.get("/withdraw/{withdrawId}/events").json((Req req, Resp resp) -> {
+            String withdrawId = req.param("withdrawId");
+            req.async();
+            // subscribed before the status is read, so no change can fall between the two
+            ChangeFeed.Subscription subscription = changeFeed.subscribeWithdrawal(withdrawId, new EventStreamResponse(req, resp));
+            handlerExecutor.submit(() -> shardedTransferService.getWithdrawalRequest(withdrawId))
+                    .whenComplete((result, e) -> {
+                        if (e != null || !result.isSuccessful()) {
+                            subscription.cancel();
+                            if (e != null) {
+                                writeError(resp, e);
+                            } else {
+                                resp.result(buildResponse(result, resp,
+                                        result.getErrorCode() == ErrorCode.RESOURCE_NOT_FOUND ? 404 : 500));
+                            }
+                            req.done();
+                            return;
+                        }
+                        WithdrawalResponseDto withdrawal = result.getData();
+                        subscription.start(new WithdrawalChange(withdrawal.getWithdrawalId(),
+                                withdrawal.getFromAccountId(), withdrawal.getAmount(), withdrawal.getStatus()));
+                    });
+            return req;
+        });
+        // server-sent events of every transfer and withdrawal of an account from now on, a client that reconnects
+        // reads what it missed from /accounts/{accountId}/transactions
+        On.get("/accounts/{accountId}/events").json((Req req, Resp resp) -> {
+            int accountId = Integer.parseInt(req.param("accountId"));
+            req.async();
+            handlerExecutor.submit(() -> shardedTransferService.getBalance(accountId))
+                    .whenComplete((result, e) -> {
+                        if (e != null) {
+                            writeError(resp, e);
+                            req.done();
+                        } else if (!result.isSuccessful()) {
+                            resp.result(buildResponse(result, resp));
+                            req.done();
+                        } else {
+                            changeFeed.subscribeAccount(accountId, new EventStreamResponse(req, resp));
+                        }
+                    });
+            return req;
         });
 
-        // test controllel
-        On.get("/balances").json((Req req) -> {
-            Connection conn = dataSource.getConnection();
-            BalanceDAO allBalanceDAO = new BalanceDAO(conn);
-            Map<String, BigDecimal> result = allBalanceDAO.getAllAccountBalances();
-            return result;
+        // test controllel, views of a single shard take e.g. ?shard=1, the first one by default
+        // the balances are one point in time, its seq is in the Snapshot-Seq header, with the ledger the journal seq
+        // is in the Journal-Seq header instead
+        On.get("/balances").json((Req req, Resp resp) -> {
+            // streamed from the cursor instead of collected into a map first
+            int shard = shardParam(req, shardCount);
+            TableExporter tableExporter = tableExporters.get(shard);
+            return handlerExecutor.execute(req, resp, () -> {
+                if (balanceLedger != null) {
+                    BalanceLedger.Snapshot snapshot = balanceLedger.snapshot();
+                    resp.header(BalanceLedger.Snapshot.SEQ_HEADER, String.valueOf(snapshot.seq()));
+                    try (OutputStream out = new ChunkedOutput(resp.out())) {
+                        tableExporter.exportBalanceMap(snapshot.balances(), out);
+                    }
+                    return req;
+                }
+                try (BalanceSnapshot snapshot = BalanceSnapshot.open(readDataSources.get(shard))) {
+                    resp.header(BalanceSnapshot.SEQ_HEADER, String.valueOf(snapshot.getSeq()));
+                    try (OutputStream out = new ChunkedOutput(resp.out())) {
+                        tableExporter.exportBalanceMap(snapshot, out);
+                    }
+                }
+                return req;
+            });
+        });
+        On.get("/balances/{accountId}").json((Req req, Resp resp) -> {
+            int accountId = Integer.parseInt(req.param("accountId"));
+            return handlerExecutor.execute(req, resp, () -> {
+                Response<Long> result = shardedTransferService.getBalance(accountId);
+                if (!result.isSuccessful()) {
+                    return buildResponse(result, resp);
+                }
+                return buildResponse(Response.success(currency.toAmount(result.getData())), resp);
+            });
+        });
+        // newest first, pass nextBeforeSeq of a page as before_seq of the next one
+        On.get("/accounts/{accountId}/transactions").json((Req req, Resp resp) -> {
+            int accountId = Integer.parseInt(req.param("accountId"));
+            long beforeSeq = Long.parseLong(req.param("before_seq", String.valueOf(Long.MAX_VALUE)));
+            int limit = Math.max(1, Math.min(500, Integer.parseInt(req.param("limit", "50"))));
+            PostingHistory postingHistory = postingHistories.get(shardedTransferService.getShard(accountId).index());
+            return handlerExecutor.execute(req, resp, () -> {
+                List<PostingModel> postings = postingHistory.getAccountPostings(accountId, beforeSeq, limit);
+                Long nextBeforeSeq = postings.size() < limit ? null : postings.get(postings.size() - 1).getSeq();
+                return buildResponse(Response.success(U.map("postings", postings, "nextBeforeSeq", nextBeforeSeq)), resp);
+            });
+        });
+        On.get("/balance-cache/stats").json(() -> balanceCache == null ? Map.of() : balanceCache.snapshot());
+        // e.g. /export/balances?format=csv&after_account_id=1000&limit=1000, with the ledger these are the rows of
+        // the last checkpoint. Pages read with &snapshot= the id of a snapshot from /snapshots/balances all see the
+        // same balances
+        On.get("/export/balances").plain((Req req, Resp resp) -> {
+            ExportFormat format = ExportFormat.fromParam(req.param("format", "ndjson"));
+            int afterAccountId = Integer.parseInt(req.param("after_account_id", "0"));
+            int limit = Integer.parseInt(req.param("limit", "0"));
+            int shard = shardParam(req, shardCount);
+            TableExporter tableExporter = tableExporters.get(shard);
+            String snapshotId = req.param("snapshot", null);
+            BalanceSnapshot leased = snapshotId == null ? null : snapshotStores.get(shard).get(snapshotId);
+            if (snapshotId != null && leased == null) {
+                resp.code(404);
+                return "no snapshot " + snapshotId;
+            }
+            return handlerExecutor.execute(req, resp, () -> {
+                resp.contentType(MediaType.create(format.getContentType()));
+                if (leased != null) {
+                    resp.header(BalanceSnapshot.SEQ_HEADER, String.valueOf(leased.getSeq()));
+                    try (OutputStream out = new ChunkedOutput(resp.out())) {
+                        tableExporter.exportAccountBalances(leased, out, format, afterAccountId, limit);
+                    }
+                    return req;
+                }
+                try (BalanceSnapshot snapshot = BalanceSnapshot.open(readDataSources.get(shard))) {
+                    resp.header(BalanceSnapshot.SEQ_HEADER, String.valueOf(snapshot.getSeq()));
+                    try (OutputStream out = new ChunkedOutput(resp.out())) {
+                        tableExporter.exportAccountBalances(snapshot, out, format, afterAccountId, limit);
+                    }
+                }
+                return req;
+            });
+        });
+        // lease a snapshot of a shard's balances, release it with a DELETE once the report is done or it expires
+        // after snapshot.ttlMillis unused
+        On.post("/snapshots/balances").json((Req req, Resp resp) -> {
+            int shard = shardParam(req, shardCount);
+            BalanceSnapshotStore snapshotStore = snapshotStores.get(shard);
+            return handlerExecutor.execute(req, resp, () -> {
+                BalanceSnapshotStore.Lease lease = snapshotStore.open();
+                if (lease == null) {
+                    return buildResponse(Response.error(ErrorCode.SERVICE_BUSY, "too many open snapshots"), resp, 429);
+                }
+                return buildResponse(Response.success(U.map(
+                        "snapshotId", lease.id(), "seq", lease.snapshot().getSeq(), "shard", shard)), resp);
+            });
+        });
+        On.delete("/snapshots/balances/{snapshotId}").json((Req req, Resp resp) -> {
+            String snapshotId = req.param("snapshotId");
+            BalanceSnapshotStore snapshotStore = snapshotStores.get(shardParam(req, shardCount));
+            if (!snapshotStore.release(snapshotId)) {
+                return buildResponse(Response.error(ErrorCode.RESOURCE_NOT_FOUND, "no snapshot " + snapshotId), resp);
+            }
+            return buildResponse(Response.success(snapshotId), resp);
+        });
+        On.get("/export/transaction-logs").plain((Req req, Resp resp) -> {
+            ExportFormat format = ExportFormat.fromParam(req.param("format", "ndjson"));
+            int afterId = Integer.parseInt(req.param("after_id", "0"));
+            int limit = Integer.parseInt(req.param("limit", "0"));
+            TableExporter tableExporter = tableExporters.get(shardParam(req, shardCount));
+            return handlerExecutor.execute(req, resp, () -> {
+                resp.contentType(MediaType.create(format.getContentType()));
+                try (OutputStream out = new ChunkedOutput(resp.out())) {
+                    tableExporter.exportTransactionLogs(out, format, afterId, limit);
+                }
+                return req;
+            });
+        });
+        // e.g. POST /accounts/import?format=csv with the rows of /export/balances as the body, which the server holds
+        // in memory, so very large files go through AccountImportCli
+        On.post("/accounts/import").json((Req req, Resp resp) -> {
+            if (importer == null) {
+                return buildResponse(Response.error(ErrorCode.RESOURCE_NOT_FOUND, "import is off with the ledger"), resp);
+            }
+            ExportFormat format = ExportFormat.fromParam(req.param("format", "ndjson"));
+            byte[] body = req.body();
+            return handlerExecutor.execute(req, resp, () -> {
+                try {
+                    ImportReport report = importer.importAccounts(new ByteArrayInputStream(body), format,
+                            AccountImporter.IGNORE_PROGRESS);
+                    if (report == null) {
+                        return buildResponse(Response.error(ErrorCode.SERVICE_BUSY, "an import is running"), resp, 429);
+                    }
+                    return buildResponse(Response.success(report), resp);
+                } catch (InvalidRowException e) {
+                    return buildResponse(Response.error(ErrorCode.INVALID_IMPORT_ROW, e.getMessage()), resp);
+                }
+            });
+        });
+        On.get("/accounts/import/stats").json(() -> {
+            ImportReport progress = importer == null ? null : importer.getProgress();
+            if (progress == null) {
+                progress = lastStartupImport;
+            }
+            return progress == null ? Map.of() : progress;
+        });
+        // e.g. POST /audit/run?full=true compares every account, not only those with new activity
+        On.post("/audit/run").json((Req req, Resp resp) -> {
+            if (auditors.isEmpty()) {
+                return buildResponse(Response.error(ErrorCode.RESOURCE_NOT_FOUND, "audit is off"), resp);
+            }
+            BalanceAuditor auditor = auditors.get(shardParam(req, shardCount));
+            boolean full = Boolean.parseBoolean(req.param("full", "false"));
+            return handlerExecutor.execute(req, resp, () -> buildResponse(Response.success(auditor.run(full)), resp));
+        });
+        On.get("/audit/stats").json((Req req) -> {
+            AuditReport report = auditors.isEmpty() ? null : auditors.get(shardParam(req, shardCount)).getLastReport();
+            return report == null ? Map.of() : report;
+        });
+        On.get("/admission/stats").json(() -> admission == null ? Map.of() : admission.snapshot());
+        On.get("/reconciler/stats").json((Req req) -> {
+            WithdrawalReconciler reconciler = reconcilers.get(shardParam(req, shardCount));
+            return reconciler.getMetrics().snapshot(reconciler.getBacklogSize());
         });
 
+        String withdrawalBacklogHelp = "Withdrawals by stage: created ones wait for the dispatcher, requested ones were"
+                + " handed to the provider and wait for a final state, reconciling ones are polled by the reconciler";
+        Metrics.gauge("withdrawal_backlog", "stage=\"created\"", withdrawalBacklogHelp,
+                () -> countWithdrawals(shardedTransferService, WithdrawalRequestStatusEnum.CREATED));
+        Metrics.gauge("withdrawal_backlog", "stage=\"requested\"", withdrawalBacklogHelp,
+                () -> countWithdrawals(shardedTransferService, WithdrawalRequestStatusEnum.REQUESTED));
+        Metrics.gauge("withdrawal_backlog", "stage=\"reconciling\"", withdrawalBacklogHelp,
+                () -> reconcilers.stream().mapToLong(WithdrawalReconciler::getBacklogSize).sum());
+        Metrics.gauge("balance_snapshots_open", "", "Leased balance snapshots, each holds a reader connection",
+                () -> snapshotStores.stream().mapToLong(BalanceSnapshotStore::getOpenCount).sum());
+        Metrics.gauge("audit_drifts", "", "Accounts whose balance didn't match their postings and withdrawals",
+                () -> auditors.stream().mapToLong(BalanceAuditor::getDriftCount).sum());
+        Metrics.counter("withdrawal_dispatch_retries_total", "", "Provider calls the dispatcher retried",
+                () -> dispatchers.stream().mapToLong(WithdrawalDispatcher::getRetryCount).sum());
+        Metrics.gauge("event_streams_open", "", "Open event streams of withdrawals and accounts",
+                changeFeed::getOpenCount);
+        Metrics.counter("event_streams_overflowed_total", "", "Event streams closed because their client fell behind",
+                changeFeed::getOverflowCount);
+        if (shardCount > 1) {
+            Metrics.gauge("transfer_intents_prepared", "", "Cross-shard transfers debited and not yet settled",
+                    () -> countPreparedIntents(shardedTransferService));
+        }
+        if (admission != null) {
+            Metrics.gauge("admission_queued", "", "Writes waiting for admission", () -> (int) admission.snapshot().get("queued"));
+        }
+        On.get("/metrics").plain((Req req, Resp resp) -> handlerExecutor.execute(req, resp, () -> {
+            resp.contentType(MediaType.create("text/plain; version=0.0.4; charset=utf-8"));
+            return Metrics.scrape();
+        }));
 
-        // Create a ScheduledExecutorService with a single thread to sync withdrawal request status
-        // Ideally, you should use a job scheduler like Quartz or Spring Scheduler
-        ScheduledExecutorService executorService = Executors.newSingleThreadScheduledExecutor();
 
-        // Schedule a task to run every 10 seconds, with no initial delay
-        executorService.scheduleAtFixedRate(() -> {
+        // Shutdown the background jobs when the application exits
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             try {
-                // Call updateWithdrawalRequestStatus for each withdrawal request
-                // You need to implement the getPendingWithdrawalRequests method
-                List<String> listPendingWithdrawalRequest = transferService.getListPendingWithdrawalRequest();
-                System.out.println("Pending withdrawal requests: " + listPendingWithdrawalRequest.size());
-                for (String withdrawalId : listPendingWithdrawalRequest) {
-                    try {
-                        transferService.syncWithdrawalRequestStatus(withdrawalId);
-                    } catch (Exception e) {
-                        // Log the exception
-                        e.printStackTrace();
-                    }
+                if (admission != null) {
+                    admission.close();
+                }
+                handlerExecutor.close();
+                changeFeed.close();
+                idempotencyStore.close();
+                for (BalanceSnapshotStore snapshotStore : snapshotStores) {
+                    snapshotStore.close();
+                }
+                for (BalanceAuditor auditor : auditors) {
+                    auditor.close();
+                }
+                shardedTransferService.close();
+                for (WithdrawalDispatcher dispatcher : dispatchers) {
+                    dispatcher.close();
+                }
+                for (WithdrawalReconciler reconciler : reconcilers) {
+                    reconciler.close();
+                }
+                if (transferExecutor != null) {
+                    transferExecutor.close();
+                }
+                if (checkpointer != null) {
+                    checkpointer.close();
+                }
+                for (PostingHistory postingHistory : postingHistories) {
+                    postingHistory.close();
+                }
+                for (WalCheckpointer walCheckpointer : walCheckpointers) {
+                    walCheckpointer.close();
+                }
+                for (int shard = 0; shard < shardCount; shard++) {
+                    readDataSources.get(shard).close();
+                    writeDataSources.get(shard).close();
                 }
             } catch (Exception e) {
                 // Log the exception
                 e.printStackTrace();
             }
-        }, 10, 10, TimeUnit.SECONDS);
 
+            // the demo databases are recreated on every start, so their journals go with them
+            for (int shard = 0; shard < shardCount; shard++) {
+                String shardFilename = shardFilenames.get(shard);
+                new File(shardFilename).delete();
+                new File(shardFilename + "-wal").delete();
+                new File(shardFilename + "-shm").delete();
+                File[] archiveFiles = new File(ShardedTransferService.shardFilename(archiveDir, shard)).listFiles();
+                if (archiveFiles != null) {
+                    for (File archiveFile : archiveFiles) {
+                        archiveFile.delete();
+                    }
+                }
+            }
+            File[] journalFiles = new File(journalDir).listFiles();
+            if (journalFiles != null) {
+                for (File journalFile : journalFiles) {
+                    journalFile.delete();
+                }
+            }
+        }));
+    }
+
+    /**
+     * @param hotAccounts - accountId:slots pairs separated by commas
+     */
+    private static Map<Integer, Integer> parseHotAccounts(String hotAccounts) {
+        Map<Integer, Integer> slotsByAccount = new HashMap<>();
+        for (String hotAccount : hotAccounts.split(",")) {
+            if (hotAccount.isBlank()) {
+                continue;
+            }
+            String[] parts = hotAccount.trim().split(":");
+            slotsByAccount.put(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]));
+        }
+        return slotsByAccount;
+    }
 
-        // Shutdown the executor service when the application exits
-        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-            File databaseFile = new File(dbFilename);
-            databaseFile.delete();
+    private static Response buildResponse(Response result, Resp resp) {
+        // should map error code to HTTP status code
+        return buildResponse(result, resp, 400);
+    }
 
-            executorService.shutdown();
-            try {
-                executorService.awaitTermination(5, TimeUnit.SECONDS);
-            } catch (InterruptedException e) {
-                // Log the exception
-                e.printStackTrace();
+    /**
+     * every response is written through here or respondWrite, so each one sent is counted once in the error metrics
+     *
+     * @param errorStatus - the HTTP status of a failed result
+     */
+    private static Response buildResponse(Response result, Resp resp, int errorStatus) {
+        if (!result.isSuccessful()) {
+            resp.code(errorStatus);
+            Metrics.recordError(result.getErrorCode());
+        }
+        return result;
+    }
+
+    private static long countWithdrawals(ShardedTransferService shardedTransferService, WithdrawalRequestStatusEnum status) {
+        try {
+            return shardedTransferService.countWithdrawalRequests(status);
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static long countPreparedIntents(ShardedTransferService shardedTransferService) {
+        try {
+            return shardedTransferService.countPreparedIntents();
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return the shard a per-shard view asks for with ?shard=, 0 when it doesn't
+     */
+    private static int shardParam(Req req, int shardCount) {
+        int shard = Integer.parseInt(req.param("shard", "0"));
+        if (shard < 0 || shard >= shardCount) {
+            throw new IllegalArgumentException("no shard " + shard);
+        }
+        return shard;
+    }
+
+    /**
+     * run a blocking write behind admission control when it is on, otherwise on the handler threads
+     */
+    private static <T> CompletableFuture<T> submitWrite(AdmissionController admission, HandlerExecutor handlerExecutor,
+                                                        int accountId, Callable<T> write) {
+        return admission != null ? admission.submit(accountId, write) : handlerExecutor.submit(write);
+    }
+
+    /**
+     * start the write and respond once it is done, a request with an Idempotency-Key goes through the store so a
+     * retry gets the original response. The write is given the key to store in its transaction, or null
+     */
+    private static <R extends Response<?>> Object respondWrite(Req req, Resp resp, IdempotencyStore idempotencyStore,
+                                                               String scope, Function<IdempotencyKey, CompletableFuture<R>> write) {
+        String idempotencyKey = req.header(IdempotencyStore.HEADER, null);
+        req.async();
+        if (idempotencyKey != null) {
+            // the fresh response is counted here, a replay of it isn't counted again
+            idempotencyStore.execute(scope, idempotencyKey, req.body(), key -> write.apply(key).thenApply(result -> {
+                        Metrics.recordError(result.getErrorCode());
+                        return IdempotentResponse.of(result);
+                    }))
+                    .whenComplete((response, e) -> writeIdempotentResponse(req, resp, response, e));
+            return req;
+        }
+        write.apply(null).whenComplete((result, e) -> {
+            if (e != null) {
+                writeError(resp, e);
+            } else {
+                resp.result(buildResponse(result, resp));
             }
-        }));
+            req.done();
+        });
+        return req;
     }
 
-    private static Map<String, Object> buildResponse(Response result, Resp resp) {
-        if (result.isSuccessful()) {
-            return U.map("status", "success", "data", result.getData());
+    private static void writeIdempotentResponse(Req req, Resp resp, IdempotentResponse response, Throwable error) {
+        if (error != null) {
+            writeError(resp, error);
         } else {
-            // should map error code to HTTP status code
-            resp.code(400);
-            return U.map(
-                    "status", "failed",
-                    "error", result.getErrorCode(),
-                    "errorMessage", result.getErrorMessage()
-            );
+            resp.code(response.statusCode());
+            if (response.replayed()) {
+                resp.header("Idempotent-Replayed", "true");
+            }
+            resp.contentType(MediaType.JSON);
+            resp.body(response.body().getBytes(StandardCharsets.UTF_8));
+        }
+        req.done();
+    }
+
+    private static void writeError(Resp resp, Throwable error) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        if (cause instanceof AdmissionRejectedException rejected) {
+            resp.header("Retry-After", String.valueOf(rejected.getRetryAfterSeconds()));
+            resp.result(buildResponse(Response.error(ErrorCode.SERVICE_BUSY, cause.getMessage()), resp, 429));
+        } else if (cause instanceof IdempotencyKeyReusedException) {
+            resp.result(buildResponse(Response.error(ErrorCode.IDEMPOTENCY_KEY_REUSED, cause.getMessage()), resp));
+        } else {
+            resp.result(buildResponse(Response.error(ErrorCode.SYSTEM_ERROR, String.valueOf(cause.getMessage())), resp, 500));
         }
     }
 }
\ No newline at end of file
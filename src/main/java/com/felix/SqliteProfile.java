@@ -0,0 +1,36 @@
+package com.felix;
+
+/**
+ * Storage settings for the writer and reader pools.
+ *
+ * @param journalMode                - e.g. wal or delete, readers and the writer only run concurrently in wal
+ * @param synchronous                - off, normal or full; in wal, normal may lose the last commits on power loss
+ *                                   but never corrupts the database
+ * @param mmapSize                   - bytes of the database file read through mmap, 0 disables it
+ * @param cacheSize                  - page cache per connection, negative values are KiB
+ * @param busyTimeoutMillis          - how long a connection waits for a lock before failing with SQLITE_BUSY
+ * @param readerPoolSize             - read-only connections, the writer pool always has a single connection
+ * @param walCheckpointIntervalMillis - how often the WAL is checkpointed in the background, 0 leaves it to SQLite's
+ *                                   auto-checkpoint on commit
+ */
+public record SqliteProfile(
+        String journalMode,
+        String synchronous,
+        long mmapSize,
+        int cacheSize,
+        int busyTimeoutMillis,
+        int readerPoolSize,
+        long walCheckpointIntervalMillis) {
+
+    public static SqliteProfile defaults() {
+        return new SqliteProfile("wal", "full", 256L * 1024 * 1024, -16_000, 5_000, 8, 1_000);
+    }
+
+    public boolean isWal() {
+        return "wal".equalsIgnoreCase(journalMode);
+    }
+
+    public boolean isBackgroundCheckpoint() {
+        return isWal() && walCheckpointIntervalMillis > 0;
+    }
+}
@@ -0,0 +1,81 @@
+package com.felix;
+
+import org.sqlite.SQLiteConfig;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Copies the WAL back into the database file in the background, on its own connection, so commits on the writer
+ * never run a checkpoint themselves. Passive checkpoints neither wait for nor block readers and the writer,
+ * frames still in use by a reader are picked up by a later run.
+ */
+public class WalCheckpointer implements AutoCloseable {
+    private final Connection connection;
+    private final AtomicLong checkpoints = new AtomicLong();
+    private final AtomicLong lastWalFrames = new AtomicLong();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "wal-checkpointer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public WalCheckpointer(String filename, SqliteProfile profile) throws SQLException {
+        SQLiteConfig sqliteConfig = new SQLiteConfig();
+        sqliteConfig.setBusyTimeout(profile.busyTimeoutMillis());
+        this.connection = sqliteConfig.createConnection("jdbc:sqlite:" + filename);
+    }
+
+    public void start(long intervalMillis) {
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                checkpoint("passive");
+            } catch (SQLException e) {
+                // will be retried on the next run
+                e.printStackTrace();
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param mode - passive, full, restart or truncate
+     * @return the number of frames in the WAL when the checkpoint ran
+     */
+    public synchronized long checkpoint(String mode) throws SQLException {
+        try (Statement stmt = connection.createStatement();
+             ResultSet rs = stmt.executeQuery("pragma wal_checkpoint(" + mode + ")")) {
+            long walFrames = rs.next() ? rs.getLong(2) : 0;
+            lastWalFrames.set(walFrames);
+            checkpoints.incrementAndGet();
+            return walFrames;
+        }
+    }
+
+    public long getCheckpointCount() {
+        return checkpoints.get();
+    }
+
+    public long getLastWalFrames() {
+        return lastWalFrames.get();
+    }
+
+    /**
+     * stop the background job and fold whatever is left into the database file
+     */
+    @Override
+    public void close() throws SQLException, InterruptedException {
+        scheduler.shutdown();
+        scheduler.awaitTermination(5, TimeUnit.SECONDS);
+        try {
+            checkpoint("truncate");
+        } finally {
+            connection.close();
+        }
+    }
+}
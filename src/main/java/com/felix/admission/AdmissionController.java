@@ -0,0 +1,272 @@
+package com.felix.admission;
+
+import com.felix.AccountHash;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Admission control in front of the write path.
+ * <p>
+ * Writes are queued by the account they debit, hashed onto a fixed number of stripes with a bounded queue each, and at
+ * most maxInFlight of them run at a time. Whenever a write finishes the next one is taken round robin from the stripes
+ * that have work, so an account that gets hammered only fills its own stripe and waits its turn like every other
+ * stripe. A write whose stripe queue is full is rejected right away with an estimate of when to retry, instead of
+ * piling onto the connection pool and SQLite's busy handler.
+ * <p>
+ * Writes that debit many accounts, i.e. transfer batches, queue on a stripe of their own. Queued on the stripe of one
+ * of their accounts, a batch would take a single turn for every account it debits. On their own stripe all batches
+ * together get one turn of the round robin, like a single busy account.
+ */
+public class AdmissionController implements AutoCloseable {
+    // weight of the latest write in the moving average of write time
+    private static final double SERVICE_TIME_ALPHA = 0.05;
+
+    private final Stripe[] stripes;
+    private final Stripe batchStripe = new Stripe(Stripe.BATCH);
+    private final int stripeCapacity;
+    private final int maxInFlight;
+    private final ExecutorService executor;
+    private final ReentrantLock lock = new ReentrantLock();
+    // stripes with queued writes in the order they are served, a stripe goes to the back after every write
+    private final ArrayDeque<Stripe> ready = new ArrayDeque<>();
+    private int inFlight;
+    private int queued;
+    private double avgServiceNanos;
+    private boolean running = true;
+
+    /**
+     * @param stripeCount    - queues the accounts are hashed onto
+     * @param stripeCapacity - writes waiting per stripe before new ones are rejected
+     * @param maxInFlight    - writes running at the same time
+     */
+    public AdmissionController(int stripeCount, int stripeCapacity, int maxInFlight) {
+        if (stripeCount <= 0 || stripeCapacity <= 0 || maxInFlight <= 0) {
+            throw new IllegalArgumentException("invalid stripes " + stripeCount + ", stripe capacity "
+                    + stripeCapacity + " or max in flight " + maxInFlight);
+        }
+        this.stripes = new Stripe[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new Stripe(i);
+        }
+        this.stripeCapacity = stripeCapacity;
+        this.maxInFlight = maxInFlight;
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(maxInFlight, r -> {
+            Thread thread = new Thread(r, "admission-" + threadCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * queue a blocking write, it runs on one of the admission threads
+     *
+     * @return the result of the write, or fails with {@link AdmissionRejectedException} if the stripe of the account
+     * is full
+     */
+    public <T> CompletableFuture<T> submit(int accountId, Callable<T> write) {
+        return submitAsync(accountId, () -> CompletableFuture.completedFuture(write.call()));
+    }
+
+    /**
+     * queue a write that completes on its own, e.g. with a group commit, it holds its in-flight slot until then
+     */
+    public <T> CompletableFuture<T> submitAsync(int accountId, Callable<CompletableFuture<T>> write) {
+        return enqueue(stripes[stripeOf(accountId)], write);
+    }
+
+    /**
+     * queue a blocking write that debits many accounts on the batch stripe, it fails with
+     * {@link AdmissionRejectedException} if that stripe is full
+     */
+    public <T> CompletableFuture<T> submitBatch(Callable<T> write) {
+        return enqueue(batchStripe, () -> CompletableFuture.completedFuture(write.call()));
+    }
+
+    private <T> CompletableFuture<T> enqueue(Stripe stripe, Callable<CompletableFuture<T>> write) {
+        Admission<T> admission = new Admission<>(write, System.nanoTime());
+        lock.lock();
+        try {
+            if (!running || stripe.queue.size() >= stripeCapacity) {
+                stripe.rejected++;
+                return CompletableFuture.failedFuture(new AdmissionRejectedException(retryAfterSeconds()));
+            }
+            stripe.queue.add(admission);
+            queued++;
+            if (stripe.queue.size() == 1) {
+                ready.add(stripe);
+            }
+            dispatch();
+        } finally {
+            lock.unlock();
+        }
+        return admission.result;
+    }
+
+    /**
+     * start queued writes while there are free slots, called with the lock held
+     */
+    private void dispatch() {
+        while (inFlight < maxInFlight && !ready.isEmpty()) {
+            Stripe stripe = ready.poll();
+            Admission<?> admission = stripe.queue.poll();
+            queued--;
+            if (!stripe.queue.isEmpty()) {
+                ready.add(stripe);
+            }
+            inFlight++;
+            long waitNanos = System.nanoTime() - admission.queuedAt;
+            stripe.admitted++;
+            stripe.totalWaitNanos += waitNanos;
+            stripe.maxWaitNanos = Math.max(stripe.maxWaitNanos, waitNanos);
+            executor.execute(() -> run(admission));
+        }
+    }
+
+    private <T> void run(Admission<T> admission) {
+        long startedAt = System.nanoTime();
+        CompletableFuture<T> write;
+        try {
+            write = admission.write.call();
+        } catch (Exception e) {
+            write = CompletableFuture.failedFuture(e);
+        }
+        write.whenComplete((result, error) -> {
+            release(System.nanoTime() - startedAt);
+            if (error != null) {
+                admission.result.completeExceptionally(error);
+            } else {
+                admission.result.complete(result);
+            }
+        });
+    }
+
+    private void release(long serviceNanos) {
+        lock.lock();
+        try {
+            inFlight--;
+            avgServiceNanos = avgServiceNanos == 0
+                    ? serviceNanos
+                    : avgServiceNanos + SERVICE_TIME_ALPHA * (serviceNanos - avgServiceNanos);
+            dispatch();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * the time the writes queued now take to run, at least a second. Called with the lock held
+     */
+    private long retryAfterSeconds() {
+        double drainNanos = avgServiceNanos * (queued + inFlight) / maxInFlight;
+        return Math.max(1, (long) Math.ceil(drainNanos / TimeUnit.SECONDS.toNanos(1)));
+    }
+
+    private int stripeOf(int accountId) {
+        return AccountHash.bucketOf(accountId, stripes.length);
+    }
+
+    /**
+     * totals and every stripe that saw a write, wait times in microseconds
+     */
+    public Map<String, Object> snapshot() {
+        lock.lock();
+        try {
+            long admitted = 0;
+            long rejected = 0;
+            List<Map<String, Object>> active = new ArrayList<>();
+            List<Stripe> all = new ArrayList<>(List.of(stripes));
+            all.add(batchStripe);
+            for (Stripe stripe : all) {
+                admitted += stripe.admitted;
+                rejected += stripe.rejected;
+                if (stripe.admitted + stripe.rejected + stripe.queue.size() > 0) {
+                    active.add(stripe.snapshot());
+                }
+            }
+            Map<String, Object> snapshot = new LinkedHashMap<>();
+            snapshot.put("inFlight", inFlight);
+            snapshot.put("maxInFlight", maxInFlight);
+            snapshot.put("queued", queued);
+            snapshot.put("admitted", admitted);
+            snapshot.put("rejected", rejected);
+            snapshot.put("avgServiceMicros", (long) avgServiceNanos / 1000);
+            snapshot.put("stripes", active);
+            return snapshot;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * reject whatever is still queued and wait for the running writes
+     */
+    @Override
+    public void close() throws InterruptedException {
+        List<Admission<?>> rejected = new ArrayList<>();
+        lock.lock();
+        try {
+            running = false;
+            for (Stripe stripe : stripes) {
+                rejected.addAll(stripe.queue);
+                stripe.queue.clear();
+            }
+            rejected.addAll(batchStripe.queue);
+            batchStripe.queue.clear();
+            ready.clear();
+            queued = 0;
+        } finally {
+            lock.unlock();
+        }
+        rejected.forEach(admission -> admission.result.completeExceptionally(new AdmissionRejectedException(1)));
+        executor.shutdown();
+        executor.awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    /**
+     * guarded by the controller's lock
+     */
+    private static final class Stripe {
+        // index of the batch stripe, which no account hashes onto
+        static final int BATCH = -1;
+
+        final int index;
+        final ArrayDeque<Admission<?>> queue = new ArrayDeque<>();
+        long admitted;
+        long rejected;
+        long totalWaitNanos;
+        long maxWaitNanos;
+
+        Stripe(int index) {
+            this.index = index;
+        }
+
+        Map<String, Object> snapshot() {
+            Map<String, Object> snapshot = new LinkedHashMap<>();
+            snapshot.put("stripe", index == BATCH ? "batch" : index);
+            snapshot.put("depth", queue.size());
+            snapshot.put("admitted", admitted);
+            snapshot.put("rejected", rejected);
+            snapshot.put("avgWaitMicros", admitted == 0 ? 0 : totalWaitNanos / admitted / 1000);
+            snapshot.put("maxWaitMicros", maxWaitNanos / 1000);
+            return snapshot;
+        }
+    }
+
+    private record Admission<T>(Callable<CompletableFuture<T>> write, long queuedAt, CompletableFuture<T> result) {
+        Admission(Callable<CompletableFuture<T>> write, long queuedAt) {
+            this(write, queuedAt, new CompletableFuture<>());
+        }
+    }
+}
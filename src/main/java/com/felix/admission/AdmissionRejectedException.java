@@ -0,0 +1,17 @@
+package com.felix.admission;
+
+import lombok.Getter;
+
+/**
+ * A write turned away because the queue of its stripe is full.
+ */
+@Getter
+public class AdmissionRejectedException extends RuntimeException {
+    // when the queue is expected to have room again, for the Retry-After header
+    private final long retryAfterSeconds;
+
+    public AdmissionRejectedException(long retryAfterSeconds) {
+        super("too many pending writes, retry after " + retryAfterSeconds + "s");
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+}
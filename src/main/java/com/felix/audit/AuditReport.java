@@ -0,0 +1,25 @@
+package com.felix.audit;
+
+import java.util.List;
+
+/**
+ * What one audit run read and found
+ *
+ * @param postingSeq        - postings up to this seq are now folded into the checkpoints
+ * @param withdrawalId      - withdrawals up to this id are now debited in the checkpoints
+ * @param balanceSeq        - the balance_seq of the view the run compared against
+ * @param accountsChecked   - accounts whose balance was compared, only those with new activity unless full
+ * @param accountsBaselined - accounts seen for the first time, their balance is taken as it is
+ * @param driftCount        - accounts whose balance is not what their history adds up to
+ * @param drifts            - the first of them
+ */
+public record AuditReport(boolean full, long postingSeq, int withdrawalId, long balanceSeq, int postingsFolded,
+                          int withdrawalsFolded, int accountsChecked, int accountsBaselined, int driftCount,
+                          List<Drift> drifts, long durationMillis) {
+
+    /**
+     * @param actual - null when the account no longer exists
+     */
+    public record Drift(int accountId, long expected, Long actual) {
+    }
+}
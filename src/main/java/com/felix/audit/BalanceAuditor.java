@@ -0,0 +1,393 @@
+package com.felix.audit;
+
+import com.felix.dao.AuditDAO;
+import com.felix.dao.BalanceDAO;
+import com.felix.dao.PostingDAO;
+import com.felix.dao.WithdrawalRequestDAO;
+import com.felix.metrics.Metrics;
+import com.felix.model.AuditCheckpointModel;
+import com.felix.model.AuditStateModel;
+import com.felix.model.WithdrawalRequestModel;
+import com.felix.model.WithdrawalRequestStatusEnum;
+import com.felix.snapshot.BalanceSnapshot;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Checks account_balances against the postings and withdrawals that moved them, incrementally.
+ * <p>
+ * Every account has a checkpoint: its balance as of the last run and the last posting folded into it. A run reads
+ * one {@link BalanceSnapshot}, folds the postings and withdrawals past the last run's watermarks into the checkpoints
+ * of the accounts they touch and compares the result with their balances, so its cost follows the activity since the
+ * last run and not the history. The posting range is folded on a fork-join pool, each part on its own reader
+ * connection. Rows up to the watermark never change, so every connection reads the same ones as the snapshot.
+ * <p>
+ * A withdrawal is debited when its row is committed and refunded when it turns FAILED, so withdrawals still pending
+ * at a run are remembered in audit_open_withdrawals and looked at again by the next one.
+ * <p>
+ * An account is baselined at its balance the first time the audit sees it, the first run baselines every account.
+ * A full run compares every account, which also finds balances changed without a posting on accounts that saw no
+ * activity. If {@link com.felix.history.PostingHistory} archived postings no run folded yet, the next run baselines
+ * every account again.
+ */
+public class BalanceAuditor implements AutoCloseable {
+    // postings folded per fork-join leaf
+    private static final long DEFAULT_FOLD_CHUNK = 50_000;
+    // drifts listed in a report, all of them are counted
+    private static final int MAX_REPORTED_DRIFTS = 100;
+
+    private final DataSource writeDataSource;
+    private final DataSource readDataSource;
+    private final ForkJoinPool pool;
+    private final long foldChunk;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "balance-auditor");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicLong driftCount = new AtomicLong();
+    private volatile AuditReport lastReport;
+
+    /**
+     * @param parallelism - reader connections folding postings at once, besides the one holding the snapshot
+     */
+    public BalanceAuditor(DataSource writeDataSource, DataSource readDataSource, int parallelism) {
+        this(writeDataSource, readDataSource, parallelism, DEFAULT_FOLD_CHUNK);
+    }
+
+    /**
+     * @param foldChunk - postings folded per fork-join task
+     */
+    public BalanceAuditor(DataSource writeDataSource, DataSource readDataSource, int parallelism, long foldChunk) {
+        this.writeDataSource = writeDataSource;
+        this.readDataSource = readDataSource;
+        this.pool = new ForkJoinPool(parallelism);
+        this.foldChunk = foldChunk;
+    }
+
+    public void start(long intervalMillis) {
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                run(false);
+            } catch (SQLException e) {
+                // will be retried on the next run
+                e.printStackTrace();
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * fold the activity since the last run into the checkpoints and compare them with the balances. Nothing is saved
+     * when the run fails, the next one starts from the same watermarks.
+     *
+     * @param full - compare every account, not only those with new activity
+     */
+    public synchronized AuditReport run(boolean full) throws SQLException {
+        long startedAt = Metrics.start();
+        long startedNanos = System.nanoTime();
+        Pass pass;
+        try (BalanceSnapshot snapshot = BalanceSnapshot.open(readDataSource)) {
+            pass = snapshot.read(conn -> read(conn, full));
+            pass.balanceSeq = snapshot.getSeq();
+        }
+        save(pass);
+        Metrics.record(Metrics.AUDIT, startedAt);
+        driftCount.addAndGet(pass.driftCount);
+        AuditReport report = new AuditReport(pass.full, pass.state.getPostingSeq(), pass.state.getWithdrawalId(),
+                pass.balanceSeq, pass.postingsFolded, pass.withdrawalsFolded, pass.accountsChecked,
+                pass.accountsBaselined, pass.driftCount, pass.drifts, (System.nanoTime() - startedNanos) / 1_000_000);
+        lastReport = report;
+        return report;
+    }
+
+    /**
+     * @return the report of the last run, null before the first
+     */
+    public AuditReport getLastReport() {
+        return lastReport;
+    }
+
+    /**
+     * @return drifts found since start
+     */
+    public long getDriftCount() {
+        return driftCount.get();
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        scheduler.shutdown();
+        scheduler.awaitTermination(5, TimeUnit.SECONDS);
+        pool.shutdown();
+    }
+
+    private Pass read(Connection conn, boolean full) throws SQLException {
+        AuditDAO auditDAO = new AuditDAO(conn);
+        WithdrawalRequestDAO withdrawalRequestDAO = new WithdrawalRequestDAO(conn);
+        PostingDAO postingDAO = new PostingDAO(conn);
+        AuditStateModel previous = auditDAO.getState();
+        Pass pass = new Pass();
+        pass.previous = previous;
+        // not max(seq), the archive may have emptied the table
+        long postingSeq = postingDAO.getLastAssignedSeq();
+        pass.state = AuditStateModel.builder()
+                .postingSeq(postingSeq)
+                .withdrawalId(withdrawalRequestDAO.getMaxId())
+                .build();
+        // postings past the watermark were archived before a run folded them, start over from the balances
+        long minSeq = postingDAO.getMinSeq();
+        long lastArchivedSeq = minSeq == 0 ? postingSeq : minSeq - 1;
+        pass.baseline = previous == null || lastArchivedSeq > previous.getPostingSeq();
+        pass.full = full || pass.baseline;
+
+        Map<Integer, Delta> deltas;
+        if (pass.baseline) {
+            // the balances already hold everything so far, only refunds of the pending withdrawals are still to come
+            deltas = new HashMap<>();
+            pass.closedWithdrawals.addAll(auditDAO.getOpenWithdrawalIds());
+            pass.openedWithdrawals.addAll(withdrawalRequestDAO.getPendingWithdrawalIds(pass.state.getWithdrawalId()));
+        } else {
+            deltas = foldPostings(previous.getPostingSeq(), pass.state.getPostingSeq());
+            deltas.values().forEach(delta -> pass.postingsFolded += delta.postings);
+            foldWithdrawals(pass, deltas, auditDAO.getOpenWithdrawalIds(), withdrawalRequestDAO, previous.getWithdrawalId());
+        }
+
+        if (pass.full) {
+            auditDAO.streamBalancesWithCheckpoints((accountId, balance, checkpoint) ->
+                    verify(pass, accountId, balance, pass.baseline ? null : checkpoint, deltas.remove(accountId)));
+            // activity on accounts that are gone
+            Map<Integer, AuditCheckpointModel> checkpoints = auditDAO.getCheckpoints(deltas.keySet());
+            deltas.forEach((accountId, delta) -> verify(pass, accountId, null, checkpoints.get(accountId), delta));
+        } else {
+            Map<Integer, AuditCheckpointModel> checkpoints = auditDAO.getCheckpoints(deltas.keySet());
+            Map<Integer, Long> balances = new BalanceDAO(conn).getAccountBalances(deltas.keySet());
+            deltas.forEach((accountId, delta) ->
+                    verify(pass, accountId, balances.get(accountId), checkpoints.get(accountId), delta));
+        }
+        return pass;
+    }
+
+    /**
+     * debit the withdrawals committed since the last run and refund the ones that failed since
+     */
+    private static void foldWithdrawals(Pass pass, Map<Integer, Delta> deltas, List<Integer> openIds,
+                                        WithdrawalRequestDAO withdrawalRequestDAO, int afterId) throws SQLException {
+        Set<Integer> missing = new HashSet<>(openIds);
+        for (WithdrawalRequestModel withdrawal : withdrawalRequestDAO.getWithdrawalsByIds(openIds)) {
+            missing.remove(withdrawal.getId());
+            if (isPending(withdrawal)) {
+                continue;
+            }
+            if (withdrawal.getStatus() == WithdrawalRequestStatusEnum.FAILED.getCode()) {
+                delta(deltas, withdrawal.getFromAccountId()).amount += withdrawal.getAmount();
+            }
+            pass.closedWithdrawals.add(withdrawal.getId());
+            pass.withdrawalsFolded++;
+        }
+        // a row that is gone can't be refunded any more
+        pass.closedWithdrawals.addAll(missing);
+        for (WithdrawalRequestModel withdrawal : withdrawalRequestDAO.getWithdrawalsInRange(afterId, pass.state.getWithdrawalId())) {
+            Delta delta = delta(deltas, withdrawal.getFromAccountId());
+            delta.amount -= withdrawal.getAmount();
+            if (withdrawal.getStatus() == WithdrawalRequestStatusEnum.FAILED.getCode()) {
+                delta.amount += withdrawal.getAmount();
+            } else if (isPending(withdrawal)) {
+                pass.openedWithdrawals.add(withdrawal.getId());
+            }
+            pass.withdrawalsFolded++;
+        }
+    }
+
+    private static boolean isPending(WithdrawalRequestModel withdrawal) {
+        return withdrawal.getStatus() == WithdrawalRequestStatusEnum.CREATED.getCode()
+                || withdrawal.getStatus() == WithdrawalRequestStatusEnum.REQUESTED.getCode();
+    }
+
+    /**
+     * @param balance    - the balance in the snapshot, null when the account doesn't exist
+     * @param checkpoint - null when the account was never audited
+     * @param delta      - null when the account saw no activity since the last run
+     */
+    private static void verify(Pass pass, int accountId, Long balance, AuditCheckpointModel checkpoint, Delta delta) {
+        long lastSeq = delta != null && delta.lastSeq > 0 ? delta.lastSeq : checkpoint == null ? 0 : checkpoint.getLastSeq();
+        if (checkpoint == null) {
+            if (balance != null) {
+                pass.accountsBaselined++;
+                pass.checkpoints.add(new AuditCheckpointModel(accountId, balance, lastSeq));
+            }
+            return;
+        }
+        pass.accountsChecked++;
+        long expected = checkpoint.getBalance() + (delta == null ? 0 : delta.amount);
+        if (balance == null || balance != expected) {
+            pass.driftCount++;
+            if (pass.drifts.size() < MAX_REPORTED_DRIFTS) {
+                pass.drifts.add(new AuditReport.Drift(accountId, expected, balance));
+            }
+        }
+        if (balance == null) {
+            pass.removedCheckpoints.add(accountId);
+        } else if (delta != null || balance != expected) {
+            // a drift is reported once, the next run checks the activity after it against the balance as it is
+            pass.checkpoints.add(new AuditCheckpointModel(accountId, balance, lastSeq));
+        }
+    }
+
+    private Map<Integer, Delta> foldPostings(long afterSeq, long throughSeq) throws SQLException {
+        if (throughSeq <= afterSeq) {
+            return new HashMap<>();
+        }
+        try {
+            return pool.invoke(new FoldTask(readDataSource, foldChunk, afterSeq, throughSeq));
+        } catch (RuntimeException e) {
+            if (e.getCause() instanceof SQLException sqlException) {
+                throw sqlException;
+            }
+            throw e;
+        }
+    }
+
+    private void save(Pass pass) throws SQLException {
+        if (pass.isIdle()) {
+            // an idle run doesn't take the writer
+            return;
+        }
+        Connection conn = null;
+        try {
+            conn = writeDataSource.getConnection();
+            conn.setAutoCommit(false);
+            AuditDAO auditDAO = new AuditDAO(conn);
+            for (AuditCheckpointModel checkpoint : pass.checkpoints) {
+                auditDAO.saveCheckpoint(checkpoint);
+            }
+            for (int accountId : pass.removedCheckpoints) {
+                auditDAO.deleteCheckpoint(accountId);
+            }
+            for (int id : pass.closedWithdrawals) {
+                auditDAO.removeOpenWithdrawal(id);
+            }
+            for (int id : pass.openedWithdrawals) {
+                auditDAO.addOpenWithdrawal(id);
+            }
+            auditDAO.saveState(pass.state);
+            conn.commit();
+        } catch (SQLException e) {
+            if (conn != null) {
+                conn.rollback();
+            }
+            throw e;
+        } finally {
+            if (conn != null) {
+                conn.close();
+            }
+        }
+    }
+
+    private static Delta delta(Map<Integer, Delta> deltas, int accountId) {
+        return deltas.computeIfAbsent(accountId, id -> new Delta());
+    }
+
+    /**
+     * the postings in (afterSeq, throughSeq] by account, split in halves down to foldChunk
+     */
+    private static final class FoldTask extends RecursiveTask<Map<Integer, Delta>> {
+        private final DataSource readDataSource;
+        private final long foldChunk;
+        private final long afterSeq;
+        private final long throughSeq;
+
+        FoldTask(DataSource readDataSource, long foldChunk, long afterSeq, long throughSeq) {
+            this.readDataSource = readDataSource;
+            this.foldChunk = foldChunk;
+            this.afterSeq = afterSeq;
+            this.throughSeq = throughSeq;
+        }
+
+        @Override
+        protected Map<Integer, Delta> compute() {
+            if (throughSeq - afterSeq <= foldChunk) {
+                Map<Integer, Delta> deltas = new HashMap<>();
+                try (Connection conn = readDataSource.getConnection()) {
+                    new PostingDAO(conn).foldPostings(afterSeq, throughSeq, (accountId, amount, lastSeq, count) ->
+                            deltas.put(accountId, new Delta(amount, lastSeq, count)));
+                } catch (SQLException e) {
+                    throw new RuntimeException(e);
+                }
+                return deltas;
+            }
+            long middle = afterSeq + (throughSeq - afterSeq) / 2;
+            FoldTask lower = new FoldTask(readDataSource, foldChunk, afterSeq, middle);
+            lower.fork();
+            Map<Integer, Delta> upper = new FoldTask(readDataSource, foldChunk, middle, throughSeq).compute();
+            Map<Integer, Delta> merged = lower.join();
+            upper.forEach((accountId, delta) -> merged.merge(accountId, delta, Delta::add));
+            return merged;
+        }
+    }
+
+    /**
+     * what the new activity adds to an account's checkpoint
+     */
+    private static final class Delta {
+        long amount;
+        // the last posting, 0 when only withdrawals moved the account
+        long lastSeq;
+        int postings;
+
+        Delta() {
+        }
+
+        Delta(long amount, long lastSeq, int postings) {
+            this.amount = amount;
+            this.lastSeq = lastSeq;
+            this.postings = postings;
+        }
+
+        Delta add(Delta other) {
+            amount += other.amount;
+            lastSeq = Math.max(lastSeq, other.lastSeq);
+            postings += other.postings;
+            return this;
+        }
+    }
+
+    /**
+     * what a run read, saved in one transaction once it is done
+     */
+    private static final class Pass {
+        AuditStateModel previous;
+        AuditStateModel state;
+        boolean baseline;
+        boolean full;
+        long balanceSeq;
+        int postingsFolded;
+        int withdrawalsFolded;
+        int accountsChecked;
+        int accountsBaselined;
+        int driftCount;
+        final List<AuditReport.Drift> drifts = new ArrayList<>();
+        final List<AuditCheckpointModel> checkpoints = new ArrayList<>();
+        final List<Integer> removedCheckpoints = new ArrayList<>();
+        final List<Integer> openedWithdrawals = new ArrayList<>();
+        final List<Integer> closedWithdrawals = new ArrayList<>();
+
+        boolean isIdle() {
+            return state.equals(previous) && checkpoints.isEmpty() && removedCheckpoints.isEmpty()
+                    && openedWithdrawals.isEmpty() && closedWithdrawals.isEmpty();
+        }
+    }
+}
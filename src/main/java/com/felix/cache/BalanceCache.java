@@ -0,0 +1,164 @@
+package com.felix.cache;
+
+import com.felix.AccountHash;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded read-through cache of account balances in minor units.
+ * <p>
+ * Entries live in segments, each an LRU guarded by its own lock. A full segment only admits a new account if it is
+ * read more often than the entry it would evict, by a TinyLFU style frequency sketch, so a scan over many cold
+ * accounts can't push the hot ones out.
+ * <p>
+ * Writers {@link #invalidate} an account once their change is committed. A load that was running while its segment
+ * saw an invalidation is not cached, so a balance read before a commit can't be cached after it.
+ */
+public class BalanceCache {
+    private static final int MAX_SEGMENTS = 16;
+    // smaller segments would make their LRU order and frequencies too coarse to pick good victims
+    private static final int MIN_SEGMENT_SIZE = 256;
+
+    private final Segment[] segments;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    /**
+     * @param maxSize - accounts kept at most
+     */
+    public BalanceCache(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("invalid cache size " + maxSize);
+        }
+        int segmentCount = Math.min(MAX_SEGMENTS, Integer.highestOneBit(Math.max(1, maxSize / MIN_SEGMENT_SIZE)));
+        segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            // spread maxSize over the segments without going over it
+            segments[i] = new Segment(Math.max(1, (maxSize + segmentCount - 1 - i) / segmentCount));
+        }
+    }
+
+    /**
+     * @return the cached balance, or the loaded one which is cached when the account exists
+     */
+    public <E extends Exception> Long get(int accountId, Loader<E> loader) throws E {
+        Segment segment = segment(accountId);
+        long stamp;
+        segment.lock.lock();
+        try {
+            segment.sketch.increment(accountId);
+            Long balance = segment.entries.get(accountId);
+            if (balance != null) {
+                hits.increment();
+                return balance;
+            }
+            stamp = segment.invalidations;
+        } finally {
+            segment.lock.unlock();
+        }
+        misses.increment();
+        // loaded outside the lock so one slow read doesn't block the segment
+        Long balance = loader.load(accountId);
+        if (balance != null) {
+            put(segment, accountId, balance, stamp);
+        }
+        return balance;
+    }
+
+    /**
+     * drop the account, called after the transaction that changed its balance has committed
+     */
+    public void invalidate(int accountId) {
+        Segment segment = segment(accountId);
+        segment.lock.lock();
+        try {
+            segment.invalidations++;
+            segment.entries.remove(accountId);
+        } finally {
+            segment.lock.unlock();
+        }
+        invalidations.increment();
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            segment.lock.lock();
+            try {
+                size += segment.entries.size();
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+        return size;
+    }
+
+    public Map<String, Object> snapshot() {
+        return Map.of(
+                "size", size(),
+                "hits", hits.sum(),
+                "misses", misses.sum(),
+                "evictions", evictions.sum(),
+                "rejections", rejections.sum(),
+                "invalidations", invalidations.sum()
+        );
+    }
+
+    private void put(Segment segment, int accountId, long balance, long stamp) {
+        segment.lock.lock();
+        try {
+            if (segment.invalidations != stamp) {
+                // a writer committed while we were loading, what we read may already be stale
+                return;
+            }
+            if (segment.entries.size() < segment.capacity || segment.entries.containsKey(accountId)) {
+                segment.entries.put(accountId, balance);
+                return;
+            }
+            Iterator<Map.Entry<Integer, Long>> eldest = segment.entries.entrySet().iterator();
+            int victim = eldest.next().getKey();
+            if (segment.sketch.frequency(accountId) <= segment.sketch.frequency(victim)) {
+                rejections.increment();
+                return;
+            }
+            eldest.remove();
+            segment.entries.put(accountId, balance);
+            evictions.increment();
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    private Segment segment(int accountId) {
+        return segments[AccountHash.bucketOf(accountId, segments.length)];
+    }
+
+    @FunctionalInterface
+    public interface Loader<E extends Exception> {
+        /**
+         * @return the balance, null when the account doesn't exist
+         */
+        Long load(int accountId) throws E;
+    }
+
+    private static final class Segment {
+        final ReentrantLock lock = new ReentrantLock();
+        // access ordered, the first entry is the least recently used
+        final LinkedHashMap<Integer, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+        final FrequencySketch sketch;
+        final int capacity;
+        long invalidations;
+
+        Segment(int capacity) {
+            this.capacity = capacity;
+            this.sketch = new FrequencySketch(capacity);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.felix.cache;
+
+/**
+ * Count-min sketch of how often keys were read, with 4-bit counters that are halved once the sketch has seen ten
+ * reads per cached entry, so old popularity fades. Not thread-safe, the owning segment's lock guards it.
+ */
+final class FrequencySketch {
+    private static final int DEPTH = 4;
+    private static final int MAX_COUNT = 15;
+    private static final int[] SEEDS = {0x97CB3127, 0xB4B82E3D, 0x5C2F0E5F, 0x2A3F7B61};
+
+    private final byte[][] counters;
+    private final int mask;
+    private final int sampleSize;
+    private int additions;
+
+    FrequencySketch(int capacity) {
+        int width = Integer.highestOneBit(Math.max(16, capacity * 4) - 1) << 1;
+        counters = new byte[DEPTH][width];
+        mask = width - 1;
+        sampleSize = Math.max(160, capacity * 10);
+    }
+
+    void increment(int key) {
+        boolean added = false;
+        for (int row = 0; row < DEPTH; row++) {
+            int index = index(key, row);
+            if (counters[row][index] < MAX_COUNT) {
+                counters[row][index]++;
+                added = true;
+            }
+        }
+        if (added && ++additions >= sampleSize) {
+            reset();
+        }
+    }
+
+    int frequency(int key) {
+        int frequency = MAX_COUNT;
+        for (int row = 0; row < DEPTH; row++) {
+            frequency = Math.min(frequency, counters[row][index(key, row)]);
+        }
+        return frequency;
+    }
+
+    private void reset() {
+        for (byte[] row : counters) {
+            for (int i = 0; i < row.length; i++) {
+                row[i] = (byte) (row[i] >>> 1);
+            }
+        }
+        additions /= 2;
+    }
+
+    private int index(int key, int row) {
+        int hash = (key + SEEDS[row]) * SEEDS[row];
+        return (hash ^ (hash >>> 17)) & mask;
+    }
+}
@@ -0,0 +1,58 @@
+package com.felix.codec;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.felix.dto.TransferBatchRequest;
+import com.felix.dto.TransferRequest;
+import com.felix.dto.WithdrawalRequest;
+import com.felix.dto.WithdrawalResponseDto;
+import com.felix.model.TransactionLogModel;
+import com.felix.service.Response;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * JSON of the HTTP handlers.
+ * <p>
+ * One mapper for the whole process, building one per request throws away the serializers and deserializers it has
+ * looked up. Requests are parsed straight from the body bytes by readers bound to their type, responses are written
+ * straight to the output stream and the hot response types have serializers of their own that write their fields
+ * without bean introspection or intermediate maps.
+ */
+public final class JsonCodec {
+    private static final ObjectMapper MAPPER = new ObjectMapper()
+            .registerModule(new SimpleModule("responses")
+                    .addSerializer(Response.class, new ResponseSerializer())
+                    .addSerializer(TransactionLogModel.class, new TransactionLogModelSerializer())
+                    .addSerializer(WithdrawalResponseDto.class, new WithdrawalResponseDtoSerializer()));
+    private static final ObjectReader TRANSFER_REQUEST_READER = MAPPER.readerFor(TransferRequest.class);
+    private static final ObjectReader TRANSFER_BATCH_REQUEST_READER = MAPPER.readerFor(TransferBatchRequest.class);
+    private static final ObjectReader WITHDRAWAL_REQUEST_READER = MAPPER.readerFor(WithdrawalRequest.class);
+    private static final ObjectWriter WRITER = MAPPER.writer();
+
+    private JsonCodec() {
+    }
+
+    public static TransferRequest decodeTransferRequest(byte[] body) throws IOException {
+        return TRANSFER_REQUEST_READER.readValue(body);
+    }
+
+    public static TransferBatchRequest decodeTransferBatchRequest(byte[] body) throws IOException {
+        return TRANSFER_BATCH_REQUEST_READER.readValue(body);
+    }
+
+    public static WithdrawalRequest decodeWithdrawalRequest(byte[] body) throws IOException {
+        return WITHDRAWAL_REQUEST_READER.readValue(body);
+    }
+
+    public static void encode(Object value, OutputStream out) throws IOException {
+        WRITER.writeValue(out, value);
+    }
+
+    public static String encodeToString(Object value) throws IOException {
+        return WRITER.writeValueAsString(value);
+    }
+}
@@ -0,0 +1,49 @@
+package com.felix.codec;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+import com.felix.service.Response;
+
+import java.io.IOException;
+
+/**
+ * writes a service response as {"status":"success","data":...} or {"status":"failed","error":..,"errorMessage":..},
+ * a failed response keeps its data when it has some, e.g. the per transfer results of an aborted batch
+ */
+@SuppressWarnings("rawtypes")
+public class ResponseSerializer extends StdSerializer<Response> {
+    private static final SerializedString STATUS = new SerializedString("status");
+    private static final SerializedString DATA = new SerializedString("data");
+    private static final SerializedString ERROR = new SerializedString("error");
+    private static final SerializedString ERROR_MESSAGE = new SerializedString("errorMessage");
+    private static final SerializedString SUCCESS = new SerializedString("success");
+    private static final SerializedString FAILED = new SerializedString("failed");
+
+    public ResponseSerializer() {
+        super(Response.class);
+    }
+
+    @Override
+    public void serialize(Response value, JsonGenerator gen, SerializerProvider provider) throws IOException {
+        gen.writeStartObject();
+        gen.writeFieldName(STATUS);
+        if (value.isSuccessful()) {
+            gen.writeString(SUCCESS);
+            gen.writeFieldName(DATA);
+            provider.defaultSerializeValue(value.getData(), gen);
+        } else {
+            gen.writeString(FAILED);
+            gen.writeFieldName(ERROR);
+            gen.writeNumber(value.getErrorCode());
+            gen.writeFieldName(ERROR_MESSAGE);
+            gen.writeString(value.getErrorMessage());
+            if (value.getData() != null) {
+                gen.writeFieldName(DATA);
+                provider.defaultSerializeValue(value.getData(), gen);
+            }
+        }
+        gen.writeEndObject();
+    }
+}
@@ -0,0 +1,41 @@
+package com.felix.codec;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+import com.felix.model.TransactionLogModel;
+import com.felix.money.CurrencyUnit;
+
+import java.io.IOException;
+
+/**
+ * the fields of a transaction log in declaration order, the amount as a decimal of the default currency
+ */
+public class TransactionLogModelSerializer extends StdSerializer<TransactionLogModel> {
+    private static final SerializedString ID = new SerializedString("id");
+    private static final SerializedString ACCOUNT_ID = new SerializedString("accountId");
+    private static final SerializedString AMOUNT = new SerializedString("amount");
+    private static final SerializedString DETAILS = new SerializedString("details");
+    private static final SerializedString TYPE = new SerializedString("type");
+
+    public TransactionLogModelSerializer() {
+        super(TransactionLogModel.class);
+    }
+
+    @Override
+    public void serialize(TransactionLogModel value, JsonGenerator gen, SerializerProvider provider) throws IOException {
+        gen.writeStartObject();
+        gen.writeFieldName(ID);
+        gen.writeNumber(value.getId());
+        gen.writeFieldName(ACCOUNT_ID);
+        gen.writeNumber(value.getAccountId());
+        gen.writeFieldName(AMOUNT);
+        gen.writeNumber(CurrencyUnit.getDefault().toAmount(value.getAmount()));
+        gen.writeFieldName(DETAILS);
+        gen.writeString(value.getDetails());
+        gen.writeFieldName(TYPE);
+        gen.writeString(value.getType() == null ? null : value.getType().name());
+        gen.writeEndObject();
+    }
+}
@@ -0,0 +1,48 @@
+package com.felix.codec;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+import com.felix.dto.WithdrawalResponseDto;
+import com.felix.money.CurrencyUnit;
+
+import java.io.IOException;
+
+/**
+ * the fields of a withdrawal in declaration order, the amount as a decimal of the default currency
+ */
+public class WithdrawalResponseDtoSerializer extends StdSerializer<WithdrawalResponseDto> {
+    private static final SerializedString ID = new SerializedString("id");
+    private static final SerializedString FROM_ACCOUNT_ID = new SerializedString("fromAccountId");
+    private static final SerializedString WITHDRAWAL_ID = new SerializedString("withdrawalId");
+    private static final SerializedString TO_ADDRESS = new SerializedString("toAddress");
+    private static final SerializedString AMOUNT = new SerializedString("amount");
+    private static final SerializedString STATUS = new SerializedString("status");
+
+    public WithdrawalResponseDtoSerializer() {
+        super(WithdrawalResponseDto.class);
+    }
+
+    @Override
+    public void serialize(WithdrawalResponseDto value, JsonGenerator gen, SerializerProvider provider) throws IOException {
+        gen.writeStartObject();
+        gen.writeFieldName(ID);
+        if (value.getId() == null) {
+            gen.writeNull();
+        } else {
+            gen.writeNumber(value.getId());
+        }
+        gen.writeFieldName(FROM_ACCOUNT_ID);
+        gen.writeNumber(value.getFromAccountId());
+        gen.writeFieldName(WITHDRAWAL_ID);
+        gen.writeString(value.getWithdrawalId());
+        gen.writeFieldName(TO_ADDRESS);
+        gen.writeString(value.getToAddress());
+        gen.writeFieldName(AMOUNT);
+        gen.writeNumber(CurrencyUnit.getDefault().toAmount(value.getAmount()));
+        gen.writeFieldName(STATUS);
+        gen.writeString(value.getStatus() == null ? null : value.getStatus().name());
+        gen.writeEndObject();
+    }
+}
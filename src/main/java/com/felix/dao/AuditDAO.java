@@ -0,0 +1,182 @@
+package com.felix.dao;
+
+import com.felix.model.AuditCheckpointModel;
+import com.felix.model.AuditStateModel;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The audit's own tables: a checkpoint per account, how far the last audit read and the withdrawals it still expects
+ * a refund for
+ */
+public class AuditDAO {
+    private static final int STATE_ID = 1;
+    // ids per in-list, SQLite allows 32766 bound parameters per statement
+    private static final int MAX_IDS_PER_STATEMENT = 500;
+
+    private final Connection conn;
+    private StatementCache statements;
+
+    public AuditDAO(Connection conn) {
+        this.conn = conn;
+    }
+
+    /**
+     * @return null if no audit ran yet
+     */
+    public AuditStateModel getState() throws SQLException {
+        PreparedStatement stmt = prepare("select posting_seq, withdrawal_id from audit_state where id = ?");
+        stmt.setInt(1, STATE_ID);
+        try (ResultSet rs = statements().executeQuery(stmt)) {
+            if (!rs.next()) {
+                return null;
+            }
+            return AuditStateModel.builder()
+                    .postingSeq(rs.getLong("posting_seq"))
+                    .withdrawalId(rs.getInt("withdrawal_id"))
+                    .build();
+        }
+    }
+
+    public void saveState(AuditStateModel state) throws SQLException {
+        PreparedStatement stmt = prepare(
+                """
+                        insert into audit_state (id, posting_seq, withdrawal_id) values (?, ?, ?)
+                        on conflict (id) do update set posting_seq = excluded.posting_seq,
+                            withdrawal_id = excluded.withdrawal_id, updated_at = datetime('now')
+                        """
+        );
+        stmt.setInt(1, STATE_ID);
+        stmt.setLong(2, state.getPostingSeq());
+        stmt.setInt(3, state.getWithdrawalId());
+        statements().executeUpdate(stmt);
+    }
+
+    /**
+     * @return the checkpoints of the given accounts that have one
+     */
+    public Map<Integer, AuditCheckpointModel> getCheckpoints(Collection<Integer> accountIds) throws SQLException {
+        Map<Integer, AuditCheckpointModel> checkpoints = new HashMap<>();
+        Iterator<Integer> iterator = accountIds.iterator();
+        while (iterator.hasNext()) {
+            List<Integer> chunk = new ArrayList<>(MAX_IDS_PER_STATEMENT);
+            while (iterator.hasNext() && chunk.size() < MAX_IDS_PER_STATEMENT) {
+                chunk.add(iterator.next());
+            }
+            String getCheckpointsSql = "select account_id, balance, last_seq from audit_checkpoints where account_id in ("
+                    + String.join(", ", Collections.nCopies(chunk.size(), "?")) + ")";
+            try (PreparedStatement stmt = conn.prepareStatement(getCheckpointsSql)) {
+                for (int i = 0; i < chunk.size(); i++) {
+                    stmt.setInt(i + 1, chunk.get(i));
+                }
+                try (ResultSet rs = statements().executeQuery(stmt)) {
+                    while (rs.next()) {
+                        checkpoints.put(rs.getInt(1), toCheckpoint(rs));
+                    }
+                }
+            }
+        }
+        return checkpoints;
+    }
+
+    /**
+     * hand every account to the handler with its checkpoint, null for an account never audited, in account id order
+     */
+    public void streamBalancesWithCheckpoints(BalanceCheckpointHandler handler) throws SQLException {
+        String streamSql = """
+                select b.account_id, b.balance, c.balance, c.last_seq
+                from account_balances b
+                         left join audit_checkpoints c on c.account_id = b.account_id
+                order by b.account_id
+                """;
+        PreparedStatement stmt = prepare(streamSql);
+        try (ResultSet rs = statements().executeQuery(stmt)) {
+            while (rs.next()) {
+                long checkpointBalance = rs.getLong(3);
+                AuditCheckpointModel checkpoint = rs.wasNull() ? null : AuditCheckpointModel.builder()
+                        .accountId(rs.getInt(1))
+                        .balance(checkpointBalance)
+                        .lastSeq(rs.getLong(4))
+                        .build();
+                handler.accept(rs.getInt(1), rs.getLong(2), checkpoint);
+            }
+        }
+    }
+
+    public void saveCheckpoint(AuditCheckpointModel checkpoint) throws SQLException {
+        PreparedStatement stmt = prepare(
+                """
+                        insert into audit_checkpoints (account_id, balance, last_seq) values (?, ?, ?)
+                        on conflict (account_id) do update set balance = excluded.balance,
+                            last_seq = excluded.last_seq, updated_at = datetime('now')
+                        """
+        );
+        stmt.setInt(1, checkpoint.getAccountId());
+        stmt.setLong(2, checkpoint.getBalance());
+        stmt.setLong(3, checkpoint.getLastSeq());
+        statements().executeUpdate(stmt);
+    }
+
+    public void deleteCheckpoint(int accountId) throws SQLException {
+        PreparedStatement stmt = prepare("delete from audit_checkpoints where account_id = ?");
+        stmt.setInt(1, accountId);
+        statements().executeUpdate(stmt);
+    }
+
+    public List<Integer> getOpenWithdrawalIds() throws SQLException {
+        PreparedStatement stmt = prepare("select id from audit_open_withdrawals order by id");
+        try (ResultSet rs = statements().executeQuery(stmt)) {
+            List<Integer> ids = new ArrayList<>();
+            while (rs.next()) {
+                ids.add(rs.getInt(1));
+            }
+            return ids;
+        }
+    }
+
+    public void addOpenWithdrawal(int id) throws SQLException {
+        PreparedStatement stmt = prepare("insert or ignore into audit_open_withdrawals (id) values (?)");
+        stmt.setInt(1, id);
+        statements().executeUpdate(stmt);
+    }
+
+    public void removeOpenWithdrawal(int id) throws SQLException {
+        PreparedStatement stmt = prepare("delete from audit_open_withdrawals where id = ?");
+        stmt.setInt(1, id);
+        statements().executeUpdate(stmt);
+    }
+
+    private static AuditCheckpointModel toCheckpoint(ResultSet rs) throws SQLException {
+        return AuditCheckpointModel.builder()
+                .accountId(rs.getInt("account_id"))
+                .balance(rs.getLong("balance"))
+                .lastSeq(rs.getLong("last_seq"))
+                .build();
+    }
+
+    private PreparedStatement prepare(String sql) throws SQLException {
+        return statements().prepare(sql);
+    }
+
+    private StatementCache statements() throws SQLException {
+        if (statements == null) {
+            statements = StatementCache.of(conn);
+        }
+        return statements;
+    }
+
+    @FunctionalInterface
+    public interface BalanceCheckpointHandler {
+        void accept(int accountId, long balance, AuditCheckpointModel checkpoint) throws SQLException;
+    }
+}
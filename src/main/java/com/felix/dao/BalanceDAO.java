@@ -2,45 +2,57 @@ package com.felix.dao;
 
 import com.felix.exception.TransactionFailedErrorCode;
 import com.felix.exception.TransactionFailedException;
+import com.felix.model.AccountBalanceModel;
 import com.felix.model.TransactionLogModel;
+import com.felix.model.TransactionLogType;
 
-import java.math.BigDecimal;
+import java.io.IOException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
 public class BalanceDAO {
+    // rows per multi-row statement, SQLite allows 32766 bound parameters per statement
+    private static final int MAX_ROWS_PER_STATEMENT = 100;
+    // rows a driver may prefetch per round trip while streaming, sqlite-jdbc steps one row at a time regardless
+    private static final int STREAM_FETCH_SIZE = 512;
 
     private final Connection conn;
+    private StatementCache statements;
 
     public BalanceDAO(Connection conn) {
         this.conn = conn;
     }
 
 
-    public void subtractFromFromAccount(int fromAccountId, BigDecimal amount) throws TransactionFailedException, SQLException {
+    public void subtractFromFromAccount(int fromAccountId, long amount) throws TransactionFailedException, SQLException {
         String subtractFromAccountSql = "update account_balances set balance = balance - ? where account_id = ? and balance >= ?";
-        PreparedStatement stmt = conn.prepareStatement(subtractFromAccountSql);
-        stmt.setBigDecimal(1, amount);
+        PreparedStatement stmt = prepare(subtractFromAccountSql);
+        stmt.setLong(1, amount);
         stmt.setInt(2, fromAccountId);
-        stmt.setBigDecimal(3, amount);
+        stmt.setLong(3, amount);
 
-        int updatedCount = stmt.executeUpdate();
+        int updatedCount = statements().executeUpdate(stmt);
         if (updatedCount <= 0) {
             throw new TransactionFailedException(TransactionFailedErrorCode.INSUFFICIENT_BALANCE);
         }
     }
 
-    public void addToToAccount(int toAccountId, BigDecimal amount) throws SQLException, TransactionFailedException {
+    public void addToToAccount(int toAccountId, long amount) throws SQLException, TransactionFailedException {
         String addToAccountSql = "update account_balances set balance = balance + ? where account_id = ?";
-        PreparedStatement stmt = conn.prepareStatement(addToAccountSql);
-        stmt.setBigDecimal(1, amount);
+        PreparedStatement stmt = prepare(addToAccountSql);
+        stmt.setLong(1, amount);
         stmt.setInt(2, toAccountId);
 
-        int updatedCount = stmt.executeUpdate();
+        int updatedCount = statements().executeUpdate(stmt);
         if (updatedCount <= 0) {
             throw new TransactionFailedException(TransactionFailedErrorCode.ACCOUNT_NOT_FOUND);
         }
@@ -48,54 +60,201 @@ public class BalanceDAO {
 
     public TransactionLogModel insertTransactionLog(TransactionLogModel transactionLogModel) throws SQLException {
         String insertTransactionLogSql = "insert into transaction_logs (account_id, amount, type, details) values (?, ?, ?, ?)";
-        PreparedStatement insertLogStmt = conn.prepareStatement(insertTransactionLogSql);
+        PreparedStatement insertLogStmt = prepare(insertTransactionLogSql);
         insertLogStmt.setInt(1, transactionLogModel.getAccountId());
-        insertLogStmt.setBigDecimal(2, transactionLogModel.getAmount());
+        insertLogStmt.setLong(2, transactionLogModel.getAmount());
         insertLogStmt.setInt(3, transactionLogModel.getType().getCode());
         insertLogStmt.setString(4, transactionLogModel.getDetails());
 
-        insertLogStmt.executeUpdate();
-        ResultSet generatedKeys = insertLogStmt.getGeneratedKeys();
+        statements().executeUpdate(insertLogStmt);
+        try (ResultSet generatedKeys = insertLogStmt.getGeneratedKeys()) {
+            // get inserted transactionLog id
+            long transactionLogId = generatedKeys.getLong(1);
 
-        // get inserted transactionLog id
-        int transactionLogId = generatedKeys.getInt(1);
+            transactionLogModel.setId(transactionLogId);
+            return transactionLogModel;
+        }
+    }
 
-        transactionLogModel.setId(transactionLogId);
-        return transactionLogModel;
+    /**
+     * insert the logs with multi-row inserts and set their generated ids, the caller owns the transaction
+     */
+    public void insertTransactionLogs(List<TransactionLogModel> transactionLogs) throws SQLException {
+        for (int from = 0; from < transactionLogs.size(); from += MAX_ROWS_PER_STATEMENT) {
+            List<TransactionLogModel> chunk = transactionLogs.subList(from, Math.min(transactionLogs.size(), from + MAX_ROWS_PER_STATEMENT));
+            String insertTransactionLogsSql = "insert into transaction_logs (account_id, amount, type, details) values "
+                    + String.join(", ", Collections.nCopies(chunk.size(), "(?, ?, ?, ?)"));
+            if (chunk.size() == MAX_ROWS_PER_STATEMENT) {
+                insertTransactionLogChunk(prepare(insertTransactionLogsSql), chunk);
+            } else {
+                // the tail of a batch has an arbitrary size, not worth a cache entry
+                try (PreparedStatement stmt = conn.prepareStatement(insertTransactionLogsSql)) {
+                    insertTransactionLogChunk(stmt, chunk);
+                }
+            }
+        }
+    }
+
+    private void insertTransactionLogChunk(PreparedStatement stmt, List<TransactionLogModel> chunk) throws SQLException {
+        int index = 1;
+        for (TransactionLogModel transactionLogModel : chunk) {
+            stmt.setInt(index++, transactionLogModel.getAccountId());
+            stmt.setLong(index++, transactionLogModel.getAmount());
+            stmt.setInt(index++, transactionLogModel.getType().getCode());
+            stmt.setString(index++, transactionLogModel.getDetails());
+        }
+        statements().executeUpdate(stmt);
+        try (ResultSet generatedKeys = stmt.getGeneratedKeys()) {
+            // rows of one insert get consecutive rowids, the generated key is the last one
+            long lastId = generatedKeys.getLong(1);
+            for (int i = 0; i < chunk.size(); i++) {
+                chunk.get(i).setId(lastId - chunk.size() + 1 + i);
+            }
+        }
     }
 
     /**
-     * use for testing, ideally this should be done in a separate service
+     * insert the debit posting of the sender and the credit posting of the receiver, the caller owns the transaction
+     *
+     * @param transferId - id of the transfer's transaction log
      */
-    public void setupAccount(int accountId, int userId, BigDecimal initialBalance) throws TransactionFailedException {
+    public void insertTransferPostings(long transferId, int fromAccountId, int toAccountId, long amount, TransactionLogType type)
+            throws SQLException {
+        String insertPostingsSql = "insert into postings (transfer_id, account_id, counterparty_id, amount, type) values (?, ?, ?, ?, ?), (?, ?, ?, ?, ?)";
+        PreparedStatement stmt = prepare(insertPostingsSql);
+        stmt.setLong(1, transferId);
+        stmt.setInt(2, fromAccountId);
+        stmt.setInt(3, toAccountId);
+        stmt.setLong(4, -amount);
+        stmt.setInt(5, type.getCode());
+        stmt.setLong(6, transferId);
+        stmt.setInt(7, toAccountId);
+        stmt.setInt(8, fromAccountId);
+        stmt.setLong(9, amount);
+        stmt.setInt(10, type.getCode());
+        statements().executeUpdate(stmt);
+    }
 
-        try {
-            String deleteExistingAccountSql = "delete from account_balances where account_id = ?";
-            PreparedStatement stmt = conn.prepareStatement(deleteExistingAccountSql);
-            stmt.setString(1, String.valueOf(accountId));
-            stmt.executeUpdate();
+    /**
+     * insert one side of a transfer, for transfers whose accounts live in different databases
+     *
+     * @param amount - negative for the debit, positive for the credit
+     */
+    public void insertPosting(long transferId, int accountId, int counterpartyId, long amount, TransactionLogType type)
+            throws SQLException {
+        String insertPostingSql = "insert into postings (transfer_id, account_id, counterparty_id, amount, type) values (?, ?, ?, ?, ?)";
+        PreparedStatement stmt = prepare(insertPostingSql);
+        stmt.setLong(1, transferId);
+        stmt.setInt(2, accountId);
+        stmt.setInt(3, counterpartyId);
+        stmt.setLong(4, amount);
+        stmt.setInt(5, type.getCode());
+        statements().executeUpdate(stmt);
+    }
 
-            String insertAccountSql = "insert into account_balances (account_id, user_id, balance) values (?, ?, ?)";
-            stmt = conn.prepareStatement(insertAccountSql);
-            stmt.setInt(1, accountId);
-            stmt.setInt(2, userId);
-            stmt.setBigDecimal(3, initialBalance);
-            stmt.executeUpdate();
+    /**
+     * insert a transaction log with a caller assigned id, replaying the same log twice is a no-op
+     *
+     * @return false if the log was already there
+     */
+    public boolean insertTransactionLogIfAbsent(TransactionLogModel transactionLogModel) throws SQLException {
+        String insertTransactionLogSql = "insert or ignore into transaction_logs (id, account_id, amount, type, details) values (?, ?, ?, ?, ?)";
+        PreparedStatement insertLogStmt = prepare(insertTransactionLogSql);
+        insertLogStmt.setLong(1, transactionLogModel.getId());
+        insertLogStmt.setInt(2, transactionLogModel.getAccountId());
+        insertLogStmt.setLong(3, transactionLogModel.getAmount());
+        insertLogStmt.setInt(4, transactionLogModel.getType().getCode());
+        insertLogStmt.setString(5, transactionLogModel.getDetails());
+        return statements().executeUpdate(insertLogStmt) > 0;
+    }
+
+    public long getMaxTransactionLogId() throws SQLException {
+        PreparedStatement stmt = prepare("select coalesce(max(id), 0) from transaction_logs");
+        try (ResultSet rs = statements().executeQuery(stmt)) {
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+
+    /**
+     * @return how many times account_balances has changed, as of the connection's current read transaction
+     */
+    public long getBalanceSeq() throws SQLException {
+        PreparedStatement stmt = prepare("select seq from balance_seq where id = 1");
+        try (ResultSet rs = statements().executeQuery(stmt)) {
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+
+    public void setBalance(int accountId, long balance) throws SQLException {
+        String setBalanceSql = "update account_balances set balance = ?, updated_at = datetime('now') where account_id = ?";
+        PreparedStatement stmt = prepare(setBalanceSql);
+        stmt.setLong(1, balance);
+        stmt.setInt(2, accountId);
+        statements().executeUpdate(stmt);
+    }
+
+    /**
+     * use for testing, many accounts are better loaded with {@link #insertAccounts(List)}
+     */
+    public void setupAccount(int accountId, int userId, long initialBalance) throws TransactionFailedException {
+        try {
+            writeAccounts(List.of(new AccountBalanceModel(accountId, userId, initialBalance)),
+                    "do update set user_id = excluded.user_id, balance = excluded.balance, updated_at = datetime('now')");
         } catch (SQLException e) {
             throw new TransactionFailedException(TransactionFailedErrorCode.SYSTEM_ERROR);
         }
     }
 
-    public Map<String, BigDecimal> getAllAccountBalances() throws TransactionFailedException {
+    /**
+     * insert the accounts with multi-row inserts, an account that exists keeps its user and balance, the caller owns
+     * the transaction
+     *
+     * @return the number of accounts inserted
+     */
+    public int insertAccounts(List<AccountBalanceModel> accounts) throws SQLException {
+        return writeAccounts(accounts, "do nothing");
+    }
+
+    private int writeAccounts(List<AccountBalanceModel> accounts, String onConflict) throws SQLException {
+        int written = 0;
+        for (int from = 0; from < accounts.size(); from += MAX_ROWS_PER_STATEMENT) {
+            List<AccountBalanceModel> chunk = accounts.subList(from, Math.min(accounts.size(), from + MAX_ROWS_PER_STATEMENT));
+            String insertAccountsSql = "insert into account_balances (account_id, user_id, balance) values "
+                    + String.join(", ", Collections.nCopies(chunk.size(), "(?, ?, ?)"))
+                    + " on conflict (account_id) " + onConflict;
+            if (chunk.size() == MAX_ROWS_PER_STATEMENT || chunk.size() == 1) {
+                written += writeAccountChunk(prepare(insertAccountsSql), chunk);
+            } else {
+                // the tail of a batch has an arbitrary size, not worth a cache entry
+                try (PreparedStatement stmt = conn.prepareStatement(insertAccountsSql)) {
+                    written += writeAccountChunk(stmt, chunk);
+                }
+            }
+        }
+        return written;
+    }
+
+    private int writeAccountChunk(PreparedStatement stmt, List<AccountBalanceModel> chunk) throws SQLException {
+        int index = 1;
+        for (AccountBalanceModel account : chunk) {
+            stmt.setInt(index++, account.getAccountId());
+            stmt.setInt(index++, account.getUserId());
+            stmt.setLong(index++, account.getBalance());
+        }
+        return statements().executeUpdate(stmt);
+    }
+
+    public Map<String, Long> getAllAccountBalances() throws TransactionFailedException {
         try {
             String getBalanceSql = "select account_id, balance from account_balances";
-            PreparedStatement stmt = conn.prepareStatement(getBalanceSql);
-            ResultSet rs = stmt.executeQuery();
-            Map<String, BigDecimal> accountBalances = new HashMap<>();
-            while (rs.next()) {
-                accountBalances.put(rs.getString("account_id"), rs.getBigDecimal("balance"));
+            PreparedStatement stmt = prepare(getBalanceSql);
+            try (ResultSet rs = statements().executeQuery(stmt)) {
+                Map<String, Long> accountBalances = new HashMap<>();
+                while (rs.next()) {
+                    accountBalances.put(rs.getString("account_id"), rs.getLong("balance"));
+                }
+                return accountBalances;
             }
-            return accountBalances;
         } catch (SQLException e) {
             // log error
             throw new TransactionFailedException(TransactionFailedErrorCode.SYSTEM_ERROR);
@@ -103,14 +262,100 @@ public class BalanceDAO {
     }
 
 
-    public BigDecimal getAccountBalance(int accountId) throws TransactionFailedException {
+    /**
+     * hand the accounts after afterAccountId to the handler in account id order, rows are read through a
+     * forward-only cursor and never collected
+     *
+     * @param limit - at most this many accounts, 0 for all of them
+     * @return the number of accounts handled
+     */
+    public int streamAccountBalances(int afterAccountId, int limit, AccountBalanceHandler handler) throws SQLException, IOException {
+        String streamBalancesSql = "select account_id, user_id, balance from account_balances where account_id > ? order by account_id limit ?";
+        PreparedStatement stmt = prepare(streamBalancesSql);
+        stmt.setInt(1, afterAccountId);
+        // a negative limit is no limit in SQLite
+        stmt.setInt(2, limit > 0 ? limit : -1);
+        stmt.setFetchSize(STREAM_FETCH_SIZE);
+        int count = 0;
+        try (ResultSet rs = statements().executeQuery(stmt)) {
+            while (rs.next()) {
+                handler.accept(rs.getInt(1), rs.getInt(2), rs.getLong(3));
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * same as {@link #streamAccountBalances} for the transaction logs after afterId, in id order
+     */
+    public int streamTransactionLogs(int afterId, int limit, TransactionLogHandler handler) throws SQLException, IOException {
+        String streamLogsSql = "select id, account_id, amount, type, details from transaction_logs where id > ? order by id limit ?";
+        PreparedStatement stmt = prepare(streamLogsSql);
+        stmt.setInt(1, afterId);
+        stmt.setInt(2, limit > 0 ? limit : -1);
+        stmt.setFetchSize(STREAM_FETCH_SIZE);
+        int count = 0;
+        try (ResultSet rs = statements().executeQuery(stmt)) {
+            while (rs.next()) {
+                handler.accept(rs.getInt(1), rs.getInt(2), rs.getLong(3), rs.getInt(4), rs.getString(5));
+                count++;
+            }
+        }
+        return count;
+    }
+
+
+    /**
+     * @return the balance of every given account that exists
+     */
+    public Map<Integer, Long> getAccountBalances(Collection<Integer> accountIds) throws SQLException {
+        Map<Integer, Long> accountBalances = new HashMap<>();
+        Iterator<Integer> iterator = accountIds.iterator();
+        while (iterator.hasNext()) {
+            List<Integer> chunk = new ArrayList<>(MAX_ROWS_PER_STATEMENT);
+            while (iterator.hasNext() && chunk.size() < MAX_ROWS_PER_STATEMENT) {
+                chunk.add(iterator.next());
+            }
+            String getBalancesSql = "select account_id, balance from account_balances where account_id in ("
+                    + String.join(", ", Collections.nCopies(chunk.size(), "?")) + ")";
+            try (PreparedStatement stmt = conn.prepareStatement(getBalancesSql)) {
+                for (int i = 0; i < chunk.size(); i++) {
+                    stmt.setInt(i + 1, chunk.get(i));
+                }
+                try (ResultSet rs = statements().executeQuery(stmt)) {
+                    while (rs.next()) {
+                        accountBalances.put(rs.getInt("account_id"), rs.getLong("balance"));
+                    }
+                }
+            }
+        }
+        return accountBalances;
+    }
+
+    /**
+     * add a signed amount to the balance, refusing to take it below zero
+     */
+    public void applyBalanceDelta(int accountId, long delta) throws SQLException, TransactionFailedException {
+        String applyDeltaSql = "update account_balances set balance = balance + ? where account_id = ? and balance + ? >= 0";
+        PreparedStatement stmt = prepare(applyDeltaSql);
+        stmt.setLong(1, delta);
+        stmt.setInt(2, accountId);
+        stmt.setLong(3, delta);
+        if (statements().executeUpdate(stmt) <= 0) {
+            throw new TransactionFailedException(TransactionFailedErrorCode.INSUFFICIENT_BALANCE);
+        }
+    }
+
+    public Long getAccountBalance(int accountId) throws TransactionFailedException {
         try {
             String getBalanceSql = "select balance from account_balances where account_id = ?";
-            PreparedStatement stmt = conn.prepareStatement(getBalanceSql);
+            PreparedStatement stmt = prepare(getBalanceSql);
             stmt.setInt(1, accountId);
-            ResultSet rs = stmt.executeQuery();
-            if (rs.next()) {
-                return rs.getBigDecimal("balance");
+            try (ResultSet rs = statements().executeQuery(stmt)) {
+                if (rs.next()) {
+                    return rs.getLong("balance");
+                }
             }
         } catch (SQLException e) {
             // log error
@@ -119,4 +364,24 @@ public class BalanceDAO {
         return null;
     }
 
+    private PreparedStatement prepare(String sql) throws SQLException {
+        return statements().prepare(sql);
+    }
+
+    private StatementCache statements() throws SQLException {
+        if (statements == null) {
+            statements = StatementCache.of(conn);
+        }
+        return statements;
+    }
+
+    @FunctionalInterface
+    public interface AccountBalanceHandler {
+        void accept(int accountId, int userId, long balance) throws IOException;
+    }
+
+    @FunctionalInterface
+    public interface TransactionLogHandler {
+        void accept(int id, int accountId, long amount, int type, String details) throws IOException;
+    }
 }
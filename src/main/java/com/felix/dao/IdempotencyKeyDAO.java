@@ -0,0 +1,168 @@
+package com.felix.dao;
+
+import com.felix.model.IdempotencyKeyModel;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+public class IdempotencyKeyDAO {
+
+    private final Connection conn;
+    private StatementCache statements;
+
+    public IdempotencyKeyDAO(Connection conn) {
+        this.conn = conn;
+    }
+
+    /**
+     * @return the stored response of the key, null if there is none, it expired before nowMillis or it is still pending
+     */
+    public IdempotencyKeyModel getIdempotencyKey(String scope, String idempotencyKey, long nowMillis) throws SQLException {
+        String getIdempotencyKeySql = """
+                select scope, idempotency_key, request_hash, status_code, response_body, expires_at
+                from idempotency_keys
+                where scope = ? and idempotency_key = ? and expires_at > ? and pending = 0
+                """;
+        PreparedStatement stmt = prepare(getIdempotencyKeySql);
+        stmt.setString(1, scope);
+        stmt.setString(2, idempotencyKey);
+        stmt.setLong(3, nowMillis);
+        try (ResultSet rs = statements().executeQuery(stmt)) {
+            if (!rs.next()) {
+                return null;
+            }
+            return IdempotencyKeyModel.builder()
+                    .scope(rs.getString("scope"))
+                    .idempotencyKey(rs.getString("idempotency_key"))
+                    .requestHash(rs.getString("request_hash"))
+                    .statusCode(rs.getInt("status_code"))
+                    .responseBody(rs.getString("response_body"))
+                    .expiresAt(rs.getLong("expires_at"))
+                    .build();
+        }
+    }
+
+    /**
+     * store the response of the key, an expired row of the same key that was not purged yet is replaced
+     *
+     * @return false if a live row of the key is stored already
+     */
+    public boolean saveIdempotencyKey(IdempotencyKeyModel model) throws SQLException {
+        String saveIdempotencyKeySql = """
+                insert into idempotency_keys (scope, idempotency_key, request_hash, status_code, response_body, expires_at, pending)
+                values (?, ?, ?, ?, ?, ?, ?)
+                on conflict (scope, idempotency_key) do update set
+                    request_hash = excluded.request_hash,
+                    status_code = excluded.status_code,
+                    response_body = excluded.response_body,
+                    expires_at = excluded.expires_at,
+                    pending = excluded.pending,
+                    created_at = datetime('now')
+                where idempotency_keys.expires_at <= ?
+                """;
+        PreparedStatement stmt = prepare(saveIdempotencyKeySql);
+        stmt.setString(1, model.getScope());
+        stmt.setString(2, model.getIdempotencyKey());
+        stmt.setString(3, model.getRequestHash());
+        stmt.setInt(4, model.getStatusCode());
+        stmt.setString(5, model.getResponseBody());
+        stmt.setLong(6, model.getExpiresAt());
+        stmt.setInt(7, model.isPending() ? 1 : 0);
+        stmt.setLong(8, System.currentTimeMillis());
+        return statements().executeUpdate(stmt) > 0;
+    }
+
+    /**
+     * store a pending row of the key, like {@link #saveIdempotencyKey}
+     *
+     * @return the rowid that settles or deletes it later, 0 if a live row of the key is stored already
+     */
+    public long reserveIdempotencyKey(IdempotencyKeyModel model) throws SQLException {
+        model.setPending(true);
+        if (!saveIdempotencyKey(model)) {
+            return 0;
+        }
+        String getRowidSql = "select rowid from idempotency_keys where scope = ? and idempotency_key = ?";
+        PreparedStatement stmt = prepare(getRowidSql);
+        stmt.setString(1, model.getScope());
+        stmt.setString(2, model.getIdempotencyKey());
+        try (ResultSet rs = statements().executeQuery(stmt)) {
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+
+    /**
+     * make a pending row replayable
+     *
+     * @param responseBody - null keeps the body it was reserved with
+     */
+    public void settleIdempotencyKey(long rowid, String responseBody) throws SQLException {
+        String settleIdempotencyKeySql = """
+                update idempotency_keys set response_body = coalesce(?, response_body), pending = 0
+                where rowid = ? and pending = 1
+                """;
+        PreparedStatement stmt = prepare(settleIdempotencyKeySql);
+        stmt.setString(1, responseBody);
+        stmt.setLong(2, rowid);
+        statements().executeUpdate(stmt);
+    }
+
+    /**
+     * replace the response of a live key, when its write was undone after the key was stored
+     */
+    public void replaceIdempotencyResponse(IdempotencyKeyModel model) throws SQLException {
+        String replaceResponseSql = """
+                update idempotency_keys set status_code = ?, response_body = ?
+                where scope = ? and idempotency_key = ?
+                """;
+        PreparedStatement stmt = prepare(replaceResponseSql);
+        stmt.setInt(1, model.getStatusCode());
+        stmt.setString(2, model.getResponseBody());
+        stmt.setString(3, model.getScope());
+        stmt.setString(4, model.getIdempotencyKey());
+        statements().executeUpdate(stmt);
+    }
+
+    /**
+     * delete a pending row whose write was refused
+     */
+    public void deletePendingIdempotencyKey(long rowid) throws SQLException {
+        PreparedStatement stmt = prepare("delete from idempotency_keys where rowid = ? and pending = 1");
+        stmt.setLong(1, rowid);
+        statements().executeUpdate(stmt);
+    }
+
+    /**
+     * @return the number of pending rows deleted, for recovery once every journaled write has settled its key
+     */
+    public int deleteAllPendingIdempotencyKeys() throws SQLException {
+        return statements().executeUpdate(prepare("delete from idempotency_keys where pending = 1"));
+    }
+
+    /**
+     * @return the number of keys deleted, at most limit so a purge never holds the writer for long
+     */
+    public int deleteExpiredIdempotencyKeys(long nowMillis, int limit) throws SQLException {
+        String deleteExpiredSql = """
+                delete from idempotency_keys
+                where rowid in (select rowid from idempotency_keys where expires_at <= ? limit ?)
+                """;
+        PreparedStatement stmt = prepare(deleteExpiredSql);
+        stmt.setLong(1, nowMillis);
+        stmt.setInt(2, limit);
+        return statements().executeUpdate(stmt);
+    }
+
+    private PreparedStatement prepare(String sql) throws SQLException {
+        return statements().prepare(sql);
+    }
+
+    private StatementCache statements() throws SQLException {
+        if (statements == null) {
+            statements = StatementCache.of(conn);
+        }
+        return statements;
+    }
+}
@@ -0,0 +1,51 @@
+package com.felix.dao;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+public class LedgerCheckpointDAO {
+    private static final int CHECKPOINT_ID = 1;
+
+    private final Connection conn;
+    private StatementCache statements;
+
+    public LedgerCheckpointDAO(Connection conn) {
+        this.conn = conn;
+    }
+
+    /**
+     * @return the last ledger journal seq reflected in account_balances, 0 if no checkpoint was taken yet
+     */
+    public long getCheckpointSeq() throws SQLException {
+        PreparedStatement stmt = prepare("select seq from ledger_checkpoint where id = ?");
+        stmt.setInt(1, CHECKPOINT_ID);
+        try (ResultSet rs = statements().executeQuery(stmt)) {
+            return rs.next() ? rs.getLong("seq") : 0;
+        }
+    }
+
+    public void saveCheckpointSeq(long seq) throws SQLException {
+        PreparedStatement stmt = prepare(
+                """
+                        insert into ledger_checkpoint (id, seq) values (?, ?)
+                        on conflict (id) do update set seq = excluded.seq, updated_at = datetime('now')
+                        """
+        );
+        stmt.setInt(1, CHECKPOINT_ID);
+        stmt.setLong(2, seq);
+        statements().executeUpdate(stmt);
+    }
+
+    private PreparedStatement prepare(String sql) throws SQLException {
+        return statements().prepare(sql);
+    }
+
+    private StatementCache statements() throws SQLException {
+        if (statements == null) {
+            statements = StatementCache.of(conn);
+        }
+        return statements;
+    }
+}
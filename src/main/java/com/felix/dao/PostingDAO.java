@@ -0,0 +1,151 @@
+package com.felix.dao;
+
+import com.felix.model.PostingModel;
+import com.felix.model.TransactionLogType;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads postings from the live database or from an archive file, both have the same postings table
+ */
+public class PostingDAO {
+
+    private final Connection conn;
+    private StatementCache statements;
+
+    public PostingDAO(Connection conn) {
+        this.conn = conn;
+    }
+
+    /**
+     * newest first, an index seek on (account_id, seq) so the cost doesn't grow with the account's history
+     *
+     * @param afterSeq  - only postings with a greater seq
+     * @param beforeSeq - only postings with a smaller seq
+     */
+    public List<PostingModel> getAccountPostings(int accountId, long afterSeq, long beforeSeq, int limit) throws SQLException {
+        String getPostingsSql = """
+                select seq, transfer_id, account_id, counterparty_id, amount, type, bucket, created_at
+                from postings
+                where account_id = ? and seq > ? and seq < ?
+                order by seq desc
+                limit ?
+                """;
+        PreparedStatement stmt = prepare(getPostingsSql);
+        stmt.setInt(1, accountId);
+        stmt.setLong(2, afterSeq);
+        stmt.setLong(3, beforeSeq);
+        stmt.setInt(4, limit);
+        List<PostingModel> postings = new ArrayList<>(limit);
+        try (ResultSet rs = statements().executeQuery(stmt)) {
+            while (rs.next()) {
+                postings.add(PostingModel.builder()
+                        .seq(rs.getLong("seq"))
+                        .transferId(rs.getLong("transfer_id"))
+                        .accountId(rs.getInt("account_id"))
+                        .counterpartyId(rs.getInt("counterparty_id"))
+                        .amount(rs.getLong("amount"))
+                        .type(TransactionLogType.fromCode(rs.getInt("type")))
+                        .bucket(rs.getInt("bucket"))
+                        .createdAt(rs.getString("created_at"))
+                        .build());
+            }
+        }
+        return postings;
+    }
+
+    /**
+     * @return the smallest seq, 0 if there are no postings
+     */
+    public long getMinSeq() throws SQLException {
+        PreparedStatement stmt = prepare("select coalesce(min(seq), 0) from postings");
+        try (ResultSet rs = statements().executeQuery(stmt)) {
+            return rs.getLong(1);
+        }
+    }
+
+    /**
+     * @return the last seq handed out, including postings deleted since, 0 if there never were any
+     */
+    public long getLastAssignedSeq() throws SQLException {
+        PreparedStatement stmt = prepare("select coalesce((select seq from sqlite_sequence where name = 'postings'), 0)");
+        try (ResultSet rs = statements().executeQuery(stmt)) {
+            return rs.getLong(1);
+        }
+    }
+
+    /**
+     * @return the greatest seq, 0 if there are no postings
+     */
+    public long getMaxSeq() throws SQLException {
+        PreparedStatement stmt = prepare("select coalesce(max(seq), 0) from postings");
+        try (ResultSet rs = statements().executeQuery(stmt)) {
+            return rs.getLong(1);
+        }
+    }
+
+    /**
+     * hand each account with postings in (afterSeq, throughSeq] to the handler with their sum, a range scan of the
+     * primary key so the cost follows the size of the range, not of the table
+     */
+    public void foldPostings(long afterSeq, long throughSeq, PostingFoldHandler handler) throws SQLException {
+        String foldPostingsSql = """
+                select account_id, sum(amount), max(seq), count(*)
+                from postings
+                where seq > ? and seq <= ?
+                group by account_id
+                """;
+        PreparedStatement stmt = prepare(foldPostingsSql);
+        stmt.setLong(1, afterSeq);
+        stmt.setLong(2, throughSeq);
+        try (ResultSet rs = statements().executeQuery(stmt)) {
+            while (rs.next()) {
+                handler.accept(rs.getInt(1), rs.getLong(2), rs.getLong(3), rs.getInt(4));
+            }
+        }
+    }
+
+    /**
+     * @return the bucket of the first posting at or after seq, null if there is none
+     */
+    public Integer getBucketAtOrAfter(long seq) throws SQLException {
+        PreparedStatement stmt = prepare("select bucket from postings where seq >= ? order by seq limit 1");
+        stmt.setLong(1, seq);
+        try (ResultSet rs = statements().executeQuery(stmt)) {
+            return rs.next() ? rs.getInt(1) : null;
+        }
+    }
+
+    /**
+     * delete the postings with a seq in (afterSeq, throughSeq], the caller owns the transaction
+     *
+     * @return the number of postings deleted
+     */
+    public int deletePostings(long afterSeq, long throughSeq) throws SQLException {
+        PreparedStatement stmt = prepare("delete from postings where seq > ? and seq <= ?");
+        stmt.setLong(1, afterSeq);
+        stmt.setLong(2, throughSeq);
+        return statements().executeUpdate(stmt);
+    }
+
+    private PreparedStatement prepare(String sql) throws SQLException {
+        return statements().prepare(sql);
+    }
+
+    private StatementCache statements() throws SQLException {
+        if (statements == null) {
+            statements = StatementCache.of(conn);
+        }
+        return statements;
+    }
+
+    @FunctionalInterface
+    public interface PostingFoldHandler {
+        void accept(int accountId, long amount, long lastSeq, int count);
+    }
+}
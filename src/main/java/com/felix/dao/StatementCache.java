@@ -0,0 +1,109 @@
+package com.felix.dao;
+
+import com.felix.metrics.LatencyHistogram;
+import com.felix.metrics.Metrics;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Compiled statements kept per physical connection, so DAOs built on a pooled connection reuse the statements
+ * prepared by earlier borrowers of the same connection.
+ * <p>
+ * sqlite-jdbc has no statement cache of its own and Hikari closes every statement created through its proxy when
+ * the connection goes back to the pool, so statements are prepared on the unwrapped connection. Those statements are
+ * invisible to the pool: callers must close the ResultSets they open and end their transactions with commit or
+ * rollback themselves.
+ * <p>
+ * Statements executed through {@link #executeUpdate} and {@link #executeQuery} are timed per statement.
+ */
+public final class StatementCache {
+    private static final Map<Connection, StatementCache> CACHES = new ConcurrentHashMap<>();
+
+    private final Connection connection;
+    // a physical connection is used by one thread at a time
+    private final Map<String, PreparedStatement> statements = new HashMap<>();
+    private final Map<PreparedStatement, LatencyHistogram> timers = new IdentityHashMap<>();
+
+    private StatementCache(Connection connection) {
+        this.connection = connection;
+    }
+
+    public static StatementCache of(Connection conn) throws SQLException {
+        Connection physical = conn.unwrap(Connection.class);
+        StatementCache cache = CACHES.get(physical);
+        if (cache == null) {
+            // a new physical connection usually replaces a retired one, whose statements died with it
+            CACHES.keySet().removeIf(StatementCache::isClosed);
+            cache = CACHES.computeIfAbsent(physical, StatementCache::new);
+        }
+        return cache;
+    }
+
+    /**
+     * @return the compiled statement for this sql with its parameters cleared, must not be closed by the caller
+     */
+    public PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement stmt = statements.get(sql);
+        if (stmt == null || stmt.isClosed()) {
+            if (stmt != null) {
+                timers.remove(stmt);
+            }
+            stmt = connection.prepareStatement(sql);
+            statements.put(sql, stmt);
+            timers.put(stmt, Metrics.statement(sql));
+        } else {
+            stmt.clearParameters();
+        }
+        return stmt;
+    }
+
+    /**
+     * @param stmt - prepared by this cache, other statements are timed together as uncached
+     */
+    public int executeUpdate(PreparedStatement stmt) throws SQLException {
+        long startedAt = Metrics.start();
+        try {
+            return stmt.executeUpdate();
+        } catch (SQLException e) {
+            Metrics.recordSqlException(e);
+            throw e;
+        } finally {
+            Metrics.record(timerOf(stmt), startedAt);
+        }
+    }
+
+    /**
+     * @param stmt - prepared by this cache, other statements are timed together as uncached
+     */
+    public ResultSet executeQuery(PreparedStatement stmt) throws SQLException {
+        long startedAt = Metrics.start();
+        try {
+            return stmt.executeQuery();
+        } catch (SQLException e) {
+            Metrics.recordSqlException(e);
+            throw e;
+        } finally {
+            Metrics.record(timerOf(stmt), startedAt);
+        }
+    }
+
+    private LatencyHistogram timerOf(PreparedStatement stmt) {
+        LatencyHistogram timer = timers.get(stmt);
+        return timer != null ? timer : Metrics.UNCACHED_STATEMENTS;
+    }
+
+    private static boolean isClosed(Connection connection) {
+        try {
+            return connection.isClosed();
+        } catch (SQLException e) {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.felix.dao;
+
+import com.felix.model.TransferIntentModel;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class TransferIntentDAO {
+    private static final String COLUMNS = "intent_id, role, from_account_id, to_account_id, amount, transaction_log_id, status";
+
+    private final Connection conn;
+    private StatementCache statements;
+
+    public TransferIntentDAO(Connection conn) {
+        this.conn = conn;
+    }
+
+    /**
+     * the caller owns the transaction, an intent id is stored once per shard
+     */
+    public void insertIntent(TransferIntentModel intent) throws SQLException {
+        PreparedStatement stmt = prepare("insert into transfer_intents (" + COLUMNS + ") values (?, ?, ?, ?, ?, ?, ?)");
+        stmt.setString(1, intent.getIntentId());
+        stmt.setInt(2, intent.getRole());
+        stmt.setInt(3, intent.getFromAccountId());
+        stmt.setInt(4, intent.getToAccountId());
+        stmt.setLong(5, intent.getAmount());
+        stmt.setLong(6, intent.getTransactionLogId());
+        stmt.setInt(7, intent.getStatus());
+        statements().executeUpdate(stmt);
+    }
+
+    public TransferIntentModel getIntent(String intentId) throws SQLException {
+        PreparedStatement stmt = prepare("select " + COLUMNS + " from transfer_intents where intent_id = ?");
+        stmt.setString(1, intentId);
+        try (ResultSet rs = statements().executeQuery(stmt)) {
+            return rs.next() ? toModel(rs) : null;
+        }
+    }
+
+    /**
+     * @return true if the intent was in fromStatus and now is in toStatus, false if someone else moved it first
+     */
+    public boolean setStatus(String intentId, int fromStatus, int toStatus) throws SQLException {
+        PreparedStatement stmt = prepare("""
+                update transfer_intents set status = ?, updated_at = datetime('now')
+                where intent_id = ? and status = ?
+                """);
+        stmt.setInt(1, toStatus);
+        stmt.setString(2, intentId);
+        stmt.setInt(3, fromStatus);
+        return statements().executeUpdate(stmt) > 0;
+    }
+
+    /**
+     * source intents still waiting for their credit, oldest first, through the partial index over prepared ones
+     */
+    public List<TransferIntentModel> getPreparedIntents(int limit) throws SQLException {
+        // literal role and status, so the query matches the index's where clause
+        PreparedStatement stmt = prepare("select " + COLUMNS + " from transfer_intents"
+                + " where role = 0 and status = 0 order by created_at limit ?");
+        stmt.setInt(1, limit);
+        List<TransferIntentModel> intents = new ArrayList<>();
+        try (ResultSet rs = statements().executeQuery(stmt)) {
+            while (rs.next()) {
+                intents.add(toModel(rs));
+            }
+        }
+        return intents;
+    }
+
+    public long countPreparedIntents() throws SQLException {
+        PreparedStatement stmt = prepare("select count(*) from transfer_intents where role = 0 and status = 0");
+        try (ResultSet rs = statements().executeQuery(stmt)) {
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+
+    private TransferIntentModel toModel(ResultSet rs) throws SQLException {
+        return TransferIntentModel.builder()
+                .intentId(rs.getString("intent_id"))
+                .role(rs.getInt("role"))
+                .fromAccountId(rs.getInt("from_account_id"))
+                .toAccountId(rs.getInt("to_account_id"))
+                .amount(rs.getLong("amount"))
+                .transactionLogId(rs.getLong("transaction_log_id"))
+                .status(rs.getInt("status"))
+                .build();
+    }
+
+    private PreparedStatement prepare(String sql) throws SQLException {
+        return statements().prepare(sql);
+    }
+
+    private StatementCache statements() throws SQLException {
+        if (statements == null) {
+            statements = StatementCache.of(conn);
+        }
+        return statements;
+    }
+}
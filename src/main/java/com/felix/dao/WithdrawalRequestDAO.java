@@ -3,92 +3,406 @@ package com.felix.dao;
 import com.felix.exception.TransactionFailedErrorCode;
 import com.felix.exception.TransactionFailedException;
 import com.felix.model.WithdrawalRequestModel;
+import com.felix.model.WithdrawalRequestStatusEnum;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 
 public class WithdrawalRequestDAO {
+    // ids per in-list, SQLite allows 32766 bound parameters per statement
+    private static final int MAX_IDS_PER_STATEMENT = 500;
+
     private final Connection conn;
+    private StatementCache statements;
 
     public WithdrawalRequestDAO(Connection conn) {
         this.conn = conn;
     }
 
 
+    /**
+     * insert the withdrawal and set its generated id
+     */
     public void createWithdrawalRequest(WithdrawalRequestModel withdrawalRequest) throws SQLException, TransactionFailedException {
-        PreparedStatement stmt = conn.prepareStatement(
+        PreparedStatement stmt = prepare(
                 """
-                             insert into withdrawal_requests (from_account_id, withdrawal_id, to_address, amount)
-                             values (?, ?, ?, ?)
+                             insert into withdrawal_requests (from_account_id, withdrawal_id, to_address, amount, status, next_check_at)
+                             values (?, ?, ?, ?, ?, ?)
                         """
         );
         stmt.setInt(1, withdrawalRequest.getFromAccountId());
         stmt.setString(2, withdrawalRequest.getWithdrawalId());
         stmt.setString(3, withdrawalRequest.getToAddress());
-        stmt.setBigDecimal(4, withdrawalRequest.getAmount());
-        int inserted = stmt.executeUpdate();
+        stmt.setLong(4, withdrawalRequest.getAmount());
+        stmt.setInt(5, withdrawalRequest.getStatus());
+        stmt.setLong(6, withdrawalRequest.getNextCheckAt());
+        int inserted = statements().executeUpdate(stmt);
         if (inserted <= 0) {
             throw new TransactionFailedException(
                     TransactionFailedErrorCode.SYSTEM_ERROR,
                     "failed to create withdrawal request"
             );
         }
+        try (ResultSet generatedKeys = stmt.getGeneratedKeys()) {
+            withdrawalRequest.setId(generatedKeys.getInt(1));
+        }
+    }
+
+    /**
+     * @return true if the withdrawal was still DEBITING and is now CREATED
+     */
+    public boolean markDebited(int id) throws SQLException {
+        PreparedStatement preparedStatement = prepare(
+                """
+                        update withdrawal_requests set status = ?, updated_at = datetime('now')
+                        where id = ? and status = ?
+                        """
+        );
+        preparedStatement.setInt(1, WithdrawalRequestStatusEnum.CREATED.getCode());
+        preparedStatement.setInt(2, id);
+        preparedStatement.setInt(3, WithdrawalRequestStatusEnum.DEBITING.getCode());
+        return statements().executeUpdate(preparedStatement) > 0;
     }
 
+    /**
+     * delete a withdrawal whose debit was refused, only while it is still DEBITING
+     */
+    public boolean deleteDebiting(int id) throws SQLException {
+        PreparedStatement preparedStatement = prepare(
+                """
+                        delete from withdrawal_requests where id = ? and status = ?
+                        """
+        );
+        preparedStatement.setInt(1, id);
+        preparedStatement.setInt(2, WithdrawalRequestStatusEnum.DEBITING.getCode());
+        return statements().executeUpdate(preparedStatement) > 0;
+    }
+
+    /**
+     * delete every DEBITING withdrawal, only for recovery once the journaled debits made theirs CREATED
+     *
+     * @return the number of withdrawals deleted
+     */
+    public int deleteAllDebiting() throws SQLException {
+        PreparedStatement preparedStatement = prepare(
+                """
+                        delete from withdrawal_requests where status = ?
+                        """
+        );
+        preparedStatement.setInt(1, WithdrawalRequestStatusEnum.DEBITING.getCode());
+        return statements().executeUpdate(preparedStatement);
+    }
+
+    /**
+     * @return true if the withdrawal was still REFUNDING and is now FAILED
+     */
+    public boolean markRefunded(int id) throws SQLException {
+        PreparedStatement preparedStatement = prepare(
+                """
+                        update withdrawal_requests set status = ?, updated_at = datetime('now')
+                        where id = ? and status = ?
+                        """
+        );
+        preparedStatement.setInt(1, WithdrawalRequestStatusEnum.FAILED.getCode());
+        preparedStatement.setInt(2, id);
+        preparedStatement.setInt(3, WithdrawalRequestStatusEnum.REFUNDING.getCode());
+        return statements().executeUpdate(preparedStatement) > 0;
+    }
+
+    /**
+     * every REFUNDING withdrawal, only for recovery once the journaled refunds made theirs FAILED
+     */
+    public List<WithdrawalRequestModel> getRefundingWithdrawals() throws SQLException {
+        PreparedStatement preparedStatement = prepare(
+                """
+                        select * from withdrawal_requests where status = ? order by id
+                        """
+        );
+        preparedStatement.setInt(1, WithdrawalRequestStatusEnum.REFUNDING.getCode());
+        try (var rs = statements().executeQuery(preparedStatement)) {
+            List<WithdrawalRequestModel> withdrawals = new ArrayList<>();
+            while (rs.next()) {
+                withdrawals.add(toModel(rs));
+            }
+            return withdrawals;
+        }
+    }
+
+    /**
+     * withdrawals handed to the provider and waiting for their final state
+     */
     public List<String> getListPendingWithdrawalIds() {
         try {
-            PreparedStatement preparedStatement = conn.prepareStatement(
+            PreparedStatement preparedStatement = prepare(
                     """
-                            select withdrawal_id from withdrawal_requests where status = 0
+                            select withdrawal_id from withdrawal_requests where status = ?
                             """
             );
-            var rs = preparedStatement.executeQuery();
-            List<String> withdrawalIds = new ArrayList<>();
-            while (rs.next()) {
-                withdrawalIds.add(rs.getString("withdrawal_id"));
+            preparedStatement.setInt(1, WithdrawalRequestStatusEnum.REQUESTED.getCode());
+            try (var rs = statements().executeQuery(preparedStatement)) {
+                List<String> withdrawalIds = new ArrayList<>();
+                while (rs.next()) {
+                    withdrawalIds.add(rs.getString("withdrawal_id"));
+                }
+                return withdrawalIds;
             }
-            return withdrawalIds;
         } catch (SQLException e) {
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * the oldest withdrawals committed but not handed to the provider yet
+     */
+    public List<WithdrawalRequestModel> getCreatedWithdrawals(int limit) throws SQLException {
+        // created rows keep next_check_at 0, so this is id order straight from the pending index
+        PreparedStatement preparedStatement = prepare(
+                """
+                        select * from withdrawal_requests where status = ? order by next_check_at, id limit ?
+                        """
+        );
+        preparedStatement.setInt(1, WithdrawalRequestStatusEnum.CREATED.getCode());
+        preparedStatement.setInt(2, limit);
+        try (var rs = statements().executeQuery(preparedStatement)) {
+            List<WithdrawalRequestModel> withdrawals = new ArrayList<>();
+            while (rs.next()) {
+                withdrawals.add(toModel(rs));
+            }
+            return withdrawals;
+        }
+    }
+
+    /**
+     * the next page of REQUESTED withdrawals due by the given time, in next_check_at order. A page continues after
+     * the last row of the previous one, pass 0, 0 for the first page
+     *
+     * @param dueBy - epoch millis, Long.MAX_VALUE for every pending withdrawal
+     */
+    public List<WithdrawalRequestModel> getDueWithdrawals(long dueBy, long afterNextCheckAt, int afterId, int limit) throws SQLException {
+        PreparedStatement preparedStatement = prepare(
+                """
+                        select * from withdrawal_requests
+                        where status = ? and next_check_at <= ? and (next_check_at, id) > (?, ?)
+                        order by next_check_at, id
+                        limit ?
+                        """
+        );
+        preparedStatement.setInt(1, WithdrawalRequestStatusEnum.REQUESTED.getCode());
+        preparedStatement.setLong(2, dueBy);
+        preparedStatement.setLong(3, afterNextCheckAt);
+        preparedStatement.setInt(4, afterId);
+        preparedStatement.setInt(5, limit);
+        try (var rs = statements().executeQuery(preparedStatement)) {
+            List<WithdrawalRequestModel> withdrawals = new ArrayList<>();
+            while (rs.next()) {
+                withdrawals.add(toModel(rs));
+            }
+            return withdrawals;
+        }
+    }
+
+    /**
+     * @param status - CREATED or REQUESTED, counted from the pending index
+     */
+    public long countWithdrawals(int status) throws SQLException {
+        PreparedStatement preparedStatement = prepare(
+                """
+                        select count(*) from withdrawal_requests where status = ?
+                        """
+        );
+        preparedStatement.setInt(1, status);
+        try (var rs = statements().executeQuery(preparedStatement)) {
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+
+    /**
+     * @return true if the withdrawal is still pending
+     */
+    public boolean setNextCheckAt(String withdrawalId, long nextCheckAt) throws SQLException {
+        PreparedStatement preparedStatement = prepare(
+                """
+                        update withdrawal_requests set next_check_at = ? where withdrawal_id = ? and status = ?
+                        """
+        );
+        preparedStatement.setLong(1, nextCheckAt);
+        preparedStatement.setString(2, withdrawalId);
+        preparedStatement.setInt(3, WithdrawalRequestStatusEnum.REQUESTED.getCode());
+        return statements().executeUpdate(preparedStatement) > 0;
+    }
+
+    /**
+     * @return true if the withdrawal was still CREATED
+     */
+    public boolean markRequested(String withdrawalId) throws SQLException {
+        PreparedStatement preparedStatement = prepare(
+                """
+                        update withdrawal_requests set status = ?, updated_at = datetime('now')
+                        where withdrawal_id = ? and status = ?
+                        """
+        );
+        preparedStatement.setInt(1, WithdrawalRequestStatusEnum.REQUESTED.getCode());
+        preparedStatement.setString(2, withdrawalId);
+        preparedStatement.setInt(3, WithdrawalRequestStatusEnum.CREATED.getCode());
+        return statements().executeUpdate(preparedStatement) > 0;
+    }
+
     public void setStatus(String withdrawalId, int status) throws SQLException {
-        PreparedStatement preparedStatement = conn.prepareStatement(
+        PreparedStatement preparedStatement = prepare(
                 """
                         update withdrawal_requests set status = ? where withdrawal_id = ?
                         """
         );
         preparedStatement.setInt(1, status);
         preparedStatement.setString(2, withdrawalId);
-        preparedStatement.executeUpdate();
+        statements().executeUpdate(preparedStatement);
+    }
+
+    /**
+     * move a withdrawal out of a pending status, a withdrawal that is already final is left untouched
+     *
+     * @return the withdrawal as changed, null if its status was left untouched
+     */
+    public WithdrawalRequestModel setFinalStatus(String withdrawalId, int status) throws SQLException {
+        PreparedStatement preparedStatement = prepare(
+                """
+                        update withdrawal_requests set status = ?, updated_at = datetime('now')
+                        where withdrawal_id = ? and status in (?, ?)
+                        returning *
+                        """
+        );
+        preparedStatement.setInt(1, status);
+        preparedStatement.setString(2, withdrawalId);
+        preparedStatement.setInt(3, WithdrawalRequestStatusEnum.CREATED.getCode());
+        preparedStatement.setInt(4, WithdrawalRequestStatusEnum.REQUESTED.getCode());
+        try (var rs = statements().executeQuery(preparedStatement)) {
+            return rs.next() ? toModel(rs) : null;
+        }
     }
 
     public WithdrawalRequestModel getByWithdrawalId(String withdrawalId) {
         try {
-            PreparedStatement preparedStatement = conn.prepareStatement(
+            PreparedStatement preparedStatement = prepare(
                     """
                             select * from withdrawal_requests where withdrawal_id = ?
                             """
             );
             preparedStatement.setString(1, withdrawalId);
-            var rs = preparedStatement.executeQuery();
-            if (rs.next()) {
-                return WithdrawalRequestModel.builder()
-                        .id(rs.getInt("id"))
-                        .fromAccountId(rs.getInt("from_account_id"))
-                        .withdrawalId(rs.getString("withdrawal_id"))
-                        .toAddress(rs.getString("to_address"))
-                        .amount(rs.getBigDecimal("amount"))
-                        .status(rs.getInt("status"))
-                        .build();
+            try (var rs = statements().executeQuery(preparedStatement)) {
+                if (rs.next()) {
+                    return toModel(rs);
+                }
             }
         } catch (SQLException e) {
             throw new RuntimeException(e);
         }
         return null;
     }
+
+    /**
+     * @return the greatest id, 0 if there are no withdrawals
+     */
+    public int getMaxId() throws SQLException {
+        PreparedStatement preparedStatement = prepare("select coalesce(max(id), 0) from withdrawal_requests");
+        try (var rs = statements().executeQuery(preparedStatement)) {
+            return rs.next() ? rs.getInt(1) : 0;
+        }
+    }
+
+    /**
+     * the withdrawals with an id in (afterId, throughId], in id order
+     */
+    public List<WithdrawalRequestModel> getWithdrawalsInRange(int afterId, int throughId) throws SQLException {
+        PreparedStatement preparedStatement = prepare(
+                """
+                        select * from withdrawal_requests where id > ? and id <= ? order by id
+                        """
+        );
+        preparedStatement.setInt(1, afterId);
+        preparedStatement.setInt(2, throughId);
+        try (var rs = statements().executeQuery(preparedStatement)) {
+            List<WithdrawalRequestModel> withdrawals = new ArrayList<>();
+            while (rs.next()) {
+                withdrawals.add(toModel(rs));
+            }
+            return withdrawals;
+        }
+    }
+
+    /**
+     * @return the withdrawals with these ids that exist
+     */
+    public List<WithdrawalRequestModel> getWithdrawalsByIds(Collection<Integer> ids) throws SQLException {
+        List<WithdrawalRequestModel> withdrawals = new ArrayList<>(ids.size());
+        Iterator<Integer> iterator = ids.iterator();
+        while (iterator.hasNext()) {
+            List<Integer> chunk = new ArrayList<>(MAX_IDS_PER_STATEMENT);
+            while (iterator.hasNext() && chunk.size() < MAX_IDS_PER_STATEMENT) {
+                chunk.add(iterator.next());
+            }
+            String getWithdrawalsSql = "select * from withdrawal_requests where id in ("
+                    + String.join(", ", Collections.nCopies(chunk.size(), "?")) + ")";
+            try (PreparedStatement preparedStatement = conn.prepareStatement(getWithdrawalsSql)) {
+                for (int i = 0; i < chunk.size(); i++) {
+                    preparedStatement.setInt(i + 1, chunk.get(i));
+                }
+                try (var rs = statements().executeQuery(preparedStatement)) {
+                    while (rs.next()) {
+                        withdrawals.add(toModel(rs));
+                    }
+                }
+            }
+        }
+        return withdrawals;
+    }
+
+    /**
+     * @return the ids of the CREATED and REQUESTED withdrawals up to throughId, from the pending index
+     */
+    public List<Integer> getPendingWithdrawalIds(int throughId) throws SQLException {
+        PreparedStatement preparedStatement = prepare(
+                """
+                        select id from withdrawal_requests where (status = 0 or status = 1) and id <= ?
+                        """
+        );
+        // the statuses are spelled out as in the index, so SQLite can tell the index covers them
+        preparedStatement.setInt(1, throughId);
+        try (var rs = statements().executeQuery(preparedStatement)) {
+            List<Integer> ids = new ArrayList<>();
+            while (rs.next()) {
+                ids.add(rs.getInt(1));
+            }
+            return ids;
+        }
+    }
+
+    private WithdrawalRequestModel toModel(ResultSet rs) throws SQLException {
+        return WithdrawalRequestModel.builder()
+                .id(rs.getInt("id"))
+                .fromAccountId(rs.getInt("from_account_id"))
+                .withdrawalId(rs.getString("withdrawal_id"))
+                .toAddress(rs.getString("to_address"))
+                .amount(rs.getLong("amount"))
+                .status(rs.getInt("status"))
+                .nextCheckAt(rs.getLong("next_check_at"))
+                .build();
+    }
+
+    private PreparedStatement prepare(String sql) throws SQLException {
+        return statements().prepare(sql);
+    }
+
+    private StatementCache statements() throws SQLException {
+        if (statements == null) {
+            statements = StatementCache.of(conn);
+        }
+        return statements;
+    }
 }
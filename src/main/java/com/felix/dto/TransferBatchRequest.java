@@ -0,0 +1,18 @@
+package com.felix.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+@Builder
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class TransferBatchRequest {
+    List<TransferRequest> transfers;
+    // apply the transfers that can be applied instead of none of them when one fails
+    boolean bestEffort;
+}
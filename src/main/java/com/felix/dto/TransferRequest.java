@@ -1,12 +1,14 @@
 package com.felix.dto;
 
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.felix.money.MinorUnitsDeserializer;
+import com.felix.money.MinorUnitsSerializer;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 
-import java.math.BigDecimal;
-
 @Builder
 @Data
 @NoArgsConstructor
@@ -14,5 +16,7 @@ import java.math.BigDecimal;
 public class TransferRequest {
     int fromAccountId;
     int toAccountId;
-    BigDecimal amount;
+    @JsonSerialize(using = MinorUnitsSerializer.class)
+    @JsonDeserialize(using = MinorUnitsDeserializer.class)
+    long amount;
 }
@@ -1,18 +1,22 @@
 package com.felix.dto;
 
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.felix.money.MinorUnitsDeserializer;
+import com.felix.money.MinorUnitsSerializer;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 
-import java.math.BigDecimal;
-
 @Builder
 @Data
 @NoArgsConstructor
 @AllArgsConstructor
 public class WithdrawalRequest {
     int fromAccountId;
-    BigDecimal amount;
+    @JsonSerialize(using = MinorUnitsSerializer.class)
+    @JsonDeserialize(using = MinorUnitsDeserializer.class)
+    long amount;
     String address;
 }
@@ -1,13 +1,15 @@
 package com.felix.dto;
 
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
 import com.felix.model.WithdrawalRequestStatusEnum;
+import com.felix.money.MinorUnitsDeserializer;
+import com.felix.money.MinorUnitsSerializer;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 
-import java.math.BigDecimal;
-
 @Builder
 @Data
 @AllArgsConstructor
@@ -17,6 +19,8 @@ public class WithdrawalResponseDto {
     int fromAccountId;
     String withdrawalId;
     String toAddress;
-    BigDecimal amount;
+    @JsonSerialize(using = MinorUnitsSerializer.class)
+    @JsonDeserialize(using = MinorUnitsDeserializer.class)
+    long amount;
     WithdrawalRequestStatusEnum status;
 }
@@ -0,0 +1,369 @@
+package com.felix.events;
+
+import com.felix.codec.JsonCodec;
+import com.felix.model.TransferIntentStatusEnum;
+import com.felix.model.WithdrawalRequestStatusEnum;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Status changes of transfers and withdrawals, published by the services once the transaction that made them has
+ * committed, and written as server-sent events to the streams open on them. Nothing is kept for a stream that isn't
+ * open, a client that reconnects reads the current state again.
+ * <p>
+ * A change nobody listens to costs a map lookup per key. One with listeners is encoded once and the same frame is
+ * queued to each of them; a single writer thread empties the queues of the streams that have something to say and
+ * whatever is queued for a stream goes out in one write. A stream whose queue fills up, a client that doesn't keep
+ * up, is closed instead of buffered.
+ */
+public class ChangeFeed implements AutoCloseable {
+    public static final int DEFAULT_QUEUE_CAPACITY = 128;
+
+    private static final byte[] OPENED = ": open\n\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] KEEPALIVE = ": keepalive\n\n".getBytes(StandardCharsets.UTF_8);
+    private static final Subscription[] NONE = new Subscription[0];
+    // transfer frames are never skipped, see Subscription#skipThrough
+    private static final int TRANSFER_RANK = Integer.MAX_VALUE;
+
+    private final int queueCapacity;
+    // replaced on every subscribe and unsubscribe, so a publish reads them without a lock or a copy
+    private final Map<Integer, Subscription[]> byAccount = new ConcurrentHashMap<>();
+    private final Map<String, Subscription[]> byWithdrawal = new ConcurrentHashMap<>();
+    private final Set<Subscription> subscriptions = ConcurrentHashMap.newKeySet();
+    private final LongAdder overflows = new LongAdder();
+    // streams with frames to write, a change to many streams wakes the writer once
+    private final Queue<Subscription> ready = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean writing = new AtomicBoolean();
+    private final Runnable writeReady = this::writeReady;
+    private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "change-feed");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param queueCapacity - events held for a stream the writer hasn't caught up with
+     */
+    public ChangeFeed(int queueCapacity) {
+        if (queueCapacity <= 0) {
+            throw new IllegalArgumentException("invalid queue capacity " + queueCapacity);
+        }
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * @param keepaliveMillis - how often streams with nothing to say get a comment, which is also when a client
+     *                        that went away is noticed
+     */
+    public void start(long keepaliveMillis) {
+        writer.scheduleWithFixedDelay(this::keepalive, keepaliveMillis, keepaliveMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * every transfer and withdrawal event of the account from now on
+     */
+    public Subscription subscribeAccount(int accountId, EventSink sink) {
+        Subscription subscription = new Subscription(accountId, sink, false);
+        // the comment gets the response headers out before the first change
+        subscription.first = OPENED;
+        subscriptions.add(subscription);
+        byAccount.compute(accountId, (key, current) -> append(current, subscription));
+        subscription.start();
+        return subscription;
+    }
+
+    /**
+     * the events of the withdrawal from now on, held until {@link Subscription#start(WithdrawalChange)} is given its
+     * current state. Subscribe before reading that state, so no change can fall between the two
+     */
+    public Subscription subscribeWithdrawal(String withdrawalId, EventSink sink) {
+        Subscription subscription = new Subscription(withdrawalId, sink, true);
+        subscriptions.add(subscription);
+        byWithdrawal.compute(withdrawalId, (key, current) -> append(current, subscription));
+        return subscription;
+    }
+
+    public void transferChanged(long transferId, int fromAccountId, int toAccountId, long amount,
+                                TransferIntentStatusEnum status) {
+        Subscription[] from = byAccount.getOrDefault(fromAccountId, NONE);
+        Subscription[] to = toAccountId == fromAccountId ? NONE : byAccount.getOrDefault(toAccountId, NONE);
+        if (from.length == 0 && to.length == 0) {
+            return;
+        }
+        Frame frame = new Frame(encode("transfer", new TransferChange(
+                transferId, fromAccountId, toAccountId, amount, status)), TRANSFER_RANK, false);
+        offer(from, frame);
+        offer(to, frame);
+    }
+
+    public void withdrawalChanged(String withdrawalId, int accountId, long amount, WithdrawalRequestStatusEnum status) {
+        Subscription[] watching = byWithdrawal.getOrDefault(withdrawalId, NONE);
+        Subscription[] account = byAccount.getOrDefault(accountId, NONE);
+        if (watching.length == 0 && account.length == 0) {
+            return;
+        }
+        Frame frame = new Frame(encode("withdrawal", new WithdrawalChange(
+                withdrawalId, accountId, amount, status)), rank(status), isFinal(status));
+        offer(watching, frame);
+        offer(account, frame);
+    }
+
+    /**
+     * @return streams open, including withdrawal streams not yet started
+     */
+    public int getOpenCount() {
+        return subscriptions.size();
+    }
+
+    /**
+     * @return streams closed because their client didn't keep up
+     */
+    public long getOverflowCount() {
+        return overflows.sum();
+    }
+
+    private void offer(Subscription[] subscriptions, Frame frame) {
+        if (subscriptions.length == 0) {
+            return;
+        }
+        for (Subscription subscription : subscriptions) {
+            if (!subscription.queue.offer(frame)) {
+                subscription.overflowed = true;
+            }
+            subscription.markReady();
+        }
+        // once all are queued, a writer woken per stream would take turns with this thread on a busy machine
+        wakeWriter();
+    }
+
+    private void wakeWriter() {
+        if (writing.compareAndSet(false, true)) {
+            try {
+                writer.execute(writeReady);
+            } catch (RejectedExecutionException e) {
+                // the feed is closed, and so are the streams
+            }
+        }
+    }
+
+    private void writeReady() {
+        // cleared before polling, so a stream queued after the last poll wakes the writer again
+        writing.set(false);
+        Subscription subscription;
+        while ((subscription = ready.poll()) != null) {
+            subscription.drain();
+        }
+    }
+
+    private void keepalive() {
+        for (Subscription subscription : subscriptions) {
+            if (!subscription.started) {
+                continue;
+            }
+            if (!subscription.wroteSinceKeepalive && !subscription.sink.write(KEEPALIVE)) {
+                subscription.end();
+                continue;
+            }
+            subscription.wroteSinceKeepalive = false;
+        }
+    }
+
+    private static byte[] encode(String event, Object data) {
+        try {
+            return ("event: " + event + "\ndata: " + JsonCodec.encodeToString(data) + "\n\n")
+                    .getBytes(StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * how far a withdrawal got, its statuses only ever move forward
+     */
+    private static int rank(WithdrawalRequestStatusEnum status) {
+        return switch (status) {
+            case DEBITING -> 0;
+            case CREATED -> 1;
+            case REQUESTED -> 2;
+            default -> 3;
+        };
+    }
+
+    private static boolean isFinal(WithdrawalRequestStatusEnum status) {
+        return status == WithdrawalRequestStatusEnum.SUCCESS || status == WithdrawalRequestStatusEnum.FAILED;
+    }
+
+    private static Subscription[] append(Subscription[] current, Subscription subscription) {
+        if (current == null) {
+            return new Subscription[]{subscription};
+        }
+        Subscription[] appended = Arrays.copyOf(current, current.length + 1);
+        appended[current.length] = subscription;
+        return appended;
+    }
+
+    private static Subscription[] remove(Subscription[] current, Subscription subscription) {
+        if (current == null) {
+            return null;
+        }
+        Subscription[] remaining = Arrays.stream(current).filter(s -> s != subscription).toArray(Subscription[]::new);
+        return remaining.length == 0 ? null : remaining;
+    }
+
+    /**
+     * closes every stream
+     */
+    @Override
+    public void close() throws InterruptedException {
+        try {
+            writer.execute(() -> subscriptions.forEach(Subscription::end));
+        } catch (RejectedExecutionException e) {
+            // already closed
+        }
+        writer.shutdown();
+        writer.awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @param rank - see {@link #rank}, so a withdrawal stream skips the frames its first one already covers
+     * @param last - a final withdrawal status, the end of a withdrawal stream
+     */
+    private record Frame(byte[] bytes, int rank, boolean last) {
+    }
+
+    /**
+     * A stream open on an account or a withdrawal. Only the writer thread touches its sink
+     */
+    public final class Subscription {
+        private final Object key;
+        private final EventSink sink;
+        // a withdrawal stream ends with the withdrawal's final status
+        private final boolean endsWithWithdrawal;
+        private final ArrayBlockingQueue<Frame> queue = new ArrayBlockingQueue<>(queueCapacity);
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private final AtomicBoolean closed = new AtomicBoolean();
+        // changes are queued from subscribe on, but written only once started
+        private volatile boolean started;
+        private volatile boolean overflowed;
+        // set before started, frames of this rank or lower are skipped
+        private int skipThrough;
+        private byte[] first;
+        private boolean endAfterFirst;
+        // writer thread only
+        private boolean wroteSinceKeepalive;
+
+        private Subscription(Object key, EventSink sink, boolean endsWithWithdrawal) {
+            this.key = key;
+            this.sink = sink;
+            this.endsWithWithdrawal = endsWithWithdrawal;
+        }
+
+        /**
+         * write the withdrawal's current state, then every change after it. A final state ends the stream
+         */
+        public void start(WithdrawalChange current) {
+            skipThrough = rank(current.status());
+            first = encode("withdrawal", current);
+            endAfterFirst = isFinal(current.status());
+            start();
+        }
+
+        /**
+         * stop a stream that was never started, its sink is left to the caller
+         */
+        public void cancel() {
+            unsubscribe();
+        }
+
+        private void start() {
+            started = true;
+            markReady();
+            wakeWriter();
+        }
+
+        private void markReady() {
+            if (started && !closed.get() && scheduled.compareAndSet(false, true)) {
+                ready.offer(this);
+            }
+        }
+
+        private void drain() {
+            // cleared before polling, so a frame queued after the last poll makes the stream ready again
+            scheduled.set(false);
+            if (closed.get()) {
+                return;
+            }
+            if (overflowed) {
+                overflows.increment();
+                end();
+                return;
+            }
+            ByteArrayOutputStream batch = null;
+            byte[] frames = first;
+            boolean last = endAfterFirst;
+            first = null;
+            Frame frame;
+            while (!last && (frame = queue.poll()) != null) {
+                if (frame.rank() <= skipThrough) {
+                    continue;
+                }
+                if (frames == null) {
+                    frames = frame.bytes();
+                } else {
+                    if (batch == null) {
+                        batch = new ByteArrayOutputStream(frames.length * 2);
+                        batch.writeBytes(frames);
+                    }
+                    batch.writeBytes(frame.bytes());
+                }
+                last = endsWithWithdrawal && frame.last();
+            }
+            if (batch != null) {
+                frames = batch.toByteArray();
+            }
+            if (frames == null) {
+                return;
+            }
+            wroteSinceKeepalive = true;
+            if (!sink.write(frames) || last) {
+                end();
+            }
+        }
+
+        private void end() {
+            if (unsubscribe()) {
+                sink.close();
+            }
+        }
+
+        private boolean unsubscribe() {
+            if (!closed.compareAndSet(false, true)) {
+                return false;
+            }
+            if (endsWithWithdrawal) {
+                byWithdrawal.computeIfPresent((String) key, (k, current) -> remove(current, this));
+            } else {
+                byAccount.computeIfPresent((Integer) key, (k, current) -> remove(current, this));
+            }
+            subscriptions.remove(this);
+            queue.clear();
+            return true;
+        }
+    }
+}
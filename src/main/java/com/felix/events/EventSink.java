@@ -0,0 +1,18 @@
+package com.felix.events;
+
+/**
+ * Where a {@link ChangeFeed} subscription writes its server-sent events, only ever called from the feed's writer
+ * thread
+ */
+public interface EventSink {
+    /**
+     * @param frames - one or more complete event frames
+     * @return false once the client is gone, nothing more is written to it
+     */
+    boolean write(byte[] frames);
+
+    /**
+     * end the stream, the client may reconnect
+     */
+    void close();
+}
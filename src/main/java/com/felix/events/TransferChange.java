@@ -0,0 +1,16 @@
+package com.felix.events;
+
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.felix.model.TransferIntentStatusEnum;
+import com.felix.money.MinorUnitsSerializer;
+
+/**
+ * The data of a transfer event. A transfer within a shard is COMMITTED at once, one across shards is PREPARED when
+ * the sender is debited and then COMMITTED, or ABORTED once the sender is refunded
+ *
+ * @param transferId - the id of the sender's transaction log, the journal seq with the ledger
+ */
+public record TransferChange(long transferId, int fromAccountId, int toAccountId,
+                             @JsonSerialize(using = MinorUnitsSerializer.class) long amount,
+                             TransferIntentStatusEnum status) {
+}
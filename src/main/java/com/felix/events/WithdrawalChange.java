@@ -0,0 +1,13 @@
+package com.felix.events;
+
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.felix.model.WithdrawalRequestStatusEnum;
+import com.felix.money.MinorUnitsSerializer;
+
+/**
+ * The data of a withdrawal event
+ */
+public record WithdrawalChange(String withdrawalId, int accountId,
+                               @JsonSerialize(using = MinorUnitsSerializer.class) long amount,
+                               WithdrawalRequestStatusEnum status) {
+}
@@ -1,5 +1,6 @@
 package com.felix.exception;
 
+import com.felix.metrics.Metrics;
 import lombok.Getter;
 
 @Getter
@@ -9,9 +10,11 @@ public class TransactionFailedException extends Exception {
     public TransactionFailedException(TransactionFailedErrorCode errorCode, String message) {
         super(message);
         this.errorCode = errorCode;
+        Metrics.recordTransactionFailed(errorCode);
     }
 
     public TransactionFailedException(TransactionFailedErrorCode errorCode) {
         this.errorCode = errorCode;
+        Metrics.recordTransactionFailed(errorCode);
     }
 }
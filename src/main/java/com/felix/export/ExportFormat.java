@@ -0,0 +1,35 @@
+package com.felix.export;
+
+import lombok.Getter;
+
+@Getter
+public enum ExportFormat {
+    // one JSON array
+    JSON("application/json"),
+    // one JSON object per line
+    NDJSON("application/x-ndjson"),
+    // a header line, then one line per row
+    CSV("text/csv; charset=utf-8");
+
+    private final String contentType;
+
+    ExportFormat(String contentType) {
+        this.contentType = contentType;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the format is unknown
+     */
+    public static ExportFormat fromParam(String format) {
+        return ExportFormat.valueOf(format.trim().toUpperCase());
+    }
+
+    /**
+     * @return the format of the file's extension, NDJSON without one
+     * @throws IllegalArgumentException if the extension is not a format
+     */
+    public static ExportFormat fromFilename(String filename) {
+        int dot = filename.lastIndexOf('.');
+        return dot < 0 ? NDJSON : fromParam(filename.substring(dot + 1));
+    }
+}
@@ -0,0 +1,151 @@
+package com.felix.export;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes rows one at a time in an {@link ExportFormat}, nothing but the current row is kept. Closing flushes the
+ * writer but leaves the output stream open.
+ */
+abstract class RowWriter implements Closeable {
+    private static final JsonFactory JSON_FACTORY = new JsonFactory()
+            .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
+    static RowWriter create(ExportFormat format, OutputStream out, String... columns) throws IOException {
+        return switch (format) {
+            case JSON -> new JsonRowWriter(out, false);
+            case NDJSON -> new JsonRowWriter(out, true);
+            case CSV -> new CsvRowWriter(out, columns);
+        };
+    }
+
+    abstract void startRow() throws IOException;
+
+    abstract void field(String column, long value) throws IOException;
+
+    abstract void field(String column, BigDecimal value) throws IOException;
+
+    abstract void field(String column, String value) throws IOException;
+
+    abstract void endRow() throws IOException;
+
+    private static final class JsonRowWriter extends RowWriter {
+        private final JsonGenerator generator;
+        private final boolean lineDelimited;
+
+        JsonRowWriter(OutputStream out, boolean lineDelimited) throws IOException {
+            this.generator = JSON_FACTORY.createGenerator(out);
+            this.lineDelimited = lineDelimited;
+            // rows are separated by the newline below, not by the generator's default space
+            generator.setRootValueSeparator(null);
+            if (!lineDelimited) {
+                generator.writeStartArray();
+            }
+        }
+
+        @Override
+        void startRow() throws IOException {
+            generator.writeStartObject();
+        }
+
+        @Override
+        void field(String column, long value) throws IOException {
+            generator.writeNumberField(column, value);
+        }
+
+        @Override
+        void field(String column, BigDecimal value) throws IOException {
+            generator.writeNumberField(column, value);
+        }
+
+        @Override
+        void field(String column, String value) throws IOException {
+            generator.writeStringField(column, value);
+        }
+
+        @Override
+        void endRow() throws IOException {
+            generator.writeEndObject();
+            if (lineDelimited) {
+                generator.writeRaw('\n');
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!lineDelimited) {
+                generator.writeEndArray();
+            }
+            generator.close();
+        }
+    }
+
+    private static final class CsvRowWriter extends RowWriter {
+        private final Writer writer;
+        private boolean firstField;
+
+        CsvRowWriter(OutputStream out, String... columns) throws IOException {
+            this.writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+            writer.write(String.join(",", columns));
+            writer.write('\n');
+        }
+
+        @Override
+        void startRow() {
+            firstField = true;
+        }
+
+        @Override
+        void field(String column, long value) throws IOException {
+            separate();
+            writer.write(Long.toString(value));
+        }
+
+        @Override
+        void field(String column, BigDecimal value) throws IOException {
+            separate();
+            writer.write(value.toPlainString());
+        }
+
+        @Override
+        void field(String column, String value) throws IOException {
+            separate();
+            if (value == null) {
+                return;
+            }
+            if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+                writer.write(value);
+                return;
+            }
+            writer.write('"');
+            writer.write(value.replace("\"", "\"\""));
+            writer.write('"');
+        }
+
+        @Override
+        void endRow() throws IOException {
+            writer.write('\n');
+        }
+
+        @Override
+        public void close() throws IOException {
+            writer.flush();
+        }
+
+        private void separate() throws IOException {
+            if (!firstField) {
+                writer.write(',');
+            }
+            firstField = false;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.felix.export;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.felix.dao.BalanceDAO;
+import com.felix.model.TransactionLogType;
+import com.felix.money.CurrencyUnit;
+import com.felix.snapshot.BalanceSnapshot;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Map;
+
+/**
+ * Writes account_balances and transaction_logs straight from a forward-only cursor to an output stream, so memory
+ * stays flat however large the tables are. Pages are keyed by id: pass the last id of a page as the after id of the
+ * next one.
+ * <p>
+ * A reader connection holds its snapshot until the export is done, which keeps a WAL checkpoint from finishing,
+ * so very large tables are better exported in pages. Balances paged through one {@link BalanceSnapshot} all read the
+ * same point in time.
+ */
+public class TableExporter {
+    private static final JsonFactory JSON_FACTORY = new JsonFactory()
+            .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
+    private final DataSource dataSource;
+    private final CurrencyUnit currency;
+
+    public TableExporter(DataSource dataSource, CurrencyUnit currency) {
+        this.dataSource = dataSource;
+        this.currency = currency;
+    }
+
+    /**
+     * @param limit - at most this many accounts, 0 for all of them
+     * @return the number of accounts written
+     */
+    public int exportAccountBalances(OutputStream out, ExportFormat format, int afterAccountId, int limit)
+            throws SQLException, IOException {
+        try (BalanceSnapshot snapshot = BalanceSnapshot.open(dataSource)) {
+            return exportAccountBalances(snapshot, out, format, afterAccountId, limit);
+        }
+    }
+
+    /**
+     * same as {@link #exportAccountBalances(OutputStream, ExportFormat, int, int)} as of the snapshot, so every page
+     * of one export reads the same balances
+     */
+    public int exportAccountBalances(BalanceSnapshot snapshot, OutputStream out, ExportFormat format, int afterAccountId,
+                                     int limit) throws SQLException, IOException {
+        try (RowWriter writer = RowWriter.create(format, out, "accountId", "userId", "balance")) {
+            return snapshot.streamAccountBalances(afterAccountId, limit, (accountId, userId, balance) -> {
+                writer.startRow();
+                writer.field("accountId", accountId);
+                writer.field("userId", userId);
+                writer.field("balance", currency.toAmount(balance));
+                writer.endRow();
+            });
+        }
+    }
+
+    /**
+     * @param limit - at most this many logs, 0 for all of them
+     * @return the number of logs written
+     */
+    public int exportTransactionLogs(OutputStream out, ExportFormat format, int afterId, int limit)
+            throws SQLException, IOException {
+        try (Connection conn = dataSource.getConnection();
+             RowWriter writer = RowWriter.create(format, out, "id", "accountId", "amount", "type", "details")) {
+            return new BalanceDAO(conn).streamTransactionLogs(afterId, limit, (id, accountId, amount, type, details) -> {
+                TransactionLogType logType = TransactionLogType.fromCode(type);
+                writer.startRow();
+                writer.field("id", id);
+                writer.field("accountId", accountId);
+                writer.field("amount", currency.toAmount(amount));
+                writer.field("type", logType == null ? String.valueOf(type) : logType.name());
+                writer.field("details", details);
+                writer.endRow();
+            });
+        }
+    }
+
+    /**
+     * every balance as one JSON object of account id to amount, the shape /balances has always returned
+     */
+    public void exportBalanceMap(OutputStream out) throws SQLException, IOException {
+        try (BalanceSnapshot snapshot = BalanceSnapshot.open(dataSource)) {
+            exportBalanceMap(snapshot, out);
+        }
+    }
+
+    public void exportBalanceMap(BalanceSnapshot snapshot, OutputStream out) throws SQLException, IOException {
+        try (JsonGenerator generator = JSON_FACTORY.createGenerator(out)) {
+            generator.writeStartObject();
+            snapshot.streamAccountBalances(0, 0, (accountId, userId, balance) ->
+                    writeBalance(generator, accountId, balance));
+            generator.writeEndObject();
+        }
+    }
+
+    /**
+     * the same object from balances already in memory, e.g. a ledger snapshot, in minor units by account id
+     */
+    public void exportBalanceMap(Map<Integer, Long> balances, OutputStream out) throws IOException {
+        try (JsonGenerator generator = JSON_FACTORY.createGenerator(out)) {
+            generator.writeStartObject();
+            for (Map.Entry<Integer, Long> entry : balances.entrySet()) {
+                writeBalance(generator, entry.getKey(), entry.getValue());
+            }
+            generator.writeEndObject();
+        }
+    }
+
+    private void writeBalance(JsonGenerator generator, int accountId, long balance) throws IOException {
+        generator.writeFieldName(Integer.toString(accountId));
+        generator.writeNumber(currency.toAmount(balance));
+    }
+}
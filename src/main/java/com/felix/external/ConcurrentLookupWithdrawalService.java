@@ -0,0 +1,75 @@
+package com.felix.external;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Batch lookups for providers that only support {@link #getRequestState(WithdrawalId)}: the ids are looked up
+ * one by one, at most concurrency of them at the same time.
+ */
+public class ConcurrentLookupWithdrawalService implements WithdrawalService, AutoCloseable {
+    private final WithdrawalService delegate;
+    private final ExecutorService executor;
+
+    public ConcurrentLookupWithdrawalService(WithdrawalService delegate, int concurrency) {
+        this.delegate = delegate;
+        this.executor = Executors.newFixedThreadPool(concurrency, r -> {
+            Thread thread = new Thread(r, "withdrawal-state-lookup");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public void requestWithdrawal(WithdrawalId id, Address address, BigDecimal amount) {
+        delegate.requestWithdrawal(id, address, amount);
+    }
+
+    @Override
+    public WithdrawalState getRequestState(WithdrawalId id) {
+        return delegate.getRequestState(id);
+    }
+
+    @Override
+    public Map<WithdrawalId, WithdrawalState> getRequestStates(Collection<WithdrawalId> ids) {
+        List<CompletableFuture<WithdrawalState>> futures = new ArrayList<>(ids.size());
+        for (WithdrawalId id : ids) {
+            futures.add(CompletableFuture.supplyAsync(() -> lookup(id), executor));
+        }
+        Map<WithdrawalId, WithdrawalState> states = new HashMap<>();
+        int i = 0;
+        for (WithdrawalId id : ids) {
+            WithdrawalState state = futures.get(i++).join();
+            if (state != null) {
+                states.put(id, state);
+            }
+        }
+        return states;
+    }
+
+    @Override
+    public boolean subscribe(WithdrawalStateListener listener) {
+        return delegate.subscribe(listener);
+    }
+
+    private WithdrawalState lookup(WithdrawalId id) {
+        try {
+            return delegate.getRequestState(id);
+        } catch (IllegalArgumentException e) {
+            // unknown id
+            return null;
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+}
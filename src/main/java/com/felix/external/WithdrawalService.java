@@ -1,6 +1,9 @@
 package com.felix.external;
 
 import java.math.BigDecimal;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.UUID;
 
 public interface WithdrawalService {
@@ -23,6 +26,39 @@ public interface WithdrawalService {
      */
     WithdrawalState getRequestState(WithdrawalId id);
 
+    /**
+     * Return current state of many withdrawals in one call, providers without a batch API can be wrapped
+     * with {@link ConcurrentLookupWithdrawalService}
+     *
+     * @param ids - withdrawal ids
+     * @return state per id, ids the provider does not know are left out
+     */
+    default Map<WithdrawalId, WithdrawalState> getRequestStates(Collection<WithdrawalId> ids) {
+        Map<WithdrawalId, WithdrawalState> states = new HashMap<>();
+        for (WithdrawalId id : ids) {
+            try {
+                states.put(id, getRequestState(id));
+            } catch (IllegalArgumentException e) {
+                // unknown id
+            }
+        }
+        return states;
+    }
+
+    /**
+     * Ask the provider to push final states (COMPLETED or FAILED) instead of being polled for them
+     *
+     * @param listener - called once per withdrawal when it reaches a final state, possibly from a provider thread
+     * @return false if the provider can't push, callers have to keep polling
+     */
+    default boolean subscribe(WithdrawalStateListener listener) {
+        return false;
+    }
+
+    interface WithdrawalStateListener {
+        void onFinalState(WithdrawalId id, WithdrawalState state);
+    }
+
     enum WithdrawalState {
         PROCESSING, COMPLETED, FAILED
     }
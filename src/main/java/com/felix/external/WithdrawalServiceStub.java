@@ -3,21 +3,49 @@ package com.felix.external;
 import com.felix.external.WithdrawalService;
 
 import java.math.BigDecimal;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 import static com.felix.external.WithdrawalService.WithdrawalState.*;
 
 public class WithdrawalServiceStub implements WithdrawalService {
     private final ConcurrentMap<WithdrawalId, Withdrawal> requests = new ConcurrentHashMap<>();
+    private final List<WithdrawalStateListener> listeners = new CopyOnWriteArrayList<>();
+    private final long minFinaliseMillis;
+    private final long maxFinaliseMillis;
+    // fires the push callbacks, only created once someone subscribes
+    private volatile ScheduledExecutorService callbackScheduler;
+
+    public WithdrawalServiceStub() {
+        this(1000, 10000);
+    }
+
+    /**
+     * @param minFinaliseMillis - a withdrawal becomes final at a random moment between min and max after it is requested
+     */
+    public WithdrawalServiceStub(long minFinaliseMillis, long maxFinaliseMillis) {
+        this.minFinaliseMillis = minFinaliseMillis;
+        this.maxFinaliseMillis = maxFinaliseMillis;
+    }
 
     @Override
     public void requestWithdrawal(WithdrawalId id, Address address, BigDecimal amount) { // Please substitute T with prefered type
-        final var existing = requests.putIfAbsent(id, new Withdrawal(finalState(), finaliseAt(), address, amount));
+        final var withdrawal = new Withdrawal(finalState(), finaliseAt(), address, amount);
+        final var existing = requests.putIfAbsent(id, withdrawal);
         if (existing != null && !Objects.equals(existing.address, address) && !Objects.equals(existing.amount, amount))
             throw new IllegalStateException("Withdrawal request with id[%s] is already present".formatted(id));
+        if (existing == null && callbackScheduler != null)
+            scheduleCallback(id, withdrawal);
     }
 
     private WithdrawalState finalState() {
@@ -25,7 +53,7 @@ public class WithdrawalServiceStub implements WithdrawalService {
     }
 
     private long finaliseAt() {
-        return System.currentTimeMillis() + ThreadLocalRandom.current().nextLong(1000, 10000);
+        return System.currentTimeMillis() + ThreadLocalRandom.current().nextLong(minFinaliseMillis, maxFinaliseMillis);
     }
 
     @Override
@@ -36,10 +64,45 @@ public class WithdrawalServiceStub implements WithdrawalService {
         return request.finalState();
     }
 
+    @Override
+    public Map<WithdrawalId, WithdrawalState> getRequestStates(Collection<WithdrawalId> ids) {
+        final Map<WithdrawalId, WithdrawalState> states = new HashMap<>();
+        for (WithdrawalId id : ids) {
+            final var request = requests.get(id);
+            if (request != null)
+                states.put(id, request.finalState());
+        }
+        return states;
+    }
+
+    @Override
+    public boolean subscribe(WithdrawalStateListener listener) {
+        listeners.add(listener);
+        synchronized (this) {
+            if (callbackScheduler == null) {
+                callbackScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread thread = new Thread(r, "withdrawal-stub-callbacks");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                // withdrawals requested before the first subscription
+                requests.forEach(this::scheduleCallback);
+            }
+        }
+        return true;
+    }
+
+    private void scheduleCallback(WithdrawalId id, Withdrawal withdrawal) {
+        final long delay = Math.max(0, withdrawal.finaliseAt - System.currentTimeMillis());
+        callbackScheduler.schedule(() -> {
+            for (WithdrawalStateListener listener : listeners)
+                listener.onFinalState(id, withdrawal.state);
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
     record Withdrawal(WithdrawalState state, long finaliseAt, Address address, BigDecimal amount) {
         public WithdrawalState finalState() {
             return finaliseAt <= System.currentTimeMillis() ? state : PROCESSING;
         }
     }
 }
-
@@ -0,0 +1,307 @@
+package com.felix.history;
+
+import com.felix.dao.PostingDAO;
+import com.felix.metrics.Metrics;
+import com.felix.model.PostingModel;
+import org.sqlite.SQLiteConfig;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Instant;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Account history over the postings table and its archive files.
+ * <p>
+ * Postings are partitioned by the month they were written in. The live database keeps the last hotBuckets months,
+ * older months are copied into one compact read-only file each, postings-yyyymm.db, and then deleted from the live
+ * table. Seqs only grow, so every archive file holds a seq range below the live table's and a page of history is
+ * read newest first from the live table and then from the archive files, one index seek on (account_id, seq) each.
+ */
+public class PostingHistory implements AutoCloseable {
+    private static final Pattern ARCHIVE_FILE = Pattern.compile("postings-(\\d{6})\\.db");
+    // postings deleted from the live table per transaction, so archiving never holds the writer for long
+    private static final int DELETE_CHUNK = 10_000;
+
+    private final String databaseFilename;
+    private final DataSource writeDataSource;
+    private final DataSource readDataSource;
+    private final Path archiveDir;
+    private final int hotBuckets;
+    // newest first
+    private final List<ArchiveFile> archives = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "posting-archiver");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param databaseFilename - the live database, read directly while a month is copied into its archive file
+     * @param hotBuckets       - months kept in the live table, including the current one
+     */
+    public PostingHistory(String databaseFilename, DataSource writeDataSource, DataSource readDataSource,
+                          Path archiveDir, int hotBuckets) {
+        if (hotBuckets < 1) {
+            throw new IllegalArgumentException("invalid hot buckets " + hotBuckets);
+        }
+        this.databaseFilename = databaseFilename;
+        this.writeDataSource = writeDataSource;
+        this.readDataSource = readDataSource;
+        this.archiveDir = archiveDir;
+        this.hotBuckets = hotBuckets;
+    }
+
+    /**
+     * open the existing archive files and finish deleting what a crash left behind in the live table
+     */
+    public void open() throws IOException, SQLException {
+        Files.createDirectories(archiveDir);
+        List<ArchiveFile> opened = new ArrayList<>();
+        try (Stream<Path> files = Files.list(archiveDir)) {
+            for (Path file : files.toList()) {
+                Matcher matcher = ARCHIVE_FILE.matcher(file.getFileName().toString());
+                if (matcher.matches()) {
+                    opened.add(openArchive(Integer.parseInt(matcher.group(1)), file));
+                }
+            }
+        }
+        opened.sort(Comparator.comparingLong(ArchiveFile::lastSeq).reversed());
+        archives.addAll(opened);
+        deleteArchivedPostings();
+    }
+
+    public void start(long intervalMillis) {
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                archive(bucketOf(System.currentTimeMillis()));
+            } catch (Exception e) {
+                // will be retried on the next run
+                e.printStackTrace();
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param beforeSeq - only postings older than this, Long.MAX_VALUE for the newest
+     * @return up to limit postings of the account, newest first
+     */
+    public List<PostingModel> getAccountPostings(int accountId, long beforeSeq, int limit) throws SQLException {
+        List<PostingModel> page = new ArrayList<>(limit);
+        long archivedThroughSeq = archivedThroughSeq();
+        if (beforeSeq > archivedThroughSeq + 1) {
+            try (Connection conn = readDataSource.getConnection()) {
+                page.addAll(new PostingDAO(conn).getAccountPostings(accountId, archivedThroughSeq, beforeSeq, limit));
+            }
+        }
+        for (ArchiveFile archive : archives) {
+            if (page.size() >= limit) {
+                break;
+            }
+            if (archive.firstSeq() >= beforeSeq) {
+                continue;
+            }
+            page.addAll(archive.getAccountPostings(accountId, beforeSeq, limit - page.size()));
+        }
+        return page;
+    }
+
+    /**
+     * move every month older than the hot ones out of the live table
+     *
+     * @param currentBucket - yyyymm of now
+     * @return the number of months archived
+     */
+    public synchronized int archive(int currentBucket) throws SQLException, IOException {
+        int oldestHotBucket = addMonths(currentBucket, -(hotBuckets - 1));
+        int archived = 0;
+        while (true) {
+            long firstSeq;
+            long maxSeq;
+            Integer bucket;
+            try (Connection conn = readDataSource.getConnection()) {
+                PostingDAO postingDAO = new PostingDAO(conn);
+                firstSeq = Math.max(postingDAO.getMinSeq(), archivedThroughSeq() + 1);
+                maxSeq = postingDAO.getMaxSeq();
+                bucket = postingDAO.getBucketAtOrAfter(firstSeq);
+                if (bucket == null || bucket >= oldestHotBucket) {
+                    return archived;
+                }
+                long lastSeq = lastSeqOfBucket(postingDAO, bucket, firstSeq, maxSeq);
+                archives.add(0, writeArchive(bucket, firstSeq, lastSeq));
+            }
+            deleteArchivedPostings();
+            archived++;
+        }
+    }
+
+    /**
+     * @return yyyymm in UTC, the same buckets SQLite's strftime('%Y%m', 'now') gives the postings
+     */
+    public static int bucketOf(long epochMillis) {
+        YearMonth month = YearMonth.from(Instant.ofEpochMilli(epochMillis).atZone(ZoneOffset.UTC));
+        return month.getYear() * 100 + month.getMonthValue();
+    }
+
+    static int addMonths(int bucket, int months) {
+        YearMonth month = YearMonth.of(bucket / 100, bucket % 100).plusMonths(months);
+        return month.getYear() * 100 + month.getMonthValue();
+    }
+
+    public int getArchiveCount() {
+        return archives.size();
+    }
+
+    /**
+     * postings are written in seq order with a bucket that never goes back, so the last seq of a bucket is found by
+     * binary search on the primary key
+     */
+    private long lastSeqOfBucket(PostingDAO postingDAO, int bucket, long firstSeq, long maxSeq) throws SQLException {
+        long low = firstSeq;
+        long high = maxSeq + 1;
+        // find the first seq whose posting is in a later bucket
+        while (low < high) {
+            long mid = (low + high) >>> 1;
+            Integer midBucket = postingDAO.getBucketAtOrAfter(mid);
+            if (midBucket == null || midBucket > bucket) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        return low - 1;
+    }
+
+    /**
+     * copy the seq range into a new file on a connection of its own, the live database is only read
+     */
+    private ArchiveFile writeArchive(int bucket, long firstSeq, long lastSeq) throws SQLException, IOException {
+        Path file = archiveDir.resolve("postings-" + bucket + ".db");
+        Path tmp = archiveDir.resolve("postings-" + bucket + ".db.tmp");
+        Files.deleteIfExists(tmp);
+        try (Connection conn = new SQLiteConfig().createConnection("jdbc:sqlite:" + tmp);
+             Statement stmt = conn.createStatement()) {
+            try (PreparedStatement attach = conn.prepareStatement("attach database ? as live")) {
+                attach.setString(1, databaseFilename);
+                attach.execute();
+            }
+            stmt.execute("""
+                    create table postings
+                    (
+                        seq             integer not null primary key,
+                        transfer_id     integer not null,
+                        account_id      integer not null,
+                        counterparty_id integer not null,
+                        amount          integer not null,
+                        type            integer not null,
+                        bucket          integer not null,
+                        created_at      text    not null
+                    )
+                    """);
+            try (PreparedStatement copy = conn.prepareStatement("""
+                    insert into postings
+                    select seq, transfer_id, account_id, counterparty_id, amount, type, bucket, created_at
+                    from live.postings where seq >= ? and seq <= ?
+                    """)) {
+                copy.setLong(1, firstSeq);
+                copy.setLong(2, lastSeq);
+                copy.executeUpdate();
+            }
+            stmt.execute("create index postings_account_id_seq_index on postings (account_id, seq)");
+            stmt.execute("detach database live");
+            stmt.execute("vacuum");
+        }
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+        return openArchive(bucket, file);
+    }
+
+    private ArchiveFile openArchive(int bucket, Path file) throws SQLException {
+        SQLiteConfig sqliteConfig = new SQLiteConfig();
+        sqliteConfig.setReadOnly(true);
+        Connection conn = sqliteConfig.createConnection("jdbc:sqlite:" + file);
+        try {
+            PostingDAO postingDAO = new PostingDAO(conn);
+            return new ArchiveFile(bucket, postingDAO.getMinSeq(), postingDAO.getMaxSeq(), conn, new ReentrantLock());
+        } catch (SQLException e) {
+            conn.close();
+            throw e;
+        }
+    }
+
+    private long archivedThroughSeq() {
+        return archives.isEmpty() ? 0 : archives.get(0).lastSeq();
+    }
+
+    /**
+     * delete the live postings the archive files already hold, in chunks
+     */
+    private void deleteArchivedPostings() throws SQLException {
+        long throughSeq = archivedThroughSeq();
+        long minSeq;
+        try (Connection conn = readDataSource.getConnection()) {
+            minSeq = new PostingDAO(conn).getMinSeq();
+        }
+        if (minSeq == 0) {
+            return;
+        }
+        for (long afterSeq = minSeq - 1; afterSeq < throughSeq; afterSeq += DELETE_CHUNK) {
+            try (Connection conn = writeDataSource.getConnection()) {
+                conn.setAutoCommit(false);
+                try {
+                    new PostingDAO(conn).deletePostings(afterSeq, Math.min(throughSeq, afterSeq + DELETE_CHUNK));
+                    conn.commit();
+                } catch (SQLException e) {
+                    conn.rollback();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        scheduler.shutdown();
+        scheduler.awaitTermination(5, TimeUnit.SECONDS);
+        for (ArchiveFile archive : archives) {
+            try {
+                archive.conn().close();
+            } catch (SQLException e) {
+                Metrics.recordSwallowed("archive_close");
+            }
+        }
+        archives.clear();
+    }
+
+    /**
+     * one read-only connection per file, archived months are rarely read
+     */
+    private record ArchiveFile(int bucket, long firstSeq, long lastSeq, Connection conn, ReentrantLock lock) {
+        List<PostingModel> getAccountPostings(int accountId, long beforeSeq, int limit) throws SQLException {
+            lock.lock();
+            try {
+                return new PostingDAO(conn).getAccountPostings(accountId, firstSeq - 1, beforeSeq, limit);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.felix.http;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Flushes the response stream every chunkSize bytes. The server's chunked stream buffers everything it is given
+ * until it is flushed, so a large export written to it directly would sit in memory until the end.
+ */
+public class ChunkedOutput extends FilterOutputStream {
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+    private final int chunkSize;
+    private int unflushed;
+
+    public ChunkedOutput(OutputStream out) {
+        this(out, DEFAULT_CHUNK_SIZE);
+    }
+
+    public ChunkedOutput(OutputStream out, int chunkSize) {
+        super(out);
+        this.chunkSize = chunkSize;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        written(1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        written(len);
+    }
+
+    private void written(int len) throws IOException {
+        unflushed += len;
+        if (unflushed >= chunkSize) {
+            out.flush();
+            unflushed = 0;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.felix.http;
+
+import com.felix.events.EventSink;
+import org.rapidoid.http.MediaType;
+import org.rapidoid.http.Req;
+import org.rapidoid.http.Resp;
+import org.rapidoid.http.impl.ReqImpl;
+import org.rapidoid.net.abstracts.Channel;
+
+/**
+ * A text/event-stream response kept open, every write goes out as its own chunk. The request must have been made
+ * async, until the first write the handler may still answer it as usual.
+ * <p>
+ * The server drops chunks written after the client went away without telling, and hands the connection to the next
+ * client under a new id, so a write first checks that the connection still has the id the request came in on.
+ */
+public class EventStreamResponse implements EventSink {
+    public static final MediaType CONTENT_TYPE = MediaType.create("text/event-stream; charset=utf-8");
+
+    private final Req req;
+    private final Resp resp;
+    private final Channel channel;
+    private boolean opened;
+
+    public EventStreamResponse(Req req, Resp resp) {
+        this.req = req;
+        this.resp = resp;
+        this.channel = ((ReqImpl) req).channel();
+    }
+
+    @Override
+    public boolean write(byte[] frames) {
+        if (channel.isClosed() || channel.connId() != req.connectionId()) {
+            return false;
+        }
+        if (!opened) {
+            // the headers go out with the first chunk
+            resp.contentType(CONTENT_TYPE);
+            resp.header("Cache-Control", "no-cache");
+            opened = true;
+        }
+        resp.chunk(frames);
+        return true;
+    }
+
+    @Override
+    public void close() {
+        req.done();
+    }
+}
@@ -0,0 +1,127 @@
+package com.felix.http;
+
+import com.felix.service.ErrorCode;
+import org.rapidoid.http.Req;
+import org.rapidoid.http.Resp;
+import org.rapidoid.u.U;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides which threads run the blocking part of the HTTP handlers.
+ * <ul>
+ *     <li>WORKER - inline on the server's worker threads, as before</li>
+ *     <li>PLATFORM - on a fixed pool of platform threads</li>
+ *     <li>VIRTUAL - one virtual thread per request (Java 21+), the Hikari pool is the only limit on concurrent
+ *     JDBC work and requests wait for a connection instead of for a thread</li>
+ * </ul>
+ */
+public class HandlerExecutor implements AutoCloseable {
+    private final Mode mode;
+    private final ExecutorService executor;
+
+    private HandlerExecutor(Mode mode, ExecutorService executor) {
+        this.mode = mode;
+        this.executor = executor;
+    }
+
+    /**
+     * @param platformThreads - pool size for PLATFORM, ignored otherwise
+     */
+    public static HandlerExecutor create(Mode mode, int platformThreads) {
+        return switch (mode) {
+            case WORKER -> new HandlerExecutor(mode, null);
+            case PLATFORM -> new HandlerExecutor(mode, Executors.newFixedThreadPool(platformThreads, r -> {
+                Thread thread = new Thread(r, "http-handler");
+                thread.setDaemon(true);
+                return thread;
+            }));
+            case VIRTUAL -> new HandlerExecutor(mode, newVirtualThreadPerTaskExecutor());
+        };
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * run the handler on the configured threads and render its result as the response, a handler that wrote the
+     * response itself through {@link Resp#out()} returns the req
+     */
+    public Object execute(Req req, Resp resp, Handler handler) throws Exception {
+        if (executor == null) {
+            return handler.handle();
+        }
+        req.async();
+        executor.execute(() -> {
+            try {
+                Object result = handler.handle();
+                if (result != req) {
+                    resp.result(result);
+                }
+            } catch (Exception e) {
+                resp.code(500);
+                resp.result(U.map(
+                        "status", "failed",
+                        "error", ErrorCode.SYSTEM_ERROR,
+                        "errorMessage", String.valueOf(e.getMessage())
+                ));
+            } finally {
+                req.done();
+            }
+        });
+        return req;
+    }
+
+    /**
+     * run the task on the configured threads, inline for WORKER, for handlers that compose the result further
+     */
+    public <T> CompletableFuture<T> submit(Callable<T> task) {
+        if (executor == null) {
+            try {
+                return CompletableFuture.completedFuture(task.call());
+            } catch (Exception e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+        CompletableFuture<T> result = new CompletableFuture<>();
+        executor.execute(() -> {
+            try {
+                result.complete(task.call());
+            } catch (Exception e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        if (executor != null) {
+            executor.shutdown();
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        }
+    }
+
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        // looked up at runtime so the code still compiles for Java 17
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("virtual thread execution needs Java 21 or newer", e);
+        }
+    }
+
+    public enum Mode {
+        WORKER, PLATFORM, VIRTUAL
+    }
+
+    @FunctionalInterface
+    public interface Handler {
+        Object handle() throws Exception;
+    }
+}
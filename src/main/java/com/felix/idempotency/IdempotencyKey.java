@@ -0,0 +1,81 @@
+package com.felix.idempotency;
+
+import com.felix.dao.IdempotencyKeyDAO;
+import com.felix.model.IdempotencyKeyModel;
+import com.felix.service.Response;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * The Idempotency-Key of a request, handed to the write it guards so the key is stored in the write's own transaction.
+ * A write that stores it, or reserves it for its ledger entry, marks it stored and {@link IdempotencyStore} leaves it
+ * alone, any other response is stored by the store once the write is done.
+ */
+public final class IdempotencyKey {
+    private final String scope;
+    private final String idempotencyKey;
+    private final String requestHash;
+    private final long expiresAt;
+    // set by the thread of the write, read once its response is complete
+    private volatile boolean stored;
+
+    IdempotencyKey(String scope, String idempotencyKey, String requestHash, long expiresAt) {
+        this.scope = scope;
+        this.idempotencyKey = idempotencyKey;
+        this.requestHash = requestHash;
+        this.expiresAt = expiresAt;
+    }
+
+    /**
+     * store the response on the connection of the write's transaction, before it commits
+     */
+    public void save(Connection conn, Response<?> result) throws SQLException {
+        new IdempotencyKeyDAO(conn).saveIdempotencyKey(toModel(IdempotentResponse.of(result)));
+        stored = true;
+    }
+
+    /**
+     * store another response for a key already saved in this request, when its write was undone afterwards
+     */
+    public void replace(Connection conn, Response<?> result) throws SQLException {
+        new IdempotencyKeyDAO(conn).replaceIdempotencyResponse(toModel(IdempotentResponse.of(result)));
+        stored = true;
+    }
+
+    /**
+     * store the key as pending ahead of a write that commits outside the database, the ledger journal. The write
+     * journals the returned rowid and the checkpoint that moves its entry to the database settles the key
+     *
+     * @param result - the response the write will get, null when it's only known once the write is journaled
+     * @return the rowid of the pending key, 0 when another request with this key is pending or stored already
+     */
+    public long reserve(Connection conn, Response<?> result) throws SQLException {
+        IdempotencyKeyModel model = result != null
+                ? toModel(IdempotentResponse.of(result))
+                : toModel(new IdempotentResponse(200, "", false));
+        return new IdempotencyKeyDAO(conn).reserveIdempotencyKey(model);
+    }
+
+    /**
+     * the write journaled the key it reserved
+     */
+    public void markStored() {
+        stored = true;
+    }
+
+    boolean isStored() {
+        return stored;
+    }
+
+    IdempotencyKeyModel toModel(IdempotentResponse response) {
+        return IdempotencyKeyModel.builder()
+                .scope(scope)
+                .idempotencyKey(idempotencyKey)
+                .requestHash(requestHash)
+                .statusCode(response.statusCode())
+                .responseBody(response.body())
+                .expiresAt(expiresAt)
+                .build();
+    }
+}
@@ -0,0 +1,11 @@
+package com.felix.idempotency;
+
+/**
+ * An Idempotency-Key sent again with a different request body.
+ */
+public class IdempotencyKeyReusedException extends RuntimeException {
+
+    public IdempotencyKeyReusedException(String idempotencyKey) {
+        super("idempotency key " + idempotencyKey + " was used for a different request");
+    }
+}
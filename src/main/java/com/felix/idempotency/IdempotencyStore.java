@@ -0,0 +1,274 @@
+package com.felix.idempotency;
+
+import com.felix.dao.IdempotencyKeyDAO;
+import com.felix.metrics.Metrics;
+import com.felix.model.IdempotencyKeyModel;
+
+import javax.sql.DataSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Runs a request at most once per Idempotency-Key and replays its response to retries.
+ * <p>
+ * Responses are kept in the idempotency_keys table until their TTL runs out, the most recent keys also in memory so
+ * a retry is usually answered without touching the database. Requests with the same key that arrive while the first
+ * one is still running wait for its response instead of running again.
+ * <p>
+ * A write stores its key through {@link IdempotencyKey} in its own transaction, on the shard it writes to, so a
+ * committed write is never without its key and a retry after a crash is replayed rather than run again. A write on
+ * the ledger reserves the key as pending before its journal entry, see {@link IdempotencyKey#reserve}. Responses of
+ * requests that failed without writing anything are stored afterwards, off the request path.
+ */
+public class IdempotencyStore implements AutoCloseable {
+    public static final String HEADER = "Idempotency-Key";
+    // expired keys deleted per transaction, so a purge never holds the writer for long
+    private static final int PURGE_CHUNK = 1_000;
+
+    // one per shard, failed requests are stored in the first
+    private final List<? extends DataSource> writeDataSources;
+    private final List<? extends DataSource> readDataSources;
+    private final long ttlMillis;
+    private final Map<String, IdempotencyKeyModel> recentKeys;
+    private final Map<String, InFlight> inFlight = new ConcurrentHashMap<>();
+    // stores the keys of failed requests and purges expired ones, one thread so the writer is never contended here
+    private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "idempotency-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param ttlMillis     - how long a response is replayed
+     * @param maxRecentKeys - keys kept in memory at most
+     */
+    public IdempotencyStore(DataSource writeDataSource, DataSource readDataSource, long ttlMillis, int maxRecentKeys) {
+        this(List.of(writeDataSource), List.of(readDataSource), ttlMillis, maxRecentKeys);
+    }
+
+    /**
+     * @param writeDataSources - of every shard in index order, a write stores its key on the shard it writes to
+     * @param readDataSources  - of the same shards, a key is looked up in each of them
+     */
+    public IdempotencyStore(List<? extends DataSource> writeDataSources, List<? extends DataSource> readDataSources,
+                            long ttlMillis, int maxRecentKeys) {
+        if (ttlMillis <= 0 || maxRecentKeys <= 0) {
+            throw new IllegalArgumentException("invalid ttl " + ttlMillis + " or recent keys " + maxRecentKeys);
+        }
+        if (writeDataSources.isEmpty() || writeDataSources.size() != readDataSources.size()) {
+            throw new IllegalArgumentException(writeDataSources.size() + " write and " + readDataSources.size() + " read data sources");
+        }
+        this.writeDataSources = List.copyOf(writeDataSources);
+        this.readDataSources = List.copyOf(readDataSources);
+        this.ttlMillis = ttlMillis;
+        this.recentKeys = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, IdempotencyKeyModel> eldest) {
+                return size() > maxRecentKeys;
+            }
+        };
+    }
+
+    public void start(long purgeIntervalMillis) {
+        writer.scheduleWithFixedDelay(() -> {
+            try {
+                purgeExpired(System.currentTimeMillis());
+            } catch (SQLException e) {
+                // will be retried on the next run
+                e.printStackTrace();
+            }
+        }, purgeIntervalMillis, purgeIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param scope       - the route, the same key may be used once per route
+     * @param requestBody - a key sent again with another body fails with {@link IdempotencyKeyReusedException}
+     * @param action      - runs the request, called at most once per key while its response is kept. A successful
+     *                    write stores the key it is given in its transaction
+     * @return the response of the action, or the stored one of an earlier request with the same key
+     */
+    public CompletableFuture<IdempotentResponse> execute(String scope, String idempotencyKey, byte[] requestBody,
+                                                         Function<IdempotencyKey, CompletableFuture<IdempotentResponse>> action) {
+        String id = scope + '\n' + idempotencyKey;
+        String requestHash = hash(requestBody);
+        IdempotencyKeyModel recent = getRecent(id);
+        if (recent != null) {
+            return replay(recent, requestHash);
+        }
+
+        InFlight running = new InFlight(requestHash);
+        InFlight first = inFlight.putIfAbsent(id, running);
+        if (first != null) {
+            // coalesce onto the request that is already running
+            return first.response.thenApply(response -> {
+                if (!first.requestHash.equals(requestHash)) {
+                    throw new IdempotencyKeyReusedException(idempotencyKey);
+                }
+                return response.asReplayed();
+            });
+        }
+
+        try {
+            // the first request may have finished between the lookup above and taking the key
+            IdempotencyKeyModel stored = getRecent(id);
+            if (stored == null) {
+                stored = getStored(scope, idempotencyKey);
+            }
+            if (stored != null) {
+                putRecent(id, stored);
+                // whoever coalesced onto this request is compared with the stored request instead
+                running.requestHash = stored.getRequestHash();
+                finish(id, running, toResponse(stored), null);
+                return replay(stored, requestHash);
+            }
+            IdempotencyKey key = new IdempotencyKey(scope, idempotencyKey, requestHash, System.currentTimeMillis() + ttlMillis);
+            action.apply(key).whenComplete((response, e) -> {
+                if (e != null || response.retryable()) {
+                    finish(id, running, response, e);
+                    return;
+                }
+                IdempotencyKeyModel model = key.toModel(response);
+                if (key.isStored()) {
+                    // committed together with the write
+                    putRecent(id, model);
+                    finish(id, running, response, null);
+                    return;
+                }
+                try {
+                    writer.execute(() -> {
+                        save(model);
+                        putRecent(id, model);
+                        finish(id, running, response, null);
+                    });
+                } catch (RejectedExecutionException rejected) {
+                    // shutting down, the response still goes out
+                    putRecent(id, model);
+                    finish(id, running, response, null);
+                }
+            });
+        } catch (Exception e) {
+            finish(id, running, null, e);
+        }
+        return running.response;
+    }
+
+    private CompletableFuture<IdempotentResponse> replay(IdempotencyKeyModel stored, String requestHash) {
+        if (!stored.getRequestHash().equals(requestHash)) {
+            return CompletableFuture.failedFuture(new IdempotencyKeyReusedException(stored.getIdempotencyKey()));
+        }
+        return CompletableFuture.completedFuture(toResponse(stored).asReplayed());
+    }
+
+    private static IdempotentResponse toResponse(IdempotencyKeyModel stored) {
+        return new IdempotentResponse(stored.getStatusCode(), stored.getResponseBody(), false);
+    }
+
+    /**
+     * the key is released before its waiters are completed, a request that comes after them finds the stored
+     * response or runs again if there is none
+     */
+    private void finish(String id, InFlight running, IdempotentResponse response, Throwable error) {
+        inFlight.remove(id, running);
+        if (error != null) {
+            running.response.completeExceptionally(error);
+        } else {
+            running.response.complete(response);
+        }
+    }
+
+    private IdempotencyKeyModel getRecent(String id) {
+        synchronized (recentKeys) {
+            IdempotencyKeyModel model = recentKeys.get(id);
+            if (model != null && model.getExpiresAt() <= System.currentTimeMillis()) {
+                recentKeys.remove(id);
+                return null;
+            }
+            return model;
+        }
+    }
+
+    private void putRecent(String id, IdempotencyKeyModel model) {
+        synchronized (recentKeys) {
+            recentKeys.put(id, model);
+        }
+    }
+
+    /**
+     * a key is stored on the shard of its write, which the request doesn't say until it has run
+     */
+    private IdempotencyKeyModel getStored(String scope, String idempotencyKey) throws SQLException {
+        long nowMillis = System.currentTimeMillis();
+        for (DataSource readDataSource : readDataSources) {
+            try (Connection conn = readDataSource.getConnection()) {
+                IdempotencyKeyModel stored = new IdempotencyKeyDAO(conn).getIdempotencyKey(scope, idempotencyKey, nowMillis);
+                if (stored != null) {
+                    return stored;
+                }
+            }
+        }
+        return null;
+    }
+
+    private void save(IdempotencyKeyModel model) {
+        try (Connection conn = writeDataSources.get(0).getConnection()) {
+            new IdempotencyKeyDAO(conn).saveIdempotencyKey(model);
+        } catch (SQLException e) {
+            // the request wrote nothing, a retry that misses the key once it left memory only runs it again
+            Metrics.recordSwallowed("idempotency_key_save");
+        }
+    }
+
+    /**
+     * @return the number of expired keys deleted
+     */
+    int purgeExpired(long nowMillis) throws SQLException {
+        int purged = 0;
+        for (DataSource writeDataSource : writeDataSources) {
+            int deleted;
+            do {
+                try (Connection conn = writeDataSource.getConnection()) {
+                    deleted = new IdempotencyKeyDAO(conn).deleteExpiredIdempotencyKeys(nowMillis, PURGE_CHUNK);
+                }
+                purged += deleted;
+            } while (deleted == PURGE_CHUNK);
+        }
+        return purged;
+    }
+
+    private static String hash(byte[] requestBody) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(requestBody));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        writer.shutdown();
+        writer.awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    private static class InFlight {
+        final CompletableFuture<IdempotentResponse> response = new CompletableFuture<>();
+        // read by the waiters once the response is complete
+        volatile String requestHash;
+
+        InFlight(String requestHash) {
+            this.requestHash = requestHash;
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package com.felix.idempotency;
+
+import com.felix.codec.JsonCodec;
+import com.felix.service.ErrorCode;
+import com.felix.service.Response;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * A rendered response as it is stored under its Idempotency-Key and replayed to retries.
+ *
+ * @param retryable - the request failed in a way a retry may fix, e.g. the database was busy, so the response is
+ *                  not stored and a retry with the same key runs again
+ * @param replayed  - the response was stored by an earlier request rather than made for this one
+ */
+public record IdempotentResponse(int statusCode, String body, boolean retryable, boolean replayed) {
+
+    public IdempotentResponse(int statusCode, String body, boolean retryable) {
+        this(statusCode, body, retryable, false);
+    }
+
+    /**
+     * the response as it is stored under its Idempotency-Key, failures a retry may fix are not stored
+     */
+    public static IdempotentResponse of(Response<?> result) {
+        int errorCode = result.getErrorCode();
+        boolean retryable = errorCode == ErrorCode.CONNECTION_ERROR
+                || errorCode == ErrorCode.SYSTEM_ERROR
+                || errorCode == ErrorCode.SERVICE_BUSY
+                || errorCode == ErrorCode.IDEMPOTENCY_KEY_PENDING;
+        try {
+            return new IdempotentResponse(
+                    result.isSuccessful() ? 200 : 400,
+                    JsonCodec.encodeToString(result),
+                    retryable
+            );
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    IdempotentResponse asReplayed() {
+        return new IdempotentResponse(statusCode, body, retryable, true);
+    }
+}
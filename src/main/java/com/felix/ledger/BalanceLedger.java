@@ -0,0 +1,744 @@
+package com.felix.ledger;
+
+import com.felix.exception.TransactionFailedErrorCode;
+import com.felix.exception.TransactionFailedException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * In-memory authoritative balances, amounts are long minor units.
+ * <p>
+ * Every mutation is validated and appended to the {@link LedgerJournal} while the account locks are held and only then
+ * applied in memory, so the journal replays to the same state. The database copy in account_balances is refreshed
+ * asynchronously by {@link LedgerCheckpointer}.
+ * <p>
+ * Hot accounts, the few accounts most transfers come from, keep their balance in slots with a lock each, so transfers
+ * out of them don't all queue on one lock. Locks are always taken stripes first, then slots by account id and slot
+ * index.
+ */
+public class BalanceLedger {
+    private final ConcurrentHashMap<Integer, Cell> balances = new ConcurrentHashMap<>();
+    private final ReentrantLock[] stripes;
+    private final int stripeMask;
+    private final LedgerJournal journal;
+    private final Map<Integer, Integer> hotAccountSlots;
+    // sorted so every slot can be locked in a fixed order
+    private final Map<Integer, HotAccount> hotAccounts = new TreeMap<>();
+
+    // mutations applied since the last checkpoint cut
+    private final ConcurrentLinkedQueue<LedgerEntry> uncheckpointed = new ConcurrentLinkedQueue<>();
+
+    /**
+     * @param stripeCount - number of account locks, rounded up to a power of two
+     */
+    public BalanceLedger(LedgerJournal journal, int stripeCount) {
+        this(journal, stripeCount, Map.of());
+    }
+
+    /**
+     * @param hotAccountSlots - number of slots per hot account, the slots are filled on {@link #recover}
+     */
+    public BalanceLedger(LedgerJournal journal, int stripeCount, Map<Integer, Integer> hotAccountSlots) {
+        this.journal = journal;
+        this.hotAccountSlots = hotAccountSlots;
+        int size = Integer.highestOneBit(Math.max(1, stripeCount - 1)) << 1;
+        this.stripes = new ReentrantLock[size];
+        for (int i = 0; i < size; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+        this.stripeMask = size - 1;
+    }
+
+    /**
+     * load the balances from the last checkpoint and replay the journal on top of it
+     *
+     * @param checkpointBalances - balances as stored in account_balances
+     * @param checkpointSeq      - the last journal seq included in those balances
+     * @param minNextSeq         - the journal continues at least from here
+     */
+    public void recover(Map<Integer, Long> checkpointBalances, long checkpointSeq, long minNextSeq) throws IOException {
+        checkpointBalances.forEach((accountId, balance) -> balances.put(accountId, new Cell(balance)));
+        long lastSeq = journal.replay(entry -> {
+            if (entry.seq() <= checkpointSeq) {
+                return;
+            }
+            switch (entry.type()) {
+                case TRANSFER -> {
+                    cell(entry.accountId()).add(-entry.amount());
+                    cell(entry.counterpartyId()).add(entry.amount());
+                }
+                case DEBIT -> cell(entry.accountId()).add(-entry.amount());
+                case CREDIT -> cell(entry.accountId()).add(entry.amount());
+            }
+            uncheckpointed.add(entry);
+        });
+        hotAccountSlots.forEach((accountId, slotCount) -> {
+            Cell cell = balances.remove(accountId);
+            if (cell != null) {
+                hotAccounts.put(accountId, new HotAccount(cell, slotCount));
+            }
+        });
+        journal.start(Math.max(Math.max(lastSeq, checkpointSeq) + 1, minNextSeq));
+    }
+
+    /**
+     * @return the journal seq of the transfer
+     */
+    public long transfer(int fromAccountId, int toAccountId, long amount) throws TransactionFailedException {
+        return transfer(fromAccountId, toAccountId, amount, 0);
+    }
+
+    /**
+     * @param reference - journaled with the transfer and handed back in its {@link LedgerEntry}, e.g. the idempotency
+     *                  key reserved for it, 0 for none
+     * @return the journal seq of the transfer
+     */
+    public long transfer(int fromAccountId, int toAccountId, long amount, long reference) throws TransactionFailedException {
+        HotAccount hotFrom = hotAccounts.get(fromAccountId);
+        HotAccount hotTo = hotAccounts.get(toAccountId);
+        if (hotFrom != null || hotTo != null) {
+            return transferWithHotAccount(fromAccountId, hotFrom, toAccountId, hotTo, amount, reference);
+        }
+        Cell from = existingCell(fromAccountId);
+        Cell to = existingCell(toAccountId);
+        ReentrantLock first = stripe(fromAccountId);
+        ReentrantLock second = stripe(toAccountId);
+        // to avoid deadlocks, we will always lock the lower stripe first
+        if (stripeIndex(fromAccountId) > stripeIndex(toAccountId)) {
+            ReentrantLock tmp = first;
+            first = second;
+            second = tmp;
+        }
+        first.lock();
+        if (second != first) {
+            second.lock();
+        }
+        try {
+            if (from.balance < amount) {
+                throw new TransactionFailedException(TransactionFailedErrorCode.INSUFFICIENT_BALANCE);
+            }
+            long seq = append(LedgerEntry.Type.TRANSFER, fromAccountId, toAccountId, amount, reference);
+            from.add(-amount);
+            to.add(amount);
+            return seq;
+        } finally {
+            if (second != first) {
+                second.unlock();
+            }
+            first.unlock();
+        }
+    }
+
+    /**
+     * apply the transfers in order while holding the locks of every account they touch, a transfer that can't be
+     * applied is reported and skipped, or rejects the whole batch when atomic. An atomic batch is journaled as one
+     * forced write before any balance changes, so a journal failure leaves every transfer of it unapplied
+     *
+     * @return one outcome per transfer, in order
+     */
+    public List<Outcome> transferBatch(List<Transfer> transfers, boolean atomic) {
+        // same order as everywhere else, stripes by index then hot accounts by id
+        TreeSet<Integer> stripeIndexes = new TreeSet<>();
+        TreeMap<Integer, HotAccount> touchedHotAccounts = new TreeMap<>();
+        for (Transfer transfer : transfers) {
+            for (int accountId : new int[]{transfer.fromAccountId(), transfer.toAccountId()}) {
+                HotAccount hot = hotAccounts.get(accountId);
+                if (hot != null) {
+                    touchedHotAccounts.put(accountId, hot);
+                } else {
+                    stripeIndexes.add(stripeIndex(accountId));
+                }
+            }
+        }
+        stripeIndexes.forEach(index -> stripes[index].lock());
+        touchedHotAccounts.values().forEach(HotAccount::lockAll);
+        try {
+            Outcome[] outcomes = new Outcome[transfers.size()];
+            Map<Integer, Long> simulated = new HashMap<>();
+            boolean failed = false;
+            for (int i = 0; i < transfers.size(); i++) {
+                Transfer transfer = transfers.get(i);
+                Long fromBalance = simulated.computeIfAbsent(transfer.fromAccountId(), this::lockedBalance);
+                Long toBalance = simulated.computeIfAbsent(transfer.toAccountId(), this::lockedBalance);
+                if (fromBalance == null || toBalance == null) {
+                    outcomes[i] = new Outcome(0, TransactionFailedErrorCode.ACCOUNT_NOT_FOUND);
+                    failed = true;
+                } else if (fromBalance < transfer.amount()) {
+                    outcomes[i] = new Outcome(0, TransactionFailedErrorCode.INSUFFICIENT_BALANCE);
+                    failed = true;
+                } else {
+                    simulated.put(transfer.fromAccountId(), fromBalance - transfer.amount());
+                    simulated.merge(transfer.toAccountId(), transfer.amount(), Long::sum);
+                }
+            }
+            if (atomic) {
+                return List.of(failed ? rejectBatch(outcomes) : applyBatch(transfers));
+            }
+            for (int i = 0; i < transfers.size(); i++) {
+                if (outcomes[i] != null) {
+                    continue;
+                }
+                Transfer transfer = transfers.get(i);
+                try {
+                    long seq = append(LedgerEntry.Type.TRANSFER, transfer.fromAccountId(), transfer.toAccountId(), transfer.amount(), 0);
+                    applyLocked(transfer.fromAccountId(), -transfer.amount());
+                    applyLocked(transfer.toAccountId(), transfer.amount());
+                    outcomes[i] = new Outcome(seq, null);
+                } catch (TransactionFailedException e) {
+                    // the journal is failing, every transfer journaled so far is applied and reported as such
+                    outcomes[i] = new Outcome(0, e.getErrorCode());
+                }
+            }
+            return List.of(outcomes);
+        } finally {
+            touchedHotAccounts.descendingMap().values().forEach(HotAccount::unlockAll);
+            stripeIndexes.descendingSet().forEach(index -> stripes[index].unlock());
+        }
+    }
+
+    public long debit(int accountId, long amount) throws TransactionFailedException {
+        return debit(accountId, amount, 0, 0);
+    }
+
+    /**
+     * @param withdrawalId - the withdrawal_requests id the debit pays for, journaled as the counterparty so the
+     *                     checkpoint and recovery can tell the withdrawal was debited, 0 for none
+     */
+    public long debit(int accountId, long amount, int withdrawalId) throws TransactionFailedException {
+        return debit(accountId, amount, withdrawalId, 0);
+    }
+
+    /**
+     * @param reference - journaled with the debit like the one of {@link #transfer(int, int, long, long)}
+     */
+    public long debit(int accountId, long amount, int withdrawalId, long reference) throws TransactionFailedException {
+        HotAccount hot = hotAccounts.get(accountId);
+        if (hot != null) {
+            int slot = hot.lockSlotWith(amount);
+            try {
+                long seq = appendHotDebit(hot, slot, LedgerEntry.Type.DEBIT, accountId, withdrawalId, amount, reference);
+                hot.take(slot, amount);
+                return seq;
+            } finally {
+                hot.unlock(slot);
+            }
+        }
+        Cell cell = existingCell(accountId);
+        ReentrantLock lock = stripe(accountId);
+        lock.lock();
+        try {
+            if (cell.balance < amount) {
+                throw new TransactionFailedException(TransactionFailedErrorCode.INSUFFICIENT_BALANCE);
+            }
+            long seq = append(LedgerEntry.Type.DEBIT, accountId, withdrawalId, amount, reference);
+            cell.add(-amount);
+            return seq;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long credit(int accountId, long amount) throws TransactionFailedException {
+        return credit(accountId, amount, 0);
+    }
+
+    /**
+     * @param withdrawalId - the withdrawal_requests id the credit refunds, journaled as the counterparty like the one
+     *                     of a debit, 0 for none
+     */
+    public long credit(int accountId, long amount, int withdrawalId) throws TransactionFailedException {
+        HotAccount hot = hotAccounts.get(accountId);
+        if (hot != null) {
+            int slot = hot.lockAnySlot();
+            try {
+                long seq = append(LedgerEntry.Type.CREDIT, accountId, withdrawalId, amount, 0);
+                hot.slots[slot].add(amount);
+                return seq;
+            } finally {
+                hot.unlock(slot);
+            }
+        }
+        Cell cell = existingCell(accountId);
+        ReentrantLock lock = stripe(accountId);
+        lock.lock();
+        try {
+            long seq = append(LedgerEntry.Type.CREDIT, accountId, withdrawalId, amount, 0);
+            cell.add(amount);
+            return seq;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * a hot account's balance is the sum of its slots, it can be off by a rebalance in flight
+     */
+    public long getBalance(int accountId) throws TransactionFailedException {
+        HotAccount hot = hotAccounts.get(accountId);
+        if (hot != null) {
+            return hot.total();
+        }
+        return existingCell(accountId).balance;
+    }
+
+    public Map<Integer, Long> getAllBalances() {
+        Map<Integer, Long> result = new HashMap<>();
+        balances.forEach((accountId, cell) -> result.put(accountId, cell.balance));
+        hotAccounts.forEach((accountId, hot) -> result.put(accountId, hot.total()));
+        return result;
+    }
+
+    /**
+     * every balance as of one journal seq, no transfer half applied. All stripes are held while the balances are
+     * copied, like {@link #cut}.
+     */
+    public Snapshot snapshot() {
+        lockEverything();
+        try {
+            return new Snapshot(journal.lastSeq(), getAllBalances());
+        } finally {
+            unlockEverything();
+        }
+    }
+
+    /**
+     * spread every hot account evenly over its slots again, so debits keep finding a slot that covers them
+     * instead of falling back to a sweep across all slots
+     */
+    public void rebalanceHotAccounts() {
+        for (HotAccount hot : hotAccounts.values()) {
+            hot.lockAll();
+            try {
+                hot.rebalance();
+            } finally {
+                hot.unlockAll();
+            }
+        }
+    }
+
+    /**
+     * take a consistent cut of everything changed since the previous cut and seal the journal segment behind it.
+     * All stripes are held for the duration, which is an in-memory copy of the dirty accounts.
+     */
+    public Checkpoint cut() throws IOException {
+        lockEverything();
+        try {
+            long seq = journal.lastSeq();
+            if (!uncheckpointed.isEmpty()) {
+                journal.rotate();
+            }
+            Map<Integer, Long> dirtyBalances = new HashMap<>();
+            balances.forEach((accountId, cell) -> {
+                if (cell.dirty) {
+                    dirtyBalances.put(accountId, cell.balance);
+                    cell.dirty = false;
+                }
+            });
+            hotAccounts.forEach((accountId, hot) -> {
+                if (hot.clearDirty()) {
+                    dirtyBalances.put(accountId, hot.total());
+                }
+            });
+            List<LedgerEntry> entries = new ArrayList<>(uncheckpointed);
+            uncheckpointed.clear();
+            return new Checkpoint(seq, dirtyBalances, entries);
+        } finally {
+            unlockEverything();
+        }
+    }
+
+    /**
+     * put a cut back after it failed to reach the database, the next cut will include it again
+     */
+    public void restore(Checkpoint checkpoint) {
+        lockEverything();
+        try {
+            checkpoint.balances().keySet().forEach(accountId -> {
+                HotAccount hot = hotAccounts.get(accountId);
+                if (hot != null) {
+                    hot.slots[0].dirty = true;
+                } else {
+                    balances.get(accountId).dirty = true;
+                }
+            });
+            List<LedgerEntry> newer = new ArrayList<>(uncheckpointed);
+            uncheckpointed.clear();
+            uncheckpointed.addAll(checkpoint.entries());
+            uncheckpointed.addAll(newer);
+        } finally {
+            unlockEverything();
+        }
+    }
+
+    public void checkpointCommitted() throws IOException {
+        journal.deleteSealedSegments();
+    }
+
+    public void sync() throws IOException {
+        journal.sync();
+    }
+
+    private long transferWithHotAccount(int fromAccountId, HotAccount hotFrom, int toAccountId, HotAccount hotTo, long amount,
+                                        long reference) throws TransactionFailedException {
+        if (hotFrom != null && hotTo != null) {
+            // rare, take every slot of both accounts
+            HotAccount first = fromAccountId <= toAccountId ? hotFrom : hotTo;
+            HotAccount second = first == hotFrom ? hotTo : hotFrom;
+            first.lockAll();
+            if (second != first) {
+                second.lockAll();
+            }
+            try {
+                long seq = appendHotDebit(hotFrom, HotAccount.ALL_SLOTS, LedgerEntry.Type.TRANSFER, fromAccountId, toAccountId, amount, reference);
+                hotFrom.take(HotAccount.ALL_SLOTS, amount);
+                hotTo.slots[0].add(amount);
+                return seq;
+            } finally {
+                if (second != first) {
+                    second.unlockAll();
+                }
+                first.unlockAll();
+            }
+        }
+        if (hotFrom != null) {
+            Cell to = existingCell(toAccountId);
+            ReentrantLock toLock = stripe(toAccountId);
+            toLock.lock();
+            try {
+                int slot = hotFrom.lockSlotWith(amount);
+                try {
+                    long seq = appendHotDebit(hotFrom, slot, LedgerEntry.Type.TRANSFER, fromAccountId, toAccountId, amount, reference);
+                    hotFrom.take(slot, amount);
+                    to.add(amount);
+                    return seq;
+                } finally {
+                    hotFrom.unlock(slot);
+                }
+            } finally {
+                toLock.unlock();
+            }
+        }
+        Cell from = existingCell(fromAccountId);
+        ReentrantLock fromLock = stripe(fromAccountId);
+        fromLock.lock();
+        try {
+            if (from.balance < amount) {
+                throw new TransactionFailedException(TransactionFailedErrorCode.INSUFFICIENT_BALANCE);
+            }
+            int slot = hotTo.lockAnySlot();
+            try {
+                long seq = append(LedgerEntry.Type.TRANSFER, fromAccountId, toAccountId, amount, reference);
+                from.add(-amount);
+                hotTo.slots[slot].add(amount);
+                return seq;
+            } finally {
+                hotTo.unlock(slot);
+            }
+        } finally {
+            fromLock.unlock();
+        }
+    }
+
+    /**
+     * journal a debit of a hot account once the locked slot, or all slots after a sweep, are known to cover it
+     */
+    private long appendHotDebit(HotAccount hot, int slot, LedgerEntry.Type type, int accountId, int counterpartyId, long amount,
+                                long reference) throws TransactionFailedException {
+        long available = slot == HotAccount.ALL_SLOTS ? hot.total() : hot.slots[slot].balance;
+        if (available < amount) {
+            throw new TransactionFailedException(TransactionFailedErrorCode.INSUFFICIENT_BALANCE);
+        }
+        return append(type, accountId, counterpartyId, amount, reference);
+    }
+
+    /**
+     * the transfers of a validated atomic batch, the caller holds the locks of every account they touch
+     */
+    private Outcome[] applyBatch(List<Transfer> transfers) {
+        Outcome[] outcomes = new Outcome[transfers.size()];
+        long seq;
+        try {
+            seq = journal.appendBatch(transfers);
+        } catch (IOException e) {
+            Arrays.fill(outcomes, new Outcome(0, TransactionFailedErrorCode.SYSTEM_ERROR));
+            return outcomes;
+        }
+        for (int i = 0; i < transfers.size(); i++, seq++) {
+            Transfer transfer = transfers.get(i);
+            uncheckpointed.add(new LedgerEntry(seq, LedgerEntry.Type.TRANSFER, transfer.fromAccountId(),
+                    transfer.toAccountId(), transfer.amount()));
+            applyLocked(transfer.fromAccountId(), -transfer.amount());
+            applyLocked(transfer.toAccountId(), transfer.amount());
+            outcomes[i] = new Outcome(seq, null);
+        }
+        return outcomes;
+    }
+
+    /**
+     * keep the errors of the transfers that failed validation, every other one is rejected with its batch
+     */
+    private static Outcome[] rejectBatch(Outcome[] outcomes) {
+        for (int i = 0; i < outcomes.length; i++) {
+            if (outcomes[i] == null) {
+                outcomes[i] = new Outcome(0, null);
+            }
+        }
+        return outcomes;
+    }
+
+    private void lockEverything() {
+        for (ReentrantLock stripe : stripes) {
+            stripe.lock();
+        }
+        hotAccounts.values().forEach(HotAccount::lockAll);
+    }
+
+    private void unlockEverything() {
+        hotAccounts.values().forEach(HotAccount::unlockAll);
+        for (int i = stripes.length - 1; i >= 0; i--) {
+            stripes[i].unlock();
+        }
+    }
+
+    /**
+     * @return the balance of an account whose stripe or slots the caller holds, null when it doesn't exist
+     */
+    private Long lockedBalance(int accountId) {
+        HotAccount hot = hotAccounts.get(accountId);
+        if (hot != null) {
+            return hot.total();
+        }
+        Cell cell = balances.get(accountId);
+        return cell == null ? null : cell.balance;
+    }
+
+    private void applyLocked(int accountId, long delta) {
+        HotAccount hot = hotAccounts.get(accountId);
+        if (hot == null) {
+            balances.get(accountId).add(delta);
+        } else if (delta < 0) {
+            hot.take(HotAccount.ALL_SLOTS, -delta);
+        } else {
+            hot.slots[0].add(delta);
+        }
+    }
+
+    private long append(LedgerEntry.Type type, int accountId, int counterpartyId, long amount, long reference)
+            throws TransactionFailedException {
+        try {
+            long seq = journal.append(type, accountId, counterpartyId, amount, reference);
+            uncheckpointed.add(new LedgerEntry(seq, type, accountId, counterpartyId, amount, reference));
+            return seq;
+        } catch (IOException e) {
+            throw new TransactionFailedException(TransactionFailedErrorCode.SYSTEM_ERROR, "failed to write ledger journal");
+        }
+    }
+
+    private Cell existingCell(int accountId) throws TransactionFailedException {
+        Cell cell = balances.get(accountId);
+        if (cell == null) {
+            throw new TransactionFailedException(TransactionFailedErrorCode.ACCOUNT_NOT_FOUND);
+        }
+        return cell;
+    }
+
+    private Cell cell(int accountId) {
+        return balances.computeIfAbsent(accountId, id -> new Cell(0));
+    }
+
+    private int stripeIndex(int accountId) {
+        return accountId & stripeMask;
+    }
+
+    private ReentrantLock stripe(int accountId) {
+        return stripes[stripeIndex(accountId)];
+    }
+
+    public record Transfer(int fromAccountId, int toAccountId, long amount) {
+    }
+
+    /**
+     * @param seq   - journal seq of an applied transfer, 0 when nothing was journaled
+     * @param error - why the transfer failed, null when it was applied or its batch was rejected
+     */
+    public record Outcome(long seq, TransactionFailedErrorCode error) {
+        public boolean isApplied() {
+            return seq > 0;
+        }
+    }
+
+    public record Snapshot(long seq, Map<Integer, Long> balances) {
+        // responses read from a ledger snapshot carry its journal seq. It counts journal records, not balance
+        // changes, so it never shares the Snapshot-Seq header with the seq of a database snapshot
+        public static final String SEQ_HEADER = "Journal-Seq";
+    }
+
+    public record Checkpoint(long seq, Map<Integer, Long> balances, List<LedgerEntry> entries) {
+        public boolean isEmpty() {
+            return balances.isEmpty() && entries.isEmpty();
+        }
+    }
+
+    private static final class Cell {
+        // written under the account's stripe lock, read without it
+        volatile long balance;
+        boolean dirty;
+
+        Cell(long balance) {
+            this.balance = balance;
+        }
+
+        void add(long delta) {
+            balance += delta;
+            dirty = true;
+        }
+    }
+
+    /**
+     * A balance split over slots, each guarded by its own lock. A debit takes one slot that covers it, or sweeps
+     * across all slots when none does, credits land on whichever slot is free.
+     */
+    private static final class HotAccount {
+        static final int ALL_SLOTS = -1;
+
+        final Cell[] slots;
+        final ReentrantLock[] locks;
+
+        HotAccount(Cell cell, int slotCount) {
+            slots = new Cell[Math.max(1, slotCount)];
+            locks = new ReentrantLock[slots.length];
+            for (int i = 0; i < slots.length; i++) {
+                slots[i] = new Cell(0);
+                locks[i] = new ReentrantLock();
+            }
+            slots[0].balance = cell.balance;
+            slots[0].dirty = cell.dirty;
+            rebalance();
+        }
+
+        /**
+         * @return the index of a locked slot holding at least amount, or ALL_SLOTS with every slot locked
+         */
+        int lockSlotWith(long amount) {
+            int start = ThreadLocalRandom.current().nextInt(slots.length);
+            for (int i = 0; i < slots.length; i++) {
+                int slot = (start + i) % slots.length;
+                if (slots[slot].balance >= amount && locks[slot].tryLock()) {
+                    if (slots[slot].balance >= amount) {
+                        return slot;
+                    }
+                    locks[slot].unlock();
+                }
+            }
+            // every slot that could cover it is busy, wait for one before sweeping
+            for (int i = 0; i < slots.length; i++) {
+                int slot = (start + i) % slots.length;
+                if (slots[slot].balance >= amount) {
+                    locks[slot].lock();
+                    if (slots[slot].balance >= amount) {
+                        return slot;
+                    }
+                    locks[slot].unlock();
+                }
+            }
+            lockAll();
+            return ALL_SLOTS;
+        }
+
+        int lockAnySlot() {
+            int start = ThreadLocalRandom.current().nextInt(slots.length);
+            for (int i = 0; i < slots.length; i++) {
+                int slot = (start + i) % slots.length;
+                if (locks[slot].tryLock()) {
+                    return slot;
+                }
+            }
+            locks[start].lock();
+            return start;
+        }
+
+        void unlock(int slot) {
+            if (slot == ALL_SLOTS) {
+                unlockAll();
+            } else {
+                locks[slot].unlock();
+            }
+        }
+
+        void lockAll() {
+            for (ReentrantLock lock : locks) {
+                lock.lock();
+            }
+        }
+
+        void unlockAll() {
+            for (int i = locks.length - 1; i >= 0; i--) {
+                locks[i].unlock();
+            }
+        }
+
+        /**
+         * take amount out of the locked slot, or out of as many slots as it needs after a sweep
+         */
+        void take(int slot, long amount) {
+            if (slot != ALL_SLOTS) {
+                slots[slot].add(-amount);
+                return;
+            }
+            long remaining = amount;
+            for (int i = 0; i < slots.length && remaining > 0; i++) {
+                long taken = Math.min(remaining, slots[i].balance);
+                if (taken > 0) {
+                    slots[i].add(-taken);
+                    remaining -= taken;
+                }
+            }
+        }
+
+        long total() {
+            long total = 0;
+            for (Cell slot : slots) {
+                total += slot.balance;
+            }
+            return total;
+        }
+
+        /**
+         * every slot must be locked
+         */
+        void rebalance() {
+            long total = total();
+            long share = total / slots.length;
+            long remainder = total % slots.length;
+            for (int i = 0; i < slots.length; i++) {
+                // moving money between slots doesn't change the account, so it doesn't mark it dirty
+                slots[i].balance = share + (i < remainder ? 1 : 0);
+            }
+        }
+
+        /**
+         * every slot must be locked
+         *
+         * @return true if any slot changed since the last call
+         */
+        boolean clearDirty() {
+            boolean dirty = false;
+            for (Cell slot : slots) {
+                dirty |= slot.dirty;
+                slot.dirty = false;
+            }
+            return dirty;
+        }
+    }
+}
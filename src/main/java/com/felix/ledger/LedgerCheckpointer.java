@@ -0,0 +1,184 @@
+package com.felix.ledger;
+
+import com.felix.dao.BalanceDAO;
+import com.felix.dao.IdempotencyKeyDAO;
+import com.felix.dao.LedgerCheckpointDAO;
+import com.felix.dao.WithdrawalRequestDAO;
+import com.felix.exception.TransactionFailedException;
+import com.felix.idempotency.IdempotentResponse;
+import com.felix.model.TransactionLogModel;
+import com.felix.model.TransactionLogType;
+import com.felix.model.WithdrawalRequestModel;
+import com.felix.service.Response;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Moves the ledger state into account_balances / transaction_logs in the background and rebuilds the ledger on startup.
+ * <p>
+ * A withdrawal is committed as DEBITING before its debit is journaled, the checkpoint that writes the debit makes it
+ * CREATED in the same transaction. So once recovery has checkpointed the journal, a DEBITING withdrawal was never
+ * debited and is deleted. A failed withdrawal is committed as REFUNDING before its refund is journaled and made FAILED
+ * the same way, recovery credits a REFUNDING withdrawal left after the checkpoint. Idempotency keys reserved for
+ * journaled writes are settled and deleted like DEBITING withdrawals.
+ */
+public class LedgerCheckpointer implements AutoCloseable {
+    private final DataSource dataSource;
+    private final BalanceLedger ledger;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "ledger-checkpointer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public LedgerCheckpointer(DataSource dataSource, BalanceLedger ledger) {
+        this.dataSource = dataSource;
+        this.ledger = ledger;
+    }
+
+    /**
+     * rebuild the ledger from the last checkpoint plus the journal, must run before anything writes to the ledger
+     */
+    public void recover() throws SQLException, IOException, TransactionFailedException {
+        try (Connection conn = dataSource.getConnection()) {
+            BalanceDAO balanceDAO = new BalanceDAO(conn);
+            Map<Integer, Long> balances = new HashMap<>();
+            for (Map.Entry<String, Long> entry : balanceDAO.getAllAccountBalances().entrySet()) {
+                balances.put(Integer.parseInt(entry.getKey()), entry.getValue());
+            }
+            long checkpointSeq = new LedgerCheckpointDAO(conn).getCheckpointSeq();
+            // journal seqs double as transaction log ids, never hand out one that is already used
+            long minNextSeq = balanceDAO.getMaxTransactionLogId() + 1;
+            ledger.recover(balances, checkpointSeq, minNextSeq);
+        }
+        // write whatever the journal replayed right away
+        checkpoint();
+        List<WithdrawalRequestModel> unrefunded;
+        try (Connection conn = dataSource.getConnection()) {
+            WithdrawalRequestDAO withdrawalRequestDAO = new WithdrawalRequestDAO(conn);
+            withdrawalRequestDAO.deleteAllDebiting();
+            new IdempotencyKeyDAO(conn).deleteAllPendingIdempotencyKeys();
+            unrefunded = withdrawalRequestDAO.getRefundingWithdrawals();
+        }
+        // the journal never got their credit, the checkpoint of this one makes them FAILED
+        for (WithdrawalRequestModel withdrawal : unrefunded) {
+            ledger.credit(withdrawal.getFromAccountId(), withdrawal.getAmount(), withdrawal.getId());
+        }
+        if (!unrefunded.isEmpty()) {
+            checkpoint();
+        }
+    }
+
+    /**
+     * @param syncIntervalMillis - how often the journal is forced to disk when it does not sync every write
+     */
+    public void start(long checkpointIntervalMillis, long syncIntervalMillis) {
+        start(checkpointIntervalMillis, syncIntervalMillis, checkpointIntervalMillis);
+    }
+
+    /**
+     * @param rebalanceIntervalMillis - how often hot accounts are spread evenly over their slots again
+     */
+    public void start(long checkpointIntervalMillis, long syncIntervalMillis, long rebalanceIntervalMillis) {
+        scheduler.scheduleWithFixedDelay(ledger::rebalanceHotAccounts, rebalanceIntervalMillis, rebalanceIntervalMillis, TimeUnit.MILLISECONDS);
+        scheduler.scheduleWithFixedDelay(this::checkpointQuietly, checkpointIntervalMillis, checkpointIntervalMillis, TimeUnit.MILLISECONDS);
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                ledger.sync();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, syncIntervalMillis, syncIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void checkpoint() throws IOException, SQLException {
+        BalanceLedger.Checkpoint checkpoint = ledger.cut();
+        if (checkpoint.isEmpty()) {
+            return;
+        }
+        Connection conn = null;
+        try {
+            conn = dataSource.getConnection();
+            conn.setAutoCommit(false);
+            BalanceDAO balanceDAO = new BalanceDAO(conn);
+            WithdrawalRequestDAO withdrawalRequestDAO = new WithdrawalRequestDAO(conn);
+            IdempotencyKeyDAO idempotencyKeyDAO = new IdempotencyKeyDAO(conn);
+
+            for (Map.Entry<Integer, Long> entry : checkpoint.balances().entrySet()) {
+                balanceDAO.setBalance(entry.getKey(), entry.getValue());
+            }
+            for (LedgerEntry entry : checkpoint.entries()) {
+                if (entry.type() == LedgerEntry.Type.TRANSFER) {
+                    if (balanceDAO.insertTransactionLogIfAbsent(toTransactionLog(entry))) {
+                        balanceDAO.insertTransferPostings(entry.seq(), entry.accountId(), entry.counterpartyId(),
+                                entry.amount(), TransactionLogType.TRANSER);
+                    }
+                } else if (entry.type() == LedgerEntry.Type.DEBIT && entry.counterpartyId() != 0) {
+                    // usually done already by the request that journaled the debit
+                    withdrawalRequestDAO.markDebited(entry.counterpartyId());
+                } else if (entry.type() == LedgerEntry.Type.CREDIT && entry.counterpartyId() != 0) {
+                    // same for the refund of a failed withdrawal
+                    withdrawalRequestDAO.markRefunded(entry.counterpartyId());
+                }
+                if (entry.reference() != 0) {
+                    // a transfer's response holds its seq, a withdrawal's was known when its key was reserved
+                    idempotencyKeyDAO.settleIdempotencyKey(entry.reference(), entry.type() == LedgerEntry.Type.TRANSFER
+                            ? IdempotentResponse.of(Response.success(toTransactionLog(entry))).body()
+                            : null);
+                }
+            }
+            new LedgerCheckpointDAO(conn).saveCheckpointSeq(checkpoint.seq());
+
+            conn.commit();
+        } catch (SQLException e) {
+            if (conn != null) {
+                conn.rollback();
+            }
+            ledger.restore(checkpoint);
+            throw e;
+        } finally {
+            if (conn != null) {
+                conn.close();
+            }
+        }
+        ledger.checkpointCommitted();
+    }
+
+    private void checkpointQuietly() {
+        try {
+            checkpoint();
+        } catch (Exception e) {
+            // will be retried on the next run
+            e.printStackTrace();
+        }
+    }
+
+    private TransactionLogModel toTransactionLog(LedgerEntry entry) {
+        return TransactionLogModel.builder()
+                .id(entry.seq())
+                .accountId(entry.accountId())
+                .amount(entry.amount())
+                .type(TransactionLogType.TRANSER)
+                .details("transfer to account " + entry.counterpartyId())
+                .build();
+    }
+
+    /**
+     * stop the background jobs and write a final checkpoint
+     */
+    @Override
+    public void close() throws IOException, SQLException, InterruptedException {
+        scheduler.shutdown();
+        scheduler.awaitTermination(5, TimeUnit.SECONDS);
+        checkpoint();
+    }
+}
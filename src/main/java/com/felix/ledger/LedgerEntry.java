@@ -0,0 +1,41 @@
+package com.felix.ledger;
+
+/**
+ * One journaled balance mutation, amounts are in minor units.
+ * For TRANSFER the money moves from accountId to counterpartyId, DEBIT/CREDIT only touch accountId. The counterpartyId
+ * of a DEBIT is the withdrawal_requests id it pays for, of a CREDIT the one it refunds, 0 when there is none.
+ *
+ * @param reference - journaled along by the caller of the mutation, the rowid of the idempotency key reserved for it,
+ *                  0 when there is none
+ */
+public record LedgerEntry(long seq, Type type, int accountId, int counterpartyId, long amount, long reference) {
+
+    public LedgerEntry(long seq, Type type, int accountId, int counterpartyId, long amount) {
+        this(seq, type, accountId, counterpartyId, amount, 0);
+    }
+
+    public enum Type {
+        TRANSFER(0),
+        DEBIT(1),
+        CREDIT(2);
+
+        private final int code;
+
+        Type(int code) {
+            this.code = code;
+        }
+
+        public int getCode() {
+            return code;
+        }
+
+        public static Type fromCode(int code) {
+            for (Type type : Type.values()) {
+                if (type.code == code) {
+                    return type;
+                }
+            }
+            return null;
+        }
+    }
+}
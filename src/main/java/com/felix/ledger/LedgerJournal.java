@@ -0,0 +1,332 @@
+package com.felix.ledger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Sequential write-ahead journal for the ledger.
+ * <p>
+ * The journal is a list of segment files named journal-{firstSeq}.log, each holding fixed size records
+ * (seq, type, accountId, counterpartyId, amount, crc). A checkpoint seals the current segment and starts a new one,
+ * sealed segments are deleted once the checkpoint that covers them is committed to the database.
+ * <p>
+ * The reference of an entry is written as a record of its own right before it, with the same seq and the reference
+ * as amount, and both records are written at once. A reference whose entry didn't make it to the disk is dropped.
+ * An atomic batch of transfers is written at once the same way, behind a batch record holding their count, and is
+ * replayed whole or not at all.
+ * <p>
+ * A write that fails is cut off the segment, so the records after it replay. If even that fails the tail of the
+ * segment is unknown and every later append is refused until a restart replays it.
+ */
+public class LedgerJournal implements AutoCloseable {
+    static final int RECORD_SIZE = 8 + 1 + 4 + 4 + 8 + 4;
+    // not a LedgerEntry.Type, replay attaches it to the entry that follows
+    private static final byte REFERENCE = 100;
+    // not a LedgerEntry.Type either, the entries of its count that follow are replayed only if all of them are intact
+    private static final byte BATCH = 101;
+
+    private final Path directory;
+    private final boolean syncEveryWrite;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(2 * RECORD_SIZE);
+    private final CRC32 crc = new CRC32();
+    private final List<Path> sealedSegments = new ArrayList<>();
+    // not synchronized: appends block on file I/O and must not pin the carrier of a virtual thread
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private FileChannel channel;
+    private long currentSegmentSeq;
+    private long nextSeq;
+    private boolean broken;
+
+    /**
+     * @param syncEveryWrite - force every record to disk before returning, otherwise the OS decides when to flush
+     *                       and {@link #sync()} is expected to be called periodically
+     */
+    public LedgerJournal(Path directory, boolean syncEveryWrite) throws IOException {
+        this.directory = directory;
+        this.syncEveryWrite = syncEveryWrite;
+        Files.createDirectories(directory);
+    }
+
+    /**
+     * replay every intact record in seq order, must be called before {@link #start(long)}
+     */
+    public long replay(Consumer<LedgerEntry> consumer) throws IOException {
+        long lastSeq = 0;
+        ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+        for (Path segment : listSegments()) {
+            sealedSegments.add(segment);
+            try (FileChannel in = FileChannel.open(segment, StandardOpenOption.READ)) {
+                // seq and reference of a reference record, until the entry after it is read
+                long referenceSeq = -1;
+                long reference = 0;
+                // entries of a batch record, held until the last of them is read
+                List<LedgerEntry> batch = new ArrayList<>();
+                long batchRemaining = 0;
+                while (true) {
+                    record.clear();
+                    while (record.hasRemaining() && in.read(record) >= 0) {
+                        // keep reading until the record is complete or the file ends
+                    }
+                    if (record.hasRemaining()) {
+                        // torn write at the tail
+                        break;
+                    }
+                    record.flip();
+                    if (!isIntact(record)) {
+                        break;
+                    }
+                    if (record.get(8) == REFERENCE) {
+                        referenceSeq = record.getLong(0);
+                        reference = record.getLong(8 + 1 + 4 + 4);
+                        continue;
+                    }
+                    if (record.get(8) == BATCH) {
+                        batchRemaining = record.getLong(8 + 1 + 4 + 4);
+                        continue;
+                    }
+                    LedgerEntry entry = decode(record, record.getLong(0) == referenceSeq ? reference : 0);
+                    if (entry == null) {
+                        break;
+                    }
+                    referenceSeq = -1;
+                    if (batchRemaining > 0) {
+                        batch.add(entry);
+                        if (--batchRemaining > 0) {
+                            continue;
+                        }
+                        batch.forEach(consumer);
+                        batch.clear();
+                    } else {
+                        consumer.accept(entry);
+                    }
+                    lastSeq = entry.seq();
+                }
+            }
+        }
+        return lastSeq;
+    }
+
+    /**
+     * open a fresh segment, the first appended record gets firstSeq
+     */
+    public void start(long firstSeq) throws IOException {
+        lock.lock();
+        try {
+            this.nextSeq = firstSeq;
+            // a leftover segment with the same name holds no intact record, otherwise replay would have moved past it
+            Path path = segmentPath(firstSeq);
+            sealedSegments.remove(path);
+            Files.deleteIfExists(path);
+            openSegment();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * append a record and return its seq, callers must hold the locks of the accounts involved
+     * so seq order matches the order the mutations were applied in memory
+     *
+     * @param reference - replayed with the entry, 0 for none
+     */
+    public long append(LedgerEntry.Type type, int accountId, int counterpartyId, long amount, long reference) throws IOException {
+        lock.lock();
+        try {
+            long seq = nextSeq;
+            buffer.clear();
+            if (reference != 0) {
+                putRecord(buffer, seq, REFERENCE, 0, 0, reference);
+            }
+            putRecord(buffer, seq, (byte) type.getCode(), accountId, counterpartyId, amount);
+            buffer.flip();
+            write(buffer, syncEveryWrite);
+            nextSeq++;
+            return seq;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * append the transfers as one batch and force it to disk whatever syncEveryWrite says, they get consecutive seqs.
+     * Either every transfer of the batch is journaled or, when this throws, none is
+     *
+     * @return the seq of the first transfer
+     */
+    public long appendBatch(List<BalanceLedger.Transfer> transfers) throws IOException {
+        // at most a batch of transfers, allocated per batch rather than held like the single record buffer
+        ByteBuffer batchBuffer = ByteBuffer.allocate((transfers.size() + 1) * RECORD_SIZE);
+        lock.lock();
+        try {
+            long firstSeq = nextSeq;
+            putRecord(batchBuffer, firstSeq, BATCH, 0, 0, transfers.size());
+            long seq = firstSeq;
+            for (BalanceLedger.Transfer transfer : transfers) {
+                putRecord(batchBuffer, seq++, (byte) LedgerEntry.Type.TRANSFER.getCode(), transfer.fromAccountId(),
+                        transfer.toAccountId(), transfer.amount());
+            }
+            batchBuffer.flip();
+            write(batchBuffer, true);
+            nextSeq = seq;
+            return firstSeq;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long lastSeq() {
+        lock.lock();
+        try {
+            return nextSeq - 1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void sync() throws IOException {
+        lock.lock();
+        try {
+            channel.force(false);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * seal the current segment and continue in a new one, everything sealed so far is covered by seq lastSeq()
+     */
+    public void rotate() throws IOException {
+        lock.lock();
+        try {
+            channel.force(false);
+            channel.close();
+            sealedSegments.add(segmentPath(currentSegmentSeq));
+            openSegment();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * delete all sealed segments, call only after the checkpoint covering them is durable
+     */
+    public void deleteSealedSegments() throws IOException {
+        lock.lock();
+        try {
+            Iterator<Path> iterator = sealedSegments.iterator();
+            while (iterator.hasNext()) {
+                Files.deleteIfExists(iterator.next());
+                iterator.remove();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (channel != null && channel.isOpen()) {
+                channel.force(false);
+                channel.close();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * write the records at the end of the segment, cut them off again when the write fails
+     */
+    private void write(ByteBuffer records, boolean force) throws IOException {
+        if (broken) {
+            throw new IOException("journal tail unknown after a failed write, restart to replay it");
+        }
+        long size = channel.size();
+        try {
+            while (records.hasRemaining()) {
+                channel.write(records);
+            }
+            if (force) {
+                channel.force(false);
+            }
+        } catch (IOException e) {
+            try {
+                channel.truncate(size);
+            } catch (IOException truncateFailure) {
+                broken = true;
+                e.addSuppressed(truncateFailure);
+            }
+            throw e;
+        }
+    }
+
+    private void openSegment() throws IOException {
+        currentSegmentSeq = nextSeq;
+        channel = FileChannel.open(
+                segmentPath(currentSegmentSeq),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND
+        );
+    }
+
+    private Path segmentPath(long firstSeq) {
+        return directory.resolve("journal-%020d.log".formatted(firstSeq));
+    }
+
+    private List<Path> listSegments() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(p -> p.getFileName().toString().startsWith("journal-"))
+                    .sorted()
+                    .toList();
+        }
+    }
+
+    private void putRecord(ByteBuffer target, long seq, byte type, int accountId, int counterpartyId, long amount) {
+        int start = target.position();
+        target.putLong(seq)
+                .put(type)
+                .putInt(accountId)
+                .putInt(counterpartyId)
+                .putLong(amount);
+        target.putInt(checksum(target, start, RECORD_SIZE - 4));
+    }
+
+    private boolean isIntact(ByteBuffer record) {
+        return checksum(record, 0, RECORD_SIZE - 4) == record.getInt(RECORD_SIZE - 4);
+    }
+
+    private LedgerEntry decode(ByteBuffer record, long reference) {
+        long seq = record.getLong();
+        LedgerEntry.Type type = LedgerEntry.Type.fromCode(record.get());
+        int accountId = record.getInt();
+        int counterpartyId = record.getInt();
+        long amount = record.getLong();
+        if (type == null) {
+            return null;
+        }
+        return new LedgerEntry(seq, type, accountId, counterpartyId, amount, reference);
+    }
+
+    private int checksum(ByteBuffer record, int start, int length) {
+        crc.reset();
+        for (int i = start; i < start + length; i++) {
+            crc.update(record.get(i));
+        }
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,304 @@
+package com.felix.metrics;
+
+import com.felix.exception.TransactionFailedErrorCode;
+import com.felix.service.ErrorCode;
+import com.zaxxer.hikari.metrics.IMetricsTracker;
+import com.zaxxer.hikari.metrics.PoolStats;
+import org.sqlite.SQLiteErrorCode;
+import org.sqlite.SQLiteException;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.regex.Pattern;
+
+/**
+ * Process-wide latencies and counters of the hot path, rendered for Prometheus by {@link #scrape()}.
+ * <p>
+ * Every histogram and counter is created up front or once per statement, so recording is a couple of atomic adds
+ * and never allocates. DAOs are created per connection all over the code, which is why this is static rather than
+ * passed around.
+ */
+public final class Metrics {
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    // placeholder lists of multi-row statements, so every batch size is one statement
+    private static final Pattern ROW_LIST = Pattern.compile("\\((\\s*\\?\\s*,)*\\s*\\?\\s*\\)(\\s*,\\s*\\((\\s*\\?\\s*,)*\\s*\\?\\s*\\))+");
+    private static final Pattern PARAMETER_LIST = Pattern.compile("\\?(\\s*,\\s*\\?)+");
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    private static final Map<String, LatencyHistogram> OPERATIONS = new ConcurrentSkipListMap<>();
+    private static final Map<String, LatencyHistogram> STATEMENTS = new ConcurrentHashMap<>();
+    private static final Map<String, PoolMetrics> POOLS = new ConcurrentSkipListMap<>();
+    private static final Map<String, Reading> READINGS = new ConcurrentSkipListMap<>();
+    // by the place the failure was caught
+    private static final Map<String, LongAdder> SWALLOWED_FAILURES = new ConcurrentSkipListMap<>();
+    // indexed by ErrorCode, sized by its greatest constant
+    private static final AtomicLongArray ERRORS = new AtomicLongArray(
+            errorCodeNames().keySet().stream().mapToInt(Integer::intValue).max().orElse(0) + 1);
+    private static final AtomicLongArray TRANSACTION_FAILURES = new AtomicLongArray(TransactionFailedErrorCode.values().length);
+    private static final LongAdder SQLITE_BUSY = new LongAdder();
+    private static final LongAdder LEDGER_REFUND_FAILURES = new LongAdder();
+
+    public static final LatencyHistogram TRANSFER = operation("transfer");
+    public static final LatencyHistogram GROUP_COMMIT = operation("group_commit");
+    public static final LatencyHistogram CROSS_SHARD_TRANSFER = operation("cross_shard_transfer");
+    public static final LatencyHistogram TRANSFER_BATCH = operation("transfer_batch");
+    public static final LatencyHistogram REQUEST_WITHDRAWAL = operation("request_withdrawal");
+    public static final LatencyHistogram SYNC_WITHDRAWAL = operation("sync_withdrawal");
+    public static final LatencyHistogram APPLY_WITHDRAWAL_FINAL_STATES = operation("apply_withdrawal_final_states");
+    public static final LatencyHistogram AUDIT = operation("audit");
+    // statements prepared outside StatementCache, e.g. the odd-sized tail of a batch
+    public static final LatencyHistogram UNCACHED_STATEMENTS = statement("uncached");
+
+    private static volatile boolean enabled = true;
+
+    private Metrics() {
+    }
+
+    public static void setEnabled(boolean enabled) {
+        Metrics.enabled = enabled;
+    }
+
+    /**
+     * @return the start time to pass to {@link #record}, 0 when metrics are off
+     */
+    public static long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    public static void record(LatencyHistogram histogram, long startedAt) {
+        if (startedAt != 0) {
+            histogram.record(System.nanoTime() - startedAt);
+        }
+    }
+
+    private static LatencyHistogram operation(String name) {
+        return OPERATIONS.computeIfAbsent(name, key -> new LatencyHistogram());
+    }
+
+    /**
+     * the histogram of a statement, statements differing only in whitespace or in the number of rows or parameters
+     * of a list share one. Look it up once per prepared statement, not per execution
+     */
+    public static LatencyHistogram statement(String sql) {
+        return STATEMENTS.computeIfAbsent(normalize(sql), key -> new LatencyHistogram());
+    }
+
+    static String normalize(String sql) {
+        String normalized = WHITESPACE.matcher(sql.trim()).replaceAll(" ");
+        normalized = ROW_LIST.matcher(normalized).replaceAll("(...)");
+        return PARAMETER_LIST.matcher(normalized).replaceAll("...");
+    }
+
+    /**
+     * count a response sent with this error code, once per response written, 0 for a success
+     */
+    public static void recordError(int errorCode) {
+        if (enabled && errorCode > 0 && errorCode < ERRORS.length()) {
+            ERRORS.incrementAndGet(errorCode);
+        }
+    }
+
+    public static void recordTransactionFailed(TransactionFailedErrorCode errorCode) {
+        if (enabled && errorCode != null) {
+            TRANSACTION_FAILURES.incrementAndGet(errorCode.ordinal());
+        }
+    }
+
+    /**
+     * count statements that gave up on a lock after the busy timeout
+     */
+    public static void recordSqlException(SQLException e) {
+        if (e instanceof SQLiteException sqliteException) {
+            SQLiteErrorCode resultCode = sqliteException.getResultCode();
+            if (resultCode == SQLiteErrorCode.SQLITE_BUSY || resultCode == SQLiteErrorCode.SQLITE_LOCKED
+                    || resultCode.name().startsWith("SQLITE_BUSY_")) {
+                SQLITE_BUSY.increment();
+            }
+        }
+    }
+
+    /**
+     * count a refund of a failed withdrawal the ledger journal refused, the money is owed to the account until the
+     * next start credits the withdrawal left REFUNDING
+     */
+    public static void recordLedgerRefundFailed() {
+        LEDGER_REFUND_FAILURES.increment();
+    }
+
+    /**
+     * count a failure that was caught and not passed on to the caller, e.g. a rollback that failed after the
+     * transaction already did
+     *
+     * @param site - where it was caught, e.g. withdrawal_sync
+     */
+    public static void recordSwallowed(String site) {
+        if (enabled) {
+            SWALLOWED_FAILURES.computeIfAbsent(site, key -> new LongAdder()).increment();
+        }
+    }
+
+    /**
+     * a value read at scrape time, registering the same name and labels again replaces it
+     *
+     * @param labels - e.g. stage="reconciling", or empty
+     */
+    public static void gauge(String name, String labels, String help, LongSupplier value) {
+        READINGS.put(name + "{" + labels + "}", new Reading(name, labels, "gauge", help, value));
+    }
+
+    /**
+     * like {@link #gauge}, for a value that only grows, the name ends in _total
+     */
+    public static void counter(String name, String labels, String help, LongSupplier value) {
+        READINGS.put(name + "{" + labels + "}", new Reading(name, labels, "counter", help, value));
+    }
+
+    /**
+     * for HikariConfig#setMetricsTrackerFactory, times how long borrowers wait for a connection
+     */
+    public static IMetricsTracker trackPool(String poolName, PoolStats poolStats) {
+        PoolMetrics poolMetrics = new PoolMetrics(poolStats);
+        POOLS.put(poolName, poolMetrics);
+        return poolMetrics;
+    }
+
+    /**
+     * everything in the Prometheus text format, quantiles are since the start of the process
+     */
+    public static String scrape() {
+        StringBuilder out = new StringBuilder(4096);
+
+        header(out, "operation_duration_seconds", "summary", "Time spent in TransferService operations");
+        OPERATIONS.forEach((name, histogram) -> summary(out, "operation_duration_seconds", "operation=\"" + name + "\"", histogram));
+
+        header(out, "statement_duration_seconds", "summary", "Time spent executing DAO statements");
+        new TreeMap<>(STATEMENTS).forEach((sql, histogram) -> summary(out, "statement_duration_seconds", "statement=\"" + escape(sql) + "\"", histogram));
+
+        header(out, "error_responses_total", "counter", "Responses failed with an ErrorCode");
+        errorCodeNames().forEach((code, name) -> counter(out, "error_responses_total", "code=\"" + code + "\",name=\"" + name + "\"", ERRORS.get(code)));
+
+        header(out, "transaction_failures_total", "counter", "TransactionFailedExceptions raised");
+        for (TransactionFailedErrorCode code : TransactionFailedErrorCode.values()) {
+            counter(out, "transaction_failures_total", "code=\"" + code.name() + "\"", TRANSACTION_FAILURES.get(code.ordinal()));
+        }
+
+        header(out, "sqlite_busy_total", "counter", "Statements that failed with SQLITE_BUSY or SQLITE_LOCKED after the busy timeout");
+        counter(out, "sqlite_busy_total", "", SQLITE_BUSY.sum());
+
+        header(out, "ledger_refund_failures_total", "counter", "Refunds of failed withdrawals the ledger journal refused");
+        counter(out, "ledger_refund_failures_total", "", LEDGER_REFUND_FAILURES.sum());
+
+        header(out, "swallowed_failures_total", "counter", "Failures caught without failing the request or job, by where they were caught");
+        SWALLOWED_FAILURES.forEach((site, count) -> counter(out, "swallowed_failures_total", "site=\"" + site + "\"", count.sum()));
+
+        header(out, "pool_connection_acquire_seconds", "summary", "Time spent waiting for a pooled connection");
+        POOLS.forEach((name, pool) -> summary(out, "pool_connection_acquire_seconds", "pool=\"" + name + "\"", pool.acquire));
+        header(out, "pool_connection_timeouts_total", "counter", "Connection requests that timed out");
+        POOLS.forEach((name, pool) -> counter(out, "pool_connection_timeouts_total", "pool=\"" + name + "\"", pool.timeouts.sum()));
+        header(out, "pool_connections", "gauge", "Pooled connections by state");
+        POOLS.forEach((name, pool) -> {
+            gauge(out, "pool_connections", "pool=\"" + name + "\",state=\"active\"", pool.poolStats.getActiveConnections());
+            gauge(out, "pool_connections", "pool=\"" + name + "\",state=\"idle\"", pool.poolStats.getIdleConnections());
+            gauge(out, "pool_connections", "pool=\"" + name + "\",state=\"pending\"", pool.poolStats.getPendingThreads());
+        });
+
+        String lastName = null;
+        for (Reading reading : READINGS.values()) {
+            if (!reading.name.equals(lastName)) {
+                header(out, reading.name, reading.type, reading.help);
+                lastName = reading.name;
+            }
+            gauge(out, reading.name, reading.labels, reading.value.getAsLong());
+        }
+        return out.toString();
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void summary(StringBuilder out, String name, String labels, LatencyHistogram histogram) {
+        for (double quantile : QUANTILES) {
+            out.append(name).append('{').append(labels).append(",quantile=\"").append(quantile).append("\"} ")
+                    .append(seconds(histogram.getValueAtQuantile(quantile))).append('\n');
+        }
+        out.append(name).append("_sum{").append(labels).append("} ").append(seconds(histogram.getSumNanos())).append('\n');
+        out.append(name).append("_count{").append(labels).append("} ").append(histogram.getCount()).append('\n');
+    }
+
+    private static void counter(StringBuilder out, String name, String labels, long value) {
+        gauge(out, name, labels, value);
+    }
+
+    private static void gauge(StringBuilder out, String name, String labels, long value) {
+        out.append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ').append(value).append('\n');
+    }
+
+    private static String seconds(long nanos) {
+        return Double.toString(nanos / 1e9);
+    }
+
+    private static String escape(String labelValue) {
+        return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static Map<Integer, String> errorCodeNames() {
+        Map<Integer, String> names = new TreeMap<>();
+        for (Field field : ErrorCode.class.getFields()) {
+            if (Modifier.isStatic(field.getModifiers()) && field.getType() == int.class) {
+                try {
+                    names.put(field.getInt(null), field.getName());
+                } catch (IllegalAccessException e) {
+                    // public constants only
+                }
+            }
+        }
+        return names;
+    }
+
+    /**
+     * @param type - gauge or counter
+     */
+    private record Reading(String name, String labels, String type, String help, LongSupplier value) {
+    }
+
+    private static final class PoolMetrics implements IMetricsTracker {
+        final PoolStats poolStats;
+        final LatencyHistogram acquire = new LatencyHistogram();
+        final LongAdder timeouts = new LongAdder();
+
+        PoolMetrics(PoolStats poolStats) {
+            this.poolStats = poolStats;
+        }
+
+        @Override
+        public void recordConnectionAcquiredNanos(long elapsedAcquiredNanos) {
+            if (enabled) {
+                acquire.record(elapsedAcquiredNanos);
+            }
+        }
+
+        @Override
+        public void recordConnectionTimeout() {
+            timeouts.increment();
+        }
+
+        @Override
+        public void close() {
+            POOLS.values().remove(this);
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package com.felix.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@Builder
+@AllArgsConstructor
+@NoArgsConstructor
+public class AccountBalanceModel {
+    int accountId;
+    int userId;
+    // minor units
+    long balance;
+}
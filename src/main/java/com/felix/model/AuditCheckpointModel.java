@@ -0,0 +1,18 @@
+package com.felix.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@Builder
+@AllArgsConstructor
+@NoArgsConstructor
+public class AuditCheckpointModel {
+    int accountId;
+    // minor units, the account's balance as of the last audit
+    long balance;
+    // the last posting folded into the balance
+    long lastSeq;
+}
@@ -0,0 +1,17 @@
+package com.felix.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@Builder
+@AllArgsConstructor
+@NoArgsConstructor
+public class AuditStateModel {
+    // postings up to this seq are folded into the checkpoints
+    long postingSeq;
+    // withdrawals up to this id are debited in the checkpoints
+    int withdrawalId;
+}
@@ -0,0 +1,22 @@
+package com.felix.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class IdempotencyKeyModel {
+    String scope;
+    String idempotencyKey;
+    // sha-256 of the request body, a key reused for another request is rejected
+    String requestHash;
+    int statusCode;
+    String responseBody;
+    long expiresAt;
+    // reserved ahead of a ledger write and not settled yet, never replayed
+    boolean pending;
+}
@@ -0,0 +1,31 @@
+package com.felix.model;
+
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.felix.money.MinorUnitsDeserializer;
+import com.felix.money.MinorUnitsSerializer;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * One side of a transfer, the sender's posting is negative and the receiver's positive
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class PostingModel {
+    long seq;
+    long transferId;
+    int accountId;
+    int counterpartyId;
+    @JsonSerialize(using = MinorUnitsSerializer.class)
+    @JsonDeserialize(using = MinorUnitsDeserializer.class)
+    long amount;
+    TransactionLogType type;
+    // yyyymm
+    int bucket;
+    String createdAt;
+}
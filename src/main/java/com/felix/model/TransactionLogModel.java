@@ -1,20 +1,25 @@
 package com.felix.model;
 
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.felix.money.MinorUnitsDeserializer;
+import com.felix.money.MinorUnitsSerializer;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 
-import java.math.BigDecimal;
-
 @Data
 @Builder
 @NoArgsConstructor
 @AllArgsConstructor
 public class TransactionLogModel {
-    int id;
+    // the journal seq with the ledger, which is a long
+    long id;
     int accountId;
-    BigDecimal amount;
+    @JsonSerialize(using = MinorUnitsSerializer.class)
+    @JsonDeserialize(using = MinorUnitsDeserializer.class)
+    long amount;
     String details;
     TransactionLogType type;
 }
@@ -0,0 +1,26 @@
+package com.felix.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@Builder
+@AllArgsConstructor
+@NoArgsConstructor
+public class TransferIntentModel {
+    public static final int ROLE_SOURCE = 0;
+    public static final int ROLE_DESTINATION = 1;
+
+    String intentId;
+    // ROLE_SOURCE on the shard of the sender, ROLE_DESTINATION on the shard of the recipient
+    int role;
+    int fromAccountId;
+    int toAccountId;
+    // minor units of the default currency
+    long amount;
+    // the sender's transaction log on the source shard
+    long transactionLogId;
+    int status;
+}
@@ -0,0 +1,36 @@
+package com.felix.model;
+
+
+import lombok.Getter;
+
+@Getter
+public enum TransferIntentStatusEnum {
+    // debited on the source shard, the credit is not known to be applied yet
+    PREPARED(0),
+
+    COMMITTED(1),
+
+    // the credit could not be applied, the sender was refunded
+    ABORTED(2),
+
+    UNKNOWN(-1);
+
+    private final int code;
+
+    TransferIntentStatusEnum(int code) {
+        this.code = code;
+    }
+
+    public static TransferIntentStatusEnum fromCode(int code) {
+        switch (code) {
+            case 0:
+                return TransferIntentStatusEnum.PREPARED;
+            case 1:
+                return TransferIntentStatusEnum.COMMITTED;
+            case 2:
+                return TransferIntentStatusEnum.ABORTED;
+            default:
+                return TransferIntentStatusEnum.UNKNOWN;
+        }
+    }
+}
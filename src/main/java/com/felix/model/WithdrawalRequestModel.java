@@ -5,8 +5,6 @@ import lombok.Builder;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 
-import java.math.BigDecimal;
-
 @Data
 @Builder
 @AllArgsConstructor
@@ -16,6 +14,9 @@ public class WithdrawalRequestModel {
     int fromAccountId;
     String withdrawalId;
     String toAddress;
-    BigDecimal amount;
+    // minor units of the default currency
+    long amount;
     int status;
+    // epoch millis of the next provider check, 0 is due right away
+    long nextCheckAt;
 }
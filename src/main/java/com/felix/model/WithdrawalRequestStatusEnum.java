@@ -13,6 +13,12 @@ public enum WithdrawalRequestStatusEnum {
 
     FAILED(3),
 
+    // committed ahead of its ledger debit, becomes CREATED once the debit is journaled
+    DEBITING(4),
+
+    // failed and committed ahead of its ledger refund, becomes FAILED once the credit is journaled
+    REFUNDING(5),
+
     UNKNOWN(-1);
 
     private final int code;
@@ -31,6 +37,10 @@ public enum WithdrawalRequestStatusEnum {
                 return WithdrawalRequestStatusEnum.SUCCESS;
             case 3:
                 return WithdrawalRequestStatusEnum.FAILED;
+            case 4:
+                return WithdrawalRequestStatusEnum.DEBITING;
+            case 5:
+                return WithdrawalRequestStatusEnum.REFUNDING;
             default:
                 return WithdrawalRequestStatusEnum.UNKNOWN;
         }
@@ -0,0 +1,88 @@
+package com.felix.money;
+
+import java.math.BigDecimal;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A currency and the number of decimal places kept in its minor units.
+ * <p>
+ * Every amount in the service is a long count of minor units of the default currency (e.g. cents for USD),
+ * BigDecimal is only used at the edges: JSON and the external withdrawal provider.
+ */
+public record CurrencyUnit(String code, int scale) {
+    private static final Map<String, CurrencyUnit> CURRENCIES = new ConcurrentHashMap<>();
+
+    static {
+        register("USD", 2);
+        register("EUR", 2);
+        register("JPY", 0);
+        register("BTC", 8);
+    }
+
+    private static volatile CurrencyUnit defaultCurrency = of("USD");
+
+    public CurrencyUnit {
+        if (scale < 0 || scale > 18) {
+            throw new IllegalArgumentException("invalid scale " + scale);
+        }
+    }
+
+    /**
+     * add a currency or override the scale of a known one
+     */
+    public static CurrencyUnit register(String code, int scale) {
+        CurrencyUnit currency = new CurrencyUnit(code, scale);
+        CURRENCIES.put(code, currency);
+        return currency;
+    }
+
+    public static CurrencyUnit of(String code) {
+        CurrencyUnit currency = CURRENCIES.get(code);
+        if (currency == null) {
+            throw new IllegalArgumentException("unknown currency " + code);
+        }
+        return currency;
+    }
+
+    public static CurrencyUnit getDefault() {
+        return defaultCurrency;
+    }
+
+    /**
+     * pick the currency all balances are kept in, the JSON codecs read and write amounts in it
+     */
+    public static void setDefault(CurrencyUnit currency) {
+        defaultCurrency = currency;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the amount has more decimal places than the currency or does not fit a long
+     */
+    public long toMinorUnits(BigDecimal amount) {
+        try {
+            return amount.movePointRight(scale).longValueExact();
+        } catch (ArithmeticException e) {
+            throw new IllegalArgumentException("invalid amount");
+        }
+    }
+
+    /**
+     * @return the amount with trailing zeros dropped, so 1000 minor units of USD is 10 rather than 10.00
+     */
+    public BigDecimal toAmount(long minorUnits) {
+        BigDecimal amount = BigDecimal.valueOf(minorUnits, scale).stripTrailingZeros();
+        return amount.scale() < 0 ? amount.setScale(0) : amount;
+    }
+
+    /**
+     * factor between the major and minor unit, e.g. 100 for a scale of 2
+     */
+    public long minorUnitsPerUnit() {
+        long factor = 1;
+        for (int i = 0; i < scale; i++) {
+            factor *= 10;
+        }
+        return factor;
+    }
+}
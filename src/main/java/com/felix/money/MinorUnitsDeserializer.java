@@ -0,0 +1,40 @@
+package com.felix.money;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.deser.std.StdDeserializer;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+
+/**
+ * reads a decimal amount of the default currency into minor units, e.g. 10.5 -> 1050
+ */
+public class MinorUnitsDeserializer extends StdDeserializer<Long> {
+
+    public MinorUnitsDeserializer() {
+        super(Long.class);
+    }
+
+    @Override
+    public Long deserialize(JsonParser p, DeserializationContext ctxt) throws IOException {
+        BigDecimal amount;
+        if (p.currentToken() == JsonToken.VALUE_STRING) {
+            try {
+                amount = new BigDecimal(p.getText().trim());
+            } catch (NumberFormatException e) {
+                return (Long) ctxt.handleWeirdStringValue(Long.class, p.getText(), "not a valid amount");
+            }
+        } else if (p.currentToken().isNumeric()) {
+            amount = p.getDecimalValue();
+        } else {
+            return (Long) ctxt.handleUnexpectedToken(Long.class, p);
+        }
+        try {
+            return CurrencyUnit.getDefault().toMinorUnits(amount);
+        } catch (IllegalArgumentException e) {
+            throw ctxt.weirdNumberException(amount, Long.class, "more decimal places than the currency allows");
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package com.felix.money;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+
+import java.io.IOException;
+
+/**
+ * writes a minor units field as a decimal amount of the default currency, e.g. 1050 -> 10.5
+ */
+public class MinorUnitsSerializer extends StdSerializer<Long> {
+
+    public MinorUnitsSerializer() {
+        super(Long.class);
+    }
+
+    @Override
+    public void serialize(Long value, JsonGenerator gen, SerializerProvider provider) throws IOException {
+        gen.writeNumber(CurrencyUnit.getDefault().toAmount(value));
+    }
+}
@@ -0,0 +1,82 @@
+package com.felix.provisioning;
+
+import com.felix.DbSchema;
+import com.felix.HikariCPDataSource;
+import com.felix.SqliteProfile;
+import com.felix.export.ExportFormat;
+import com.felix.money.CurrencyUnit;
+import com.felix.service.ShardedTransferService;
+import com.zaxxer.hikari.HikariDataSource;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Imports accounts from a file straight into the database files, with the server stopped, e.g.
+ * <pre>
+ * java -cp nvlproject-1.0-SNAPSHOT-jar-with-dependencies.jar com.felix.provisioning.AccountImportCli accounts.csv \
+ *     format=csv shards.count=4 money.currency=USD rowsPerTransaction=50000
+ * </pre>
+ * A file of - is read from standard input. The format defaults to the file's extension, db.file to sample.db and
+ * shards.count to 1, keep them as the server runs with.
+ */
+public class AccountImportCli {
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            System.err.println("usage: AccountImportCli <file or -> [format=csv|ndjson|json] [db.file=sample.db]"
+                    + " [shards.count=1] [money.currency=USD] [money.scale=2] [rowsPerTransaction=50000]");
+            System.exit(2);
+        }
+        String file = args[0];
+        Map<String, String> options = new HashMap<>();
+        for (int i = 1; i < args.length; i++) {
+            String[] option = args[i].split("=", 2);
+            if (option.length != 2) {
+                throw new IllegalArgumentException("not key=value: " + args[i]);
+            }
+            options.put(option[0], option[1]);
+        }
+        ExportFormat format = options.containsKey("format")
+                ? ExportFormat.fromParam(options.get("format"))
+                : ExportFormat.fromFilename(file);
+        String currencyCode = options.getOrDefault("money.currency", "USD");
+        CurrencyUnit currency = options.containsKey("money.scale")
+                ? CurrencyUnit.register(currencyCode, Integer.parseInt(options.get("money.scale")))
+                : CurrencyUnit.of(currencyCode);
+        CurrencyUnit.setDefault(currency);
+        String dbFilename = options.getOrDefault("db.file", "sample.db");
+        int shardCount = Integer.parseInt(options.getOrDefault("shards.count", "1"));
+        int rowsPerTransaction = Integer.parseInt(options.getOrDefault("rowsPerTransaction",
+                String.valueOf(AccountImporter.DEFAULT_ROWS_PER_TRANSACTION)));
+
+        List<HikariDataSource> writeDataSources = new ArrayList<>(shardCount);
+        try (InputStream in = file.equals("-") ? System.in : new BufferedInputStream(new FileInputStream(file))) {
+            for (int shard = 0; shard < shardCount; shard++) {
+                HikariDataSource writeDataSource = HikariCPDataSource.createWriterDataSource(
+                        ShardedTransferService.shardFilename(dbFilename, shard), SqliteProfile.defaults(),
+                        "sqlite-writer" + (shard == 0 ? "" : "-" + shard));
+                writeDataSources.add(writeDataSource);
+                DbSchema.setup(writeDataSource, currency);
+            }
+            AccountImporter importer = new AccountImporter(writeDataSources, currency, rowsPerTransaction,
+                    AccountImporter.IGNORE_IMPORTED);
+            ImportReport report = importer.importAccounts(in, format, progress -> System.err.printf(
+                    "%d accounts imported, %d skipped in %d ms%n",
+                    progress.accountsImported(), progress.accountsSkipped(), progress.durationMillis()));
+            System.err.printf("done, %d accounts imported, %d existed already, %d transactions, %d ms%n",
+                    report.accountsImported(), report.accountsSkipped(), report.transactions(), report.durationMillis());
+        } catch (InvalidRowException e) {
+            System.err.println(e.getMessage() + ", the rows before it are imported");
+            System.exit(1);
+        } finally {
+            for (HikariDataSource writeDataSource : writeDataSources) {
+                writeDataSource.close();
+            }
+        }
+    }
+}
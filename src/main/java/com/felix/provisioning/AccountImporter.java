@@ -0,0 +1,159 @@
+package com.felix.provisioning;
+
+import com.felix.dao.BalanceDAO;
+import com.felix.export.ExportFormat;
+import com.felix.model.AccountBalanceModel;
+import com.felix.money.CurrencyUnit;
+import com.felix.service.ShardedTransferService;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+
+/**
+ * Loads accounts from a stream in any {@link ExportFormat}, so an export of /export/balances imports as it is.
+ * Accounts are inserted by id, each into its shard, in multi-row statements and one transaction per rowsPerTransaction
+ * rows of a shard. At most that many rows per shard are held, however long the stream.
+ * <p>
+ * An imported balance is an opening balance, so an account that exists is skipped and keeps its balance, postings and
+ * audit checkpoint. The writer is taken once per transaction, so transfers interleave with a long import. An import
+ * that stops halfway keeps the transactions it committed, running it again skips what it imported.
+ */
+public class AccountImporter {
+    public static final int DEFAULT_ROWS_PER_TRANSACTION = 50_000;
+    // for callers that cache no balances and don't follow the progress
+    public static final IntConsumer IGNORE_IMPORTED = accountId -> { };
+    public static final Consumer<ImportReport> IGNORE_PROGRESS = progress -> { };
+
+    private final List<? extends DataSource> writeDataSources;
+    private final CurrencyUnit currency;
+    private final int rowsPerTransaction;
+    private final IntConsumer onImported;
+    // one import at a time, a second one would only wait for the writers
+    private final ReentrantLock running = new ReentrantLock();
+    private volatile ImportReport progress;
+
+    /**
+     * @param writeDataSources - the writer of every shard, in shard order
+     * @param onImported       - called with every account once its transaction committed, e.g. to drop it from a cache
+     */
+    public AccountImporter(List<? extends DataSource> writeDataSources, CurrencyUnit currency, int rowsPerTransaction,
+                           IntConsumer onImported) {
+        if (rowsPerTransaction <= 0) {
+            throw new IllegalArgumentException("invalid rows per transaction " + rowsPerTransaction);
+        }
+        this.writeDataSources = writeDataSources;
+        this.currency = currency;
+        this.rowsPerTransaction = rowsPerTransaction;
+        this.onImported = onImported;
+    }
+
+    /**
+     * @param listener - handed the progress after every commit
+     * @return the finished import, null if another one is running
+     * @throws InvalidRowException if a row can't be read, the rows before it are imported
+     */
+    public ImportReport importAccounts(InputStream in, ExportFormat format, Consumer<ImportReport> listener)
+            throws IOException, SQLException {
+        if (!running.tryLock()) {
+            return null;
+        }
+        try {
+            Import pass = new Import(listener);
+            try {
+                pass.run(in, format);
+            } catch (IOException | SQLException | RuntimeException e) {
+                progress = pass.report(true, e.getMessage());
+                throw e;
+            }
+            return progress;
+        } finally {
+            running.unlock();
+        }
+    }
+
+    /**
+     * @return the import running or the last one, null if there was none
+     */
+    public ImportReport getProgress() {
+        return progress;
+    }
+
+    private final class Import {
+        private final Consumer<ImportReport> listener;
+        private final long startedNanos = System.nanoTime();
+        private final List<List<AccountBalanceModel>> pending = new ArrayList<>(writeDataSources.size());
+        private long rowsRead;
+        private long accountsImported;
+        private long accountsSkipped;
+        private int transactions;
+
+        Import(Consumer<ImportReport> listener) {
+            this.listener = listener;
+            for (int shard = 0; shard < writeDataSources.size(); shard++) {
+                pending.add(new ArrayList<>());
+            }
+            progress = report(false, null);
+        }
+
+        void run(InputStream in, ExportFormat format) throws IOException, SQLException {
+            try (AccountRowReader reader = AccountRowReader.create(format, in, currency)) {
+                AccountBalanceModel account;
+                while ((account = reader.next()) != null) {
+                    rowsRead++;
+                    int shard = ShardedTransferService.shardOf(account.getAccountId(), writeDataSources.size());
+                    List<AccountBalanceModel> accounts = pending.get(shard);
+                    accounts.add(account);
+                    if (accounts.size() >= rowsPerTransaction) {
+                        commit(shard);
+                    }
+                }
+            }
+            for (int shard = 0; shard < pending.size(); shard++) {
+                if (!pending.get(shard).isEmpty()) {
+                    commit(shard);
+                }
+            }
+            progress = report(true, null);
+        }
+
+        private void commit(int shard) throws SQLException {
+            List<AccountBalanceModel> accounts = pending.get(shard);
+            int inserted;
+            try (Connection conn = writeDataSources.get(shard).getConnection()) {
+                conn.setAutoCommit(false);
+                try {
+                    inserted = new BalanceDAO(conn).insertAccounts(accounts);
+                    conn.commit();
+                } catch (SQLException | RuntimeException e) {
+                    conn.rollback();
+                    throw e;
+                } finally {
+                    conn.setAutoCommit(true);
+                }
+            }
+            for (AccountBalanceModel account : accounts) {
+                onImported.accept(account.getAccountId());
+            }
+            accountsImported += inserted;
+            accountsSkipped += accounts.size() - inserted;
+            transactions++;
+            // a fresh list rather than clear(), a full one would keep its grown array for the rest of the import
+            pending.set(shard, new ArrayList<>());
+            progress = report(false, null);
+            listener.accept(progress);
+        }
+
+        ImportReport report(boolean done, String error) {
+            return new ImportReport(done, rowsRead, accountsImported, accountsSkipped, transactions,
+                    (System.nanoTime() - startedNanos) / 1_000_000, error);
+        }
+    }
+}
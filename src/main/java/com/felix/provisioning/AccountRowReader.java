@@ -0,0 +1,195 @@
+package com.felix.provisioning;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.felix.export.ExportFormat;
+import com.felix.model.AccountBalanceModel;
+import com.felix.money.CurrencyUnit;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads accounts one at a time from the rows {@link com.felix.export.TableExporter} writes: accountId, userId and
+ * balance as an amount of the currency. Column names may also be snake case. Nothing but the current row is kept.
+ */
+abstract class AccountRowReader implements Closeable {
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    final CurrencyUnit currency;
+
+    AccountRowReader(CurrencyUnit currency) {
+        this.currency = currency;
+    }
+
+    static AccountRowReader create(ExportFormat format, InputStream in, CurrencyUnit currency) throws IOException {
+        return switch (format) {
+            // a JSON array reads the same as its rows one per line
+            case JSON, NDJSON -> new JsonRowReader(in, currency);
+            case CSV -> new CsvRowReader(in, currency);
+        };
+    }
+
+    /**
+     * @return null after the last row
+     * @throws InvalidRowException if the row can't be read, rows before it were returned
+     */
+    abstract AccountBalanceModel next() throws IOException;
+
+    AccountBalanceModel toAccount(long line, Integer accountId, Integer userId, BigDecimal balance) {
+        if (accountId == null || userId == null || balance == null) {
+            throw new InvalidRowException(line, "accountId, userId and balance are required");
+        }
+        if (accountId <= 0 || balance.signum() < 0) {
+            throw new InvalidRowException(line, "invalid account " + accountId + " or balance " + balance);
+        }
+        try {
+            return new AccountBalanceModel(accountId, userId, currency.toMinorUnits(balance));
+        } catch (IllegalArgumentException e) {
+            throw new InvalidRowException(line, "invalid balance " + balance);
+        }
+    }
+
+    static String column(String name) {
+        return name.trim().replace("_", "").toLowerCase();
+    }
+
+    private static final class JsonRowReader extends AccountRowReader {
+        private final JsonParser parser;
+
+        JsonRowReader(InputStream in, CurrencyUnit currency) throws IOException {
+            super(currency);
+            this.parser = JSON_FACTORY.createParser(in);
+        }
+
+        @Override
+        AccountBalanceModel next() throws IOException {
+            try {
+                JsonToken token = parser.nextToken();
+                while (token == JsonToken.START_ARRAY || token == JsonToken.END_ARRAY) {
+                    token = parser.nextToken();
+                }
+                if (token == null) {
+                    return null;
+                }
+                long line = parser.currentLocation().getLineNr();
+                if (token != JsonToken.START_OBJECT) {
+                    throw new InvalidRowException(line, "not an object");
+                }
+                Integer accountId = null;
+                Integer userId = null;
+                BigDecimal balance = null;
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String name = column(parser.currentName());
+                    JsonToken value = parser.nextToken();
+                    switch (name) {
+                        case "accountid" -> accountId = intValue(line);
+                        case "userid" -> userId = intValue(line);
+                        // a string keeps every digit of an amount a double can't hold
+                        case "balance" -> balance = value == JsonToken.VALUE_STRING
+                                ? new BigDecimal(parser.getText().trim())
+                                : parser.getDecimalValue();
+                        default -> parser.skipChildren();
+                    }
+                }
+                return toAccount(line, accountId, userId, balance);
+            } catch (JsonProcessingException | NumberFormatException e) {
+                throw new InvalidRowException(parser.currentLocation().getLineNr(), e.getMessage());
+            }
+        }
+
+        private int intValue(long line) throws IOException {
+            if (parser.currentToken() != JsonToken.VALUE_NUMBER_INT) {
+                throw new InvalidRowException(line, parser.currentName() + " is not an integer");
+            }
+            return parser.getIntValue();
+        }
+
+        @Override
+        public void close() throws IOException {
+            parser.close();
+        }
+    }
+
+    private static final class CsvRowReader extends AccountRowReader {
+        private final BufferedReader reader;
+        private final int accountIdIndex;
+        private final int userIdIndex;
+        private final int balanceIndex;
+        private final int columnCount;
+        private long line = 1;
+
+        CsvRowReader(InputStream in, CurrencyUnit currency) throws IOException {
+            super(currency);
+            this.reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            String header = reader.readLine();
+            if (header == null) {
+                throw new InvalidRowException(line, "no header");
+            }
+            String[] columns = header.split(",", -1);
+            int accountId = -1;
+            int userId = -1;
+            int balance = -1;
+            for (int i = 0; i < columns.length; i++) {
+                switch (column(unquote(columns[i]))) {
+                    case "accountid" -> accountId = i;
+                    case "userid" -> userId = i;
+                    case "balance" -> balance = i;
+                    default -> {
+                    }
+                }
+            }
+            if (accountId < 0 || userId < 0 || balance < 0) {
+                throw new InvalidRowException(line, "the header needs accountId, userId and balance");
+            }
+            this.accountIdIndex = accountId;
+            this.userIdIndex = userId;
+            this.balanceIndex = balance;
+            this.columnCount = columns.length;
+        }
+
+        @Override
+        AccountBalanceModel next() throws IOException {
+            String row;
+            do {
+                row = reader.readLine();
+                line++;
+                if (row == null) {
+                    return null;
+                }
+            } while (row.isBlank());
+            // the exported columns are numbers, so a comma never appears inside a field
+            String[] fields = row.split(",", -1);
+            if (fields.length != columnCount) {
+                throw new InvalidRowException(line, fields.length + " fields, the header has " + columnCount);
+            }
+            try {
+                return toAccount(line,
+                        Integer.valueOf(unquote(fields[accountIdIndex])),
+                        Integer.valueOf(unquote(fields[userIdIndex])),
+                        new BigDecimal(unquote(fields[balanceIndex])));
+            } catch (NumberFormatException e) {
+                throw new InvalidRowException(line, "not a number");
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+
+        private static String unquote(String field) {
+            String trimmed = field.trim();
+            return trimmed.length() >= 2 && trimmed.startsWith("\"") && trimmed.endsWith("\"")
+                    ? trimmed.substring(1, trimmed.length() - 1)
+                    : trimmed;
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package com.felix.provisioning;
+
+/**
+ * How far an account import got
+ *
+ * @param rowsRead         - rows parsed so far
+ * @param accountsImported - accounts inserted
+ * @param accountsSkipped  - rows whose account existed, they keep their balance, an account listed twice is skipped the
+ *                         second time
+ * @param transactions     - transactions committed across all shards
+ * @param error            - why the import stopped, null while running or once every row is in
+ */
+public record ImportReport(boolean done, long rowsRead, long accountsImported, long accountsSkipped,
+                           int transactions, long durationMillis, String error) {
+}
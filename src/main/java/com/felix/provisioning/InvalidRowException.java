@@ -0,0 +1,16 @@
+package com.felix.provisioning;
+
+import lombok.Getter;
+
+/**
+ * A row of an import that can't be read, the rows before it are imported
+ */
+@Getter
+public class InvalidRowException extends IllegalArgumentException {
+    private final long line;
+
+    public InvalidRowException(long line, String message) {
+        super("line " + line + ": " + message);
+        this.line = line;
+    }
+}
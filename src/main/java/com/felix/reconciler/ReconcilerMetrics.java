@@ -0,0 +1,76 @@
+package com.felix.reconciler;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of the withdrawal reconciler, time to finality is measured from the moment a withdrawal is tracked
+ * until its final state is committed.
+ */
+public class ReconcilerMetrics {
+    private final LongAdder polls = new LongAdder();
+    private final LongAdder pushes = new LongAdder();
+    private final LongAdder pollErrors = new LongAdder();
+    private final LongAdder writeErrors = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder finalised = new LongAdder();
+    private final LongAdder timeToFinalityTotalMillis = new LongAdder();
+    private final AtomicLong timeToFinalityMaxMillis = new AtomicLong();
+
+    void recordPoll(int withdrawals) {
+        polls.add(withdrawals);
+    }
+
+    void recordPush() {
+        pushes.increment();
+    }
+
+    void recordPollError() {
+        pollErrors.increment();
+    }
+
+    void recordWriteError() {
+        writeErrors.increment();
+    }
+
+    void recordBatch() {
+        batches.increment();
+    }
+
+    void recordFinalised(long timeToFinalityMillis) {
+        finalised.increment();
+        timeToFinalityTotalMillis.add(timeToFinalityMillis);
+        timeToFinalityMaxMillis.accumulateAndGet(timeToFinalityMillis, Math::max);
+    }
+
+    public long getFinalisedCount() {
+        return finalised.sum();
+    }
+
+    public long getAvgTimeToFinalityMillis() {
+        long count = finalised.sum();
+        return count == 0 ? 0 : timeToFinalityTotalMillis.sum() / count;
+    }
+
+    public long getMaxTimeToFinalityMillis() {
+        return timeToFinalityMaxMillis.get();
+    }
+
+    /**
+     * @param backlogSize - withdrawals tracked but not final yet
+     */
+    public Map<String, Object> snapshot(int backlogSize) {
+        return Map.of(
+                "backlog", backlogSize,
+                "polls", polls.sum(),
+                "pushes", pushes.sum(),
+                "pollErrors", pollErrors.sum(),
+                "writeErrors", writeErrors.sum(),
+                "batches", batches.sum(),
+                "finalised", finalised.sum(),
+                "avgTimeToFinalityMillis", getAvgTimeToFinalityMillis(),
+                "maxTimeToFinalityMillis", getMaxTimeToFinalityMillis()
+        );
+    }
+}
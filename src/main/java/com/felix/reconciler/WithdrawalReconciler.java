@@ -0,0 +1,321 @@
+package com.felix.reconciler;
+
+import com.felix.external.WithdrawalService;
+import com.felix.model.WithdrawalRequestModel;
+import com.felix.service.TransferService;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives pending withdrawals to their final state.
+ * <p>
+ * Every tracked withdrawal sits in a due-time queue. A bounded pool of workers takes withdrawals as they come due and
+ * asks the provider for their states in batches, a withdrawal still PROCESSING is put back with an exponentially
+ * growing delay. If the provider can push final states they short-cut the polling.
+ * Final states are handed to a single writer thread that writes them back to the database in batches, along with
+ * the next check time of rescheduled withdrawals so a restart picks up their schedule from next_check_at.
+ */
+public class WithdrawalReconciler implements AutoCloseable {
+    private final TransferService transferService;
+    private final WithdrawalService withdrawalService;
+    private final long initialDelayMillis;
+    private final long maxDelayMillis;
+    private final int batchSize;
+
+    private final DelayQueue<PendingWithdrawal> dueQueue = new DelayQueue<>();
+    // every withdrawal currently owned by the reconciler and its latest schedule, queue entries that are not the
+    // latest schedule any more are stale and skipped
+    private final Map<String, PendingWithdrawal> tracked = new ConcurrentHashMap<>();
+    // withdrawals whose final state is known and waiting for the writer, polled or pushed whichever came first
+    private final Set<String> finalising = ConcurrentHashMap.newKeySet();
+    private final BlockingQueue<FinalState> finalStates = new LinkedBlockingQueue<>();
+    // next check times not written yet, only the latest per withdrawal
+    private final Map<String, Long> nextChecks = new ConcurrentHashMap<>();
+    private final ReconcilerMetrics metrics = new ReconcilerMetrics();
+    private final List<Thread> workers = new ArrayList<>();
+    private final Thread writer;
+
+    private volatile boolean running = true;
+
+    /**
+     * @param workerCount        - number of concurrent provider lookups
+     * @param initialDelayMillis - first check after a withdrawal is tracked, doubled on every PROCESSING answer
+     * @param maxDelayMillis     - upper bound of the backoff
+     * @param batchSize          - max withdrawals looked up in one provider call and max final states written back
+     *                           in one transaction
+     */
+    public WithdrawalReconciler(
+            TransferService transferService,
+            WithdrawalService withdrawalService,
+            int workerCount,
+            long initialDelayMillis,
+            long maxDelayMillis,
+            int batchSize) {
+        this.transferService = transferService;
+        this.withdrawalService = withdrawalService;
+        this.initialDelayMillis = initialDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.batchSize = batchSize;
+        for (int i = 0; i < workerCount; i++) {
+            Thread worker = new Thread(this::pollLoop, "withdrawal-reconciler-" + i);
+            worker.setDaemon(true);
+            workers.add(worker);
+        }
+        this.writer = new Thread(this::writeLoop, "withdrawal-reconciler-writer");
+        this.writer.setDaemon(true);
+    }
+
+    public void start() throws SQLException {
+        withdrawalService.subscribe(this::onFinalState);
+        // withdrawals created before this process started, at the time they were due. Read page by page from the
+        // pending index, the final ones are never touched
+        long afterNextCheckAt = 0;
+        int afterId = 0;
+        while (true) {
+            List<WithdrawalRequestModel> page = transferService.getDueWithdrawalRequests(
+                    Long.MAX_VALUE, afterNextCheckAt, afterId, batchSize);
+            for (WithdrawalRequestModel withdrawal : page) {
+                track(withdrawal.getWithdrawalId(), withdrawal.getNextCheckAt());
+            }
+            if (page.size() < batchSize) {
+                break;
+            }
+            WithdrawalRequestModel last = page.get(page.size() - 1);
+            afterNextCheckAt = last.getNextCheckAt();
+            afterId = last.getId();
+        }
+        workers.forEach(Thread::start);
+        writer.start();
+    }
+
+    /**
+     * start reconciling a withdrawal, first check after the initial delay
+     */
+    public void track(String withdrawalId) {
+        track(withdrawalId, System.currentTimeMillis() + initialDelayMillis);
+    }
+
+    private void track(String withdrawalId, long dueAt) {
+        if (!running) {
+            return;
+        }
+        PendingWithdrawal pending = new PendingWithdrawal(withdrawalId, System.currentTimeMillis(), initialDelayMillis, dueAt);
+        if (tracked.putIfAbsent(withdrawalId, pending) == null) {
+            dueQueue.put(pending);
+        }
+    }
+
+    public ReconcilerMetrics getMetrics() {
+        return metrics;
+    }
+
+    public int getBacklogSize() {
+        return tracked.size();
+    }
+
+    private void pollLoop() {
+        List<PendingWithdrawal> due = new ArrayList<>(batchSize);
+        while (running) {
+            try {
+                PendingWithdrawal first = dueQueue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                due.add(first);
+                // only hands out entries that are already due
+                dueQueue.drainTo(due, batchSize - 1);
+                pollBatch(due);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                due.clear();
+            }
+        }
+    }
+
+    private void pollBatch(List<PendingWithdrawal> due) {
+        Map<WithdrawalService.WithdrawalId, PendingWithdrawal> byId = new LinkedHashMap<>();
+        for (PendingWithdrawal pending : due) {
+            if (tracked.get(pending.withdrawalId) == pending && !finalising.contains(pending.withdrawalId)) {
+                byId.put(new WithdrawalService.WithdrawalId(UUID.fromString(pending.withdrawalId)), pending);
+            }
+        }
+        if (byId.isEmpty()) {
+            return;
+        }
+        Map<WithdrawalService.WithdrawalId, WithdrawalService.WithdrawalState> states;
+        try {
+            states = withdrawalService.getRequestStates(byId.keySet());
+        } catch (RuntimeException e) {
+            metrics.recordPollError();
+            byId.values().forEach(this::reschedule);
+            return;
+        }
+        metrics.recordPoll(byId.size());
+        byId.forEach((id, pending) -> {
+            WithdrawalService.WithdrawalState state = states.get(id);
+            if (state == null) {
+                // the provider never saw it, e.g. the request transaction was rolled back
+                tracked.remove(pending.withdrawalId, pending);
+            } else if (state == WithdrawalService.WithdrawalState.PROCESSING) {
+                reschedule(pending);
+            } else {
+                finalise(pending, state);
+            }
+        });
+    }
+
+    private void onFinalState(WithdrawalService.WithdrawalId id, WithdrawalService.WithdrawalState state) {
+        if (!running || state == WithdrawalService.WithdrawalState.PROCESSING) {
+            return;
+        }
+        String withdrawalId = id.value().toString();
+        long now = System.currentTimeMillis();
+        // the push can beat track(), the write back skips withdrawals that are not pending
+        PendingWithdrawal pending = tracked.computeIfAbsent(
+                withdrawalId,
+                key -> new PendingWithdrawal(key, now, initialDelayMillis, now)
+        );
+        metrics.recordPush();
+        finalise(pending, state);
+    }
+
+    private void finalise(PendingWithdrawal pending, WithdrawalService.WithdrawalState state) {
+        if (finalising.add(pending.withdrawalId)) {
+            finalStates.add(new FinalState(pending, state));
+        }
+    }
+
+    private void reschedule(PendingWithdrawal pending) {
+        long delay = Math.min(pending.delayMillis * 2, maxDelayMillis);
+        // a little jitter so withdrawals created together don't stay in lockstep
+        long jitter = ThreadLocalRandom.current().nextLong(delay / 10 + 1);
+        PendingWithdrawal next = new PendingWithdrawal(
+                pending.withdrawalId,
+                pending.trackedAt,
+                delay,
+                System.currentTimeMillis() + delay + jitter
+        );
+        tracked.put(pending.withdrawalId, next);
+        dueQueue.put(next);
+        nextChecks.put(pending.withdrawalId, next.dueAt);
+    }
+
+    private void writeLoop() {
+        List<FinalState> batch = new ArrayList<>(batchSize);
+        while (running || !finalStates.isEmpty()) {
+            try {
+                FinalState first = finalStates.poll(100, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    finalStates.drainTo(batch, batchSize - 1);
+                    writeBatch(batch);
+                }
+                writeNextChecks();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void writeBatch(List<FinalState> batch) {
+        Map<String, WithdrawalService.WithdrawalState> states = new LinkedHashMap<>();
+        for (FinalState finalState : batch) {
+            states.put(finalState.pending.withdrawalId, finalState.state);
+        }
+        try {
+            transferService.applyWithdrawalFinalStates(states);
+        } catch (Exception e) {
+            // the provider's answer is final, so just write it again later
+            metrics.recordWriteError();
+            for (FinalState finalState : batch) {
+                finalising.remove(finalState.pending.withdrawalId);
+                reschedule(finalState.pending);
+            }
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (FinalState finalState : batch) {
+            tracked.remove(finalState.pending.withdrawalId);
+            finalising.remove(finalState.pending.withdrawalId);
+            metrics.recordFinalised(now - finalState.pending.trackedAt);
+        }
+        metrics.recordBatch();
+    }
+
+    private void writeNextChecks() {
+        if (nextChecks.isEmpty()) {
+            return;
+        }
+        Map<String, Long> batch = new LinkedHashMap<>();
+        for (String withdrawalId : nextChecks.keySet()) {
+            if (batch.size() == batchSize) {
+                break;
+            }
+            Long nextCheckAt = nextChecks.remove(withdrawalId);
+            if (nextCheckAt != null) {
+                batch.put(withdrawalId, nextCheckAt);
+            }
+        }
+        try {
+            transferService.saveWithdrawalNextChecks(batch);
+        } catch (SQLException e) {
+            // only matters after a restart, try again with the next batch unless rescheduled since
+            metrics.recordWriteError();
+            batch.forEach(nextChecks::putIfAbsent);
+        }
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        running = false;
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        writer.join();
+    }
+
+    private static final class PendingWithdrawal implements Delayed {
+        final String withdrawalId;
+        final long trackedAt;
+        final long delayMillis;
+        final long dueAt;
+
+        PendingWithdrawal(String withdrawalId, long trackedAt, long delayMillis, long dueAt) {
+            this.withdrawalId = withdrawalId;
+            this.trackedAt = trackedAt;
+            this.delayMillis = delayMillis;
+            this.dueAt = dueAt;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(dueAt - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(dueAt, ((PendingWithdrawal) other).dueAt);
+        }
+    }
+
+    private record FinalState(PendingWithdrawal pending, WithdrawalService.WithdrawalState state) {
+    }
+}
@@ -7,4 +7,15 @@ public class ErrorCode {
     public static final int CONNECTION_ERROR = 3;
     public static final int SYSTEM_ERROR = 4;
     public static final int RESOURCE_NOT_FOUND = 5;
+    public static final int SERVICE_BUSY = 6;
+    // not applied because another transfer of the same all-or-nothing batch failed
+    public static final int BATCH_ABORTED = 7;
+    // the Idempotency-Key was already used for a different request body
+    public static final int IDEMPOTENCY_KEY_REUSED = 8;
+    // a batch moves money between accounts of different shards, it can only be applied one transfer at a time
+    public static final int CROSS_SHARD_BATCH = 9;
+    // a row of an account import can't be read, the rows before it are imported
+    public static final int INVALID_IMPORT_ROW = 10;
+    // an earlier request with the same Idempotency-Key reached the ledger journal but is not settled yet, retry later
+    public static final int IDEMPOTENCY_KEY_PENDING = 11;
 }
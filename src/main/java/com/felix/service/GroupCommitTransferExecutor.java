@@ -0,0 +1,185 @@
+package com.felix.service;
+
+import com.felix.dao.BalanceDAO;
+import com.felix.dto.TransferRequest;
+import com.felix.exception.TransactionFailedException;
+import com.felix.idempotency.IdempotencyKey;
+import com.felix.metrics.Metrics;
+import com.felix.model.TransactionLogModel;
+import com.felix.model.TransferIntentStatusEnum;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Group commit mode for transfers.
+ * <p>
+ * Callers put their transfer into a bounded queue, a single writer thread drains up to maxBatchSize requests
+ * (or waits up to maxWaitMicros for more to arrive), applies them in one transaction and commits once.
+ * Every transfer runs inside its own savepoint so an insufficient balance only rolls back that transfer. The
+ * idempotency key of a transfer is stored in its savepoint, so it commits with the batch.
+ */
+public class GroupCommitTransferExecutor implements AutoCloseable {
+    private final DataSource dataSource;
+    private final TransferService transferService;
+    private final BlockingQueue<PendingTransfer> queue;
+    private final int maxBatchSize;
+    private final long maxWaitNanos;
+    private final Thread writer;
+
+    private volatile boolean running = true;
+
+    public GroupCommitTransferExecutor(
+            DataSource dataSource,
+            TransferService transferService,
+            int queueCapacity,
+            int maxBatchSize,
+            long maxWaitMicros) {
+        this.dataSource = dataSource;
+        this.transferService = transferService;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.maxBatchSize = maxBatchSize;
+        this.maxWaitNanos = TimeUnit.MICROSECONDS.toNanos(maxWaitMicros);
+        this.writer = new Thread(this::writeLoop, "transfer-group-commit");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    public CompletableFuture<Response<TransactionLogModel>> submit(TransferRequest transferRequest) {
+        return submit(transferRequest, null);
+    }
+
+    /**
+     * @param idempotencyKey - stored with the transfer when it commits, null for none
+     */
+    public CompletableFuture<Response<TransactionLogModel>> submit(TransferRequest transferRequest, IdempotencyKey idempotencyKey) {
+        transferService.validateTransferReq(transferRequest);
+        PendingTransfer pending = new PendingTransfer(transferRequest, idempotencyKey, new CompletableFuture<>());
+        if (!running || !queue.offer(pending)) {
+            pending.result.complete(Response.error(ErrorCode.SERVICE_BUSY, "transfer queue is full"));
+        }
+        return pending.result;
+    }
+
+    private void writeLoop() {
+        List<PendingTransfer> batch = new ArrayList<>(maxBatchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                PendingTransfer first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                collectBatch(batch);
+                long startedAt = Metrics.start();
+                commitBatch(batch);
+                Metrics.record(Metrics.GROUP_COMMIT, startedAt);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                running = false;
+            } catch (RuntimeException e) {
+                // never leave a caller hanging
+                completeAll(batch, Response.error(ErrorCode.SYSTEM_ERROR, "system error"));
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void collectBatch(List<PendingTransfer> batch) throws InterruptedException {
+        long deadline = System.nanoTime() + maxWaitNanos;
+        while (batch.size() < maxBatchSize) {
+            // take whatever is already queued before waiting for more
+            if (queue.drainTo(batch, maxBatchSize - batch.size()) > 0) {
+                continue;
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return;
+            }
+            PendingTransfer next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+            if (next == null) {
+                return;
+            }
+            batch.add(next);
+        }
+    }
+
+    private void commitBatch(List<PendingTransfer> batch) {
+        List<Response<TransactionLogModel>> results = new ArrayList<>(batch.size());
+        Connection conn = null;
+        try {
+            conn = dataSource.getConnection();
+            // start transaction
+            conn.setAutoCommit(false);
+            BalanceDAO balanceDAO = new BalanceDAO(conn);
+
+            for (PendingTransfer pending : batch) {
+                Savepoint savepoint = conn.setSavepoint();
+                try {
+                    TransactionLogModel log = transferService.applyTransfer(balanceDAO, pending.request);
+                    Response<TransactionLogModel> result = Response.success(log);
+                    if (pending.idempotencyKey != null) {
+                        pending.idempotencyKey.save(conn, result);
+                    }
+                    results.add(result);
+                } catch (TransactionFailedException e) {
+                    conn.rollback(savepoint);
+                    results.add(transferService.toErrorResponse(e));
+                } catch (SQLException e) {
+                    conn.rollback(savepoint);
+                    results.add(Response.error(ErrorCode.SYSTEM_ERROR, "system error"));
+                }
+                conn.releaseSavepoint(savepoint);
+            }
+
+            conn.commit();
+        } catch (SQLException e) {
+            transferService.tryRollback(conn);
+            completeAll(batch, Response.error(ErrorCode.SYSTEM_ERROR, "system error"));
+            return;
+        } finally {
+            transferService.tryCloseConn(conn);
+        }
+
+        // only tell the callers after the whole batch is durable
+        for (int i = 0; i < batch.size(); i++) {
+            if (results.get(i).isSuccessful()) {
+                TransferRequest request = batch.get(i).request;
+                transferService.invalidateBalances(request.getFromAccountId(), request.getToAccountId());
+                transferService.publishTransfer(results.get(i).getData().getId(), request, TransferIntentStatusEnum.COMMITTED);
+            }
+            batch.get(i).result.complete(results.get(i));
+        }
+    }
+
+    private void completeAll(List<PendingTransfer> batch, Response<TransactionLogModel> response) {
+        for (PendingTransfer pending : batch) {
+            pending.result.complete(response);
+        }
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        running = false;
+        writer.join();
+
+        // anything that raced with shutdown is rejected rather than left pending
+        PendingTransfer pending;
+        while ((pending = queue.poll()) != null) {
+            pending.result.complete(Response.error(ErrorCode.SERVICE_BUSY, "transfer queue is closed"));
+        }
+    }
+
+    private record PendingTransfer(TransferRequest request, IdempotencyKey idempotencyKey,
+                                   CompletableFuture<Response<TransactionLogModel>> result) {
+    }
+}
@@ -1,6 +1,5 @@
 package com.felix.service;
 
-
 import lombok.Getter;
 
 @Getter
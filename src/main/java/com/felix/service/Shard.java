@@ -0,0 +1,12 @@
+package com.felix.service;
+
+import javax.sql.DataSource;
+
+/**
+ * One database file of a sharded account space, see {@link ShardedTransferService}.
+ *
+ * @param writeDataSource - the shard's own single writer connection, writes to other shards never wait for it
+ * @param transferService - over the same pools, runs every transfer whose accounts both live here
+ */
+public record Shard(int index, DataSource writeDataSource, DataSource readDataSource, TransferService transferService) {
+}
@@ -0,0 +1,391 @@
+package com.felix.service;
+
+import com.felix.AccountHash;
+import com.felix.dao.BalanceDAO;
+import com.felix.dao.TransferIntentDAO;
+import com.felix.dto.RequestWithdrawalResponse;
+import com.felix.dto.TransferRequest;
+import com.felix.dto.WithdrawalRequest;
+import com.felix.dto.WithdrawalResponseDto;
+import com.felix.exception.TransactionFailedException;
+import com.felix.idempotency.IdempotencyKey;
+import com.felix.metrics.Metrics;
+import com.felix.model.TransactionLogModel;
+import com.felix.model.TransactionLogType;
+import com.felix.model.TransferIntentModel;
+import com.felix.model.TransferIntentStatusEnum;
+import com.felix.model.WithdrawalRequestStatusEnum;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Accounts hash-partitioned across database files, each with its own writer connection, so transfers on different
+ * shards commit in parallel instead of queueing on one SQLite write lock.
+ * <p>
+ * A transfer whose accounts live on one shard is handed to that shard's {@link TransferService}. A transfer across
+ * shards runs in two phases with the source shard as coordinator: the debit commits together with a PREPARED intent
+ * in transfer_intents, then the credit commits on the destination shard together with its outcome under the same
+ * intent id, and finally the intent is marked COMMITTED, or ABORTED with the sender refunded when the recipient could
+ * not be credited. A crash between the phases leaves the intent PREPARED, {@link #recover()} replays the remaining
+ * phases and the destination's record keeps a replayed credit from being applied twice. An idempotency key commits
+ * with the debit on the source shard.
+ * <p>
+ * The shard of an account only depends on the number of shards, so that number is fixed for a set of files.
+ */
+public class ShardedTransferService implements AutoCloseable {
+    // prepared intents finished per read during recovery
+    private static final int RECOVERY_BATCH_SIZE = 500;
+
+    private final List<Shard> shards;
+    private final ScheduledExecutorService recoverer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "shard-recovery");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param shards - in index order, a single shard routes everything to its TransferService
+     */
+    public ShardedTransferService(List<Shard> shards) {
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("no shards");
+        }
+        for (int i = 0; i < shards.size(); i++) {
+            if (shards.get(i).index() != i) {
+                throw new IllegalArgumentException("shard " + shards.get(i).index() + " at position " + i);
+            }
+        }
+        this.shards = List.copyOf(shards);
+    }
+
+    /**
+     * @return the file of a shard, shard 0 keeps the filename so a single shard is the unsharded database,
+     * e.g. sample.db, sample-1.db, sample-2.db
+     */
+    public static String shardFilename(String filename, int index) {
+        if (index == 0) {
+            return filename;
+        }
+        int extension = filename.lastIndexOf('.');
+        return extension < 0
+                ? filename + "-" + index
+                : filename.substring(0, extension) + "-" + index + filename.substring(extension);
+    }
+
+    public static int shardOf(int accountId, int shardCount) {
+        return AccountHash.bucketOf(accountId, shardCount);
+    }
+
+    public List<Shard> getShards() {
+        return shards;
+    }
+
+    public Shard getShard(int accountId) {
+        return shards.get(shardOf(accountId, shards.size()));
+    }
+
+    /**
+     * finish intents whose credit failed while running, e.g. on a busy destination
+     */
+    public void start(long recoveryIntervalMillis) {
+        recoverer.scheduleWithFixedDelay(() -> {
+            try {
+                recover();
+            } catch (SQLException e) {
+                // will be retried on the next run
+                e.printStackTrace();
+            }
+        }, recoveryIntervalMillis, recoveryIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public Response<TransactionLogModel> transfer(TransferRequest transferRequest) {
+        return transfer(transferRequest, null);
+    }
+
+    /**
+     * @param idempotencyKey - stored with the transfer on the shard of the sender, null for none
+     */
+    public Response<TransactionLogModel> transfer(TransferRequest transferRequest, IdempotencyKey idempotencyKey) {
+        Shard source = getShard(transferRequest.getFromAccountId());
+        Shard destination = getShard(transferRequest.getToAccountId());
+        if (source == destination) {
+            return source.transferService().transfer(transferRequest, idempotencyKey);
+        }
+        long startedAt = Metrics.start();
+        try {
+            return transferAcrossShards(source, destination, transferRequest, idempotencyKey);
+        } finally {
+            Metrics.record(Metrics.CROSS_SHARD_TRANSFER, startedAt);
+        }
+    }
+
+    /**
+     * all-or-nothing only holds within one database, so a batch has to stay on one shard
+     */
+    public Response<List<Response<TransactionLogModel>>> transferBatch(List<TransferRequest> transferRequests, boolean bestEffort) {
+        if (transferRequests == null || transferRequests.isEmpty()) {
+            return shards.get(0).transferService().transferBatch(transferRequests, bestEffort);
+        }
+        Shard shard = getShard(transferRequests.get(0).getFromAccountId());
+        for (TransferRequest transferRequest : transferRequests) {
+            if (getShard(transferRequest.getFromAccountId()) != shard || getShard(transferRequest.getToAccountId()) != shard) {
+                return Response.error(ErrorCode.CROSS_SHARD_BATCH, "batch spans shards");
+            }
+        }
+        return shard.transferService().transferBatch(transferRequests, bestEffort);
+    }
+
+    /**
+     * the withdrawal is stored on the shard of the account it debits
+     */
+    public Response<RequestWithdrawalResponse> requestWithdrawal(WithdrawalRequest withdrawalRequest) {
+        return requestWithdrawal(withdrawalRequest, null);
+    }
+
+    public Response<RequestWithdrawalResponse> requestWithdrawal(WithdrawalRequest withdrawalRequest, IdempotencyKey idempotencyKey) {
+        return getShard(withdrawalRequest.getFromAccountId()).transferService().requestWithdrawal(withdrawalRequest, idempotencyKey);
+    }
+
+    /**
+     * withdrawal ids don't say which shard they are on, the shards are asked in turn
+     */
+    public Response<WithdrawalResponseDto> getWithdrawalRequest(String withdrawalId) {
+        Response<WithdrawalResponseDto> result = null;
+        for (Shard shard : shards) {
+            result = shard.transferService().getWithdrawalRequest(withdrawalId);
+            if (result.getErrorCode() != ErrorCode.RESOURCE_NOT_FOUND) {
+                return result;
+            }
+        }
+        return result;
+    }
+
+    public Response<Long> getBalance(int accountId) {
+        return getShard(accountId).transferService().getBalance(accountId);
+    }
+
+    public long countWithdrawalRequests(WithdrawalRequestStatusEnum status) throws SQLException {
+        long count = 0;
+        for (Shard shard : shards) {
+            count += shard.transferService().countWithdrawalRequests(status);
+        }
+        return count;
+    }
+
+    /**
+     * @return cross-shard transfers debited and not yet known to be credited
+     */
+    public long countPreparedIntents() throws SQLException {
+        long count = 0;
+        for (Shard shard : shards) {
+            try (Connection conn = shard.readDataSource().getConnection()) {
+                count += new TransferIntentDAO(conn).countPreparedIntents();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * finish every prepared intent, call once before serving transfers to recover from a crash. Safe to run while
+     * transfers are in flight
+     *
+     * @return the number of intents finished
+     */
+    public int recover() throws SQLException {
+        int finished = 0;
+        for (Shard shard : shards) {
+            List<TransferIntentModel> intents;
+            do {
+                try (Connection conn = shard.readDataSource().getConnection()) {
+                    intents = new TransferIntentDAO(conn).getPreparedIntents(RECOVERY_BATCH_SIZE);
+                }
+                for (TransferIntentModel intent : intents) {
+                    complete(intent, null);
+                    finished++;
+                }
+            } while (intents.size() == RECOVERY_BATCH_SIZE);
+        }
+        return finished;
+    }
+
+    private Response<TransactionLogModel> transferAcrossShards(Shard source, Shard destination, TransferRequest transferRequest,
+                                                               IdempotencyKey idempotencyKey) {
+        TransferService sourceService = source.transferService();
+        sourceService.validateTransferReq(transferRequest);
+        // a recipient that doesn't exist fails before the sender is debited
+        Response<Long> recipient = destination.transferService().getBalance(transferRequest.getToAccountId());
+        if (!recipient.isSuccessful()) {
+            return Response.error(recipient.getErrorCode(), recipient.getErrorMessage());
+        }
+
+        TransferIntentModel intent = TransferIntentModel.builder()
+                .intentId(UUID.randomUUID().toString())
+                .role(TransferIntentModel.ROLE_SOURCE)
+                .fromAccountId(transferRequest.getFromAccountId())
+                .toAccountId(transferRequest.getToAccountId())
+                .amount(transferRequest.getAmount())
+                .status(TransferIntentStatusEnum.PREPARED.getCode())
+                .build();
+        TransactionLogModel transactionLogModel;
+        Connection conn = null;
+        try {
+            conn = source.writeDataSource().getConnection();
+            // start transaction
+            conn.setAutoCommit(false);
+            BalanceDAO balanceDAO = new BalanceDAO(conn);
+
+            balanceDAO.subtractFromFromAccount(intent.getFromAccountId(), intent.getAmount());
+            transactionLogModel = balanceDAO.insertTransactionLog(sourceService.buildTransferLog(transferRequest));
+            balanceDAO.insertPosting(transactionLogModel.getId(), intent.getFromAccountId(), intent.getToAccountId(),
+                    -intent.getAmount(), TransactionLogType.TRANSER);
+            intent.setTransactionLogId(transactionLogModel.getId());
+            new TransferIntentDAO(conn).insertIntent(intent);
+            if (idempotencyKey != null) {
+                idempotencyKey.save(conn, Response.success(transactionLogModel));
+            }
+
+            conn.commit();
+            sourceService.invalidateBalances(intent.getFromAccountId());
+            sourceService.publishTransfer(intent.getTransactionLogId(), transferRequest, TransferIntentStatusEnum.PREPARED);
+        } catch (TransactionFailedException e) {
+            sourceService.tryRollback(conn);
+            return sourceService.toErrorResponse(e);
+        } catch (SQLException e) {
+            sourceService.tryRollback(conn);
+            return Response.error(ErrorCode.SYSTEM_ERROR, "system error");
+        } finally {
+            sourceService.tryCloseConn(conn);
+        }
+
+        try {
+            if (complete(intent, idempotencyKey) == TransferIntentStatusEnum.ABORTED) {
+                return Response.error(ErrorCode.ACCOUNT_NOT_FOUND);
+            }
+        } catch (SQLException e) {
+            // the debit and its intent are committed, recovery finishes the credit
+        }
+        return Response.success(transactionLogModel);
+    }
+
+    /**
+     * apply the credit of a prepared intent if it wasn't yet and settle the intent on the source shard
+     *
+     * @param idempotencyKey - saved with the debit, its response is replaced in the refund of an aborted intent.
+     *                       Null during recovery, which keeps the response of the debit
+     */
+    private TransferIntentStatusEnum complete(TransferIntentModel intent, IdempotencyKey idempotencyKey) throws SQLException {
+        TransferIntentStatusEnum outcome = applyCredit(getShard(intent.getToAccountId()), intent);
+        settle(getShard(intent.getFromAccountId()), intent, outcome, idempotencyKey);
+        return outcome;
+    }
+
+    /**
+     * @return the outcome recorded on the destination shard, by this call or an earlier one
+     */
+    private TransferIntentStatusEnum applyCredit(Shard destination, TransferIntentModel intent) throws SQLException {
+        TransferService destinationService = destination.transferService();
+        TransferIntentStatusEnum outcome;
+        Connection conn = null;
+        try {
+            conn = destination.writeDataSource().getConnection();
+            conn.setAutoCommit(false);
+            TransferIntentDAO transferIntentDAO = new TransferIntentDAO(conn);
+
+            // the shard's single writer connection serializes this check with any other attempt
+            TransferIntentModel recorded = transferIntentDAO.getIntent(intent.getIntentId());
+            if (recorded != null) {
+                conn.rollback();
+                return TransferIntentStatusEnum.fromCode(recorded.getStatus());
+            }
+            BalanceDAO balanceDAO = new BalanceDAO(conn);
+            try {
+                balanceDAO.addToToAccount(intent.getToAccountId(), intent.getAmount());
+                // the transfer id of both postings is the sender's transaction log on the source shard
+                balanceDAO.insertPosting(intent.getTransactionLogId(), intent.getToAccountId(), intent.getFromAccountId(),
+                        intent.getAmount(), TransactionLogType.TRANSER);
+                outcome = TransferIntentStatusEnum.COMMITTED;
+            } catch (TransactionFailedException e) {
+                // the recipient is gone, the update changed nothing
+                outcome = TransferIntentStatusEnum.ABORTED;
+            }
+            transferIntentDAO.insertIntent(TransferIntentModel.builder()
+                    .intentId(intent.getIntentId())
+                    .role(TransferIntentModel.ROLE_DESTINATION)
+                    .fromAccountId(intent.getFromAccountId())
+                    .toAccountId(intent.getToAccountId())
+                    .amount(intent.getAmount())
+                    .transactionLogId(intent.getTransactionLogId())
+                    .status(outcome.getCode())
+                    .build());
+
+            conn.commit();
+        } catch (SQLException e) {
+            destinationService.tryRollback(conn);
+            throw e;
+        } finally {
+            destinationService.tryCloseConn(conn);
+        }
+        if (outcome == TransferIntentStatusEnum.COMMITTED) {
+            destinationService.invalidateBalances(intent.getToAccountId());
+            destinationService.publishTransfer(intent.getTransactionLogId(), intent.getFromAccountId(),
+                    intent.getToAccountId(), intent.getAmount(), outcome);
+        }
+        return outcome;
+    }
+
+    /**
+     * move the source intent out of PREPARED, refunding the sender of an aborted one. Only the first caller moves it,
+     * so a refund is paid once
+     */
+    private void settle(Shard source, TransferIntentModel intent, TransferIntentStatusEnum outcome,
+                        IdempotencyKey idempotencyKey) throws SQLException {
+        TransferService sourceService = source.transferService();
+        boolean refunded = false;
+        Connection conn = null;
+        try {
+            conn = source.writeDataSource().getConnection();
+            conn.setAutoCommit(false);
+            TransferIntentDAO transferIntentDAO = new TransferIntentDAO(conn);
+
+            boolean settled = transferIntentDAO.setStatus(intent.getIntentId(),
+                    TransferIntentStatusEnum.PREPARED.getCode(), outcome.getCode());
+            if (settled && outcome == TransferIntentStatusEnum.ABORTED) {
+                BalanceDAO balanceDAO = new BalanceDAO(conn);
+                balanceDAO.addToToAccount(intent.getFromAccountId(), intent.getAmount());
+                balanceDAO.insertPosting(intent.getTransactionLogId(), intent.getFromAccountId(), intent.getToAccountId(),
+                        intent.getAmount(), TransactionLogType.TRANSER);
+                if (idempotencyKey != null) {
+                    idempotencyKey.replace(conn, Response.error(ErrorCode.ACCOUNT_NOT_FOUND));
+                }
+                refunded = true;
+            }
+
+            conn.commit();
+        } catch (SQLException e) {
+            sourceService.tryRollback(conn);
+            throw e;
+        } catch (TransactionFailedException e) {
+            sourceService.tryRollback(conn);
+            throw new SQLException("failed to refund transfer", e);
+        } finally {
+            sourceService.tryCloseConn(conn);
+        }
+        if (refunded) {
+            sourceService.invalidateBalances(intent.getFromAccountId());
+            sourceService.publishTransfer(intent.getTransactionLogId(), intent.getFromAccountId(),
+                    intent.getToAccountId(), intent.getAmount(), outcome);
+        }
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        recoverer.shutdown();
+        recoverer.awaitTermination(5, TimeUnit.SECONDS);
+    }
+}
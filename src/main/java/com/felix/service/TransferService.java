@@ -1,78 +1,314 @@
 package com.felix.service;
 
+import com.felix.cache.BalanceCache;
 import com.felix.dao.BalanceDAO;
+import com.felix.dao.IdempotencyKeyDAO;
 import com.felix.dao.WithdrawalRequestDAO;
 import com.felix.dto.RequestWithdrawalResponse;
 import com.felix.dto.TransferRequest;
 import com.felix.dto.WithdrawalRequest;
 import com.felix.dto.WithdrawalResponseDto;
+import com.felix.events.ChangeFeed;
+import com.felix.exception.TransactionFailedErrorCode;
 import com.felix.exception.TransactionFailedException;
 import com.felix.external.WithdrawalService;
+import com.felix.idempotency.IdempotencyKey;
+import com.felix.ledger.BalanceLedger;
+import com.felix.metrics.Metrics;
 import com.felix.model.TransactionLogModel;
 import com.felix.model.TransactionLogType;
+import com.felix.model.TransferIntentStatusEnum;
 import com.felix.model.WithdrawalRequestModel;
 import com.felix.model.WithdrawalRequestStatusEnum;
 
 import javax.sql.DataSource;
-import java.math.BigDecimal;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.UUID;
 
 public class TransferService {
+    public static final int MAX_TRANSFER_BATCH_SIZE = 1000;
+
     private final DataSource dataSource;
+    // queries that only read, the writer pool when there is no separate reader pool
+    private final DataSource readDataSource;
     private final WithdrawalService withdrawalService;
+    // when set, balances are owned by the in-memory ledger instead of account_balances
+    private final BalanceLedger ledger;
+    // balances read through /balances/{accountId}, null when they are always read from the database
+    private final BalanceCache balanceCache;
+    // status changes for the open event streams, null when nobody streams them
+    private final ChangeFeed changeFeed;
 
     public TransferService(
             DataSource dataSource,
             WithdrawalService withdrawalService) {
-        this.dataSource = dataSource;
+        this(dataSource, withdrawalService, null);
+    }
+
+    public TransferService(
+            DataSource dataSource,
+            WithdrawalService withdrawalService,
+            BalanceLedger ledger) {
+        this(dataSource, dataSource, withdrawalService, ledger);
+    }
+
+    /**
+     * @param writeDataSource - every transaction goes here
+     * @param readDataSource  - lookups that don't change anything, may serve a snapshot a few commits behind
+     *                        the writer but never one older than the caller's own committed writes
+     */
+    public TransferService(
+            DataSource writeDataSource,
+            DataSource readDataSource,
+            WithdrawalService withdrawalService,
+            BalanceLedger ledger) {
+        this(writeDataSource, readDataSource, withdrawalService, ledger, null);
+    }
+
+    /**
+     * @param balanceCache - invalidated after every commit that changes a balance
+     */
+    public TransferService(
+            DataSource writeDataSource,
+            DataSource readDataSource,
+            WithdrawalService withdrawalService,
+            BalanceLedger ledger,
+            BalanceCache balanceCache) {
+        this(writeDataSource, readDataSource, withdrawalService, ledger, balanceCache, null);
+    }
+
+    /**
+     * @param changeFeed - told about every committed transfer and withdrawal status
+     */
+    public TransferService(
+            DataSource writeDataSource,
+            DataSource readDataSource,
+            WithdrawalService withdrawalService,
+            BalanceLedger ledger,
+            BalanceCache balanceCache,
+            ChangeFeed changeFeed) {
+        this.dataSource = writeDataSource;
+        this.readDataSource = readDataSource;
         this.withdrawalService = withdrawalService;
+        this.ledger = ledger;
+        this.balanceCache = balanceCache;
+        this.changeFeed = changeFeed;
     }
 
     public Response<TransactionLogModel> transfer(TransferRequest transferRequest) {
+        return transfer(transferRequest, null);
+    }
+
+    /**
+     * @param idempotencyKey - stored with the transfer when it commits, null for none
+     */
+    public Response<TransactionLogModel> transfer(TransferRequest transferRequest, IdempotencyKey idempotencyKey) {
+        long startedAt = Metrics.start();
+        try {
+            return doTransfer(transferRequest, idempotencyKey);
+        } finally {
+            Metrics.record(Metrics.TRANSFER, startedAt);
+        }
+    }
+
+    private Response<TransactionLogModel> doTransfer(TransferRequest transferRequest, IdempotencyKey idempotencyKey) {
         validateTransferReq(transferRequest);
+        if (ledger != null) {
+            return transferOnLedger(transferRequest, idempotencyKey);
+        }
         Connection conn = null;
         try {
             conn = getDbConnection();
             // start transaction
             conn.setAutoCommit(false);
 
+            TransactionLogModel transactionLogModel = applyTransfer(new BalanceDAO(conn), transferRequest);
+            Response<TransactionLogModel> result = Response.success(transactionLogModel);
+            if (idempotencyKey != null) {
+                idempotencyKey.save(conn, result);
+            }
+
+            conn.commit();
+            invalidateBalances(transferRequest.getFromAccountId(), transferRequest.getToAccountId());
+            publishTransfer(transactionLogModel.getId(), transferRequest, TransferIntentStatusEnum.COMMITTED);
+            return result;
+        } catch (TransactionFailedException e) {
+            tryRollback(conn);
+            return toErrorResponse(e);
+        } catch (SQLException e) {
+            tryRollback(conn);
+        } finally {
+            tryCloseConn(conn);
+        }
+        return Response.error(ErrorCode.SYSTEM_ERROR, "system error");
+    }
+
+    /**
+     * move the money and write the transaction log using the given dao, the caller owns the transaction
+     */
+    TransactionLogModel applyTransfer(BalanceDAO balanceDAO, TransferRequest transferRequest) throws TransactionFailedException, SQLException {
+        int fromAccountId = transferRequest.getFromAccountId();
+        int toAccountId = transferRequest.getToAccountId();
+        long amount = transferRequest.getAmount();
+
+        // to avoid deadlocks, we will always lock the account with the lower id first
+        if (fromAccountId > toAccountId) {
+            balanceDAO.addToToAccount(toAccountId, amount);
+            balanceDAO.subtractFromFromAccount(fromAccountId, amount);
+        } else {
+            balanceDAO.subtractFromFromAccount(fromAccountId, amount);
+            balanceDAO.addToToAccount(toAccountId, amount);
+        }
+
+        // insert into transaction log, the postings share its id
+        TransactionLogModel transactionLogModel = balanceDAO.insertTransactionLog(buildTransferLog(transferRequest));
+        balanceDAO.insertTransferPostings(transactionLogModel.getId(), fromAccountId, toAccountId, amount, transactionLogModel.getType());
+        return transactionLogModel;
+    }
+
+    /**
+     * an idempotency key is reserved as pending before the transfer is journaled with its rowid, the checkpoint that
+     * writes the journal entry to the database settles the key, see {@link IdempotencyKey#reserve}
+     */
+    private Response<TransactionLogModel> transferOnLedger(TransferRequest transferRequest, IdempotencyKey idempotencyKey) {
+        long reservation = 0;
+        if (idempotencyKey != null) {
+            try {
+                reservation = reserve(idempotencyKey, null);
+            } catch (SQLException e) {
+                return Response.error(ErrorCode.SYSTEM_ERROR, "system error");
+            }
+            if (reservation == 0) {
+                return Response.error(ErrorCode.IDEMPOTENCY_KEY_PENDING, "an earlier request with this key is not settled yet");
+            }
+        }
+        try {
+            long seq = ledger.transfer(
+                    transferRequest.getFromAccountId(),
+                    transferRequest.getToAccountId(),
+                    transferRequest.getAmount(),
+                    reservation
+            );
+            if (idempotencyKey != null) {
+                idempotencyKey.markStored();
+            }
+            // the transaction log row is written by the checkpointer using the journal seq as id
+            TransactionLogModel transactionLogModel = buildTransferLog(transferRequest);
+            transactionLogModel.setId(seq);
+            publishTransfer(seq, transferRequest, TransferIntentStatusEnum.COMMITTED);
+            return Response.success(transactionLogModel);
+        } catch (TransactionFailedException e) {
+            // a failed journal write may still have reached the disk, then the key stays pending until recovery
+            if (reservation != 0 && e.getErrorCode() != TransactionFailedErrorCode.SYSTEM_ERROR) {
+                tryDeleteReservation(reservation);
+            }
+            return toErrorResponse(e);
+        }
+    }
+
+    public Response<List<Response<TransactionLogModel>>> transferBatch(List<TransferRequest> transferRequests) {
+        return transferBatch(transferRequests, false);
+    }
+
+    /**
+     * apply many transfers in one transaction, each account row is updated once with its net change and the
+     * transaction logs are written with multi-row inserts
+     *
+     * @param bestEffort - apply the transfers that can be applied, otherwise a failing transfer rejects the whole
+     *                   batch and the others are reported as {@link ErrorCode#BATCH_ABORTED}
+     * @return a result per transfer, in order
+     */
+    public Response<List<Response<TransactionLogModel>>> transferBatch(List<TransferRequest> transferRequests, boolean bestEffort) {
+        long startedAt = Metrics.start();
+        try {
+            return doTransferBatch(transferRequests, bestEffort);
+        } finally {
+            Metrics.record(Metrics.TRANSFER_BATCH, startedAt);
+        }
+    }
+
+    private Response<List<Response<TransactionLogModel>>> doTransferBatch(List<TransferRequest> transferRequests, boolean bestEffort) {
+        validateTransferBatchReq(transferRequests);
+        if (ledger != null) {
+            return transferBatchOnLedger(transferRequests, bestEffort);
+        }
+        Connection conn = null;
+        try {
+            conn = getDbConnection();
+            // start transaction
+            conn.setAutoCommit(false);
             BalanceDAO balanceDAO = new BalanceDAO(conn);
-            int fromAccountId = transferRequest.getFromAccountId();
-            int toAccountId = transferRequest.getToAccountId();
-            BigDecimal amount = transferRequest.getAmount();
-
-            // to avoid deadlocks, we will always lock the account with the lower id first
-            if (fromAccountId > toAccountId) {
-                balanceDAO.addToToAccount(toAccountId, amount);
-                balanceDAO.subtractFromFromAccount(fromAccountId, amount);
-            } else {
-                balanceDAO.subtractFromFromAccount(fromAccountId, amount);
-                balanceDAO.addToToAccount(toAccountId, amount);
+
+            // to avoid deadlocks, the accounts are read and updated by ascending id, same as transfer
+            TreeSet<Integer> accountIds = new TreeSet<>();
+            for (TransferRequest transferRequest : transferRequests) {
+                accountIds.add(transferRequest.getFromAccountId());
+                accountIds.add(transferRequest.getToAccountId());
+            }
+            Map<Integer, Long> balances = balanceDAO.getAccountBalances(accountIds);
+
+            List<Response<TransactionLogModel>> results = new ArrayList<>(transferRequests.size());
+            List<TransferRequest> accepted = new ArrayList<>(transferRequests.size());
+            List<TransactionLogModel> transactionLogs = new ArrayList<>(transferRequests.size());
+            TreeMap<Integer, Long> deltas = new TreeMap<>();
+            boolean failed = false;
+            for (TransferRequest transferRequest : transferRequests) {
+                int fromAccountId = transferRequest.getFromAccountId();
+                int toAccountId = transferRequest.getToAccountId();
+                long amount = transferRequest.getAmount();
+                if (!balances.containsKey(fromAccountId) || !balances.containsKey(toAccountId)) {
+                    results.add(Response.error(ErrorCode.ACCOUNT_NOT_FOUND));
+                    failed = true;
+                    continue;
+                }
+                if (balances.get(fromAccountId) < amount) {
+                    results.add(Response.error(ErrorCode.INSUFFICIENT_BALANCE));
+                    failed = true;
+                    continue;
+                }
+                balances.merge(fromAccountId, -amount, Long::sum);
+                balances.merge(toAccountId, amount, Long::sum);
+                deltas.merge(fromAccountId, -amount, Long::sum);
+                deltas.merge(toAccountId, amount, Long::sum);
+                TransactionLogModel transactionLogModel = buildTransferLog(transferRequest);
+                accepted.add(transferRequest);
+                transactionLogs.add(transactionLogModel);
+                results.add(Response.success(transactionLogModel));
+            }
+            if (failed && !bestEffort) {
+                tryRollback(conn);
+                return abortBatch(results);
             }
 
-            // insert into transaction log
-            TransactionLogModel transactionLogModel = TransactionLogModel.builder()
-                    .accountId(fromAccountId)
-                    .amount(amount)
-                    .type(TransactionLogType.TRANSER)
-                    .details("transfer to account " + toAccountId)
-                    .build();
-            balanceDAO.insertTransactionLog(transactionLogModel);
+            for (Map.Entry<Integer, Long> delta : deltas.entrySet()) {
+                if (delta.getValue() != 0) {
+                    balanceDAO.applyBalanceDelta(delta.getKey(), delta.getValue());
+                }
+            }
+            balanceDAO.insertTransactionLogs(transactionLogs);
+            for (int i = 0; i < accepted.size(); i++) {
+                TransferRequest transferRequest = accepted.get(i);
+                balanceDAO.insertTransferPostings(transactionLogs.get(i).getId(), transferRequest.getFromAccountId(),
+                        transferRequest.getToAccountId(), transferRequest.getAmount(), TransactionLogType.TRANSER);
+            }
 
             conn.commit();
-            return Response.success(transactionLogModel);
+            deltas.keySet().forEach(this::invalidateBalances);
+            for (int i = 0; i < accepted.size(); i++) {
+                publishTransfer(transactionLogs.get(i).getId(), accepted.get(i), TransferIntentStatusEnum.COMMITTED);
+            }
+            return Response.success(results);
         } catch (TransactionFailedException e) {
+            // a balance changed under the batch, nothing was applied
             tryRollback(conn);
-            switch (e.getErrorCode()) {
-                case INSUFFICIENT_BALANCE:
-                    return Response.error(ErrorCode.INSUFFICIENT_BALANCE);
-                case ACCOUNT_NOT_FOUND:
-                    return Response.error(ErrorCode.ACCOUNT_NOT_FOUND);
-            }
+            return toErrorResponse(e);
         } catch (SQLException e) {
             tryRollback(conn);
         } finally {
@@ -81,10 +317,101 @@ public class TransferService {
         return Response.error(ErrorCode.SYSTEM_ERROR, "system error");
     }
 
+    private Response<List<Response<TransactionLogModel>>> transferBatchOnLedger(List<TransferRequest> transferRequests, boolean bestEffort) {
+        List<BalanceLedger.Transfer> transfers = new ArrayList<>(transferRequests.size());
+        for (TransferRequest transferRequest : transferRequests) {
+            transfers.add(new BalanceLedger.Transfer(
+                    transferRequest.getFromAccountId(),
+                    transferRequest.getToAccountId(),
+                    transferRequest.getAmount()
+            ));
+        }
+        List<BalanceLedger.Outcome> outcomes = ledger.transferBatch(transfers, !bestEffort);
+
+        List<Response<TransactionLogModel>> results = new ArrayList<>(outcomes.size());
+        boolean failed = false;
+        for (int i = 0; i < outcomes.size(); i++) {
+            BalanceLedger.Outcome outcome = outcomes.get(i);
+            if (outcome.isApplied()) {
+                TransactionLogModel transactionLogModel = buildTransferLog(transferRequests.get(i));
+                transactionLogModel.setId(outcome.seq());
+                results.add(Response.success(transactionLogModel));
+                publishTransfer(outcome.seq(), transferRequests.get(i), TransferIntentStatusEnum.COMMITTED);
+            } else if (outcome.error() != null) {
+                results.add(toErrorResponse(new TransactionFailedException(outcome.error())));
+                failed = true;
+            } else {
+                results.add(Response.error(ErrorCode.BATCH_ABORTED, "batch aborted"));
+            }
+        }
+        if (failed && !bestEffort) {
+            return Response.error(ErrorCode.BATCH_ABORTED, "batch aborted", results);
+        }
+        return Response.success(results);
+    }
 
+    /**
+     * keep the errors of the failing transfers and report every other transfer as aborted
+     */
+    private Response<List<Response<TransactionLogModel>>> abortBatch(List<Response<TransactionLogModel>> results) {
+        List<Response<TransactionLogModel>> aborted = new ArrayList<>(results.size());
+        for (Response<TransactionLogModel> result : results) {
+            aborted.add(result.isSuccessful() ? Response.error(ErrorCode.BATCH_ABORTED, "batch aborted") : result);
+        }
+        return Response.error(ErrorCode.BATCH_ABORTED, "batch aborted", aborted);
+    }
+
+    TransactionLogModel buildTransferLog(TransferRequest transferRequest) {
+        return TransactionLogModel.builder()
+                .accountId(transferRequest.getFromAccountId())
+                .amount(transferRequest.getAmount())
+                .type(TransactionLogType.TRANSER)
+                .details("transfer to account " + transferRequest.getToAccountId())
+                .build();
+    }
+
+    <T> Response<T> toErrorResponse(TransactionFailedException e) {
+        switch (e.getErrorCode()) {
+            case INSUFFICIENT_BALANCE:
+                return Response.error(ErrorCode.INSUFFICIENT_BALANCE);
+            case ACCOUNT_NOT_FOUND:
+                return Response.error(ErrorCode.ACCOUNT_NOT_FOUND);
+        }
+        return Response.error(ErrorCode.SYSTEM_ERROR, "system error");
+    }
+
+    /**
+     * debit the account and store the withdrawal as CREATED in one transaction, the provider is called later by
+     * {@link WithdrawalDispatcher} so its latency never holds the database write lock. With the ledger the two can't
+     * share a transaction, see {@link #requestWithdrawalOnLedger}
+     */
     public Response<RequestWithdrawalResponse> requestWithdrawal(WithdrawalRequest withdrawalRequest) {
+        return requestWithdrawal(withdrawalRequest, null);
+    }
+
+    /**
+     * @param idempotencyKey - stored with the withdrawal when it commits, null for none
+     */
+    public Response<RequestWithdrawalResponse> requestWithdrawal(WithdrawalRequest withdrawalRequest, IdempotencyKey idempotencyKey) {
+        long startedAt = Metrics.start();
+        try {
+            return doRequestWithdrawal(withdrawalRequest, idempotencyKey);
+        } finally {
+            Metrics.record(Metrics.REQUEST_WITHDRAWAL, startedAt);
+        }
+    }
+
+    private Response<RequestWithdrawalResponse> doRequestWithdrawal(WithdrawalRequest withdrawalRequest, IdempotencyKey idempotencyKey) {
         validateWithdrawalReq(withdrawalRequest);
         UUID withdrawalUUID = UUID.randomUUID();
+        Response<RequestWithdrawalResponse> result = Response.success(
+                RequestWithdrawalResponse.builder()
+                        .withdrawalId(withdrawalUUID.toString())
+                        .build()
+        );
+        if (ledger != null) {
+            return requestWithdrawalOnLedger(withdrawalRequest, withdrawalUUID, result, idempotencyKey);
+        }
 
         Connection conn = null;
         try {
@@ -95,70 +422,212 @@ public class TransferService {
             BalanceDAO balanceDAO = new BalanceDAO(conn);
             WithdrawalRequestDAO withdrawalRequestDAO = new WithdrawalRequestDAO(conn);
 
-            WithdrawalRequestModel reqEntity = WithdrawalRequestModel.builder()
-                    .fromAccountId(withdrawalRequest.getFromAccountId())
-                    .withdrawalId(withdrawalUUID.toString())
-                    .toAddress(withdrawalRequest.getAddress())
-                    .amount(withdrawalRequest.getAmount())
-                    .status(WithdrawalRequestStatusEnum.REQUESTED.getCode())
-                    .build();
+            WithdrawalRequestModel reqEntity = buildWithdrawalRequest(withdrawalRequest, withdrawalUUID,
+                    WithdrawalRequestStatusEnum.CREATED);
             withdrawalRequestDAO.createWithdrawalRequest(reqEntity);
             balanceDAO.subtractFromFromAccount(
                     withdrawalRequest.getFromAccountId(),
                     withdrawalRequest.getAmount()
             );
+            if (idempotencyKey != null) {
+                idempotencyKey.save(conn, result);
+            }
 
+            conn.commit();
+            invalidateBalances(withdrawalRequest.getFromAccountId());
+            publishWithdrawal(reqEntity, WithdrawalRequestStatusEnum.CREATED);
+        } catch (TransactionFailedException e) {
+            tryRollback(conn);
+            return toErrorResponse(e);
+        } catch (SQLException e) {
+            tryRollback(conn);
+            return Response.error(ErrorCode.SYSTEM_ERROR, "system error");
+        } finally {
+            tryCloseConn(conn);
+        }
+        return result;
+    }
 
-            WithdrawalService.WithdrawalId withdrawalId = new WithdrawalService.WithdrawalId(withdrawalUUID);
-            WithdrawalService.Address address = new WithdrawalService.Address(withdrawalRequest.getAddress());
-
-            // request external service
-            withdrawalService.requestWithdrawal(
-                    withdrawalId,
-                    address,
-                    withdrawalRequest.getAmount()
-            );
-
+    /**
+     * the withdrawal is committed as DEBITING first and the debit journaled with its id, so the journal never holds
+     * a debit whose withdrawal could be lost. A crash before the withdrawal is made CREATED is settled by
+     * {@link com.felix.ledger.LedgerCheckpointer#recover}, from whether the journal holds the debit. An idempotency key
+     * is reserved as pending together with the withdrawal and settled the same way
+     */
+    private Response<RequestWithdrawalResponse> requestWithdrawalOnLedger(WithdrawalRequest withdrawalRequest, UUID withdrawalUUID,
+                                                                          Response<RequestWithdrawalResponse> result,
+                                                                          IdempotencyKey idempotencyKey) {
+        WithdrawalRequestModel reqEntity = buildWithdrawalRequest(withdrawalRequest, withdrawalUUID,
+                WithdrawalRequestStatusEnum.DEBITING);
+        long reservation = 0;
+        Connection conn = null;
+        try {
+            conn = getDbConnection();
+            conn.setAutoCommit(false);
+            if (idempotencyKey != null) {
+                reservation = idempotencyKey.reserve(conn, result);
+                if (reservation == 0) {
+                    conn.rollback();
+                    return Response.error(ErrorCode.IDEMPOTENCY_KEY_PENDING, "an earlier request with this key is not settled yet");
+                }
+            }
+            new WithdrawalRequestDAO(conn).createWithdrawalRequest(reqEntity);
             conn.commit();
         } catch (TransactionFailedException e) {
             tryRollback(conn);
-            switch (e.getErrorCode()) {
-                case INSUFFICIENT_BALANCE:
-                    return Response.error(ErrorCode.INSUFFICIENT_BALANCE);
-                case ACCOUNT_NOT_FOUND:
-                    return Response.error(ErrorCode.ACCOUNT_NOT_FOUND);
+            return toErrorResponse(e);
+        } catch (SQLException e) {
+            tryRollback(conn);
+            return Response.error(ErrorCode.SYSTEM_ERROR, "system error");
+        } finally {
+            tryCloseConn(conn);
+        }
+
+        try {
+            ledger.debit(withdrawalRequest.getFromAccountId(), withdrawalRequest.getAmount(), reqEntity.getId(), reservation);
+        } catch (TransactionFailedException e) {
+            // a failed journal write may still have reached the disk, then recovery finds the debit and keeps the
+            // withdrawal. Any other failure journaled nothing
+            if (e.getErrorCode() != TransactionFailedErrorCode.SYSTEM_ERROR) {
+                tryDeleteDebiting(reqEntity.getId(), reservation);
             }
-        } catch (SQLException | IllegalArgumentException e) {
+            return toErrorResponse(e);
+        }
+        if (idempotencyKey != null) {
+            idempotencyKey.markStored();
+        }
+
+        try (Connection markConn = getDbConnection()) {
+            new WithdrawalRequestDAO(markConn).markDebited(reqEntity.getId());
+        } catch (SQLException e) {
+            // the debit is journaled, the checkpoint that writes it makes the withdrawal CREATED
+            Metrics.recordSwallowed("withdrawal_mark_debited");
+        }
+        reqEntity.setStatus(WithdrawalRequestStatusEnum.CREATED.getCode());
+        publishWithdrawal(reqEntity, WithdrawalRequestStatusEnum.CREATED);
+        return result;
+    }
+
+    private WithdrawalRequestModel buildWithdrawalRequest(WithdrawalRequest withdrawalRequest, UUID withdrawalUUID,
+                                                          WithdrawalRequestStatusEnum status) {
+        return WithdrawalRequestModel.builder()
+                .fromAccountId(withdrawalRequest.getFromAccountId())
+                .withdrawalId(withdrawalUUID.toString())
+                .toAddress(withdrawalRequest.getAddress())
+                .amount(withdrawalRequest.getAmount())
+                .status(status.getCode())
+                .build();
+    }
+
+    /**
+     * @param reservation - the pending idempotency key of the withdrawal, 0 for none
+     */
+    private void tryDeleteDebiting(int id, long reservation) {
+        Connection conn = null;
+        try {
+            conn = getDbConnection();
+            conn.setAutoCommit(false);
+            new WithdrawalRequestDAO(conn).deleteDebiting(id);
+            if (reservation != 0) {
+                new IdempotencyKeyDAO(conn).deletePendingIdempotencyKey(reservation);
+            }
+            conn.commit();
+        } catch (SQLException e) {
+            // left DEBITING, which is never dispatched, until recovery deletes it with its key
+            Metrics.recordSwallowed("withdrawal_delete_debiting");
             tryRollback(conn);
         } finally {
             tryCloseConn(conn);
         }
+    }
 
-        return Response.success(
-                RequestWithdrawalResponse.builder()
-                        .withdrawalId(withdrawalUUID.toString())
-                        .build()
-        );
+    /**
+     * @return the rowid of the pending key, 0 when another request holds the key
+     */
+    private long reserve(IdempotencyKey idempotencyKey, Response<?> result) throws SQLException {
+        try (Connection conn = getDbConnection()) {
+            return idempotencyKey.reserve(conn, result);
+        }
+    }
+
+    private void tryDeleteReservation(long reservation) {
+        try (Connection conn = getDbConnection()) {
+            new IdempotencyKeyDAO(conn).deletePendingIdempotencyKey(reservation);
+        } catch (SQLException e) {
+            // left pending, which is never replayed, until recovery deletes it
+            Metrics.recordSwallowed("idempotency_key_delete_pending");
+        }
     }
 
     public List<String> getListPendingWithdrawalRequest() {
         Connection conn = null;
         try {
-            conn = getDbConnection();
+            conn = getReadConnection();
             WithdrawalRequestDAO withdrawalRequestDAO = new WithdrawalRequestDAO(conn);
             return withdrawalRequestDAO.getListPendingWithdrawalIds();
         } catch (Exception e) {
-            // log error
+            // nothing is synced this round, the next one reads them again
+            Metrics.recordSwallowed("pending_withdrawals_read");
         } finally {
             tryCloseConn(conn);
         }
         return Collections.emptyList();
     }
 
+    /**
+     * a page of withdrawals handed to the provider whose next check is due, see
+     * {@link WithdrawalRequestDAO#getDueWithdrawals}
+     */
+    public List<WithdrawalRequestModel> getDueWithdrawalRequests(long dueBy, long afterNextCheckAt, int afterId, int limit) throws SQLException {
+        try (Connection conn = getReadConnection()) {
+            return new WithdrawalRequestDAO(conn).getDueWithdrawals(dueBy, afterNextCheckAt, afterId, limit);
+        }
+    }
+
+    /**
+     * @return the number of withdrawals in this status, for the backlog gauges
+     */
+    public long countWithdrawalRequests(WithdrawalRequestStatusEnum status) throws SQLException {
+        try (Connection conn = getReadConnection()) {
+            return new WithdrawalRequestDAO(conn).countWithdrawals(status.getCode());
+        }
+    }
+
+    /**
+     * persist when pending withdrawals are checked next, so a restart resumes their schedule
+     *
+     * @param nextChecks - withdrawal id to epoch millis
+     */
+    public void saveWithdrawalNextChecks(Map<String, Long> nextChecks) throws SQLException {
+        Connection conn = null;
+        try {
+            conn = getDbConnection();
+            conn.setAutoCommit(false);
+            WithdrawalRequestDAO withdrawalRequestDAO = new WithdrawalRequestDAO(conn);
+            for (Map.Entry<String, Long> entry : nextChecks.entrySet()) {
+                withdrawalRequestDAO.setNextCheckAt(entry.getKey(), entry.getValue());
+            }
+            conn.commit();
+        } catch (SQLException e) {
+            tryRollback(conn);
+            throw e;
+        } finally {
+            tryCloseConn(conn);
+        }
+    }
+
     public void syncWithdrawalRequestStatus(String withdrawalId) {
+        long startedAt = Metrics.start();
+        try {
+            doSyncWithdrawalRequestStatus(withdrawalId);
+        } finally {
+            Metrics.record(Metrics.SYNC_WITHDRAWAL, startedAt);
+        }
+    }
+
+    private void doSyncWithdrawalRequestStatus(String withdrawalId) {
         Connection conn = null;
         try {
-            System.out.println("syncing withdrawal request status for withdrawalId: " + withdrawalId);
             conn = getDbConnection();
             conn.setAutoCommit(false);
             WithdrawalRequestDAO withdrawalRequestDAO = new WithdrawalRequestDAO(conn);
@@ -171,41 +640,122 @@ public class TransferService {
             WithdrawalService.WithdrawalState requestState = withdrawalService.getRequestState(
                     new WithdrawalService.WithdrawalId(UUID.fromString(withdrawalId))
             );
+            WithdrawalRequestStatusEnum status = switch (requestState) {
+                case COMPLETED -> WithdrawalRequestStatusEnum.SUCCESS;
+                case FAILED -> refundStatus();
+                case PROCESSING -> null;
+            };
+            // like applyWithdrawalFinalStates, only a withdrawal still pending changes, so a second sync of the
+            // same FAILED withdrawal refunds nothing
+            WithdrawalRequestModel changed = status == null
+                    ? null
+                    : withdrawalRequestDAO.setFinalStatus(withdrawalId, status.getCode());
+            if (changed == null) {
+                return;
+            }
+            if (status == WithdrawalRequestStatusEnum.FAILED) {
+                balanceDAO.addToToAccount(changed.getFromAccountId(), changed.getAmount());
+            }
 
-            switch (requestState) {
-                case COMPLETED -> withdrawalRequestDAO.setStatus(
-                        withdrawalId,
-                        WithdrawalRequestStatusEnum.SUCCESS.getCode()
-                );
-                case FAILED -> {
-                    withdrawalRequestDAO.setStatus(
-                            withdrawalId,
-                            WithdrawalRequestStatusEnum.FAILED.getCode()
-                    );
+            conn.commit();
+            if (status == WithdrawalRequestStatusEnum.FAILED) {
+                invalidateBalances(changed.getFromAccountId());
+            }
+            // the refund goes to the ledger only once the REFUNDING status is committed, so it can't be paid twice
+            if (status == WithdrawalRequestStatusEnum.REFUNDING) {
+                tryRefundOnLedger(changed);
+            } else {
+                publishWithdrawal(changed, status);
+            }
+        } catch (SQLException | TransactionFailedException e) {
+            // the withdrawal keeps its status and is synced again on the next round
+            Metrics.recordSwallowed("withdrawal_sync");
+            tryRollback(conn);
+        } finally {
+            tryCloseConn(conn);
+        }
+    }
+
+    /**
+     * write back the final state of many withdrawals in one transaction, FAILED withdrawals are refunded. With the
+     * ledger they are committed as REFUNDING and made FAILED by {@link #tryRefundOnLedger}.
+     * Withdrawals that are no longer pending are skipped, so applying the same state twice never refunds twice.
+     *
+     * @param finalStates - withdrawal id to COMPLETED or FAILED
+     * @return the withdrawal ids whose status was changed
+     */
+    public List<String> applyWithdrawalFinalStates(Map<String, WithdrawalService.WithdrawalState> finalStates) throws SQLException {
+        long startedAt = Metrics.start();
+        try {
+            return doApplyWithdrawalFinalStates(finalStates);
+        } finally {
+            Metrics.record(Metrics.APPLY_WITHDRAWAL_FINAL_STATES, startedAt);
+        }
+    }
+
+    private List<String> doApplyWithdrawalFinalStates(Map<String, WithdrawalService.WithdrawalState> finalStates) throws SQLException {
+        List<String> applied = new ArrayList<>(finalStates.size());
+        List<WithdrawalRequestModel> changed = new ArrayList<>(finalStates.size());
+        List<WithdrawalRequestModel> refunds = new ArrayList<>();
+        Connection conn = null;
+        try {
+            conn = getDbConnection();
+            conn.setAutoCommit(false);
+            WithdrawalRequestDAO withdrawalRequestDAO = new WithdrawalRequestDAO(conn);
+            BalanceDAO balanceDAO = new BalanceDAO(conn);
+
+            for (Map.Entry<String, WithdrawalService.WithdrawalState> entry : finalStates.entrySet()) {
+                String withdrawalId = entry.getKey();
+                WithdrawalRequestStatusEnum status = switch (entry.getValue()) {
+                    case COMPLETED -> WithdrawalRequestStatusEnum.SUCCESS;
+                    case FAILED -> refundStatus();
+                    case PROCESSING -> null;
+                };
+                WithdrawalRequestModel withdrawalRequestEntity = status == null
+                        ? null
+                        : withdrawalRequestDAO.setFinalStatus(withdrawalId, status.getCode());
+                if (withdrawalRequestEntity == null) {
+                    continue;
+                }
+                if (status == WithdrawalRequestStatusEnum.FAILED) {
                     balanceDAO.addToToAccount(
                             withdrawalRequestEntity.getFromAccountId(),
                             withdrawalRequestEntity.getAmount()
                     );
+                    refunds.add(withdrawalRequestEntity);
                 }
+                applied.add(withdrawalId);
+                changed.add(withdrawalRequestEntity);
             }
 
             conn.commit();
-
-            System.out.println("[DONE] syncing withdrawal request status for withdrawalId: " + withdrawalId);
         } catch (SQLException e) {
             tryRollback(conn);
+            throw e;
         } catch (TransactionFailedException e) {
-            // log error
             tryRollback(conn);
+            throw new SQLException("failed to refund withdrawal", e);
         } finally {
             tryCloseConn(conn);
         }
+
+        refunds.forEach(refund -> invalidateBalances(refund.getFromAccountId()));
+        for (WithdrawalRequestModel withdrawal : changed) {
+            WithdrawalRequestStatusEnum status = WithdrawalRequestStatusEnum.fromCode(withdrawal.getStatus());
+            // same as syncWithdrawalRequestStatus, the ledger is refunded only once REFUNDING is committed
+            if (status == WithdrawalRequestStatusEnum.REFUNDING) {
+                tryRefundOnLedger(withdrawal);
+            } else {
+                publishWithdrawal(withdrawal, status);
+            }
+        }
+        return applied;
     }
 
     public Response<WithdrawalResponseDto> getWithdrawalRequest(String withdrawalId) {
         Connection conn = null;
         try {
-            conn = getDbConnection();
+            conn = getReadConnection();
             WithdrawalRequestModel withdrawalRequestEntity = new WithdrawalRequestDAO(conn).getByWithdrawalId(withdrawalId);
 
             if (withdrawalRequestEntity == null) {
@@ -226,58 +776,162 @@ public class TransferService {
                             )
                             .build());
         } catch (SQLException e) {
-            // log error
+            Metrics.recordSwallowed("withdrawal_read");
         } finally {
             tryCloseConn(conn);
         }
         return Response.error(ErrorCode.SYSTEM_ERROR, "system error");
     }
 
+    /**
+     * @return the balance in minor units, from the ledger when there is one, otherwise through the cache
+     */
+    public Response<Long> getBalance(int accountId) {
+        try {
+            Long balance;
+            if (ledger != null) {
+                balance = ledger.getBalance(accountId);
+            } else if (balanceCache != null) {
+                balance = balanceCache.get(accountId, this::loadBalance);
+            } else {
+                balance = loadBalance(accountId);
+            }
+            if (balance == null) {
+                return Response.error(ErrorCode.ACCOUNT_NOT_FOUND);
+            }
+            return Response.success(balance);
+        } catch (TransactionFailedException e) {
+            return toErrorResponse(e);
+        }
+    }
+
+    private Long loadBalance(int accountId) throws TransactionFailedException {
+        try (Connection conn = getReadConnection()) {
+            return new BalanceDAO(conn).getAccountBalance(accountId);
+        } catch (SQLException e) {
+            throw new TransactionFailedException(TransactionFailedErrorCode.SYSTEM_ERROR);
+        }
+    }
+
+    /**
+     * drop cached balances, only once the transaction that changed them has committed
+     */
+    void invalidateBalances(int... accountIds) {
+        if (balanceCache == null) {
+            return;
+        }
+        for (int accountId : accountIds) {
+            balanceCache.invalidate(accountId);
+        }
+    }
+
+    /**
+     * tell the open event streams about a transfer, only once the transaction that made it has committed
+     */
+    void publishTransfer(long transferId, TransferRequest transferRequest, TransferIntentStatusEnum status) {
+        publishTransfer(transferId, transferRequest.getFromAccountId(), transferRequest.getToAccountId(),
+                transferRequest.getAmount(), status);
+    }
+
+    void publishTransfer(long transferId, int fromAccountId, int toAccountId, long amount, TransferIntentStatusEnum status) {
+        if (changeFeed != null) {
+            changeFeed.transferChanged(transferId, fromAccountId, toAccountId, amount, status);
+        }
+    }
+
+    /**
+     * same as publishTransfer, for the status a withdrawal was moved to
+     */
+    void publishWithdrawal(WithdrawalRequestModel withdrawal, WithdrawalRequestStatusEnum status) {
+        if (changeFeed != null) {
+            changeFeed.withdrawalChanged(withdrawal.getWithdrawalId(), withdrawal.getFromAccountId(),
+                    withdrawal.getAmount(), status);
+        }
+    }
+
     private void validateWithdrawalReq(WithdrawalRequest withdrawalRequest) {
         // validation logic
-        if (withdrawalRequest.getAmount() == null) {
-            throw new IllegalArgumentException("invalid amount");
-        }
-        if (withdrawalRequest.getAmount().compareTo(BigDecimal.ZERO) <= 0) {
+        if (withdrawalRequest.getAmount() <= 0) {
             throw new IllegalArgumentException("negative amount");
         }
     }
 
-    private void validateTransferReq(TransferRequest transferRequest) {
-        if (transferRequest.getAmount() == null) {
-            throw new RuntimeException("invalid amount");
-        }
-        if (transferRequest.getAmount().compareTo(BigDecimal.ZERO) <= 0) {
+    void validateTransferReq(TransferRequest transferRequest) {
+        if (transferRequest.getAmount() <= 0) {
             throw new RuntimeException("invalid amount");
         }
         // check if fromAccountId and toAccountId are valid
     }
 
 
+    void validateTransferBatchReq(List<TransferRequest> transferRequests) {
+        if (transferRequests == null || transferRequests.isEmpty()) {
+            throw new RuntimeException("empty batch");
+        }
+        if (transferRequests.size() > MAX_TRANSFER_BATCH_SIZE) {
+            throw new RuntimeException("batch too large");
+        }
+        transferRequests.forEach(this::validateTransferReq);
+    }
+
+    /**
+     * FAILED, or REFUNDING with the ledger, where a failed withdrawal's refund can't share its transaction
+     */
+    private WithdrawalRequestStatusEnum refundStatus() {
+        return ledger == null ? WithdrawalRequestStatusEnum.FAILED : WithdrawalRequestStatusEnum.REFUNDING;
+    }
+
+    /**
+     * credit the refund of a withdrawal committed as REFUNDING, journaled with its id like the debit of
+     * {@link #requestWithdrawalOnLedger}, then make it FAILED. A refund the journal refused is counted in
+     * ledger_refund_failures_total and left REFUNDING, {@link com.felix.ledger.LedgerCheckpointer#recover} credits it
+     * if the journal doesn't hold it
+     */
+    private void tryRefundOnLedger(WithdrawalRequestModel withdrawal) {
+        try {
+            ledger.credit(withdrawal.getFromAccountId(), withdrawal.getAmount(), withdrawal.getId());
+        } catch (TransactionFailedException e) {
+            Metrics.recordLedgerRefundFailed();
+            return;
+        }
+        try (Connection conn = getDbConnection()) {
+            new WithdrawalRequestDAO(conn).markRefunded(withdrawal.getId());
+        } catch (SQLException e) {
+            // the refund is journaled, the checkpoint that writes it makes the withdrawal FAILED
+            Metrics.recordSwallowed("withdrawal_mark_refunded");
+        }
+        withdrawal.setStatus(WithdrawalRequestStatusEnum.FAILED.getCode());
+        publishWithdrawal(withdrawal, WithdrawalRequestStatusEnum.FAILED);
+    }
+
     private Connection getDbConnection() throws SQLException {
         return dataSource.getConnection();
     }
 
-    private void tryCloseConn(Connection conn) {
+    private Connection getReadConnection() throws SQLException {
+        return readDataSource.getConnection();
+    }
+
+    void tryCloseConn(Connection conn) {
         if (conn == null) {
             return;
         }
         try {
             conn.close();
         } catch (SQLException e) {
-            // log error
+            Metrics.recordSwallowed("connection_close");
         }
     }
 
 
-    private void tryRollback(Connection conn) {
+    void tryRollback(Connection conn) {
         if (conn == null) {
             return;
         }
         try {
             conn.rollback();
         } catch (SQLException ex) {
-            // log error
+            Metrics.recordSwallowed("rollback");
         }
     }
 }
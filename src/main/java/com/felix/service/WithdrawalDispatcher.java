@@ -0,0 +1,245 @@
+package com.felix.service;
+
+import com.felix.dao.WithdrawalRequestDAO;
+import com.felix.external.WithdrawalService;
+import com.felix.model.WithdrawalRequestModel;
+import com.felix.model.WithdrawalRequestStatusEnum;
+import com.felix.money.CurrencyUnit;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Outbox dispatcher for withdrawals.
+ * <p>
+ * {@link TransferService#requestWithdrawal} only commits the withdrawal as CREATED. This dispatcher drains CREATED rows
+ * in id order, calls the provider for up to concurrency of them at a time with retries and moves the ones the provider
+ * accepted to REQUESTED in one transaction. Withdrawals the provider rejects are failed and refunded.
+ * The provider treats the withdrawal id as an idempotency key, so sending a row twice after a crash is harmless.
+ */
+public class WithdrawalDispatcher implements AutoCloseable {
+    private final DataSource dataSource;
+    private final TransferService transferService;
+    private final WithdrawalService withdrawalService;
+    // told about every withdrawal that reached REQUESTED, e.g. the reconciler
+    private final Consumer<String> onRequested;
+    private final int batchSize;
+    private final int maxAttempts;
+    private final long retryBackoffMillis;
+    private final long idleIntervalMillis;
+    private final ExecutorService senders;
+    private final Semaphore wakeUps = new Semaphore(0);
+    private final Thread dispatcher;
+
+    private final LongAdder dispatched = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    private volatile boolean running = true;
+
+    /**
+     * @param concurrency        - max provider calls in flight
+     * @param maxAttempts        - provider calls per withdrawal and round, a withdrawal still failing stays CREATED
+     *                           and is picked up again by a later round
+     * @param idleIntervalMillis - how long to wait for {@link #wakeUp()} when there is nothing to send
+     */
+    public WithdrawalDispatcher(
+            DataSource dataSource,
+            TransferService transferService,
+            WithdrawalService withdrawalService,
+            Consumer<String> onRequested,
+            int batchSize,
+            int concurrency,
+            int maxAttempts,
+            long retryBackoffMillis,
+            long idleIntervalMillis) {
+        this.dataSource = dataSource;
+        this.transferService = transferService;
+        this.withdrawalService = withdrawalService;
+        this.onRequested = onRequested;
+        this.batchSize = batchSize;
+        this.maxAttempts = maxAttempts;
+        this.retryBackoffMillis = retryBackoffMillis;
+        this.idleIntervalMillis = idleIntervalMillis;
+        this.senders = Executors.newFixedThreadPool(concurrency, r -> {
+            Thread thread = new Thread(r, "withdrawal-dispatcher-sender");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.dispatcher = new Thread(this::dispatchLoop, "withdrawal-dispatcher");
+        this.dispatcher.setDaemon(true);
+    }
+
+    public void start() {
+        dispatcher.start();
+    }
+
+    /**
+     * a withdrawal was just committed, don't wait for the idle interval
+     */
+    public void wakeUp() {
+        wakeUps.release();
+    }
+
+    public long getDispatchedCount() {
+        return dispatched.sum();
+    }
+
+    public long getRetryCount() {
+        return retries.sum();
+    }
+
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    private void dispatchLoop() {
+        while (running) {
+            try {
+                List<WithdrawalRequestModel> batch = loadCreated();
+                if (batch.isEmpty()) {
+                    wakeUps.tryAcquire(idleIntervalMillis, TimeUnit.MILLISECONDS);
+                    wakeUps.drainPermits();
+                    continue;
+                }
+                if (!dispatch(batch)) {
+                    // the provider is struggling, give it a moment before the same rows are sent again
+                    Thread.sleep(retryBackoffMillis);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                // the database is unavailable, try again later
+                e.printStackTrace();
+                sleepQuietly(idleIntervalMillis);
+            }
+        }
+    }
+
+    private List<WithdrawalRequestModel> loadCreated() throws SQLException {
+        try (Connection conn = dataSource.getConnection()) {
+            return new WithdrawalRequestDAO(conn).getCreatedWithdrawals(batchSize);
+        }
+    }
+
+    /**
+     * @return false if some withdrawals have to be sent again
+     */
+    private boolean dispatch(List<WithdrawalRequestModel> batch) throws SQLException {
+        List<CompletableFuture<Outcome>> outcomes = new ArrayList<>(batch.size());
+        for (WithdrawalRequestModel withdrawal : batch) {
+            outcomes.add(CompletableFuture.supplyAsync(() -> send(withdrawal), senders));
+        }
+
+        List<WithdrawalRequestModel> accepted = new ArrayList<>();
+        Map<String, WithdrawalService.WithdrawalState> refused = new HashMap<>();
+        boolean complete = true;
+        for (int i = 0; i < batch.size(); i++) {
+            String withdrawalId = batch.get(i).getWithdrawalId();
+            switch (outcomes.get(i).join()) {
+                case ACCEPTED -> accepted.add(batch.get(i));
+                case REJECTED -> refused.put(withdrawalId, WithdrawalService.WithdrawalState.FAILED);
+                case RETRY -> complete = false;
+            }
+        }
+
+        List<String> requested = markRequested(accepted);
+        if (!refused.isEmpty()) {
+            transferService.applyWithdrawalFinalStates(refused);
+            rejected.add(refused.size());
+        }
+        dispatched.add(requested.size());
+        requested.forEach(onRequested);
+        return complete;
+    }
+
+    private Outcome send(WithdrawalRequestModel withdrawal) {
+        WithdrawalService.WithdrawalId withdrawalId = new WithdrawalService.WithdrawalId(UUID.fromString(withdrawal.getWithdrawalId()));
+        WithdrawalService.Address address = new WithdrawalService.Address(withdrawal.getToAddress());
+        for (int attempt = 1; attempt <= maxAttempts; attempt++) {
+            try {
+                withdrawalService.requestWithdrawal(
+                        withdrawalId,
+                        address,
+                        CurrencyUnit.getDefault().toAmount(withdrawal.getAmount())
+                );
+                return Outcome.ACCEPTED;
+            } catch (IllegalArgumentException | IllegalStateException e) {
+                // the provider refuses this withdrawal, retrying won't change that
+                return Outcome.REJECTED;
+            } catch (RuntimeException e) {
+                retries.increment();
+                if (attempt < maxAttempts && !sleepQuietly(retryBackoffMillis * attempt)) {
+                    break;
+                }
+            }
+        }
+        return Outcome.RETRY;
+    }
+
+    private List<String> markRequested(List<WithdrawalRequestModel> withdrawals) throws SQLException {
+        List<String> requested = new ArrayList<>(withdrawals.size());
+        if (withdrawals.isEmpty()) {
+            return requested;
+        }
+        List<WithdrawalRequestModel> marked = new ArrayList<>(withdrawals.size());
+        Connection conn = null;
+        try {
+            conn = dataSource.getConnection();
+            conn.setAutoCommit(false);
+            WithdrawalRequestDAO withdrawalRequestDAO = new WithdrawalRequestDAO(conn);
+            for (WithdrawalRequestModel withdrawal : withdrawals) {
+                if (withdrawalRequestDAO.markRequested(withdrawal.getWithdrawalId())) {
+                    requested.add(withdrawal.getWithdrawalId());
+                    marked.add(withdrawal);
+                }
+            }
+            conn.commit();
+        } catch (SQLException e) {
+            transferService.tryRollback(conn);
+            throw e;
+        } finally {
+            transferService.tryCloseConn(conn);
+        }
+        for (WithdrawalRequestModel withdrawal : marked) {
+            transferService.publishWithdrawal(withdrawal, WithdrawalRequestStatusEnum.REQUESTED);
+        }
+        return requested;
+    }
+
+    private boolean sleepQuietly(long millis) {
+        try {
+            Thread.sleep(millis);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        running = false;
+        wakeUp();
+        dispatcher.join();
+        senders.shutdown();
+    }
+
+    private enum Outcome {
+        ACCEPTED, REJECTED, RETRY
+    }
+}
@@ -0,0 +1,89 @@
+package com.felix.snapshot;
+
+import com.felix.dao.BalanceDAO;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * A point-in-time view of account_balances, pinned by a read transaction on a reader connection.
+ * <p>
+ * In wal mode the transaction keeps reading the database as of its first statement while the writer goes on
+ * committing, so a scan of every account sees no transfer half applied and never holds the writer up. The seq tags
+ * which view it is: two snapshots with the same seq hold the same balances.
+ * <p>
+ * While a snapshot is open a WAL checkpoint can't reset the log past it, so the log grows until it is closed.
+ */
+public class BalanceSnapshot implements AutoCloseable {
+    // responses read from a snapshot carry its seq
+    public static final String SEQ_HEADER = "Snapshot-Seq";
+
+    private final Connection conn;
+    private final BalanceDAO balanceDAO;
+    private final long seq;
+
+    private BalanceSnapshot(Connection conn) throws SQLException {
+        this.conn = conn;
+        this.balanceDAO = new BalanceDAO(conn);
+        // a deferred transaction takes its read mark at the first select, this one
+        conn.setAutoCommit(false);
+        this.seq = balanceDAO.getBalanceSeq();
+    }
+
+    public static BalanceSnapshot open(DataSource dataSource) throws SQLException {
+        Connection conn = dataSource.getConnection();
+        try {
+            return new BalanceSnapshot(conn);
+        } catch (SQLException e) {
+            conn.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the number of balance changes committed before the snapshot
+     */
+    public long getSeq() {
+        return seq;
+    }
+
+    /**
+     * @return the balance as of the snapshot, null when the account didn't exist then
+     */
+    public synchronized Long getBalance(int accountId) throws SQLException {
+        return balanceDAO.getAccountBalances(List.of(accountId)).get(accountId);
+    }
+
+    /**
+     * see {@link BalanceDAO#streamAccountBalances}, every page reads the same snapshot
+     */
+    public synchronized int streamAccountBalances(int afterAccountId, int limit, BalanceDAO.AccountBalanceHandler handler)
+            throws SQLException, IOException {
+        return balanceDAO.streamAccountBalances(afterAccountId, limit, handler);
+    }
+
+    /**
+     * run other reads in the snapshot's transaction, they see the same point in time as its balances
+     */
+    public synchronized <T> T read(SnapshotRead<T> read) throws SQLException {
+        return read.apply(conn);
+    }
+
+    @Override
+    public synchronized void close() throws SQLException {
+        try {
+            conn.rollback();
+            conn.setAutoCommit(true);
+        } finally {
+            conn.close();
+        }
+    }
+
+    @FunctionalInterface
+    public interface SnapshotRead<T> {
+        T apply(Connection conn) throws SQLException;
+    }
+}
@@ -0,0 +1,143 @@
+package com.felix.snapshot;
+
+import javax.sql.DataSource;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Snapshots leased out by id, so a reporting job can page through millions of accounts in many requests and still
+ * see one point in time.
+ * <p>
+ * Every open lease holds a reader connection and keeps the WAL from being reset, so at most maxOpen are open at once
+ * and one left unused for the TTL is closed.
+ */
+public class BalanceSnapshotStore implements AutoCloseable {
+    private final DataSource readDataSource;
+    private final int maxOpen;
+    private final long ttlMillis;
+    private final Map<String, Lease> leases = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "balance-snapshot-reaper");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param maxOpen   - leases open at once, keep it below the reader pool size so lone reads still get a connection
+     * @param ttlMillis - a lease unused this long is closed
+     */
+    public BalanceSnapshotStore(DataSource readDataSource, int maxOpen, long ttlMillis) {
+        if (maxOpen < 0 || ttlMillis <= 0) {
+            throw new IllegalArgumentException("invalid max open " + maxOpen + " or ttl " + ttlMillis);
+        }
+        this.readDataSource = readDataSource;
+        this.maxOpen = maxOpen;
+        this.ttlMillis = ttlMillis;
+    }
+
+    public void start(long reapIntervalMillis) {
+        reaper.scheduleWithFixedDelay(() -> expire(System.currentTimeMillis()),
+                reapIntervalMillis, reapIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the new lease, null when maxOpen are already open
+     */
+    public synchronized Lease open() throws SQLException {
+        if (leases.size() >= maxOpen) {
+            return null;
+        }
+        Lease lease = new Lease(UUID.randomUUID().toString(), BalanceSnapshot.open(readDataSource));
+        lease.touch(System.currentTimeMillis());
+        leases.put(lease.id(), lease);
+        return lease;
+    }
+
+    /**
+     * @return the leased snapshot with its TTL restarted, null when it was released or expired
+     */
+    public BalanceSnapshot get(String id) {
+        Lease lease = leases.get(id);
+        if (lease == null) {
+            return null;
+        }
+        lease.touch(System.currentTimeMillis());
+        return lease.snapshot();
+    }
+
+    /**
+     * @return false when there was no such lease
+     */
+    public boolean release(String id) {
+        Lease lease = leases.remove(id);
+        if (lease == null) {
+            return false;
+        }
+        closeQuietly(lease);
+        return true;
+    }
+
+    public int getOpenCount() {
+        return leases.size();
+    }
+
+    /**
+     * close the leases unused for the TTL as of now
+     *
+     * @return the number closed
+     */
+    public int expire(long now) {
+        int expired = 0;
+        for (Lease lease : leases.values()) {
+            if (now - lease.lastUsedMillis >= ttlMillis && leases.remove(lease.id(), lease)) {
+                closeQuietly(lease);
+                expired++;
+            }
+        }
+        return expired;
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        reaper.shutdown();
+        reaper.awaitTermination(5, TimeUnit.SECONDS);
+        leases.keySet().forEach(this::release);
+    }
+
+    private static void closeQuietly(Lease lease) {
+        try {
+            lease.snapshot().close();
+        } catch (SQLException e) {
+            // the pool drops the broken connection
+            e.printStackTrace();
+        }
+    }
+
+    public static final class Lease {
+        private final String id;
+        private final BalanceSnapshot snapshot;
+        private volatile long lastUsedMillis;
+
+        private Lease(String id, BalanceSnapshot snapshot) {
+            this.id = id;
+            this.snapshot = snapshot;
+        }
+
+        public String id() {
+            return id;
+        }
+
+        public BalanceSnapshot snapshot() {
+            return snapshot;
+        }
+
+        private void touch(long now) {
+            lastUsedMillis = now;
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package com.felix
+
+import spock.lang.Specification
+
+class AccountHashTest extends Specification {
+
+    def "consecutive accounts keep the buckets they have always had"() {
+        expect: "the shard of an account is where its rows are stored, so these never change"
+        (1..8).collect { AccountHash.bucketOf(it, 4) } == [2, 0, 1, 1, 0, 2, 3, 3]
+        (1..8).collect { AccountHash.bucketOf(it, 3) } == [0, 0, 2, 1, 2, 0, 1, 2]
+    }
+
+    def "buckets are never negative and a single bucket takes every account"() {
+        expect:
+        [Integer.MIN_VALUE, -1, 0, Integer.MAX_VALUE].every { AccountHash.bucketOf(it, 7) in 0..6 }
+        (1..1000).every { AccountHash.bucketOf(it, 1) == 0 }
+    }
+}
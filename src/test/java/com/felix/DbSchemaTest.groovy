@@ -0,0 +1,123 @@
+package com.felix
+
+import com.felix.dao.BalanceDAO
+import com.felix.dao.WithdrawalRequestDAO
+import com.felix.money.CurrencyUnit
+import com.zaxxer.hikari.HikariDataSource
+import spock.lang.Specification
+
+import java.sql.SQLException
+
+class DbSchemaTest extends Specification {
+    HikariDataSource dataSource
+
+    def setup() {
+        dataSource = HikariCPDataSource.createNewDataSource("test-schema.db")
+    }
+
+    def cleanup() {
+        dataSource.close()
+        new File("test-schema.db").delete()
+    }
+
+    def "real amounts are migrated to integer minor units"() {
+        given: "a database created with the old real columns"
+        def conn = dataSource.getConnection()
+        def stmt = conn.createStatement()
+        stmt.execute("create table account_balances (account_id integer not null primary key autoincrement, user_id integer not null, balance real default 0 not null, created_at TEXT default (datetime('now')), updated_at TEXT default (datetime('now')))")
+        stmt.execute("create table transaction_logs (id integer not null primary key, account_id integer not null, amount real not null, type integer default 0 not null, details text, created_at text default (datetime('now')) not null, updated_at text default (datetime('now')) not null)")
+        stmt.execute("create table withdrawal_requests (id integer not null primary key autoincrement, from_account_id integer not null, withdrawal_id TEXT not null, to_address TEXT not null, amount real not null, status INTEGER default 0 not null, created_at text default (datetime('now')) not null, updated_at TEXT default (datetime('now')) not null)")
+        stmt.execute("create unique index withdrawal_requests_withdrawal_id_uindex on withdrawal_requests (withdrawal_id)")
+        stmt.execute("insert into account_balances (account_id, user_id, balance) values (1, 1, 874.5), (2, 2, 0.1)")
+        stmt.execute("insert into transaction_logs (id, account_id, amount, type, details) values (7, 1, 12.34, 0, 'transfer to account 2')")
+        stmt.execute("insert into withdrawal_requests (from_account_id, withdrawal_id, to_address, amount, status) values (1, 'w-1', 'abc', 0.29, 1)")
+
+        when:
+        DbSchema.setup(dataSource)
+
+        then: "amounts are stored as cents"
+        def balanceDAO = new BalanceDAO(conn)
+        balanceDAO.getAccountBalance(1) == 87_450
+        balanceDAO.getAccountBalance(2) == 10
+        balanceDAO.getMaxTransactionLogId() == 7
+        new WithdrawalRequestDAO(conn).getByWithdrawalId("w-1").amount == 29
+
+        and: "the columns are integer now"
+        def rs = stmt.executeQuery("select typeof(balance) from account_balances")
+        rs.next()
+        rs.getString(1) == "integer"
+
+        and: "running setup again keeps the data"
+        DbSchema.setup(dataSource)
+        balanceDAO.getAccountBalance(1) == 87_450
+
+        cleanup:
+        conn.close()
+    }
+
+    def "real amounts are migrated to minor units of the currency passed in, not the default"() {
+        given: "an old real balance table"
+        def conn = dataSource.getConnection()
+        def stmt = conn.createStatement()
+        stmt.execute("create table account_balances (account_id integer not null primary key autoincrement, user_id integer not null, balance real default 0 not null, created_at TEXT default (datetime('now')), updated_at TEXT default (datetime('now')))")
+        stmt.execute("insert into account_balances (account_id, user_id, balance) values (1, 1, 874.5), (2, 2, 1500)")
+
+        when: "the default is still USD"
+        DbSchema.setup(dataSource, CurrencyUnit.of("JPY"))
+
+        then: "yen have no minor units"
+        def balanceDAO = new BalanceDAO(conn)
+        CurrencyUnit.getDefault() == CurrencyUnit.of("USD")
+        balanceDAO.getAccountBalance(1) == 875
+        balanceDAO.getAccountBalance(2) == 1500
+
+        cleanup:
+        conn.close()
+    }
+
+    def "migrations are recorded and applied once"() {
+        when:
+        DbSchema.setup(dataSource)
+        DbSchema.setup(dataSource)
+
+        then:
+        DbSchema.getVersion(dataSource) == 10
+        def conn = dataSource.getConnection()
+        def rs = conn.createStatement().executeQuery("select count(*) from schema_migrations")
+        rs.next()
+        rs.getInt(1) == 10
+
+        when: "the withdrawal id index is created as well"
+        conn.createStatement().execute("insert into withdrawal_requests (from_account_id, withdrawal_id, to_address, amount) values (1, 'w-1', 'abc', 1)")
+        conn.createStatement().execute("insert into withdrawal_requests (from_account_id, withdrawal_id, to_address, amount) values (1, 'w-1', 'abc', 1)")
+
+        then:
+        thrown(SQLException)
+
+        cleanup:
+        conn.close()
+    }
+
+    def "a database created before migrations were versioned is brought up to date"() {
+        given: "the tables as they were created before schema_migrations, with a pending withdrawal"
+        def conn = dataSource.getConnection()
+        def stmt = conn.createStatement()
+        stmt.execute("create table account_balances (account_id integer not null primary key autoincrement, user_id integer not null, balance integer default 0 not null, created_at TEXT default (datetime('now')), updated_at TEXT default (datetime('now')))")
+        stmt.execute("create table withdrawal_requests (id integer not null primary key autoincrement, from_account_id integer not null, withdrawal_id TEXT not null, to_address TEXT not null, amount integer not null, status INTEGER default 0 not null, created_at text default (datetime('now')) not null, updated_at TEXT default (datetime('now')) not null)")
+        stmt.execute("insert into account_balances (account_id, user_id, balance) values (1, 1, 500)")
+        stmt.execute("insert into withdrawal_requests (from_account_id, withdrawal_id, to_address, amount, status) values (1, 'w-1', 'abc', 29, 1)")
+
+        when:
+        DbSchema.setup(dataSource)
+
+        then:
+        DbSchema.getVersion(dataSource) == 10
+        new BalanceDAO(conn).getAccountBalance(1) == 500
+
+        and: "the pending withdrawal is due right away"
+        new WithdrawalRequestDAO(conn).getDueWithdrawals(System.currentTimeMillis(), 0, 0, 10)*.withdrawalId == ["w-1"]
+
+        cleanup:
+        conn.close()
+    }
+}
@@ -0,0 +1,106 @@
+package com.felix
+
+import com.felix.dao.BalanceDAO
+import com.felix.dto.TransferRequest
+import com.felix.external.WithdrawalServiceStub
+import com.felix.service.TransferService
+import com.zaxxer.hikari.HikariDataSource
+import spock.lang.Specification
+
+import java.sql.SQLException
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+
+class SqliteProfileTest extends Specification {
+    static final String DB_FILE = "test-profile.db"
+
+    SqliteProfile profile = SqliteProfile.defaults()
+    HikariDataSource writer
+    HikariDataSource reader
+
+    def setup() {
+        writer = HikariCPDataSource.createWriterDataSource(DB_FILE, profile)
+        DbSchema.setup(writer)
+        writer.getConnection().withCloseable {
+            def balanceDAO = new BalanceDAO(it)
+            balanceDAO.setupAccount(1, 1, 1000)
+            balanceDAO.setupAccount(2, 2, 0)
+        }
+        reader = HikariCPDataSource.createReaderDataSource(DB_FILE, profile)
+    }
+
+    def cleanup() {
+        reader.close()
+        writer.close()
+        [DB_FILE, DB_FILE + "-wal", DB_FILE + "-shm"].each { new File(it).delete() }
+    }
+
+    def "the writer runs in wal mode and readers cannot write"() {
+        expect:
+        writer.getConnection().withCloseable { conn ->
+            conn.createStatement().withCloseable { it.executeQuery("pragma journal_mode").getString(1) }
+        } == "wal"
+
+        when:
+        reader.getConnection().withCloseable { new BalanceDAO(it).setBalance(1, 0) }
+
+        then:
+        thrown(SQLException)
+    }
+
+    def "readers see the last committed balance while a write transaction is open"() {
+        given:
+        def writeConn = writer.getConnection()
+        writeConn.setAutoCommit(false)
+        new BalanceDAO(writeConn).setBalance(1, 500)
+
+        expect:
+        reader.getConnection().withCloseable { new BalanceDAO(it).getAccountBalance(1) } == 1000
+
+        when:
+        writeConn.commit()
+
+        then:
+        reader.getConnection().withCloseable { new BalanceDAO(it).getAccountBalance(1) } == 500
+
+        cleanup:
+        writeConn.close()
+    }
+
+    def "concurrent transfers queue on the writer instead of failing"() {
+        given:
+        def transferService = new TransferService(writer, reader, new WithdrawalServiceStub(), null)
+        def executor = Executors.newFixedThreadPool(8)
+        def request = TransferRequest.builder().fromAccountId(1).toAccountId(2).amount(1).build()
+
+        when:
+        def results = executor.invokeAll((1..200).collect { { -> transferService.transfer(request) } as Callable })
+                .collect { it.get() }
+
+        then:
+        results.every { it.isSuccessful() }
+        reader.getConnection().withCloseable { new BalanceDAO(it).getAccountBalance(2) } == 200
+
+        cleanup:
+        executor.shutdown()
+    }
+
+    def "the checkpointer folds the wal back into the database"() {
+        given:
+        def checkpointer = new WalCheckpointer(DB_FILE, profile)
+        writer.getConnection().withCloseable {
+            def balanceDAO = new BalanceDAO(it)
+            (1..50).each { balance -> balanceDAO.setBalance(1, balance) }
+        }
+
+        when:
+        def walFrames = checkpointer.checkpoint("passive")
+
+        then:
+        walFrames > 0
+        checkpointer.getCheckpointCount() == 1
+
+        cleanup:
+        checkpointer.close()
+    }
+}
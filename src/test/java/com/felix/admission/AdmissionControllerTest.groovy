@@ -0,0 +1,177 @@
+package com.felix.admission
+
+import spock.lang.Specification
+
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+class AdmissionControllerTest extends Specification {
+    AdmissionController sut
+    CountDownLatch gate = new CountDownLatch(1)
+
+    def cleanup() {
+        gate.countDown()
+        sut.close()
+    }
+
+    def blocked(Object result = null) {
+        return {
+            gate.await(5, TimeUnit.SECONDS)
+            result
+        }
+    }
+
+    def "no more than maxInFlight writes run at once"() {
+        given:
+        sut = new AdmissionController(16, 100, 2)
+        def running = new AtomicInteger()
+        def maxRunning = new AtomicInteger()
+
+        when:
+        def results = (1..20).collect { i ->
+            sut.submit(i, {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max)
+                Thread.sleep(5)
+                running.decrementAndGet()
+                i
+            })
+        }
+
+        then:
+        results*.get(5, TimeUnit.SECONDS) == (1..20).toList()
+        maxRunning.get() == 2
+    }
+
+    def "a write to a full stripe is rejected with a retry hint"() {
+        given:
+        sut = new AdmissionController(16, 2, 1)
+        def running = sut.submit(1, blocked("first"))
+        def queued = (1..2).collect { sut.submit(1, blocked("queued")) }
+
+        when:
+        sut.submit(1, blocked("rejected")).get(5, TimeUnit.SECONDS)
+
+        then:
+        def e = thrown(ExecutionException)
+        e.cause instanceof AdmissionRejectedException
+        (e.cause as AdmissionRejectedException).retryAfterSeconds >= 1
+
+        and: "the writes already queued still run"
+        gate.countDown()
+        running.get(5, TimeUnit.SECONDS) == "first"
+        queued*.get(5, TimeUnit.SECONDS) == ["queued", "queued"]
+        sut.snapshot().rejected == 1L
+    }
+
+    def "a hammered account does not hold back the other stripes"() {
+        given:
+        sut = new AdmissionController(16, 100, 1)
+        def order = new CopyOnWriteArrayList()
+        def running = sut.submit(1, blocked())
+
+        when: "account 1 queues a backlog before account 2 queues a single write"
+        def hammered = (1..10).collect { i -> sut.submit(1, { order << "account-1"; i }) }
+        def other = sut.submit(2, { order << "account-2"; 0 })
+        gate.countDown()
+        running.get(5, TimeUnit.SECONDS)
+        (hammered + other)*.get(5, TimeUnit.SECONDS)
+
+        then: "account 2 runs right after the first of account 1's backlog"
+        order.indexOf("account-2") == 1
+    }
+
+    def "an async write holds its slot until it completes"() {
+        given:
+        sut = new AdmissionController(16, 100, 1)
+        def commit = new CompletableFuture()
+        def first = sut.submitAsync(1, { commit })
+
+        when:
+        def second = sut.submit(2, { "second" })
+        Thread.sleep(50)
+
+        then:
+        !second.isDone()
+        sut.snapshot().inFlight == 1
+
+        when:
+        commit.complete("first")
+
+        then:
+        first.get(5, TimeUnit.SECONDS) == "first"
+        second.get(5, TimeUnit.SECONDS) == "second"
+    }
+
+    def "the snapshot reports queue depth and wait per stripe"() {
+        given:
+        sut = new AdmissionController(16, 100, 1)
+        def running = sut.submit(1, blocked())
+        def queued = (1..3).collect { sut.submit(1, { it }) }
+
+        when:
+        def busy = sut.snapshot()
+
+        then:
+        busy.inFlight == 1
+        busy.queued == 3
+        busy.stripes.size() == 1
+        busy.stripes[0].depth == 3
+
+        when:
+        Thread.sleep(20)
+        gate.countDown()
+        running.get(5, TimeUnit.SECONDS)
+        queued*.get(5, TimeUnit.SECONDS)
+        def idle = sut.snapshot()
+
+        then:
+        idle.queued == 0
+        idle.admitted == 4L
+        idle.stripes[0].depth == 0
+        idle.stripes[0].maxWaitMicros >= 20_000L
+    }
+
+    def "a failed write frees its slot"() {
+        given:
+        sut = new AdmissionController(16, 100, 1)
+
+        when:
+        sut.submit(1, { throw new IllegalStateException("boom") }).get(5, TimeUnit.SECONDS)
+
+        then:
+        def e = thrown(ExecutionException)
+        e.cause instanceof IllegalStateException
+
+        and:
+        sut.submit(1, { "next" }).get(5, TimeUnit.SECONDS) == "next"
+    }
+
+    def "batches share a stripe of their own and take one turn of the round robin"() {
+        given:
+        sut = new AdmissionController(16, 3, 1)
+        def order = new CopyOnWriteArrayList()
+        def running = sut.submit(1, blocked())
+
+        when: "batches queue up before account 2 queues a single write"
+        def batches = (1..3).collect { i -> sut.submitBatch({ order << "batch"; i }) }
+        def other = sut.submit(2, { order << "account-2"; 0 })
+        sut.submitBatch({ "rejected" }).get(5, TimeUnit.SECONDS)
+
+        then: "a fourth batch finds the batch stripe full, whatever accounts it debits"
+        def e = thrown(ExecutionException)
+        e.cause instanceof AdmissionRejectedException
+
+        when:
+        gate.countDown()
+        running.get(5, TimeUnit.SECONDS)
+        (batches + other)*.get(5, TimeUnit.SECONDS)
+
+        then: "account 2 runs right after the first batch"
+        order == ["batch", "account-2", "batch", "batch"]
+        sut.snapshot().stripes.find { it.stripe == "batch" }.admitted == 3L
+    }
+}
@@ -0,0 +1,200 @@
+package com.felix.audit
+
+import com.felix.DbSchema
+import com.felix.HikariCPDataSource
+import com.felix.SqliteProfile
+import com.felix.dao.BalanceDAO
+import com.felix.dao.PostingDAO
+import com.felix.dto.TransferRequest
+import com.felix.dto.WithdrawalRequest
+import com.felix.external.WithdrawalService
+import com.felix.service.TransferService
+import com.zaxxer.hikari.HikariDataSource
+import spock.lang.Specification
+
+import javax.sql.DataSource
+import java.sql.SQLException
+
+class BalanceAuditorTest extends Specification {
+    HikariDataSource writeDataSource
+    HikariDataSource readDataSource
+    TransferService transferService
+
+    BalanceAuditor sut
+
+    def setup() {
+        writeDataSource = HikariCPDataSource.createWriterDataSource("test-audit.db", SqliteProfile.defaults())
+        DbSchema.setup(writeDataSource)
+        readDataSource = HikariCPDataSource.createReaderDataSource("test-audit.db", SqliteProfile.defaults())
+        withBalanceDAO { dao -> (1..5).each { dao.setupAccount(it, it, 1_000) } }
+        transferService = new TransferService(writeDataSource, readDataSource, Mock(WithdrawalService), null)
+        // a task per 3 postings, so even small runs are folded in parallel
+        sut = new BalanceAuditor(writeDataSource, readDataSource, 4, 3)
+    }
+
+    def cleanup() {
+        sut.close()
+        readDataSource.close()
+        writeDataSource.close()
+        ["", "-wal", "-shm"].each { new File("test-audit.db" + it).delete() }
+    }
+
+    def "the first run baselines every account and later runs only check accounts with new activity"() {
+        when:
+        def first = sut.run(false)
+
+        then:
+        first.full()
+        first.accountsBaselined() == 5
+        first.driftCount() == 0
+
+        when:
+        def idle = sut.run(false)
+
+        then:
+        !idle.full()
+        idle.accountsChecked() == 0
+
+        when:
+        20.times { transferService.transfer(transfer(1, 2, 10)) }
+        transferService.transferBatch([transfer(4, 5, 100), transfer(5, 4, 30)], false)
+        def report = sut.run(false)
+
+        then: "every posting is folded once and only the four accounts moved are compared"
+        report.postingsFolded() == 44
+        report.accountsChecked() == 4
+        report.driftCount() == 0
+        report.postingSeq() > idle.postingSeq()
+        sut.run(false).postingsFolded() == 0
+    }
+
+    def "a balance changed without a posting is reported as drift, once"() {
+        given:
+        sut.run(false)
+        transferService.transfer(transfer(1, 2, 10))
+        withBalanceDAO { it.setBalance(2, 5_000) }
+
+        when:
+        def report = sut.run(false)
+
+        then:
+        report.driftCount() == 1
+        report.drifts() == [new AuditReport.Drift(2, 1_010, 5_000)]
+        sut.getDriftCount() == 1
+
+        when: "activity after the drift is checked against the balance as it is"
+        transferService.transfer(transfer(2, 3, 10))
+
+        then:
+        sut.run(false).driftCount() == 0
+    }
+
+    def "a full run finds drift on an account without activity"() {
+        given:
+        sut.run(false)
+        withBalanceDAO { it.setBalance(4, 0) }
+
+        expect:
+        sut.run(false).driftCount() == 0
+
+        when:
+        def report = sut.run(true)
+
+        then:
+        report.accountsChecked() == 5
+        report.drifts() == [new AuditReport.Drift(4, 1_000, 0)]
+    }
+
+    def "withdrawals are debited when committed and refunded when they fail"() {
+        given: "a withdrawal already pending when the audit starts"
+        def pending = withdraw(1, 100)
+        sut.run(false)
+
+        when:
+        def failed = withdraw(2, 200)
+        def succeeded = withdraw(3, 300)
+        def report = sut.run(false)
+
+        then:
+        report.withdrawalsFolded() == 2
+        report.driftCount() == 0
+
+        when:
+        transferService.applyWithdrawalFinalStates([
+                (pending)  : WithdrawalService.WithdrawalState.FAILED,
+                (failed)   : WithdrawalService.WithdrawalState.FAILED,
+                (succeeded): WithdrawalService.WithdrawalState.COMPLETED])
+        report = sut.run(false)
+
+        then: "the refunds are expected, the completed withdrawal is closed"
+        report.withdrawalsFolded() == 3
+        report.accountsChecked() == 2
+        report.driftCount() == 0
+        withBalanceDAO { it.getAccountBalance(1) } == 1_000
+        sut.run(true).driftCount() == 0
+    }
+
+    def "a run that can't be saved leaves its activity to the next one"() {
+        given:
+        sut.run(false)
+        transferService.transfer(transfer(1, 2, 10))
+        def closedWriter = Mock(DataSource) { getConnection() >> { throw new SQLException("closed") } }
+        def failing = new BalanceAuditor(closedWriter, readDataSource, 2)
+
+        when:
+        failing.run(false)
+
+        then:
+        thrown(SQLException)
+
+        when:
+        def report = sut.run(false)
+
+        then:
+        report.postingsFolded() == 2
+        report.driftCount() == 0
+
+        cleanup:
+        failing.close()
+    }
+
+    def "postings archived before a run folded them start the audit over instead of reporting drift"() {
+        given:
+        sut.run(false)
+        3.times { transferService.transfer(transfer(1, 2, 10)) }
+        writeDataSource.getConnection().withCloseable {
+            def postingDAO = new PostingDAO(it)
+            postingDAO.deletePostings(0, postingDAO.getMaxSeq())
+        }
+
+        when:
+        def report = sut.run(false)
+
+        then:
+        report.full()
+        report.accountsBaselined() == 5
+        report.driftCount() == 0
+
+        when:
+        transferService.transfer(transfer(2, 3, 10))
+        report = sut.run(false)
+
+        then:
+        !report.full()
+        report.postingsFolded() == 2
+        report.driftCount() == 0
+    }
+
+    private static TransferRequest transfer(int from, int to, long amount) {
+        TransferRequest.builder().fromAccountId(from).toAccountId(to).amount(amount).build()
+    }
+
+    private String withdraw(int from, long amount) {
+        transferService.requestWithdrawal(WithdrawalRequest.builder().fromAccountId(from).amount(amount).address("abc").build())
+                .data.withdrawalId
+    }
+
+    private <T> T withBalanceDAO(Closure<T> closure) {
+        writeDataSource.getConnection().withCloseable { closure(new BalanceDAO(it)) }
+    }
+}
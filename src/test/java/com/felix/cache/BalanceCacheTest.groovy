@@ -0,0 +1,84 @@
+package com.felix.cache
+
+import spock.lang.Specification
+
+import java.util.concurrent.CountDownLatch
+
+class BalanceCacheTest extends Specification {
+
+    def "balances are loaded once and served from the cache until invalidated"() {
+        given:
+        def cache = new BalanceCache(100)
+        def loads = 0
+        def loader = { int accountId -> loads++; return 100L * accountId } as BalanceCache.Loader
+
+        when:
+        def first = cache.get(7, loader)
+        def second = cache.get(7, loader)
+
+        then:
+        first == 700
+        second == 700
+        loads == 1
+        cache.snapshot().hits == 1
+        cache.snapshot().misses == 1
+
+        when:
+        cache.invalidate(7)
+        cache.get(7, loader)
+
+        then:
+        loads == 2
+    }
+
+    def "missing accounts are not cached"() {
+        given:
+        def cache = new BalanceCache(100)
+
+        expect:
+        cache.get(1, { null } as BalanceCache.Loader) == null
+        cache.size() == 0
+    }
+
+    def "a load that overlaps an invalidation is not cached"() {
+        given:
+        def cache = new BalanceCache(100)
+        def loading = new CountDownLatch(1)
+        def committed = new CountDownLatch(1)
+
+        when: "a reader loads the balance from before a commit"
+        def reader = Thread.start {
+            cache.get(1, { int accountId ->
+                loading.countDown()
+                committed.await()
+                return 100L
+            } as BalanceCache.Loader)
+        }
+        loading.await()
+        cache.invalidate(1)
+        committed.countDown()
+        reader.join()
+
+        then: "the next read loads the committed balance"
+        cache.get(1, { 60L } as BalanceCache.Loader) == 60
+    }
+
+    def "the cache stays bounded and a scan doesn't push out hot accounts"() {
+        given:
+        def cache = new BalanceCache(64)
+        def loader = { int accountId -> (long) accountId } as BalanceCache.Loader
+
+        and: "64 accounts read often"
+        5.times { (1..64).each { cache.get(it, loader) } }
+
+        when: "500 accounts read once"
+        (1_000..1_499).each { cache.get(it, loader) }
+        def hitsBefore = cache.snapshot().hits
+        (1..64).each { cache.get(it, loader) }
+
+        then:
+        cache.size() <= 64
+        cache.snapshot().hits - hitsBefore >= 48
+        cache.snapshot().rejections > 0
+    }
+}
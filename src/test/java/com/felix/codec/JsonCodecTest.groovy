@@ -0,0 +1,91 @@
+package com.felix.codec
+
+import com.fasterxml.jackson.databind.exc.UnrecognizedPropertyException
+import com.felix.dto.RequestWithdrawalResponse
+import com.felix.dto.WithdrawalResponseDto
+import com.felix.model.TransactionLogModel
+import com.felix.model.TransactionLogType
+import com.felix.model.WithdrawalRequestStatusEnum
+import com.felix.service.ErrorCode
+import com.felix.service.Response
+import spock.lang.Specification
+
+class JsonCodecTest extends Specification {
+
+    def "requests are decoded from the body bytes into minor units"() {
+        when:
+        def transfer = JsonCodec.decodeTransferRequest('{"fromAccountId": 1, "toAccountId": 2, "amount": 10.5}'.bytes)
+        def withdrawal = JsonCodec.decodeWithdrawalRequest('{"fromAccountId": 3, "amount": "0.29", "address": "abc"}'.bytes)
+        def batch = JsonCodec.decodeTransferBatchRequest('{"transfers": [{"fromAccountId": 1, "toAccountId": 2, "amount": 1}], "bestEffort": true}'.bytes)
+
+        then:
+        transfer.fromAccountId == 1
+        transfer.toAccountId == 2
+        transfer.amount == 1050
+        withdrawal.fromAccountId == 3
+        withdrawal.amount == 29
+        withdrawal.address == "abc"
+        batch.bestEffort
+        batch.transfers*.amount == [100L]
+    }
+
+    def "unknown fields are rejected"() {
+        when:
+        JsonCodec.decodeTransferRequest('{"fromAccountId": 1, "toAccountId": 2, "amount": 1, "bogus": 1}'.bytes)
+
+        then:
+        thrown(UnrecognizedPropertyException)
+    }
+
+    def "a successful transfer is written with its amount in the default currency"() {
+        given:
+        def log = TransactionLogModel.builder()
+                .id(7)
+                .accountId(1)
+                .amount(1050)
+                .details("transfer to account 2")
+                .type(TransactionLogType.TRANSER)
+                .build()
+
+        expect:
+        JsonCodec.encodeToString(Response.success(log)) ==
+                '{"status":"success","data":{"id":7,"accountId":1,"amount":10.5,"details":"transfer to account 2","type":"TRANSER"}}'
+    }
+
+    def "a failed response has no data unless it carries the results of a batch"() {
+        expect:
+        JsonCodec.encodeToString(Response.error(ErrorCode.INSUFFICIENT_BALANCE)) ==
+                '{"status":"failed","error":1,"errorMessage":null}'
+        JsonCodec.encodeToString(Response.error(ErrorCode.BATCH_ABORTED, "batch aborted", [Response.error(ErrorCode.ACCOUNT_NOT_FOUND)])) ==
+                '{"status":"failed","error":7,"errorMessage":"batch aborted","data":[{"status":"failed","error":2,"errorMessage":null}]}'
+    }
+
+    def "withdrawals and other values are written the way the bean serializer would"() {
+        given:
+        def withdrawal = WithdrawalResponseDto.builder()
+                .fromAccountId(1)
+                .withdrawalId("w-1")
+                .toAddress("abc")
+                .amount(29)
+                .status(WithdrawalRequestStatusEnum.REQUESTED)
+                .build()
+
+        expect:
+        JsonCodec.encodeToString(Response.success(withdrawal)) ==
+                '{"status":"success","data":{"id":null,"fromAccountId":1,"withdrawalId":"w-1","toAddress":"abc","amount":0.29,"status":"REQUESTED"}}'
+        JsonCodec.encodeToString(Response.success(RequestWithdrawalResponse.builder().withdrawalId("w-1").build())) ==
+                '{"status":"success","data":{"withdrawalId":"w-1"}}'
+        JsonCodec.encodeToString(Response.success(new BigDecimal("12.30"))) == '{"status":"success","data":12.30}'
+    }
+
+    def "encoding writes straight to the stream"() {
+        given:
+        def out = new ByteArrayOutputStream()
+
+        when:
+        JsonCodec.encode(Response.error(ErrorCode.RESOURCE_NOT_FOUND, "withdrawal not found"), out)
+
+        then:
+        out.toString("UTF-8") == '{"status":"failed","error":5,"errorMessage":"withdrawal not found"}'
+    }
+}
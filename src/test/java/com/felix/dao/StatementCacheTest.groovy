@@ -0,0 +1,87 @@
+package com.felix.dao
+
+import com.felix.DbSchema
+import com.felix.HikariCPDataSource
+import com.felix.model.WithdrawalRequestModel
+import com.felix.model.WithdrawalRequestStatusEnum
+import com.zaxxer.hikari.HikariDataSource
+import spock.lang.Specification
+
+import java.sql.SQLException
+
+class StatementCacheTest extends Specification {
+    HikariDataSource dataSource
+
+    def setup() {
+        dataSource = HikariCPDataSource.createNewDataSource("test-statement-cache.db", 2)
+        DbSchema.setup(dataSource)
+        dataSource.getConnection().withCloseable { new BalanceDAO(it).setupAccount(1, 1, 100) }
+    }
+
+    def cleanup() {
+        dataSource.close()
+        new File("test-statement-cache.db").delete()
+    }
+
+    def "statements survive the connection going back to the pool"() {
+        when:
+        def first = dataSource.getConnection().withCloseable {
+            def cache = StatementCache.of(it)
+            [cache, cache.prepare("select balance from account_balances where account_id = ?")]
+        }
+        def second = dataSource.getConnection().withCloseable {
+            def cache = StatementCache.of(it)
+            [cache, cache.prepare("select balance from account_balances where account_id = ?")]
+        }
+
+        then:
+        first[0].is(second[0])
+        first[1].is(second[1])
+        !second[1].isClosed()
+    }
+
+    def "a failed statement can be executed again"() {
+        given:
+        def withdrawal = { String id ->
+            WithdrawalRequestModel.builder()
+                    .fromAccountId(1)
+                    .withdrawalId(id)
+                    .toAddress("abc")
+                    .amount(10)
+                    .status(WithdrawalRequestStatusEnum.CREATED.getCode())
+                    .build()
+        }
+
+        when:
+        dataSource.getConnection().withCloseable {
+            def dao = new WithdrawalRequestDAO(it)
+            dao.createWithdrawalRequest(withdrawal("w-1"))
+            try {
+                dao.createWithdrawalRequest(withdrawal("w-1"))
+            } catch (SQLException ignored) {
+                // duplicate withdrawal id
+            }
+            dao.createWithdrawalRequest(withdrawal("w-2"))
+        }
+
+        then:
+        dataSource.getConnection().withCloseable { new WithdrawalRequestDAO(it).getByWithdrawalId("w-2") } != null
+    }
+
+    def "a reader holding its connection does not block writers"() {
+        given:
+        def readerConn = dataSource.getConnection()
+        def reader = new BalanceDAO(readerConn)
+
+        when:
+        def before = reader.getAccountBalance(1)
+        dataSource.getConnection().withCloseable { new BalanceDAO(it).setBalance(1, 50) }
+
+        then:
+        before == 100
+        reader.getAccountBalance(1) == 50
+
+        cleanup:
+        readerConn.close()
+    }
+}
@@ -0,0 +1,92 @@
+package com.felix.dao
+
+import com.felix.DbSchema
+import com.felix.HikariCPDataSource
+import com.felix.model.WithdrawalRequestModel
+import com.felix.model.WithdrawalRequestStatusEnum
+import com.zaxxer.hikari.HikariDataSource
+import spock.lang.Specification
+
+import java.sql.Connection
+
+class WithdrawalRequestDAOTest extends Specification {
+    HikariDataSource dataSource
+    Connection conn
+    WithdrawalRequestDAO sut
+
+    def setup() {
+        dataSource = HikariCPDataSource.createNewDataSource("test-withdrawal-dao.db")
+        DbSchema.setup(dataSource)
+        conn = dataSource.getConnection()
+        sut = new WithdrawalRequestDAO(conn)
+    }
+
+    def cleanup() {
+        conn.close()
+        dataSource.close()
+        new File("test-withdrawal-dao.db").delete()
+    }
+
+    def create(String withdrawalId, WithdrawalRequestStatusEnum status, long nextCheckAt) {
+        sut.createWithdrawalRequest(WithdrawalRequestModel.builder()
+                .fromAccountId(1)
+                .withdrawalId(withdrawalId)
+                .toAddress("abc")
+                .amount(10)
+                .status(status.code)
+                .nextCheckAt(nextCheckAt)
+                .build())
+    }
+
+    def "due withdrawals are paged in next check order"() {
+        given:
+        create("w-1", WithdrawalRequestStatusEnum.REQUESTED, 300)
+        create("w-2", WithdrawalRequestStatusEnum.REQUESTED, 100)
+        create("w-3", WithdrawalRequestStatusEnum.SUCCESS, 0)
+        create("w-4", WithdrawalRequestStatusEnum.REQUESTED, 100)
+        create("w-5", WithdrawalRequestStatusEnum.CREATED, 0)
+        create("w-6", WithdrawalRequestStatusEnum.REQUESTED, 900)
+
+        when:
+        def first = sut.getDueWithdrawals(500, 0, 0, 2)
+        def second = sut.getDueWithdrawals(500, first.last().nextCheckAt, first.last().id, 2)
+
+        then: "only requested withdrawals due by then, ties in id order"
+        first*.withdrawalId == ["w-2", "w-4"]
+        second*.withdrawalId == ["w-1"]
+
+        when: "a withdrawal is checked later"
+        sut.setNextCheckAt("w-2", 1_000)
+
+        then:
+        sut.getDueWithdrawals(500, 0, 0, 10)*.withdrawalId == ["w-4", "w-1"]
+        sut.getDueWithdrawals(Long.MAX_VALUE, 0, 0, 10)*.withdrawalId == ["w-4", "w-1", "w-6", "w-2"]
+
+        and: "final withdrawals keep their schedule"
+        !sut.setNextCheckAt("w-3", 1_000)
+        sut.getByWithdrawalId("w-3").nextCheckAt == 0
+    }
+
+    def "pending work is read from the partial index with the status bound"() {
+        expect:
+        plan("""
+                select * from withdrawal_requests
+                where status = ? and next_check_at <= ? and (next_check_at, id) > (?, ?)
+                order by next_check_at, id
+                limit ?
+                """, 1, 5, 0, 0, 10) == "SEARCH withdrawal_requests USING INDEX withdrawal_requests_pending_index (status=? AND next_check_at>? AND next_check_at<?)"
+        plan("select * from withdrawal_requests where status = ? order by next_check_at, id limit ?", 0, 10) ==
+                "SEARCH withdrawal_requests USING INDEX withdrawal_requests_pending_index (status=?)"
+    }
+
+    private String plan(String sql, Object... params) {
+        def stmt = conn.prepareStatement("explain query plan " + sql)
+        params.eachWithIndex { param, i -> stmt.setObject(i + 1, param) }
+        def rs = stmt.executeQuery()
+        def details = []
+        while (rs.next()) {
+            details << rs.getString("detail")
+        }
+        return details.join("\n")
+    }
+}
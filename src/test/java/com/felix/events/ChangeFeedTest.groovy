@@ -0,0 +1,213 @@
+package com.felix.events
+
+import com.felix.DbSchema
+import com.felix.HikariCPDataSource
+import com.felix.dao.BalanceDAO
+import com.felix.dto.TransferRequest
+import com.felix.dto.WithdrawalRequest
+import com.felix.external.WithdrawalService
+import com.felix.model.TransferIntentStatusEnum
+import com.felix.model.WithdrawalRequestStatusEnum
+import com.felix.service.TransferService
+import spock.lang.Specification
+
+import java.nio.charset.StandardCharsets
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+class ChangeFeedTest extends Specification {
+    ChangeFeed sut = new ChangeFeed(8)
+
+    def cleanup() {
+        sut.close()
+    }
+
+    def "a change nobody listens to goes nowhere"() {
+        when:
+        sut.transferChanged(1, 1, 2, 100, TransferIntentStatusEnum.COMMITTED)
+        sut.withdrawalChanged("w1", 1, 100, WithdrawalRequestStatusEnum.CREATED)
+
+        then:
+        sut.getOpenCount() == 0
+    }
+
+    def "an account stream opens with a comment and gets the account's transfers and withdrawals"() {
+        given:
+        def sink = new RecordingSink()
+        sut.subscribeAccount(2, sink)
+
+        when:
+        sut.transferChanged(7, 1, 2, 150, TransferIntentStatusEnum.COMMITTED)
+        sut.transferChanged(8, 1, 3, 150, TransferIntentStatusEnum.COMMITTED)
+        sut.withdrawalChanged("w1", 2, 100, WithdrawalRequestStatusEnum.CREATED)
+        waitUntil { events(sink).size() == 2 }
+
+        then:
+        sink.text().startsWith(": open\n\n")
+        sink.text().contains('event: transfer\ndata: {"transferId":7,"fromAccountId":1,"toAccountId":2,"amount":1.5,"status":"COMMITTED"}\n\n')
+        events(sink) == ["transfer COMMITTED", "withdrawal CREATED"]
+        !sink.closed
+        sut.getOpenCount() == 1
+    }
+
+    def "a withdrawal stream starts with the current status, skips the changes it covers and ends with the final one"() {
+        given:
+        def sink = new RecordingSink()
+        def subscription = sut.subscribeWithdrawal("w1", sink)
+
+        when: "changes committed while the status is read are held"
+        sut.withdrawalChanged("w1", 1, 100, WithdrawalRequestStatusEnum.REQUESTED)
+        Thread.sleep(50)
+
+        then:
+        sink.frames.isEmpty()
+
+        when: "the status read already was REQUESTED"
+        subscription.start(new WithdrawalChange("w1", 1, 100, WithdrawalRequestStatusEnum.REQUESTED))
+        sut.withdrawalChanged("w1", 1, 100, WithdrawalRequestStatusEnum.SUCCESS)
+        waitUntil { sink.closed }
+
+        then:
+        events(sink) == ["withdrawal REQUESTED", "withdrawal SUCCESS"]
+        sut.getOpenCount() == 0
+    }
+
+    def "a withdrawal stream of a withdrawal already final ends after its first event"() {
+        given:
+        def sink = new RecordingSink()
+
+        when:
+        sut.subscribeWithdrawal("w1", sink).start(new WithdrawalChange("w1", 1, 100, WithdrawalRequestStatusEnum.FAILED))
+        waitUntil { sink.closed }
+
+        then:
+        events(sink) == ["withdrawal FAILED"]
+        sut.getOpenCount() == 0
+    }
+
+    def "a cancelled stream is never written to"() {
+        given:
+        def sink = new RecordingSink()
+
+        when:
+        sut.subscribeWithdrawal("w1", sink).cancel()
+        sut.withdrawalChanged("w1", 1, 100, WithdrawalRequestStatusEnum.REQUESTED)
+
+        then:
+        sut.getOpenCount() == 0
+        sink.frames.isEmpty()
+        !sink.closed
+    }
+
+    def "a stream that falls further behind than its queue holds is closed"() {
+        given:
+        def stalled = new CountDownLatch(1)
+        def slow = new RecordingSink(stalled)
+        sut.subscribeAccount(1, slow)
+        waitUntil { slow.writing }
+
+        when: "more changes than the queue holds while the writer is stuck on the opening comment"
+        (1..20).each { sut.transferChanged(it, 1, 2, 100, TransferIntentStatusEnum.COMMITTED) }
+        stalled.countDown()
+        waitUntil { slow.closed }
+
+        then:
+        slow.closed
+        events(slow).isEmpty()
+        sut.getOverflowCount() == 1
+        sut.getOpenCount() == 0
+    }
+
+    def "a client that went away is noticed at the next keepalive"() {
+        given:
+        sut.start(20)
+        def gone = new RecordingSink()
+        def idle = new RecordingSink()
+        sut.subscribeAccount(1, gone)
+        sut.subscribeAccount(2, idle)
+
+        when:
+        gone.open = false
+        waitUntil { gone.closed && idle.text().contains(": keepalive\n\n") }
+
+        then:
+        gone.closed
+        !idle.closed
+        sut.getOpenCount() == 1
+    }
+
+    def "changes reach the streams once the transfer service committed them"() {
+        given:
+        def dataSource = HikariCPDataSource.createNewDataSource("test-change-feed.db")
+        DbSchema.setup(dataSource)
+        dataSource.getConnection().withCloseable {
+            new BalanceDAO(it).setupAccount(1, 1, 1_000)
+            new BalanceDAO(it).setupAccount(2, 2, 0)
+        }
+        def transferService = new TransferService(dataSource, dataSource, Mock(WithdrawalService), null, null, sut)
+        def sink = new RecordingSink()
+        sut.subscribeAccount(1, sink)
+
+        when:
+        transferService.transfer(TransferRequest.builder().fromAccountId(1).toAccountId(2).amount(100).build())
+        transferService.transfer(TransferRequest.builder().fromAccountId(1).toAccountId(2).amount(5_000).build())
+        def withdrawalId = transferService.requestWithdrawal(
+                WithdrawalRequest.builder().fromAccountId(1).amount(300).address("abc").build()).data.withdrawalId
+        transferService.applyWithdrawalFinalStates([(withdrawalId): WithdrawalService.WithdrawalState.FAILED])
+        transferService.applyWithdrawalFinalStates([(withdrawalId): WithdrawalService.WithdrawalState.FAILED])
+        waitUntil { events(sink).size() == 3 }
+        Thread.sleep(50)
+
+        then: "the refused transfer and the second, ignored, final state aren't changes"
+        events(sink) == ["transfer COMMITTED", "withdrawal CREATED", "withdrawal FAILED"]
+        sink.text().contains(""""withdrawalId":"$withdrawalId","accountId":1,"amount":3,"status":"FAILED\"""")
+
+        cleanup:
+        dataSource.close()
+        new File("test-change-feed.db").delete()
+    }
+
+    static List<String> events(RecordingSink sink) {
+        (sink.text() =~ /event: (\w+)\ndata: .*"status":"(\w+)"/).collect { it[1] + " " + it[2] }
+    }
+
+    static void waitUntil(Closure<Boolean> condition) {
+        def deadline = System.currentTimeMillis() + 5_000
+        while (!condition() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10)
+        }
+    }
+
+    static class RecordingSink implements EventSink {
+        final List<String> frames = new CopyOnWriteArrayList<>()
+        final CountDownLatch stalled
+        volatile boolean open = true
+        volatile boolean writing
+        volatile boolean closed
+
+        RecordingSink(CountDownLatch stalled = null) {
+            this.stalled = stalled
+        }
+
+        @Override
+        boolean write(byte[] frames) {
+            writing = true
+            stalled?.await(5, TimeUnit.SECONDS)
+            if (!open) {
+                return false
+            }
+            this.frames << new String(frames, StandardCharsets.UTF_8)
+            return true
+        }
+
+        @Override
+        void close() {
+            closed = true
+        }
+
+        String text() {
+            frames.join("")
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.felix.export
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.felix.DbSchema
+import com.felix.HikariCPDataSource
+import com.felix.dao.BalanceDAO
+import com.felix.model.TransactionLogModel
+import com.felix.model.TransactionLogType
+import com.felix.money.CurrencyUnit
+import com.zaxxer.hikari.HikariDataSource
+import spock.lang.Specification
+
+class TableExporterTest extends Specification {
+    HikariDataSource dataSource
+    BalanceDAO balanceDAO
+    TableExporter sut
+
+    def setup() {
+        dataSource = HikariCPDataSource.createNewDataSource("test-export.db")
+        DbSchema.setup(dataSource)
+        balanceDAO = new BalanceDAO(dataSource.getConnection())
+        (1..5).each { balanceDAO.setupAccount(it, it, it * 100) }
+        sut = new TableExporter(dataSource, CurrencyUnit.of("USD"))
+    }
+
+    def cleanup() {
+        dataSource.close()
+        new File("test-export.db").delete()
+    }
+
+    def "balances are exported in pages keyed by account id"() {
+        when:
+        def firstPage = export { sut.exportAccountBalances(it, ExportFormat.NDJSON, 0, 2) }
+        def lastAccountId = new ObjectMapper().readTree(firstPage.readLines().last()).get("accountId").asInt()
+        def secondPage = export { sut.exportAccountBalances(it, ExportFormat.NDJSON, lastAccountId, 2) }
+
+        then:
+        firstPage == '{"accountId":1,"userId":1,"balance":1}\n{"accountId":2,"userId":2,"balance":2}\n'
+        secondPage.readLines()*.take(14) == ['{"accountId":3', '{"accountId":4']
+    }
+
+    def "transaction logs are exported as a JSON array or CSV"() {
+        given:
+        balanceDAO.insertTransactionLog(TransactionLogModel.builder()
+                .accountId(1).amount(150).type(TransactionLogType.TRANSER).details('to "2", twice').build())
+        balanceDAO.insertTransactionLog(TransactionLogModel.builder()
+                .accountId(2).amount(5).type(TransactionLogType.WITHDRAW).details("abc").build())
+
+        when:
+        def json = new ObjectMapper().readValue(export { sut.exportTransactionLogs(it, ExportFormat.JSON, 0, 0) }, List)
+        def csv = export { sut.exportTransactionLogs(it, ExportFormat.CSV, 1, 0) }
+
+        then:
+        json*.details == ['to "2", twice', 'abc']
+        json*.amount == [1.50, 0.05]
+        json*.type == ['TRANSER', 'WITHDRAW']
+        csv == 'id,accountId,amount,type,details\n2,2,0.05,WITHDRAW,abc\n'
+        export { sut.exportTransactionLogs(it, ExportFormat.CSV, 0, 1) }.readLines()[1] == '1,1,1.5,TRANSER,"to ""2"", twice"'
+    }
+
+    def "balance map keeps the shape of /balances"() {
+        expect:
+        new ObjectMapper().readValue(export { sut.exportBalanceMap(it) }, Map) == ["1": 1.00, "2": 2.00, "3": 3.00, "4": 4.00, "5": 5.00]
+    }
+
+    def "balances already in memory are written in the same shape"() {
+        expect:
+        new ObjectMapper().readValue(export { sut.exportBalanceMap([7: 1250L, 8: 0L], it) }, Map) == ["7": 12.50, "8": 0]
+    }
+
+    def "an empty page is an empty array"() {
+        expect:
+        export { sut.exportAccountBalances(it, ExportFormat.JSON, 5, 0) } == '[]'
+    }
+
+    private static String export(Closure exporter) {
+        def out = new ByteArrayOutputStream()
+        exporter(out)
+        return out.toString("UTF-8")
+    }
+}
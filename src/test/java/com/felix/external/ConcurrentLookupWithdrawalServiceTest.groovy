@@ -0,0 +1,64 @@
+package com.felix.external
+
+import spock.lang.Specification
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+class ConcurrentLookupWithdrawalServiceTest extends Specification {
+
+    def "batch lookups fan out up to the concurrency limit"() {
+        given: "a provider that only answers single ids and takes a while doing it"
+        def inFlight = new AtomicInteger()
+        def maxInFlight = new AtomicInteger()
+        def known = (1..20).collect { new WithdrawalService.WithdrawalId(UUID.randomUUID()) }
+        def provider = Mock(WithdrawalService)
+        provider.getRequestState(_) >> { WithdrawalService.WithdrawalId id ->
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max)
+            Thread.sleep(20)
+            inFlight.decrementAndGet()
+            if (!known.contains(id)) {
+                throw new IllegalArgumentException("unknown")
+            }
+            WithdrawalService.WithdrawalState.COMPLETED
+        }
+        def sut = new ConcurrentLookupWithdrawalService(provider, 4)
+
+        when:
+        def unknown = new WithdrawalService.WithdrawalId(UUID.randomUUID())
+        def states = sut.getRequestStates(known + unknown)
+
+        then: "every known id is answered and unknown ids are left out"
+        states.size() == 20
+        states.values().every { it == WithdrawalService.WithdrawalState.COMPLETED }
+        !states.containsKey(unknown)
+
+        and:
+        maxInFlight.get() > 1
+        maxInFlight.get() <= 4
+
+        cleanup:
+        sut.close()
+    }
+
+    def "the stub pushes final states once they are reached"() {
+        given:
+        def stub = new WithdrawalServiceStub(10, 30)
+        def latch = new CountDownLatch(3)
+        def pushed = Collections.synchronizedMap([:])
+        stub.subscribe({ id, state ->
+            pushed[id] = state
+            latch.countDown()
+        } as WithdrawalService.WithdrawalStateListener)
+
+        when:
+        def ids = (1..3).collect { new WithdrawalService.WithdrawalId(UUID.randomUUID()) }
+        ids.each { stub.requestWithdrawal(it, new WithdrawalService.Address("abc"), BigDecimal.ONE) }
+
+        then:
+        latch.await(5, TimeUnit.SECONDS)
+        pushed.keySet() == ids as Set
+        stub.getRequestStates(ids) == pushed
+    }
+}
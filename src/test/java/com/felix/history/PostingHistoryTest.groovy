@@ -0,0 +1,140 @@
+package com.felix.history
+
+import com.felix.DbSchema
+import com.felix.HikariCPDataSource
+import com.felix.dao.BalanceDAO
+import com.felix.dto.TransferRequest
+import com.felix.external.WithdrawalService
+import com.felix.model.TransactionLogType
+import com.felix.service.TransferService
+import com.zaxxer.hikari.HikariDataSource
+import spock.lang.Specification
+
+import java.nio.file.Files
+import java.nio.file.Path
+
+class PostingHistoryTest extends Specification {
+    HikariDataSource dataSource
+    BalanceDAO balanceDAO
+    Path archiveDir
+    PostingHistory sut
+
+    def setup() {
+        dataSource = HikariCPDataSource.createNewDataSource("test-history.db")
+        DbSchema.setup(dataSource)
+        balanceDAO = new BalanceDAO(dataSource.getConnection())
+        balanceDAO.setupAccount(1, 1, 1_000_000)
+        balanceDAO.setupAccount(2, 2, 0)
+        balanceDAO.setupAccount(3, 3, 0)
+        archiveDir = Files.createTempDirectory("posting-archive")
+        sut = openHistory()
+    }
+
+    def cleanup() {
+        sut.close()
+        dataSource.close()
+        new File("test-history.db").delete()
+        archiveDir.toFile().deleteDir()
+    }
+
+    def openHistory() {
+        def history = new PostingHistory("test-history.db", dataSource, dataSource, archiveDir, 2)
+        history.open()
+        return history
+    }
+
+    def "a transfer writes a debit and a credit posting sharing its log id"() {
+        given:
+        def transferService = new TransferService(dataSource, Mock(WithdrawalService))
+
+        when:
+        def log = transferService.transfer(TransferRequest.builder().fromAccountId(1).toAccountId(2).amount(300).build()).data
+        def sender = sut.getAccountPostings(1, Long.MAX_VALUE, 10)
+        def receiver = sut.getAccountPostings(2, Long.MAX_VALUE, 10)
+
+        then:
+        sender.size() == 1
+        receiver.size() == 1
+        sender[0].transferId == log.id
+        receiver[0].transferId == log.id
+        sender[0].amount == -300
+        receiver[0].amount == 300
+        sender[0].counterpartyId == 2
+        receiver[0].counterpartyId == 1
+        receiver[0].seq == sender[0].seq + 1
+        sender[0].bucket == PostingHistory.bucketOf(System.currentTimeMillis())
+    }
+
+    def "history pages newest first by seq"() {
+        given:
+        (1..5).each { balanceDAO.insertTransferPostings(it, 1, 2, it, TransactionLogType.TRANSER) }
+
+        when:
+        def first = sut.getAccountPostings(1, Long.MAX_VALUE, 2)
+        def second = sut.getAccountPostings(1, first.last().seq, 2)
+        def third = sut.getAccountPostings(1, second.last().seq, 2)
+
+        then:
+        first*.transferId == [5, 4]
+        second*.transferId == [3, 2]
+        third*.transferId == [1]
+    }
+
+    def "months older than the hot ones move to archive files and stay readable"() {
+        given: "postings from three months ago, last month and this month"
+        (1..3).each { balanceDAO.insertTransferPostings(it, 1, 2, it, TransactionLogType.TRANSER) }
+        setBucket(202607, 1)
+        (4..6).each { balanceDAO.insertTransferPostings(it, 1, 2, it, TransactionLogType.TRANSER) }
+        setBucket(202609, 4)
+        (7..8).each { balanceDAO.insertTransferPostings(it, 1, 3, it, TransactionLogType.TRANSER) }
+        setBucket(202610, 7)
+
+        when: "october is archived with two hot months"
+        def archived = sut.archive(202610)
+
+        then: "july moved to its own file and left the live table"
+        archived == 1
+        sut.archiveCount == 1
+        Files.exists(archiveDir.resolve("postings-202607.db"))
+        liveBuckets() == [202609, 202610]
+
+        and: "history still reads across the live table and the archive"
+        sut.getAccountPostings(1, Long.MAX_VALUE, 100)*.transferId == [8, 7, 6, 5, 4, 3, 2, 1]
+        sut.getAccountPostings(2, Long.MAX_VALUE, 3)*.transferId == [6, 5, 4]
+        sut.getAccountPostings(2, sut.getAccountPostings(2, Long.MAX_VALUE, 4).last().seq, 10)*.transferId == [2, 1]
+
+        when: "the next month comes and the history is reopened"
+        sut.archive(202611)
+        sut.close()
+        sut = openHistory()
+
+        then:
+        sut.archiveCount == 2
+        liveBuckets() == [202610]
+        sut.getAccountPostings(1, Long.MAX_VALUE, 100)*.transferId == [8, 7, 6, 5, 4, 3, 2, 1]
+    }
+
+    def "bucket arithmetic crosses years"() {
+        expect:
+        PostingHistory.addMonths(202601, -1) == 202512
+        PostingHistory.addMonths(202612, 1) == 202701
+        PostingHistory.bucketOf(0) == 197001
+    }
+
+    private void setBucket(int bucket, int fromTransferId) {
+        dataSource.getConnection().withCloseable {
+            it.createStatement().executeUpdate("update postings set bucket = $bucket where transfer_id >= $fromTransferId")
+        }
+    }
+
+    private List<Integer> liveBuckets() {
+        dataSource.getConnection().withCloseable {
+            def rs = it.createStatement().executeQuery("select distinct bucket from postings order by bucket")
+            def buckets = []
+            while (rs.next()) {
+                buckets << rs.getInt(1)
+            }
+            return buckets
+        }
+    }
+}
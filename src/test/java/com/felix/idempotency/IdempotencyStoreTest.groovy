@@ -0,0 +1,162 @@
+package com.felix.idempotency
+
+import com.felix.DbSchema
+import com.felix.HikariCPDataSource
+import com.felix.dao.BalanceDAO
+import com.felix.dto.TransferRequest
+import com.felix.external.WithdrawalServiceStub
+import com.felix.service.TransferService
+import com.zaxxer.hikari.HikariDataSource
+import spock.lang.Specification
+
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+class IdempotencyStoreTest extends Specification {
+    HikariDataSource dataSource
+    IdempotencyStore sut
+    AtomicInteger executions = new AtomicInteger()
+
+    def setup() {
+        dataSource = HikariCPDataSource.createNewDataSource("test-idempotency.db")
+        DbSchema.setup(dataSource)
+        sut = new IdempotencyStore(dataSource, dataSource, 60_000, 100)
+    }
+
+    def cleanup() {
+        sut.close()
+        dataSource.close()
+        new File("test-idempotency.db").delete()
+    }
+
+    def respond(int statusCode = 200, boolean retryable = false) {
+        return {
+            CompletableFuture.completedFuture(new IdempotentResponse(
+                    statusCode, """{"execution":${executions.incrementAndGet()}}""", retryable))
+        }
+    }
+
+    def execute(IdempotencyStore store, String key, String body, Closure action) {
+        return store.execute("transfer", key, body.bytes, action).get(5, TimeUnit.SECONDS)
+    }
+
+    def "a retry gets the original response without running again"() {
+        when:
+        def first = execute(sut, "k1", "{}", respond())
+        def retry = execute(sut, "k1", "{}", respond())
+
+        then:
+        executions.get() == 1
+        !first.replayed()
+        retry.replayed()
+        retry.body() == first.body()
+        retry.statusCode() == 200
+
+        and: "keys are per scope"
+        !sut.execute("withdraw", "k1", "{}".bytes, respond()).get().replayed()
+        executions.get() == 2
+    }
+
+    def "concurrent requests with the same key run once"() {
+        given:
+        def running = new CompletableFuture<IdempotentResponse>()
+
+        when: "the first request is still running while nine more arrive"
+        def responses = (1..10).collect {
+            sut.execute("transfer", "k1", "{}".bytes, {
+                executions.incrementAndGet()
+                running
+            })
+        }
+        running.complete(new IdempotentResponse(200, "ok", false))
+
+        then:
+        responses*.get(5, TimeUnit.SECONDS)*.body() == ["ok"] * 10
+        responses*.get()*.replayed().count(true) == 9
+        executions.get() == 1
+    }
+
+    def "a key reused for another request body is rejected"() {
+        given:
+        execute(sut, "k1", '{"amount":1}', respond())
+
+        when:
+        execute(sut, "k1", '{"amount":2}', respond())
+
+        then:
+        def e = thrown(ExecutionException)
+        e.cause instanceof IdempotencyKeyReusedException
+        executions.get() == 1
+    }
+
+    def "responses are found in the table after a restart until they expire"() {
+        given:
+        execute(sut, "k1", "{}", respond(400))
+
+        when: "a store without recent keys is asked"
+        def restarted = new IdempotencyStore(dataSource, dataSource, 60_000, 100)
+        def replayed = execute(restarted, "k1", "{}", respond())
+
+        then:
+        executions.get() == 1
+        replayed.replayed()
+        replayed.statusCode() == 400
+
+        when: "the key expired"
+        def purged = restarted.purgeExpired(System.currentTimeMillis() + 60_000)
+        def later = new IdempotencyStore(dataSource, dataSource, 60_000, 100)
+        def rerun = execute(later, "k1", "{}", respond())
+
+        then:
+        purged == 1
+        !rerun.replayed()
+        executions.get() == 2
+
+        cleanup:
+        restarted?.close()
+        later?.close()
+    }
+
+    def "failures a retry may fix are not stored"() {
+        when:
+        execute(sut, "k1", "{}", respond(400, true))
+        def retry = execute(sut, "k1", "{}", respond())
+
+        then:
+        executions.get() == 2
+        !retry.replayed()
+        retry.statusCode() == 200
+    }
+
+    def "a write that committed is replayed after the store died before it saw the response"() {
+        given:
+        dataSource.getConnection().withCloseable {
+            new BalanceDAO(it).setupAccount(1, 1, 1_000)
+            new BalanceDAO(it).setupAccount(2, 2, 0)
+        }
+        def transferService = new TransferService(dataSource, new WithdrawalServiceStub())
+        def transfer = TransferRequest.builder().fromAccountId(1).toAccountId(2).amount(300).build()
+
+        when: "the transfer commits with its key and the process dies before the response reaches the store"
+        sut.execute("transfer", "k1", "{}".bytes, { key ->
+            transferService.transfer(transfer, key)
+            new CompletableFuture<IdempotentResponse>()
+        })
+        sut.close()
+        def restarted = new IdempotencyStore(dataSource, dataSource, 60_000, 100)
+        def retry = restarted.execute("transfer", "k1", "{}".bytes, { key ->
+            CompletableFuture.completedFuture(IdempotentResponse.of(transferService.transfer(transfer, key)))
+        }).get(5, TimeUnit.SECONDS)
+
+        then: "the retry gets the committed response and the money moved once"
+        retry.replayed()
+        retry.statusCode() == 200
+        transferService.getBalance(1).data == 700
+        transferService.getBalance(2).data == 300
+
+        cleanup:
+        restarted?.close()
+    }
+}
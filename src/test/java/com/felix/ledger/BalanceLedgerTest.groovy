@@ -0,0 +1,439 @@
+package com.felix.ledger
+
+import com.felix.DbSchema
+import com.felix.HikariCPDataSource
+import com.felix.dao.BalanceDAO
+import com.felix.dao.WithdrawalRequestDAO
+import com.felix.dto.WithdrawalRequest
+import com.felix.exception.TransactionFailedErrorCode
+import com.felix.exception.TransactionFailedException
+import com.felix.external.WithdrawalService
+import com.felix.external.WithdrawalServiceStub
+import com.felix.idempotency.IdempotencyStore
+import com.felix.idempotency.IdempotentResponse
+import com.felix.model.WithdrawalRequestModel
+import com.felix.model.WithdrawalRequestStatusEnum
+import com.felix.dto.TransferRequest
+import com.felix.service.ErrorCode
+import com.felix.service.TransferService
+import com.zaxxer.hikari.HikariDataSource
+import spock.lang.Specification
+
+import java.nio.file.Files
+import java.sql.Connection
+import java.nio.file.Path
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.TimeUnit
+
+class BalanceLedgerTest extends Specification {
+    HikariDataSource dataSource
+    Connection conn
+    BalanceDAO balanceDAO
+    Path journalDir
+
+    def setup() {
+        dataSource = HikariCPDataSource.createNewDataSource("test-ledger.db")
+        DbSchema.setup(dataSource)
+        conn = dataSource.getConnection()
+        balanceDAO = new BalanceDAO(conn)
+        journalDir = Files.createTempDirectory("ledger-journal")
+        balanceDAO.setupAccount(1, 1, 100_000)
+        balanceDAO.setupAccount(2, 2, 0)
+    }
+
+    def cleanup() {
+        dataSource.close()
+        new File("test-ledger.db").delete()
+        journalDir.toFile().deleteDir()
+    }
+
+    def openLedger(Map<Integer, Integer> hotAccountSlots = [:]) {
+        def ledger = new BalanceLedger(new LedgerJournal(journalDir, false), 16, hotAccountSlots)
+        new LedgerCheckpointer(dataSource, ledger).recover()
+        return ledger
+    }
+
+    def "concurrent transfers keep the total balance"() {
+        given:
+        def ledger = openLedger()
+
+        when: "20 threads move 50 back and forth"
+        def threads = (1..20).collect { i ->
+            new Thread({
+                if (i % 2 == 0) {
+                    ledger.transfer(1, 2, 5_000)
+                } else {
+                    try {
+                        ledger.transfer(2, 1, 5_000)
+                    } catch (TransactionFailedException ignored) {
+                        // receiver may not have the money yet
+                    }
+                }
+            })
+        }
+        threads*.start()
+        threads*.join()
+
+        then:
+        ledger.getBalance(1) + ledger.getBalance(2) == 100_000
+    }
+
+    def "insufficient balance is rejected without journaling"() {
+        given:
+        def ledger = openLedger()
+
+        when:
+        ledger.transfer(2, 1, 1)
+
+        then:
+        def e = thrown(TransactionFailedException)
+        e.errorCode == TransactionFailedErrorCode.INSUFFICIENT_BALANCE
+        ledger.getBalance(2) == 0
+    }
+
+    def "balances are rebuilt from the journal after a crash"() {
+        given: "a ledger that applied transfers but never checkpointed"
+        def ledger = openLedger()
+        ledger.transfer(1, 2, 10_000)
+        ledger.transfer(1, 2, 2_550)
+        ledger.debit(2, 50)
+
+        when: "a new ledger is opened over the same journal"
+        def recovered = openLedger()
+
+        then:
+        recovered.getBalance(1) == 87_450
+        recovered.getBalance(2) == 12_500
+
+        and: "recovery checkpointed the replayed state into the database"
+        balanceDAO.getAccountBalance(1) == 87_450
+        balanceDAO.getAccountBalance(2) == 12_500
+    }
+
+    def "checkpoint writes balances and transfer logs"() {
+        given:
+        def ledger = openLedger()
+        def checkpointer = new LedgerCheckpointer(dataSource, ledger)
+
+        when:
+        def seq = ledger.transfer(1, 2, 30_000)
+        checkpointer.checkpoint()
+
+        then:
+        balanceDAO.getAccountBalance(1) == 70_000
+        balanceDAO.getAccountBalance(2) == 30_000
+        balanceDAO.getMaxTransactionLogId() == seq
+
+        and: "a ledger opened afterwards does not apply the transfer twice"
+        def reopened = openLedger()
+        reopened.getBalance(1) == 70_000
+        reopened.getBalance(2) == 30_000
+    }
+
+    def "transfers out of a hot account spread over its slots and keep the total"() {
+        given:
+        balanceDAO.setupAccount(3, 3, 0)
+        def ledger = openLedger([1: 8])
+
+        when: "20 threads drain account 1 into accounts 2 and 3"
+        def threads = (1..20).collect { i ->
+            new Thread({
+                100.times {
+                    try {
+                        ledger.transfer(1, 2 + i % 2, 60)
+                    } catch (TransactionFailedException ignored) {
+                        // account 1 ran dry
+                    }
+                }
+            })
+        }
+        threads*.start()
+        threads*.join()
+
+        then: "account 1 was drained down to less than one transfer, without going negative or losing money"
+        ledger.getBalance(1) >= 0
+        ledger.getBalance(1) < 60
+        ledger.getBalance(1) + ledger.getBalance(2) + ledger.getBalance(3) == 100_000
+    }
+
+    def "a debit no single slot covers sweeps across the slots"() {
+        given: "100_000 spread over 4 slots of 25_000"
+        def ledger = openLedger([1: 4])
+
+        when:
+        ledger.transfer(1, 2, 90_000)
+
+        then:
+        ledger.getBalance(1) == 10_000
+        ledger.getBalance(2) == 90_000
+
+        when:
+        ledger.transfer(1, 2, 10_001)
+
+        then:
+        def e = thrown(TransactionFailedException)
+        e.errorCode == TransactionFailedErrorCode.INSUFFICIENT_BALANCE
+        ledger.getBalance(1) == 10_000
+    }
+
+    def "hot accounts are checkpointed and recovered as one balance"() {
+        given:
+        def ledger = openLedger([1: 4])
+        def checkpointer = new LedgerCheckpointer(dataSource, ledger)
+        ledger.transfer(1, 2, 1_000)
+        ledger.credit(1, 7)
+        ledger.transfer(2, 1, 500)
+        ledger.rebalanceHotAccounts()
+
+        when:
+        checkpointer.checkpoint()
+        ledger.debit(1, 3)
+        def recovered = openLedger([1: 4])
+
+        then:
+        balanceDAO.getAccountBalance(1) == 99_504
+        recovered.getBalance(1) == 99_504
+        recovered.getBalance(2) == 500
+    }
+
+    def "a snapshot is tagged with the journal seq of its last transfer"() {
+        given:
+        def ledger = openLedger([1: 4])
+        def seq = ledger.transfer(1, 2, 300)
+
+        when:
+        def snapshot = ledger.snapshot()
+        ledger.transfer(1, 2, 200)
+
+        then:
+        snapshot.seq() == seq
+        snapshot.balances() == [1: 99_700L, 2: 300L]
+        ledger.snapshot().balances() == [1: 99_500L, 2: 500L]
+    }
+
+    def "a batch is applied as a whole or rejected as a whole"() {
+        given:
+        def ledger = openLedger([1: 4])
+
+        when: "the third transfer spends more than account 2 received"
+        def outcomes = ledger.transferBatch([
+                new BalanceLedger.Transfer(1, 2, 30_000),
+                new BalanceLedger.Transfer(2, 1, 10_000),
+                new BalanceLedger.Transfer(2, 1, 30_000),
+        ], true)
+
+        then: "nothing is applied"
+        outcomes*.isApplied() == [false, false, false]
+        outcomes*.error() == [null, null, TransactionFailedErrorCode.INSUFFICIENT_BALANCE]
+        ledger.getBalance(1) == 100_000
+        ledger.getBalance(2) == 0
+
+        when: "the same batch is applied best effort"
+        outcomes = ledger.transferBatch([
+                new BalanceLedger.Transfer(1, 2, 30_000),
+                new BalanceLedger.Transfer(2, 1, 10_000),
+                new BalanceLedger.Transfer(2, 1, 30_000),
+                new BalanceLedger.Transfer(1, 9, 1),
+        ], false)
+
+        then:
+        outcomes*.isApplied() == [true, true, false, false]
+        outcomes*.error() == [null, null, TransactionFailedErrorCode.INSUFFICIENT_BALANCE, TransactionFailedErrorCode.ACCOUNT_NOT_FOUND]
+        outcomes[1].seq() > outcomes[0].seq()
+        ledger.getBalance(1) == 80_000
+        ledger.getBalance(2) == 20_000
+
+        and: "the journal replays the batch"
+        def recovered = openLedger([1: 4])
+        recovered.getBalance(1) == 80_000
+        recovered.getBalance(2) == 20_000
+    }
+
+    def "an atomic batch the journal fails to write changes no balance, so retrying it applies it once"() {
+        given:
+        def failing = new LedgerJournal(journalDir, false) {
+            @Override
+            long appendBatch(List<BalanceLedger.Transfer> transfers) throws IOException {
+                throw new IOException("disk full")
+            }
+        }
+        def ledger = new BalanceLedger(failing, 16)
+        new LedgerCheckpointer(dataSource, ledger).recover()
+        def transfers = [TransferRequest.builder().fromAccountId(1).toAccountId(2).amount(300).build(),
+                         TransferRequest.builder().fromAccountId(2).toAccountId(1).amount(100).build()]
+
+        when:
+        def aborted = new TransferService(dataSource, new WithdrawalServiceStub(), ledger).transferBatch(transfers)
+
+        then:
+        aborted.errorCode == ErrorCode.BATCH_ABORTED
+        aborted.data*.errorCode == [ErrorCode.SYSTEM_ERROR, ErrorCode.SYSTEM_ERROR]
+        ledger.getBalance(1) == 100_000
+        ledger.getBalance(2) == 0
+
+        when: "the client retries on a journal that works"
+        failing.close()
+        def recovered = openLedger()
+        def retried = new TransferService(dataSource, new WithdrawalServiceStub(), recovered).transferBatch(transfers)
+
+        then:
+        retried.successful
+        recovered.getBalance(1) == 99_800
+        recovered.getBalance(2) == 200
+    }
+
+    def "an atomic batch torn by a crash is replayed not at all"() {
+        given:
+        def ledger = openLedger()
+        ledger.transfer(1, 2, 50)
+        ledger.transferBatch([new BalanceLedger.Transfer(1, 2, 300), new BalanceLedger.Transfer(2, 1, 100)], true)
+
+        when: "the process died with the last transfer of the batch half written"
+        def segment = Files.list(journalDir).withCloseable { it.toList() }.max()
+        new RandomAccessFile(segment.toFile(), "rw").withCloseable { it.setLength(it.length() - 5) }
+        def recovered = openLedger()
+
+        then:
+        recovered.getBalance(1) == 99_950
+        recovered.getBalance(2) == 50
+    }
+
+    def "a withdrawal is CREATED once its debit is journaled, a refused one leaves no row"() {
+        given:
+        def ledger = openLedger()
+        def transferService = new TransferService(dataSource, new WithdrawalServiceStub(), ledger)
+        def withdrawalRequestDAO = new WithdrawalRequestDAO(conn)
+
+        when:
+        def accepted = transferService.requestWithdrawal(WithdrawalRequest.builder().fromAccountId(1).amount(300).address("abc").build())
+        def refused = transferService.requestWithdrawal(WithdrawalRequest.builder().fromAccountId(2).amount(300).address("abc").build())
+
+        then:
+        accepted.successful
+        withdrawalRequestDAO.getByWithdrawalId(accepted.data.withdrawalId).status == WithdrawalRequestStatusEnum.CREATED.code
+        ledger.getBalance(1) == 99_700
+        refused.errorCode == ErrorCode.INSUFFICIENT_BALANCE
+        withdrawalRequestDAO.getMaxId() == withdrawalRequestDAO.getByWithdrawalId(accepted.data.withdrawalId).id
+    }
+
+    def "recovery keeps a withdrawal whose debit was journaled and deletes one that was never debited"() {
+        given: "a crash after each withdrawal was committed as DEBITING, only the first one got its debit"
+        def ledger = openLedger()
+        def withdrawalRequestDAO = new WithdrawalRequestDAO(conn)
+        def debited = debiting("w-debited")
+        def undebited = debiting("w-undebited")
+        withdrawalRequestDAO.createWithdrawalRequest(debited)
+        withdrawalRequestDAO.createWithdrawalRequest(undebited)
+        ledger.debit(1, 300, debited.id)
+
+        when:
+        def recovered = openLedger()
+
+        then: "the money left the account once, for the withdrawal that will be dispatched"
+        recovered.getBalance(1) == 99_700
+        withdrawalRequestDAO.getByWithdrawalId("w-debited").status == WithdrawalRequestStatusEnum.CREATED.code
+        withdrawalRequestDAO.getByWithdrawalId("w-undebited") == null
+    }
+
+    def "a checkpoint makes a debited withdrawal CREATED in the transaction that writes the debit"() {
+        given:
+        def ledger = openLedger()
+        def checkpointer = new LedgerCheckpointer(dataSource, ledger)
+        def withdrawalRequestDAO = new WithdrawalRequestDAO(conn)
+        def withdrawal = debiting("w-1")
+        withdrawalRequestDAO.createWithdrawalRequest(withdrawal)
+        ledger.debit(1, 300, withdrawal.id)
+
+        when:
+        checkpointer.checkpoint()
+
+        then:
+        balanceDAO.getAccountBalance(1) == 99_700
+        withdrawalRequestDAO.getByWithdrawalId("w-1").status == WithdrawalRequestStatusEnum.CREATED.code
+
+        and: "recovery after the journal was checkpointed keeps it"
+        openLedger().getBalance(1) == 99_700
+        withdrawalRequestDAO.getByWithdrawalId("w-1").status == WithdrawalRequestStatusEnum.CREATED.code
+    }
+
+    def "a failed withdrawal is FAILED once its refund is journaled, and refunded once after a crash in between"() {
+        given: "three withdrawals of 300 debited through the ledger"
+        def ledger = openLedger()
+        def transferService = new TransferService(dataSource, new WithdrawalServiceStub(), ledger)
+        def withdrawalRequestDAO = new WithdrawalRequestDAO(conn)
+        def withdrawalIds = (1..3).collect {
+            transferService.requestWithdrawal(WithdrawalRequest.builder().fromAccountId(1).amount(300).address("abc").build()).data.withdrawalId
+        }
+
+        when: "the first one fails and is refunded, applying its state again changes nothing"
+        transferService.applyWithdrawalFinalStates([(withdrawalIds[0]): WithdrawalService.WithdrawalState.FAILED])
+        transferService.applyWithdrawalFinalStates([(withdrawalIds[0]): WithdrawalService.WithdrawalState.FAILED])
+
+        then:
+        withdrawalRequestDAO.getByWithdrawalId(withdrawalIds[0]).status == WithdrawalRequestStatusEnum.FAILED.code
+        ledger.getBalance(1) == 99_400
+
+        when: "the process dies after REFUNDING was committed, before the second one's credit and after the third one's"
+        withdrawalRequestDAO.setFinalStatus(withdrawalIds[1], WithdrawalRequestStatusEnum.REFUNDING.code)
+        def third = withdrawalRequestDAO.setFinalStatus(withdrawalIds[2], WithdrawalRequestStatusEnum.REFUNDING.code)
+        ledger.credit(1, 300, third.id)
+        def recovered = openLedger()
+
+        then: "recovery credits the one the journal never got, each refund is paid once"
+        recovered.getBalance(1) == 100_000
+        withdrawalIds.every { withdrawalRequestDAO.getByWithdrawalId(it).status == WithdrawalRequestStatusEnum.FAILED.code }
+        openLedger().getBalance(1) == 100_000
+    }
+
+    def "an idempotency key journaled with its transfer is replayed after a crash, one the journal never got is dropped"() {
+        given:
+        def transfer = TransferRequest.builder().fromAccountId(1).toAccountId(2).amount(300).build()
+        def ledger = openLedger()
+        def transferService = new TransferService(dataSource, new WithdrawalServiceStub(), ledger)
+        def store = new IdempotencyStore(dataSource, dataSource, 60_000, 100)
+
+        when: "the transfer is journaled and the process dies before any checkpoint"
+        def first = store.execute("transfer", "k1", "{}".bytes, { key ->
+            CompletableFuture.completedFuture(IdempotentResponse.of(transferService.transfer(transfer, key)))
+        }).get(5, TimeUnit.SECONDS)
+        and: "another key is reserved but its transfer never reaches the journal"
+        store.execute("transfer", "k2", "{}".bytes, { key ->
+            dataSource.getConnection().withCloseable { key.reserve(it, null) }
+            new CompletableFuture<IdempotentResponse>()
+        })
+        def recovered = openLedger()
+        def restartedService = new TransferService(dataSource, new WithdrawalServiceStub(), recovered)
+        def restarted = new IdempotencyStore(dataSource, dataSource, 60_000, 100)
+        def retry = { String idempotencyKey ->
+            restarted.execute("transfer", idempotencyKey, "{}".bytes, { key ->
+                CompletableFuture.completedFuture(IdempotentResponse.of(restartedService.transfer(transfer, key)))
+            }).get(5, TimeUnit.SECONDS)
+        }
+        def replayed = retry("k1")
+        def rerun = retry("k2")
+
+        then: "the journaled transfer is replayed with the response it got"
+        first.statusCode() == 200
+        replayed.replayed()
+        replayed.body() == first.body()
+
+        and: "the lost one runs again, so the money moved once per key"
+        !rerun.replayed()
+        rerun.statusCode() == 200
+        recovered.getBalance(1) == 99_400
+
+        cleanup:
+        store?.close()
+        restarted?.close()
+    }
+
+    private static WithdrawalRequestModel debiting(String withdrawalId) {
+        WithdrawalRequestModel.builder()
+                .fromAccountId(1)
+                .withdrawalId(withdrawalId)
+                .toAddress("abc")
+                .amount(300)
+                .status(WithdrawalRequestStatusEnum.DEBITING.code)
+                .build()
+    }
+}
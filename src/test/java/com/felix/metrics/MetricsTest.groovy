@@ -0,0 +1,140 @@
+package com.felix.metrics
+
+import com.felix.DbSchema
+import com.felix.HikariCPDataSource
+import com.felix.dao.BalanceDAO
+import com.felix.dto.TransferRequest
+import com.felix.external.WithdrawalServiceStub
+import com.felix.service.ErrorCode
+import com.felix.service.Response
+import com.felix.service.TransferService
+import com.zaxxer.hikari.HikariDataSource
+import spock.lang.Specification
+
+class MetricsTest extends Specification {
+    HikariDataSource dataSource
+
+    def cleanup() {
+        dataSource?.close()
+        new File("test-metrics.db").delete()
+    }
+
+    def "buckets cover every value without gaps"() {
+        expect:
+        (0L..<100_000L).every { LatencyHistogram.bucketOf(it) == LatencyHistogram.bucketOf(it - 1) || LatencyHistogram.bucketOf(it) == LatencyHistogram.bucketOf(it - 1) + 1 || it == 0 }
+        [127L, 128L, 1_000L, 123_456_789L, LatencyHistogram.MAX_VALUE].every {
+            LatencyHistogram.highestValueOf(LatencyHistogram.bucketOf(it)) >= it
+        }
+    }
+
+    def "quantiles are within the bucket precision"() {
+        given:
+        def histogram = new LatencyHistogram()
+        (1..10_000).each { histogram.record(it * 1_000L) }
+
+        expect:
+        histogram.count == 10_000
+        histogram.maxNanos == 10_000_000L
+        Math.abs(histogram.getValueAtQuantile(0.5) - 5_000_000L) <= 5_000_000L * 0.016
+        Math.abs(histogram.getValueAtQuantile(0.99) - 9_900_000L) <= 9_900_000L * 0.016
+        histogram.getValueAtQuantile(1) == 10_000_000L
+        new LatencyHistogram().getValueAtQuantile(0.5) == 0
+    }
+
+    def "statements of any batch size share one histogram"() {
+        expect:
+        Metrics.normalize("insert into t (a, b) values (?, ?), (?, ?), (?, ?)") == "insert into t (a, b) values (...)"
+        Metrics.normalize("""
+                select balance from account_balances where account_id in (?, ?, ?)
+                """) == "select balance from account_balances where account_id in (...)"
+        Metrics.normalize("select * from t where a = ? and b = ?") == "select * from t where a = ? and b = ?"
+    }
+
+    def "a transfer shows up in the scrape"() {
+        given:
+        dataSource = HikariCPDataSource.createNewDataSource("test-metrics.db")
+        DbSchema.setup(dataSource)
+        def conn = dataSource.getConnection()
+        new BalanceDAO(conn).setupAccount(1, 1, 100)
+        new BalanceDAO(conn).setupAccount(2, 2, 0)
+        conn.close()
+        def transferService = new TransferService(dataSource, new WithdrawalServiceStub())
+        def transfers = Metrics.TRANSFER.count
+
+        when:
+        transferService.transfer(TransferRequest.builder().fromAccountId(1).toAccountId(2).amount(10).build())
+        transferService.transfer(TransferRequest.builder().fromAccountId(1).toAccountId(2).amount(1_000).build())
+        def scrape = Metrics.scrape()
+
+        then:
+        Metrics.TRANSFER.count == transfers + 2
+        scrape.contains('operation_duration_seconds{operation="transfer",quantile="0.99"}')
+        scrape.contains('statement_duration_seconds_count{statement="insert into transaction_logs (account_id, amount, type, details) values (...)"}')
+        scrape.contains('transaction_failures_total{code="INSUFFICIENT_BALANCE"}')
+        scrape =~ /pool_connection_acquire_seconds_count\{pool="HikariPool-\d+"} [1-9]/
+    }
+
+    def "error responses are counted when sent, not when built, for every ErrorCode"() {
+        given:
+        def insufficient = errorCount(Metrics.scrape(), ErrorCode.INSUFFICIENT_BALANCE)
+        def pending = errorCount(Metrics.scrape(), ErrorCode.IDEMPOTENCY_KEY_PENDING)
+
+        when:
+        Response.error(ErrorCode.INSUFFICIENT_BALANCE)
+        Response.error(ErrorCode.IDEMPOTENCY_KEY_PENDING, "pending")
+        Metrics.recordError(ErrorCode.IDEMPOTENCY_KEY_PENDING)
+        def scrape = Metrics.scrape()
+
+        then:
+        errorCount(scrape, ErrorCode.INSUFFICIENT_BALANCE) == insufficient
+        errorCount(scrape, ErrorCode.IDEMPOTENCY_KEY_PENDING) == pending + 1
+    }
+
+    def "gauges are read at scrape time"() {
+        given:
+        long backlog = 3
+
+        when:
+        Metrics.gauge("test_backlog", "stage=\"a\"", "a test gauge", { backlog })
+        backlog = 5
+
+        then:
+        Metrics.scrape().contains("# TYPE test_backlog gauge\ntest_backlog{stage=\"a\"} 5\n")
+    }
+
+    def "counters read at scrape time are typed as counters, swallowed failures are counted by site"() {
+        given:
+        long retries = 2
+
+        when:
+        Metrics.counter("test_retries_total", "", "a test counter", { retries })
+        Metrics.recordSwallowed("test_site")
+        Metrics.recordSwallowed("test_site")
+        retries = 4
+        def scrape = Metrics.scrape()
+
+        then:
+        scrape.contains("# TYPE test_retries_total counter\ntest_retries_total 4\n")
+        scrape.contains('swallowed_failures_total{site="test_site"} 2\n')
+    }
+
+    def "nothing is recorded while metrics are off"() {
+        given:
+        def histogram = new LatencyHistogram()
+        Metrics.setEnabled(false)
+
+        when:
+        Metrics.record(histogram, Metrics.start())
+
+        then:
+        histogram.count == 0
+
+        cleanup:
+        Metrics.setEnabled(true)
+    }
+
+    private static long errorCount(String scrape, int code) {
+        def matcher = scrape =~ /error_responses_total\{code="${code}",name="\w+"} (\d+)/
+        return matcher.find() ? matcher.group(1) as long : -1
+    }
+}
@@ -0,0 +1,48 @@
+package com.felix.money
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.fasterxml.jackson.databind.exc.InvalidFormatException
+import com.felix.dto.TransferRequest
+import spock.lang.Specification
+
+class CurrencyUnitTest extends Specification {
+    def objectMapper = new ObjectMapper()
+
+    def "converts between amounts and minor units"() {
+        expect:
+        CurrencyUnit.of(code).toMinorUnits(new BigDecimal(amount)) == minorUnits
+        CurrencyUnit.of(code).toAmount(minorUnits) == new BigDecimal(amount)
+
+        where:
+        code  | amount       | minorUnits
+        "USD" | "10"         | 1_000
+        "USD" | "10.5"       | 1_050
+        "JPY" | "1000"       | 1_000
+        "BTC" | "0.00000001" | 1
+    }
+
+    def "rejects amounts finer than the currency"() {
+        when:
+        CurrencyUnit.of("USD").toMinorUnits(new BigDecimal("0.001"))
+
+        then:
+        thrown(IllegalArgumentException)
+    }
+
+    def "json amounts keep the decimal contract"() {
+        when:
+        def request = objectMapper.readValue('{"fromAccountId": 1, "toAccountId": 2, "amount": 10.5}', TransferRequest)
+
+        then:
+        request.amount == 1_050
+        objectMapper.writeValueAsString(request) == '{"fromAccountId":1,"toAccountId":2,"amount":10.5}'
+    }
+
+    def "json amounts with too many decimals are rejected"() {
+        when:
+        objectMapper.readValue('{"fromAccountId": 1, "toAccountId": 2, "amount": 0.001}', TransferRequest)
+
+        then:
+        thrown(InvalidFormatException)
+    }
+}
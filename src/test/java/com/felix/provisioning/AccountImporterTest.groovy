@@ -0,0 +1,145 @@
+package com.felix.provisioning
+
+import com.felix.DbSchema
+import com.felix.HikariCPDataSource
+import com.felix.SqliteProfile
+import com.felix.dao.AuditDAO
+import com.felix.dao.BalanceDAO
+import com.felix.export.ExportFormat
+import com.felix.export.TableExporter
+import com.felix.model.AuditCheckpointModel
+import com.felix.money.CurrencyUnit
+import com.felix.service.ShardedTransferService
+import com.zaxxer.hikari.HikariDataSource
+import spock.lang.Specification
+
+class AccountImporterTest extends Specification {
+    static final USD = CurrencyUnit.of("USD")
+
+    List<HikariDataSource> writeDataSources
+    List<Integer> imported = []
+
+    def setup() {
+        writeDataSources = (0..1).collect {
+            def dataSource = HikariCPDataSource.createWriterDataSource(
+                    ShardedTransferService.shardFilename("test-import.db", it), SqliteProfile.defaults())
+            DbSchema.setup(dataSource)
+            dataSource
+        }
+    }
+
+    def cleanup() {
+        writeDataSources*.close()
+        ["test-import.db", "test-import-1.db"].each { file ->
+            ["", "-wal", "-shm"].each { new File(file + it).delete() }
+        }
+    }
+
+    def "an export imports as it is, each account into its shard"() {
+        given:
+        def source = writeDataSources[0]
+        source.getConnection().withCloseable { conn -> (1..7).each { new BalanceDAO(conn).setupAccount(it, it + 100, it * 150) } }
+        def out = new ByteArrayOutputStream()
+        new TableExporter(source, USD).exportAccountBalances(out, format, 0, 0)
+        source.getConnection().withCloseable { it.createStatement().execute("delete from account_balances") }
+
+        when:
+        def report = importer(3).importAccounts(new ByteArrayInputStream(out.toByteArray()), format, {})
+
+        then:
+        report.done()
+        report.accountsImported() == 7
+        report.accountsSkipped() == 0
+        report.error() == null
+        balances(0) + balances(1) == (1..7).collectEntries { [(it): it * 150L] }
+        balances(0).keySet().every { ShardedTransferService.shardOf(it, 2) == 0 }
+        balances(1).keySet().every { ShardedTransferService.shardOf(it, 2) == 1 }
+        imported.sort() == (1..7).toList()
+
+        where:
+        format << [ExportFormat.CSV, ExportFormat.NDJSON, ExportFormat.JSON]
+    }
+
+    def "an account that exists is skipped and keeps its balance and audit checkpoint"() {
+        given:
+        def shard = ShardedTransferService.shardOf(1, 2)
+        writeDataSources[shard].getConnection().withCloseable {
+            new BalanceDAO(it).setupAccount(1, 1, 500)
+            new AuditDAO(it).saveCheckpoint(new AuditCheckpointModel(1, 500, 3))
+        }
+        def csv = "account_id,user_id,balance\n1,9,12.34\n2,2,1.00\n2,2,7.00\n"
+
+        when:
+        def report = importer(10).importAccounts(new ByteArrayInputStream(csv.bytes), ExportFormat.CSV, {})
+
+        then:
+        report.accountsImported() == 1
+        report.accountsSkipped() == 2
+        (balances(0) + balances(1)) == [1: 500L, 2: 100L]
+        writeDataSources[shard].getConnection().withCloseable { new AuditDAO(it).getCheckpoints([1]) }[1].lastSeq == 3
+    }
+
+    def "importing a file again skips every account"() {
+        given:
+        def csv = (["account_id,user_id,balance"] + (1..5).collect { "$it,$it,1.00" }).join("\n")
+
+        when:
+        importer(2).importAccounts(new ByteArrayInputStream(csv.bytes), ExportFormat.CSV, {})
+        def again = importer(2).importAccounts(new ByteArrayInputStream(csv.bytes), ExportFormat.CSV, {})
+
+        then:
+        again.accountsImported() == 0
+        again.accountsSkipped() == 5
+        (balances(0) + balances(1)).size() == 5
+    }
+
+    def "a bad row stops the import, the transactions before it stay committed"() {
+        given:
+        def rows = (1..9).collect { """{"accountId":$it,"userId":$it,"balance":1}""" } +
+                ['{"accountId":10,"userId":10,"balance":-1}', '{"accountId":11,"userId":11,"balance":1}']
+        def progress = []
+        def sut = importer(2)
+
+        when:
+        sut.importAccounts(new ByteArrayInputStream(rows.join("\n").bytes), ExportFormat.NDJSON, { progress << it })
+
+        then:
+        def e = thrown(InvalidRowException)
+        e.line == 10
+        sut.getProgress().done()
+        sut.getProgress().rowsRead() == 9
+        sut.getProgress().error() == e.message
+        // two rows of a shard per transaction, the row left pending when the bad one came is not imported
+        progress*.accountsImported() == [2, 4, 6, 8]
+        (balances(0) + balances(1)).size() == 8
+    }
+
+    def "rows that aren't accounts are refused with their line"() {
+        when:
+        importer(10).importAccounts(new ByteArrayInputStream(input.bytes), format, {})
+
+        then:
+        def e = thrown(InvalidRowException)
+        e.message == message
+
+        where:
+        format              | input                                             || message
+        ExportFormat.CSV    | "accountId,balance\n1,2\n"                        || "line 1: the header needs accountId, userId and balance"
+        ExportFormat.CSV    | "accountId,userId,balance\n1,1,2\n\n2,2\n"        || "line 4: 2 fields, the header has 3"
+        ExportFormat.CSV    | "accountId,userId,balance\n1,1,0.001\n"           || "line 2: invalid balance 0.001"
+        ExportFormat.NDJSON | '{"accountId":1,"userId":1,"balance":1}\n{"accountId":"2","userId":2,"balance":1}' || "line 2: accountId is not an integer"
+        ExportFormat.NDJSON | '{"accountId":1,"balance":1}'                     || "line 1: accountId, userId and balance are required"
+    }
+
+    private AccountImporter importer(int rowsPerTransaction) {
+        new AccountImporter(writeDataSources, USD, rowsPerTransaction, { imported << it })
+    }
+
+    private Map<Integer, Long> balances(int shard) {
+        writeDataSources[shard].getConnection().withCloseable { conn ->
+            def balances = [:]
+            new BalanceDAO(conn).streamAccountBalances(0, 0, { accountId, userId, balance -> balances[accountId] = balance })
+            balances
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package com.felix.reconciler
+
+import com.felix.DbSchema
+import com.felix.HikariCPDataSource
+import com.felix.dao.BalanceDAO
+import com.felix.dao.WithdrawalRequestDAO
+import com.felix.dto.WithdrawalRequest
+import com.felix.external.WithdrawalService
+import com.felix.external.WithdrawalServiceStub
+import com.felix.model.WithdrawalRequestStatusEnum
+import com.felix.service.TransferService
+import com.felix.service.WithdrawalDispatcher
+import com.zaxxer.hikari.HikariDataSource
+import spock.lang.Specification
+
+import java.sql.Connection
+
+import java.util.concurrent.atomic.AtomicInteger
+
+class WithdrawalReconcilerTest extends Specification {
+    HikariDataSource dataSource
+    Connection conn
+    BalanceDAO balanceDAO
+    SingleIdProvider withdrawalService
+    TransferService transferService
+
+    WithdrawalReconciler sut
+
+    def setup() {
+        dataSource = HikariCPDataSource.createNewDataSource("test-reconciler.db")
+        DbSchema.setup(dataSource)
+        withdrawalService = new SingleIdProvider()
+        transferService = new TransferService(dataSource, withdrawalService)
+        conn = dataSource.getConnection()
+        balanceDAO = new BalanceDAO(conn)
+        balanceDAO.setupAccount(1, 1, 100)
+    }
+
+    def cleanup() {
+        sut?.close()
+        dataSource.close()
+        new File("test-reconciler.db").delete()
+    }
+
+    def withdraw(long amount) {
+        def req = WithdrawalRequest.builder().fromAccountId(1).amount(amount).address("abc").build()
+        def withdrawalId = transferService.requestWithdrawal(req).data.withdrawalId
+        // what the dispatcher does once the provider accepted it
+        new WithdrawalRequestDAO(conn).markRequested(withdrawalId)
+        return withdrawalId
+    }
+
+    def waitUntil(Closure<Boolean> condition) {
+        def deadline = System.currentTimeMillis() + 5_000
+        while (!condition() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10)
+        }
+    }
+
+    def "pending withdrawals found on start are finalised and failed ones refunded"() {
+        given: "two withdrawals created before the reconciler started"
+        def completedId = withdraw(30)
+        def failedId = withdraw(20)
+        withdrawalService.stateOf = { id ->
+            id.value().toString() == completedId ? WithdrawalService.WithdrawalState.COMPLETED : WithdrawalService.WithdrawalState.FAILED
+        }
+
+        when:
+        sut = new WithdrawalReconciler(transferService, withdrawalService, 2, 10, 100, 10)
+        sut.start()
+        waitUntil { sut.backlogSize == 0 }
+
+        then:
+        sut.metrics.finalisedCount == 2
+        transferService.getWithdrawalRequest(completedId).data.status == WithdrawalRequestStatusEnum.SUCCESS
+        transferService.getWithdrawalRequest(failedId).data.status == WithdrawalRequestStatusEnum.FAILED
+
+        and: "only the failed withdrawal is refunded"
+        balanceDAO.getAccountBalance(1) == 70
+    }
+
+    def "processing withdrawals are checked again with backoff"() {
+        given: "a withdrawal that is processing for the first three checks"
+        def checks = new AtomicInteger()
+        withdrawalService.stateOf = {
+            checks.incrementAndGet() <= 3 ? WithdrawalService.WithdrawalState.PROCESSING : WithdrawalService.WithdrawalState.COMPLETED
+        }
+        sut = new WithdrawalReconciler(transferService, withdrawalService, 1, 10, 40, 10)
+        sut.start()
+
+        when:
+        def withdrawalId = withdraw(50)
+        sut.track(withdrawalId)
+        waitUntil { sut.backlogSize == 0 }
+
+        then:
+        checks.get() == 4
+        transferService.getWithdrawalRequest(withdrawalId).data.status == WithdrawalRequestStatusEnum.SUCCESS
+        balanceDAO.getAccountBalance(1) == 50
+        sut.metrics.maxTimeToFinalityMillis >= 10 + 20 + 40
+    }
+
+    def "a restart picks up the schedule of withdrawals still processing"() {
+        given: "a withdrawal that is processing and was rescheduled at least once"
+        def withdrawalId = withdraw(50)
+        sut = new WithdrawalReconciler(transferService, withdrawalService, 1, 10, 10, 10)
+        sut.start()
+        sut.track(withdrawalId)
+        def dao = new WithdrawalRequestDAO(conn)
+        waitUntil { dao.getByWithdrawalId(withdrawalId).nextCheckAt > 0 }
+        sut.close()
+
+        when: "a reconciler that would wait a minute before checking new withdrawals starts"
+        withdrawalService.stateOf = { WithdrawalService.WithdrawalState.COMPLETED }
+        sut = new WithdrawalReconciler(transferService, withdrawalService, 1, 60_000, 60_000, 10)
+        sut.start()
+        waitUntil { sut.backlogSize == 0 }
+
+        then: "the stored next check is used instead"
+        transferService.getWithdrawalRequest(withdrawalId).data.status == WithdrawalRequestStatusEnum.SUCCESS
+    }
+
+    def "final states pushed by the provider finalise withdrawals without waiting for the next poll"() {
+        given: "a provider that finishes within 50ms and a reconciler that would only poll after a minute"
+        def stub = new WithdrawalServiceStub(10, 50)
+        transferService = new TransferService(dataSource, stub)
+        sut = new WithdrawalReconciler(transferService, stub, 1, 60_000, 60_000, 10)
+        sut.start()
+        def dispatcher = new WithdrawalDispatcher(dataSource, transferService, stub, sut::track, 10, 2, 1, 10, 10)
+        dispatcher.start()
+
+        when: "the withdrawals go through the outbox to the provider"
+        def req = WithdrawalRequest.builder().fromAccountId(1).amount(10).address("abc").build()
+        def ids = (1..5).collect { transferService.requestWithdrawal(req).data.withdrawalId }
+        waitUntil { dispatcher.dispatchedCount == 5 && sut.backlogSize == 0 }
+
+        then:
+        sut.metrics.finalisedCount == 5
+        sut.metrics.snapshot(0).pushes == 5
+        ids.every { transferService.getWithdrawalRequest(it).data.status in [WithdrawalRequestStatusEnum.SUCCESS, WithdrawalRequestStatusEnum.FAILED] }
+
+        cleanup:
+        dispatcher.close()
+    }
+
+    def "applying a final state twice refunds once"() {
+        given:
+        def withdrawalId = withdraw(40)
+
+        when:
+        transferService.applyWithdrawalFinalStates([(withdrawalId): WithdrawalService.WithdrawalState.FAILED])
+        def second = transferService.applyWithdrawalFinalStates([(withdrawalId): WithdrawalService.WithdrawalState.FAILED])
+
+        then:
+        second.isEmpty()
+        balanceDAO.getAccountBalance(1) == 100
+    }
+
+    /**
+     * a provider with only the single-id lookup, batch lookups use the interface default
+     */
+    static class SingleIdProvider implements WithdrawalService {
+        Closure<WithdrawalService.WithdrawalState> stateOf = { WithdrawalService.WithdrawalState.PROCESSING }
+
+        @Override
+        void requestWithdrawal(WithdrawalService.WithdrawalId id, WithdrawalService.Address address, BigDecimal amount) {
+        }
+
+        @Override
+        WithdrawalService.WithdrawalState getRequestState(WithdrawalService.WithdrawalId id) {
+            return stateOf(id)
+        }
+    }
+}
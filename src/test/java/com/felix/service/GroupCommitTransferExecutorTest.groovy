@@ -0,0 +1,85 @@
+package com.felix.service
+
+import com.felix.DbSchema
+import com.felix.HikariCPDataSource
+import com.felix.dao.BalanceDAO
+import com.felix.dto.TransferRequest
+import com.felix.external.WithdrawalService
+import com.zaxxer.hikari.HikariDataSource
+import spock.lang.Specification
+
+class GroupCommitTransferExecutorTest extends Specification {
+    BalanceDAO balanceDAO
+    HikariDataSource dataSource
+
+    GroupCommitTransferExecutor sut
+
+    def setup() {
+        dataSource = HikariCPDataSource.createNewDataSource("test-group-commit.db")
+        DbSchema.setup(dataSource)
+        def transferService = new TransferService(dataSource, Mock(WithdrawalService))
+        sut = new GroupCommitTransferExecutor(dataSource, transferService, 1_000, 64, 2_000)
+        balanceDAO = new BalanceDAO(dataSource.getConnection())
+    }
+
+    def cleanup() {
+        sut.close()
+        dataSource.close()
+        new File("test-group-commit.db").delete()
+    }
+
+    def "concurrent transfers are committed in batches"() {
+        given: "a sender with balance of 1000 and two receivers"
+        balanceDAO.setupAccount(1, 1, 1_000)
+        balanceDAO.setupAccount(2, 2, 0)
+        balanceDAO.setupAccount(3, 3, 0)
+
+        when: "20 transfers of 50 are submitted from 20 threads"
+        def results = Collections.synchronizedList([])
+        def threads = (1..20).collect { i ->
+            new Thread({
+                def req = TransferRequest.builder()
+                        .fromAccountId(1)
+                        .toAccountId(i % 2 == 0 ? 2 : 3)
+                        .amount(50)
+                        .build()
+                results << sut.submit(req).get()
+            })
+        }
+        threads*.start()
+        threads*.join()
+
+        then: "every caller gets its own successful result"
+        results.size() == 20
+        results.every { it.isSuccessful() }
+        results.collect { it.data.id }.unique().size() == 20
+
+        and: "balances are updated"
+        balanceDAO.getAccountBalance(1) == 0
+        balanceDAO.getAccountBalance(2) == 500
+        balanceDAO.getAccountBalance(3) == 500
+    }
+
+    def "insufficient balance only rolls back the failing transfer"() {
+        given: "a sender with balance of 100"
+        balanceDAO.setupAccount(1, 1, 100)
+        balanceDAO.setupAccount(2, 2, 0)
+
+        when: "three transfers of 40 are queued together"
+        def req = TransferRequest.builder()
+                .fromAccountId(1)
+                .toAccountId(2)
+                .amount(40)
+                .build()
+        def futures = (1..3).collect { sut.submit(req) }
+        def results = futures*.get()
+
+        then: "two succeed and one fails with insufficient balance"
+        results.count { it.isSuccessful() } == 2
+        results.count { it.errorCode == ErrorCode.INSUFFICIENT_BALANCE } == 1
+
+        and: "the successful transfers are committed"
+        balanceDAO.getAccountBalance(1) == 20
+        balanceDAO.getAccountBalance(2) == 80
+    }
+}
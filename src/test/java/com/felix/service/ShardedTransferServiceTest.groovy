@@ -0,0 +1,261 @@
+package com.felix.service
+
+import com.felix.DbSchema
+import com.felix.HikariCPDataSource
+import com.felix.dao.BalanceDAO
+import com.felix.dao.TransferIntentDAO
+import com.felix.dto.TransferRequest
+import com.felix.external.WithdrawalService
+import com.felix.model.TransactionLogModel
+import com.felix.model.TransactionLogType
+import com.felix.model.TransferIntentModel
+import com.felix.model.TransferIntentStatusEnum
+import com.zaxxer.hikari.HikariDataSource
+import spock.lang.Specification
+
+class ShardedTransferServiceTest extends Specification {
+    List<HikariDataSource> dataSources
+    List<BalanceDAO> balanceDAOs
+    // accounts of the first and of the second shard
+    List<Integer> firstShardAccounts
+    List<Integer> secondShardAccounts
+
+    ShardedTransferService sut
+
+    def setup() {
+        dataSources = (0..1).collect { HikariCPDataSource.createNewDataSource(ShardedTransferService.shardFilename("test-shard.db", it)) }
+        dataSources.each { DbSchema.setup(it) }
+        def shards = (0..1).collect { new Shard(it, dataSources[it], dataSources[it], new TransferService(dataSources[it], Mock(WithdrawalService))) }
+        sut = new ShardedTransferService(shards)
+        balanceDAOs = dataSources.collect { new BalanceDAO(it.getConnection()) }
+
+        firstShardAccounts = (1..20).findAll { ShardedTransferService.shardOf(it, 2) == 0 }
+        secondShardAccounts = (1..20).findAll { ShardedTransferService.shardOf(it, 2) == 1 }
+        (1..20).each { balanceDAOs[ShardedTransferService.shardOf(it, 2)].setupAccount(it, it, 100) }
+    }
+
+    def cleanup() {
+        sut.close()
+        dataSources*.close()
+        (0..1).each { new File(ShardedTransferService.shardFilename("test-shard.db", it)).delete() }
+    }
+
+    def "accounts spread over the shards and the first shard keeps the filename"() {
+        expect:
+        firstShardAccounts.size() >= 5
+        secondShardAccounts.size() >= 5
+        ShardedTransferService.shardFilename("sample.db", 0) == "sample.db"
+        ShardedTransferService.shardFilename("sample.db", 2) == "sample-2.db"
+        ShardedTransferService.shardFilename("posting-archive", 1) == "posting-archive-1"
+        (1..1000).every { ShardedTransferService.shardOf(it, 1) == 0 }
+    }
+
+    def "a transfer within one shard only touches that shard"() {
+        given:
+        def from = secondShardAccounts[0]
+        def to = secondShardAccounts[1]
+
+        when:
+        def result = sut.transfer(transfer(from, to, 40))
+
+        then:
+        result.isSuccessful()
+        balanceDAOs[1].getAccountBalance(from) == 60
+        balanceDAOs[1].getAccountBalance(to) == 140
+        preparedIntents(0) + preparedIntents(1) == 0
+        balanceDAOs[0].getAccountBalance(from) == null
+    }
+
+    def "a transfer across shards debits one, credits the other and commits its intent"() {
+        given:
+        def from = firstShardAccounts[0]
+        def to = secondShardAccounts[0]
+
+        when:
+        def result = sut.transfer(transfer(from, to, 30))
+
+        then:
+        result.isSuccessful()
+        result.data.details == "transfer to account " + to
+        balanceDAOs[0].getAccountBalance(from) == 70
+        balanceDAOs[1].getAccountBalance(to) == 130
+
+        and: "the intent is committed on both sides"
+        def source = intent(0, result.data.id)
+        source.status == TransferIntentStatusEnum.COMMITTED.code
+        intentDAO(1).getIntent(source.intentId).status == TransferIntentStatusEnum.COMMITTED.code
+
+        and: "each shard has its posting of the transfer"
+        postings(0, from) == [-30L]
+        postings(1, to) == [30L]
+    }
+
+    def "a transfer across shards without the balance changes nothing"() {
+        when:
+        def result = sut.transfer(transfer(firstShardAccounts[0], secondShardAccounts[0], 101))
+
+        then:
+        result.errorCode == ErrorCode.INSUFFICIENT_BALANCE
+        balanceDAOs[0].getAccountBalance(firstShardAccounts[0]) == 100
+        balanceDAOs[1].getAccountBalance(secondShardAccounts[0]) == 100
+        countIntents(0) == 0
+    }
+
+    def "a transfer to an account that doesn't exist fails before the debit"() {
+        given:
+        def missing = (21..100).find { ShardedTransferService.shardOf(it, 2) == 1 }
+
+        when:
+        def result = sut.transfer(transfer(firstShardAccounts[0], missing, 10))
+
+        then:
+        result.errorCode == ErrorCode.ACCOUNT_NOT_FOUND
+        balanceDAOs[0].getAccountBalance(firstShardAccounts[0]) == 100
+        countIntents(0) == 0
+    }
+
+    def "recovery credits a transfer left prepared by a crash exactly once"() {
+        given: "the debit and its intent committed, then the process died"
+        def from = secondShardAccounts[0]
+        def to = firstShardAccounts[0]
+        def intent = prepare(1, from, to, 25)
+
+        when:
+        def finished = sut.recover()
+
+        then:
+        finished == 1
+        balanceDAOs[1].getAccountBalance(from) == 75
+        balanceDAOs[0].getAccountBalance(to) == 125
+        intentDAO(1).getIntent(intent.intentId).status == TransferIntentStatusEnum.COMMITTED.code
+
+        when: "the crash came after the credit but before the intent was settled"
+        intentDAO(1).setStatus(intent.intentId, TransferIntentStatusEnum.COMMITTED.code, TransferIntentStatusEnum.PREPARED.code)
+        sut.recover()
+
+        then: "the recorded credit is not applied again"
+        balanceDAOs[0].getAccountBalance(to) == 125
+        intentDAO(1).getIntent(intent.intentId).status == TransferIntentStatusEnum.COMMITTED.code
+        sut.recover() == 0
+    }
+
+    def "recovery refunds the sender when the recipient is gone"() {
+        given:
+        def from = firstShardAccounts[0]
+        def to = secondShardAccounts[0]
+        def intent = prepare(0, from, to, 40)
+        dataSources[1].getConnection().withCloseable { it.createStatement().execute("delete from account_balances where account_id = " + to) }
+
+        when:
+        sut.recover()
+
+        then:
+        balanceDAOs[0].getAccountBalance(from) == 100
+        intentDAO(0).getIntent(intent.intentId).status == TransferIntentStatusEnum.ABORTED.code
+        intentDAO(1).getIntent(intent.intentId).status == TransferIntentStatusEnum.ABORTED.code
+        postings(0, from) == [40L, -40L]
+    }
+
+    def "a batch has to stay on one shard"() {
+        when:
+        def within = sut.transferBatch([transfer(firstShardAccounts[0], firstShardAccounts[1], 10),
+                                        transfer(firstShardAccounts[1], firstShardAccounts[2], 5)], false)
+        def across = sut.transferBatch([transfer(firstShardAccounts[0], firstShardAccounts[1], 10),
+                                        transfer(firstShardAccounts[1], secondShardAccounts[0], 5)], false)
+
+        then:
+        within.isSuccessful()
+        across.errorCode == ErrorCode.CROSS_SHARD_BATCH
+        balanceDAOs[0].getAccountBalance(firstShardAccounts[0]) == 90
+        balanceDAOs[1].getAccountBalance(secondShardAccounts[0]) == 100
+    }
+
+    def "concurrent transfers across shards keep the total"() {
+        given:
+        def accounts = firstShardAccounts.take(3) + secondShardAccounts.take(3)
+
+        when:
+        def threads = (0..<8).collect { t ->
+            new Thread({
+                def random = new Random(t)
+                50.times {
+                    def from = accounts[random.nextInt(accounts.size())]
+                    def to = accounts[random.nextInt(accounts.size())]
+                    if (from != to) {
+                        sut.transfer(transfer(from, to, 1 + random.nextInt(20)))
+                    }
+                }
+            })
+        }
+        threads*.start()
+        threads*.join()
+        // a credit that lost a lock race to another writer is finished here
+        sut.recover()
+
+        then:
+        accounts.sum { balanceDAOs[ShardedTransferService.shardOf(it, 2)].getAccountBalance(it) } == 600
+        sut.countPreparedIntents() == 0
+    }
+
+    private static TransferRequest transfer(int from, int to, long amount) {
+        TransferRequest.builder().fromAccountId(from).toAccountId(to).amount(amount).build()
+    }
+
+    /**
+     * the first phase of a cross-shard transfer on its own
+     */
+    private TransferIntentModel prepare(int shard, int from, int to, long amount) {
+        def conn = dataSources[shard].getConnection()
+        try {
+            def balanceDAO = new BalanceDAO(conn)
+            balanceDAO.subtractFromFromAccount(from, amount)
+            def log = balanceDAO.insertTransactionLog(TransactionLogModel.builder()
+                    .accountId(from).amount(amount).type(TransactionLogType.TRANSER).details("transfer to account " + to).build())
+            balanceDAO.insertPosting(log.id, from, to, -amount, TransactionLogType.TRANSER)
+            def intent = TransferIntentModel.builder()
+                    .intentId(UUID.randomUUID().toString())
+                    .role(TransferIntentModel.ROLE_SOURCE)
+                    .fromAccountId(from)
+                    .toAccountId(to)
+                    .amount(amount)
+                    .transactionLogId(log.id)
+                    .status(TransferIntentStatusEnum.PREPARED.code)
+                    .build()
+            new TransferIntentDAO(conn).insertIntent(intent)
+            return intent
+        } finally {
+            conn.close()
+        }
+    }
+
+    private TransferIntentDAO intentDAO(int shard) {
+        new TransferIntentDAO(balanceDAOs[shard].conn)
+    }
+
+    private TransferIntentModel intent(int shard, long transactionLogId) {
+        def rs = balanceDAOs[shard].conn.createStatement().executeQuery(
+                "select intent_id from transfer_intents where transaction_log_id = " + transactionLogId + " and role = 0")
+        rs.next()
+        intentDAO(shard).getIntent(rs.getString(1))
+    }
+
+    private long preparedIntents(int shard) {
+        intentDAO(shard).countPreparedIntents()
+    }
+
+    private long countIntents(int shard) {
+        def rs = balanceDAOs[shard].conn.createStatement().executeQuery("select count(*) from transfer_intents")
+        rs.next()
+        rs.getLong(1)
+    }
+
+    private List<Long> postings(int shard, int accountId) {
+        def rs = balanceDAOs[shard].conn.createStatement().executeQuery(
+                "select amount from postings where account_id = " + accountId + " order by seq desc")
+        def amounts = []
+        while (rs.next()) {
+            amounts << rs.getLong(1)
+        }
+        amounts
+    }
+}
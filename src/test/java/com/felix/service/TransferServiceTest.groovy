@@ -2,6 +2,7 @@ package com.felix.service
 
 import com.felix.DbSchema
 import com.felix.HikariCPDataSource
+import com.felix.cache.BalanceCache
 import com.felix.dao.BalanceDAO
 import com.felix.dto.RequestWithdrawalResponse
 import com.felix.dto.TransferRequest
@@ -31,6 +32,8 @@ class TransferServiceTest extends Specification {
     }
 
     def cleanup() {
+        // close the pool first so no connection is left open on the deleted file
+        dataSource.close()
         // delete the database file
         new File("test-transfer.db").delete()
     }
@@ -40,17 +43,17 @@ class TransferServiceTest extends Specification {
         balanceDAO = new BalanceDAO(connection)
         def fromAccountId = 1
         given: "an sender account with balance of 100"
-        balanceDAO.setupAccount(fromAccountId, 1, BigDecimal.valueOf(100))
+        balanceDAO.setupAccount(fromAccountId, 1, 100)
 
         and: "an receiver account with balance of 10"
         def receiverAccountId = 2
-        balanceDAO.setupAccount(receiverAccountId, 2, BigDecimal.valueOf(10))
+        balanceDAO.setupAccount(receiverAccountId, 2, 10)
 
         and: "a transfer request 50 from sender to receiver"
         def transferRequest = TransferRequest.builder()
                 .fromAccountId(1)
                 .toAccountId(2)
-                .amount(BigDecimal.valueOf(50))
+                .amount(50)
                 .build()
         when:
         def transferResult = sut.transfer(transferRequest)
@@ -61,8 +64,8 @@ class TransferServiceTest extends Specification {
         transferResult.isSuccessful()
 
         and: 'balance is updated'
-        balanceDAO.getAccountBalance(fromAccountId) == BigDecimal.valueOf(50)
-        balanceDAO.getAccountBalance(receiverAccountId) == BigDecimal.valueOf(60)
+        balanceDAO.getAccountBalance(fromAccountId) == 50
+        balanceDAO.getAccountBalance(receiverAccountId) == 60
     }
 
     def "transfer with concurrent reqs from multiple threads"() {
@@ -70,27 +73,27 @@ class TransferServiceTest extends Specification {
         balanceDAO = new BalanceDAO(connection)
         given: "an sender account with balance of 1000"
         def fromAccountId = 3
-        balanceDAO.setupAccount(fromAccountId, 3, BigDecimal.valueOf(1_000))
+        balanceDAO.setupAccount(fromAccountId, 3, 1_000)
 
         and: "an receiver account with balance of 0"
         def receiverAccountId = 4
-        balanceDAO.setupAccount(receiverAccountId, 4, BigDecimal.valueOf(0))
+        balanceDAO.setupAccount(receiverAccountId, 4, 0)
 
         and: "another receiver account with balance of 0"
         def receiverAccountId2 = 5
-        balanceDAO.setupAccount(receiverAccountId2, 5, BigDecimal.valueOf(0))
+        balanceDAO.setupAccount(receiverAccountId2, 5, 0)
 
         and: "a transfer request of 50 from sender to receiver 1"
         def transferRequest = TransferRequest.builder()
                 .fromAccountId(3)
                 .toAccountId(4)
-                .amount(BigDecimal.valueOf(50))
+                .amount(50)
                 .build()
         and: "a transfer request of 50 from sender to receiver 2"
         def transferRequest2 = TransferRequest.builder()
                 .fromAccountId(3)
                 .toAccountId(5)
-                .amount(BigDecimal.valueOf(50))
+                .amount(50)
                 .build()
 
         when: "10 threads concurrently transfer 50 from sender to receivers"
@@ -110,9 +113,9 @@ class TransferServiceTest extends Specification {
         threads2*.join()
 
         then: 'no exception thrown and transfer is successful'
-        balanceDAO.getAccountBalance(fromAccountId) == BigDecimal.valueOf(0)
-        balanceDAO.getAccountBalance(receiverAccountId) == BigDecimal.valueOf(500)
-        balanceDAO.getAccountBalance(receiverAccountId2) == BigDecimal.valueOf(500)
+        balanceDAO.getAccountBalance(fromAccountId) == 0
+        balanceDAO.getAccountBalance(receiverAccountId) == 500
+        balanceDAO.getAccountBalance(receiverAccountId2) == 500
 
     }
 
@@ -123,12 +126,12 @@ class TransferServiceTest extends Specification {
         def fromAccountId = 1
 
         given: "an sender account with balance of 100"
-        balanceDAO.setupAccount(fromAccountId, 1, BigDecimal.valueOf(100))
+        balanceDAO.setupAccount(fromAccountId, 1, 100)
 
         and: "a withdrawal request"
         def req = WithdrawalRequest.builder()
                 .fromAccountId(1)
-                .amount(BigDecimal.valueOf(100))
+                .amount(100)
                 .address("abc")
                 .build()
 
@@ -143,7 +146,7 @@ class TransferServiceTest extends Specification {
         result != null
 
         and: "balance is updated"
-        balanceDAO.getAccountBalance(fromAccountId) == BigDecimal.valueOf(0)
+        balanceDAO.getAccountBalance(fromAccountId) == 0
         and:
         sut.getWithdrawalRequest(result.data.getWithdrawalId()).getData().getStatus() == WithdrawalRequestStatusEnum.SUCCESS
     }
@@ -154,12 +157,12 @@ class TransferServiceTest extends Specification {
         def fromAccountId = 1
 
         given: "an sender account with balance of 100"
-        balanceDAO.setupAccount(fromAccountId, 1, BigDecimal.valueOf(100))
+        balanceDAO.setupAccount(fromAccountId, 1, 100)
 
         and: "a withdrawal request"
         def req = WithdrawalRequest.builder()
                 .fromAccountId(1)
-                .amount(BigDecimal.valueOf(100))
+                .amount(100)
                 .address("abc")
                 .build()
 
@@ -174,23 +177,41 @@ class TransferServiceTest extends Specification {
         result != null
 
         and: "balance is returned"
-        balanceDAO.getAccountBalance(fromAccountId) == BigDecimal.valueOf(100)
+        balanceDAO.getAccountBalance(fromAccountId) == 100
         and:
         sut.getWithdrawalRequest(result.data.getWithdrawalId()).getData().getStatus() == WithdrawalRequestStatusEnum.FAILED
     }
 
+    def 'syncing a failed withdrawal again refunds it only once'() {
+        def connection = dataSource.getConnection()
+        balanceDAO = new BalanceDAO(connection)
+
+        given: "a withdrawal of the whole balance the service failed"
+        balanceDAO.setupAccount(1, 1, 100)
+        withdrawalService.getRequestState(_) >> WithdrawalService.WithdrawalState.FAILED
+        def result = sut.requestWithdrawal(WithdrawalRequest.builder().fromAccountId(1).amount(100).address("abc").build())
+
+        when:
+        sut.syncWithdrawalRequestStatus(result.data.getWithdrawalId())
+        sut.syncWithdrawalRequestStatus(result.data.getWithdrawalId())
+
+        then:
+        balanceDAO.getAccountBalance(1) == 100
+        sut.getWithdrawalRequest(result.data.getWithdrawalId()).getData().getStatus() == WithdrawalRequestStatusEnum.FAILED
+    }
+
     def 'test parallel withdraw'() {
         def connection = dataSource.getConnection()
         balanceDAO = new BalanceDAO(connection)
         def fromAccountId = 1
 
         given: "an sender account with balance of 100"
-        balanceDAO.setupAccount(fromAccountId, 1, BigDecimal.valueOf(100))
+        balanceDAO.setupAccount(fromAccountId, 1, 100)
 
         and: "a withdrawal request of 10 from sender account"
         def req = WithdrawalRequest.builder()
                 .fromAccountId(1)
-                .amount(BigDecimal.valueOf(10))
+                .amount(10)
                 .address("abc")
                 .build()
 
@@ -212,9 +233,120 @@ class TransferServiceTest extends Specification {
         threads*.join()
 
         then:
-        balanceDAO.getAccountBalance(fromAccountId) == BigDecimal.valueOf(0)
+        balanceDAO.getAccountBalance(fromAccountId) == 0
         and: "there should be 90 failed withdrawal requests due to insufficient balance"
         failedCount.get() == 90
     }
 
+    def "transfer batch is rejected as a whole when one transfer fails"() {
+        def connection = dataSource.getConnection()
+        balanceDAO = new BalanceDAO(connection)
+        given: "account 1 with 100, accounts 2 and 3 empty"
+        balanceDAO.setupAccount(1, 1, 100)
+        balanceDAO.setupAccount(2, 2, 0)
+        balanceDAO.setupAccount(3, 3, 0)
+
+        when: "the last transfer spends more than account 2 has"
+        def result = sut.transferBatch([
+                transferRequest(1, 2, 60),
+                transferRequest(2, 3, 20),
+                transferRequest(2, 3, 50),
+        ])
+
+        then:
+        !result.isSuccessful()
+        result.errorCode == ErrorCode.BATCH_ABORTED
+        result.data*.errorCode == [ErrorCode.BATCH_ABORTED, ErrorCode.BATCH_ABORTED, ErrorCode.INSUFFICIENT_BALANCE]
+
+        and: "no balance changed"
+        balanceDAO.getAccountBalance(1) == 100
+        balanceDAO.getAccountBalance(2) == 0
+        balanceDAO.getAccountBalance(3) == 0
+    }
+
+    def "best effort transfer batch applies the transfers that can be applied"() {
+        def connection = dataSource.getConnection()
+        balanceDAO = new BalanceDAO(connection)
+        given: "account 1 with 100, accounts 2 and 3 empty"
+        balanceDAO.setupAccount(1, 1, 100)
+        balanceDAO.setupAccount(2, 2, 0)
+        balanceDAO.setupAccount(3, 3, 0)
+
+        when:
+        def result = sut.transferBatch([
+                transferRequest(1, 2, 60),
+                transferRequest(2, 3, 20),
+                transferRequest(2, 3, 50),
+                transferRequest(3, 9, 1),
+                transferRequest(3, 1, 5),
+        ], true)
+
+        then:
+        result.isSuccessful()
+        result.data*.errorCode == [0, 0, ErrorCode.INSUFFICIENT_BALANCE, ErrorCode.ACCOUNT_NOT_FOUND, 0]
+
+        and: "the applied transfers have consecutive log ids"
+        def ids = result.data.findAll { it.isSuccessful() }*.data*.id
+        ids == [ids[0], ids[0] + 1, ids[0] + 2]
+
+        and:
+        balanceDAO.getAccountBalance(1) == 45
+        balanceDAO.getAccountBalance(2) == 40
+        balanceDAO.getAccountBalance(3) == 15
+    }
+
+    def "transfer batch larger than one insert statement"() {
+        def connection = dataSource.getConnection()
+        balanceDAO = new BalanceDAO(connection)
+        given:
+        balanceDAO.setupAccount(1, 1, 1_000)
+        balanceDAO.setupAccount(2, 2, 0)
+
+        when:
+        def result = sut.transferBatch((1..250).collect { transferRequest(1, 2, 2) })
+
+        then:
+        result.isSuccessful()
+        result.data*.data*.id.toSet().size() == 250
+        balanceDAO.getMaxTransactionLogId() == result.data.last().data.id
+        balanceDAO.getAccountBalance(1) == 500
+        balanceDAO.getAccountBalance(2) == 500
+    }
+
+    def "cached balances are invalidated once a transfer commits"() {
+        def connection = dataSource.getConnection()
+        balanceDAO = new BalanceDAO(connection)
+        given:
+        balanceDAO.setupAccount(1, 1, 100)
+        balanceDAO.setupAccount(2, 2, 0)
+        def balanceCache = new BalanceCache(100)
+        sut = new TransferService(dataSource, dataSource, withdrawalService, null, balanceCache)
+
+        when: "both balances are cached"
+        sut.getBalance(1)
+        sut.getBalance(2)
+        sut.transfer(transferRequest(1, 2, 30))
+        sut.transferBatch([transferRequest(2, 1, 5)])
+
+        then:
+        sut.getBalance(1).data == 75
+        sut.getBalance(2).data == 25
+        sut.getBalance(9).errorCode == ErrorCode.ACCOUNT_NOT_FOUND
+        balanceCache.snapshot().invalidations == 4
+
+        when: "a failed transfer changes nothing"
+        sut.transfer(transferRequest(2, 1, 1_000))
+
+        then:
+        sut.getBalance(2).data == 25
+        balanceCache.snapshot().invalidations == 4
+    }
+
+    private static TransferRequest transferRequest(int fromAccountId, int toAccountId, long amount) {
+        return TransferRequest.builder()
+                .fromAccountId(fromAccountId)
+                .toAccountId(toAccountId)
+                .amount(amount)
+                .build()
+    }
 }
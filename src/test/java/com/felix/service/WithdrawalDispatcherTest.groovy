@@ -0,0 +1,136 @@
+package com.felix.service
+
+import com.felix.DbSchema
+import com.felix.HikariCPDataSource
+import com.felix.dao.BalanceDAO
+import com.felix.dto.WithdrawalRequest
+import com.felix.external.WithdrawalService
+import com.felix.model.WithdrawalRequestStatusEnum
+import com.zaxxer.hikari.HikariDataSource
+import spock.lang.Specification
+
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+class WithdrawalDispatcherTest extends Specification {
+    HikariDataSource dataSource
+    WithdrawalService withdrawalService
+    TransferService transferService
+    List<String> requested = new CopyOnWriteArrayList<>()
+
+    WithdrawalDispatcher sut
+
+    def setup() {
+        dataSource = HikariCPDataSource.createNewDataSource("test-dispatcher.db")
+        DbSchema.setup(dataSource)
+        withdrawalService = Mock()
+        transferService = new TransferService(dataSource, withdrawalService)
+        dataSource.getConnection().withCloseable { new BalanceDAO(it).setupAccount(1, 1, 100) }
+        sut = new WithdrawalDispatcher(dataSource, transferService, withdrawalService, requested::add, 10, 4, 3, 10, 50)
+    }
+
+    def cleanup() {
+        sut.close()
+        dataSource.close()
+        new File("test-dispatcher.db").delete()
+    }
+
+    def withdraw(long amount) {
+        def req = WithdrawalRequest.builder().fromAccountId(1).amount(amount).address("abc").build()
+        def withdrawalId = transferService.requestWithdrawal(req).data.withdrawalId
+        sut.wakeUp()
+        return withdrawalId
+    }
+
+    def balance() {
+        // a pooled connection, so the read doesn't keep a lock open while the dispatcher writes
+        dataSource.getConnection().withCloseable { new BalanceDAO(it).getAccountBalance(1) }
+    }
+
+    def status(String withdrawalId) {
+        return transferService.getWithdrawalRequest(withdrawalId).data.status
+    }
+
+    def waitUntil(Closure<Boolean> condition) {
+        def deadline = System.currentTimeMillis() + 5_000
+        while (!condition() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10)
+        }
+    }
+
+    def "withdrawals are committed as CREATED and sent to the provider afterwards"() {
+        when:
+        def withdrawalId = withdraw(30)
+
+        then: "nothing reached the provider yet"
+        0 * withdrawalService.requestWithdrawal(*_)
+        status(withdrawalId) == WithdrawalRequestStatusEnum.CREATED
+        balance() == 70
+
+        when:
+        sut.start()
+        waitUntil { requested.size() == 1 }
+
+        then:
+        1 * withdrawalService.requestWithdrawal({ it.value().toString() == withdrawalId }, _, 0.3)
+        status(withdrawalId) == WithdrawalRequestStatusEnum.REQUESTED
+        requested == [withdrawalId]
+    }
+
+    def "provider errors are retried"() {
+        given: "a provider that fails twice"
+        def calls = new AtomicInteger()
+        withdrawalService.requestWithdrawal(*_) >> {
+            if (calls.incrementAndGet() <= 2) {
+                throw new RuntimeException("timeout")
+            }
+        }
+        sut.start()
+
+        when:
+        def withdrawalId = withdraw(30)
+        waitUntil { requested.size() == 1 }
+
+        then:
+        calls.get() == 3
+        sut.retryCount == 2
+        status(withdrawalId) == WithdrawalRequestStatusEnum.REQUESTED
+    }
+
+    def "withdrawals rejected by the provider are failed and refunded"() {
+        given:
+        withdrawalService.requestWithdrawal(*_) >> { throw new IllegalArgumentException("bad address") }
+        sut.start()
+
+        when:
+        def withdrawalId = withdraw(30)
+        waitUntil { sut.rejectedCount == 1 }
+
+        then:
+        status(withdrawalId) == WithdrawalRequestStatusEnum.FAILED
+        balance() == 100
+        requested.isEmpty()
+    }
+
+    def "a slow provider does not slow down withdrawal requests"() {
+        given: "a provider that hangs until released"
+        def release = new CountDownLatch(1)
+        withdrawalService.requestWithdrawal(*_) >> { release.await(5, TimeUnit.SECONDS) }
+        sut.start()
+        withdraw(10)
+
+        when: "more withdrawals are requested while the provider is stuck"
+        def started = System.nanoTime()
+        (1..5).each { withdraw(10) }
+        def elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started)
+        release.countDown()
+        waitUntil { requested.size() == 6 }
+
+        then:
+        elapsedMillis < 1_000
+        requested.size() == 6
+        balance() == 40
+    }
+}
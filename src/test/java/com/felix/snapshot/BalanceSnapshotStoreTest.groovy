@@ -0,0 +1,117 @@
+package com.felix.snapshot
+
+import com.felix.DbSchema
+import com.felix.HikariCPDataSource
+import com.felix.SqliteProfile
+import com.felix.dao.BalanceDAO
+import com.felix.dto.TransferRequest
+import com.felix.external.WithdrawalService
+import com.felix.service.TransferService
+import com.zaxxer.hikari.HikariDataSource
+import spock.lang.Specification
+
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.TimeUnit
+
+class BalanceSnapshotStoreTest extends Specification {
+    HikariDataSource writeDataSource
+    HikariDataSource readDataSource
+    TransferService transferService
+
+    BalanceSnapshotStore sut
+
+    def setup() {
+        writeDataSource = HikariCPDataSource.createWriterDataSource("test-snapshot.db", SqliteProfile.defaults())
+        DbSchema.setup(writeDataSource)
+        readDataSource = HikariCPDataSource.createReaderDataSource("test-snapshot.db", SqliteProfile.defaults())
+        writeDataSource.getConnection().withCloseable { conn ->
+            (1..3).each { new BalanceDAO(conn).setupAccount(it, it, 100) }
+        }
+        transferService = new TransferService(writeDataSource, readDataSource, Mock(WithdrawalService), null)
+        sut = new BalanceSnapshotStore(readDataSource, 2, 1_000)
+    }
+
+    def cleanup() {
+        sut.close()
+        readDataSource.close()
+        writeDataSource.close()
+        ["", "-wal", "-shm"].each { new File("test-snapshot.db" + it).delete() }
+    }
+
+    def "a snapshot keeps its balances and seq while transfers commit"() {
+        given:
+        def snapshot = BalanceSnapshot.open(readDataSource)
+
+        when: "transfers commit on the writer without waiting for the snapshot"
+        def transfers = CompletableFuture.supplyAsync {
+            (1..10).collect { transferService.transfer(transfer(1, 2, 5)) }
+        }
+
+        then:
+        transfers.get(5, TimeUnit.SECONDS).every { it.isSuccessful() }
+        balances(snapshot) == [1: 100L, 2: 100L, 3: 100L]
+        snapshot.getBalance(1) == 100
+
+        when:
+        def later = BalanceSnapshot.open(readDataSource)
+
+        then: "a later snapshot sees both sides of every transfer, two balance changes each"
+        later.getSeq() == snapshot.getSeq() + 20
+        balances(later) == [1: 50L, 2: 150L, 3: 100L]
+        snapshot.getBalance(1) == 100
+
+        cleanup:
+        snapshot?.close()
+        later?.close()
+    }
+
+    def "a failed transfer leaves the seq alone"() {
+        given:
+        def before = BalanceSnapshot.open(readDataSource).withCloseable { it.getSeq() }
+
+        when:
+        def result = transferService.transfer(transfer(3, 1, 1_000))
+
+        then:
+        !result.isSuccessful()
+        BalanceSnapshot.open(readDataSource).withCloseable { it.getSeq() } == before
+    }
+
+    def "leases are bounded, released and expired"() {
+        when:
+        def first = sut.open()
+        def second = sut.open()
+
+        then:
+        sut.open() == null
+        sut.getOpenCount() == 2
+        sut.get(first.id()).is(first.snapshot())
+
+        when:
+        def released = sut.release(first.id())
+
+        then:
+        released
+        !sut.release(first.id())
+        sut.get(first.id()) == null
+
+        when: "the remaining one goes unused past its TTL"
+        def expired = sut.expire(System.currentTimeMillis() + 1_000)
+
+        then:
+        expired == 1
+        sut.get(second.id()) == null
+        sut.getOpenCount() == 0
+        readDataSource.getHikariPoolMXBean().getActiveConnections() == 0
+    }
+
+    private static TransferRequest transfer(int from, int to, long amount) {
+        TransferRequest.builder().fromAccountId(from).toAccountId(to).amount(amount).build()
+    }
+
+    private static Map<Integer, Long> balances(BalanceSnapshot snapshot) {
+        def balances = [:]
+        snapshot.streamAccountBalances(0, 0) { accountId, userId, balance -> balances[accountId] = balance }
+        balances
+    }
+}